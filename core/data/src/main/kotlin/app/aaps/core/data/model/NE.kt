@@ -17,4 +17,46 @@ data class NE(
     val totalDailyDoses: List<TDD>,
     //val versionChanges: List<VersionChange>,
     val heartRates: List<HR>,
-)
+) {
+
+    /**
+     * Last id read from every table, pages are ordered by id and next page starts after it
+     *
+     * Heart rates are not exported by Open Humans so they are read only if [heartRates] is set.
+     */
+    data class Cursor(
+        val bolusCalculatorResults: Long = 0,
+        val boluses: Long = 0,
+        val carbs: Long = 0,
+        val effectiveProfileSwitches: Long = 0,
+        val extendedBoluses: Long = 0,
+        val glucoseValues: Long = 0,
+        val offlineEvents: Long = 0,
+        val profileSwitches: Long = 0,
+        val temporaryBasals: Long = 0,
+        val temporaryTarget: Long = 0,
+        val therapyEvents: Long = 0,
+        val totalDailyDoses: Long = 0,
+        val heartRates: Long? = null,
+    )
+
+    /**
+     * Cursor for the page following this one
+     */
+    fun next(cursor: Cursor): Cursor =
+        Cursor(
+            bolusCalculatorResults = bolusCalculatorResults.lastOrNull()?.id ?: cursor.bolusCalculatorResults,
+            boluses = boluses.lastOrNull()?.id ?: cursor.boluses,
+            carbs = carbs.lastOrNull()?.id ?: cursor.carbs,
+            effectiveProfileSwitches = effectiveProfileSwitches.lastOrNull()?.id ?: cursor.effectiveProfileSwitches,
+            extendedBoluses = extendedBoluses.lastOrNull()?.id ?: cursor.extendedBoluses,
+            glucoseValues = glucoseValues.lastOrNull()?.id ?: cursor.glucoseValues,
+            offlineEvents = offlineEvents.lastOrNull()?.id ?: cursor.offlineEvents,
+            profileSwitches = profileSwitches.lastOrNull()?.id ?: cursor.profileSwitches,
+            temporaryBasals = temporaryBasals.lastOrNull()?.id ?: cursor.temporaryBasals,
+            temporaryTarget = temporaryTarget.lastOrNull()?.id ?: cursor.temporaryTarget,
+            therapyEvents = therapyEvents.lastOrNull()?.id ?: cursor.therapyEvents,
+            totalDailyDoses = totalDailyDoses.lastOrNull()?.id ?: cursor.totalDailyDoses,
+            heartRates = heartRates.lastOrNull()?.id ?: cursor.heartRates,
+        )
+}
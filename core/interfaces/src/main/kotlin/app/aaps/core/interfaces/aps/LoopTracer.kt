@@ -0,0 +1,79 @@
+package app.aaps.core.interfaces.aps
+
+/**
+ * Durations of loop stages collected into histograms
+ *
+ * Used to find out whether late TBR was caused by algorithm, database or pump queue.
+ */
+interface LoopTracer {
+
+    /**
+     * Traced stages, ordinal is persisted so new stages must be added at the end
+     */
+    enum class Stage {
+
+        /** loop invocation constraints */
+        CONSTRAINTS,
+
+        /** profile resolution */
+        PROFILE,
+
+        /** waiting for empty command queue */
+        QUEUE_WAIT,
+
+        /** APS algorithm incl. preparation of inputs */
+        ALGORITHM,
+
+        /** storing of APS result to database */
+        STORE_RESULT,
+
+        /** basal and bolus constraints applied to APS result */
+        APPLY_CONSTRAINTS,
+
+        /** TBR request until pump callback */
+        TBR_ENACT,
+
+        /** SMB request until pump callback */
+        SMB_ENACT,
+
+        /** whole loop invocation which produced APS result */
+        TOTAL
+    }
+
+    /**
+     * Record duration of [stage]
+     */
+    fun record(stage: Stage, millis: Long)
+
+    /**
+     * Persist durations recorded since last flush, called once per loop run
+     */
+    fun flush()
+
+    /**
+     * Human readable statistics of all stages
+     *
+     * Waits for loading of history and pending writes so it must not be called on the main thread.
+     */
+    fun report(): String
+
+    /**
+     * Clear collected statistics
+     */
+    fun reset()
+}
+
+/**
+ * Record time elapsed since [startNanos] taken from [System.nanoTime]
+ */
+fun LoopTracer.recordSince(stage: LoopTracer.Stage, startNanos: Long) =
+    record(stage, (System.nanoTime() - startNanos) / 1_000_000)
+
+inline fun <T> LoopTracer.trace(stage: LoopTracer.Stage, block: () -> T): T {
+    val start = System.nanoTime()
+    try {
+        return block()
+    } finally {
+        recordSince(stage, start)
+    }
+}
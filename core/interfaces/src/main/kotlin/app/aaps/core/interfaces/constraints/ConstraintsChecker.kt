@@ -32,4 +32,11 @@ interface ConstraintsChecker : PluginConstraints {
     fun getMaxExtendedBolusAllowed(): Constraint<Double>
     fun getMaxCarbsAllowed(): Constraint<Int>
     fun getMaxIOBAllowed(): Constraint<Double>
+
+    /**
+     * Max values determined by the calling thread are reused until [endLoopSnapshot]
+     * Called by loop at the beginning of every run, previous snapshot is dropped
+     */
+    fun beginLoopSnapshot()
+    fun endLoopSnapshot()
 }
\ No newline at end of file
@@ -118,6 +118,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementBolus(id: Long): Maybe<Pair<BS, BS>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsBolus(id: Long, limit: Int): List<Pair<BS, BS>>
+
     /**
      * Insert or update if exists record
      *
@@ -262,6 +271,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementCarbs(id: Long): Maybe<Pair<CA, CA>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsCarbs(id: Long, limit: Int): List<Pair<CA, CA>>
+
     /**
      * Insert or update if exists record
      *
@@ -409,6 +427,15 @@ interface PersistenceLayer {
      * @return database record
      */
     fun getNextSyncElementGlucoseValue(id: Long): Maybe<Pair<GV, GV>>
+
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): List<Pair<GV, GV>>
     fun getBgReadingsDataFromTimeToTime(start: Long, end: Long, ascending: Boolean): List<GV>
     fun getBgReadingsDataFromTime(timestamp: Long, ascending: Boolean): Single<List<GV>>
     fun getBgReadingByNSId(nsId: String): GV?
@@ -426,6 +453,14 @@ interface PersistenceLayer {
     fun invalidateGlucoseValue(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<TransactionResult<GV>>
     fun insertCgmSourceData(caller: Sources, glucoseValues: List<GV>, calibrations: List<Calibration>, sensorInsertionTime: Long?): Single<TransactionResult<GV>>
 
+    /**
+     * Insert data from CGM source in one transaction
+     *
+     * @param invalidateInsertedCloserThan newly inserted values closer to each other than this (in ms) are invalidated in the same transaction, 0 = none
+     * @return List of changed records
+     */
+    fun insertCgmSourceData(caller: Sources, glucoseValues: List<GV>, calibrations: List<Calibration>, sensorInsertionTime: Long?, invalidateInsertedCloserThan: Long): Single<TransactionResult<GV>>
+
     /**
      * Update NS id' in database
      *
@@ -589,6 +624,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementProfileSwitch(id: Long): Maybe<Pair<PS, PS>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): List<Pair<PS, PS>>
+
     /**
      * Get record with highest id
      *
@@ -856,6 +900,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementExtendedBolus(id: Long): Maybe<Pair<EB, EB>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): List<Pair<EB, EB>>
+
     /**
      * Invalidate record with id
      *
@@ -935,6 +988,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementTemporaryTarget(id: Long): Maybe<Pair<TT, TT>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): List<Pair<TT, TT>>
+
     /**
      * Invalidate record with id
      *
@@ -992,6 +1054,15 @@ interface PersistenceLayer {
      */
     fun getNextSyncElementTherapyEvent(id: Long): Maybe<Pair<TE, TE>>
 
+    /**
+     * Get changed records after id in one query
+     *
+     * @param id record id
+     * @param limit maximum number of records
+     * @return pairs of current and changed database record ordered by id
+     */
+    fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): List<Pair<TE, TE>>
+
     /**
      * Insert record if not exists
      *
@@ -1360,7 +1431,13 @@ interface PersistenceLayer {
             .sumOf { it.amount }
     }
 
-    fun collectNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): NE
+    /**
+     * Page of entries created in (since, until], at most [limit] of every table
+     *
+     * @param cursor position after the previous page, see [NE.next]
+     */
+    fun collectNewEntriesSince(since: Long, until: Long, limit: Int, cursor: NE.Cursor): NE
+
     class TransactionResult<T> {
 
         val inserted = mutableListOf<T>()
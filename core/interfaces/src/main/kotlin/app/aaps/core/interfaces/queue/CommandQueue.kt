@@ -15,6 +15,12 @@ interface CommandQueue {
     fun size(): Int
     fun performing(): Command?
     fun resetPerforming()
+
+    /**
+     * Blocks until queue is empty and no command is performed
+     * @return false if [timeoutMillis] elapsed before
+     */
+    fun waitForEmptyQueue(timeoutMillis: Long): Boolean
     fun independentConnect(reason: String, callback: Callback?)
     fun bolusInQueue(): Boolean
     fun bolus(detailedBolusInfo: DetailedBolusInfo, callback: Callback?): Boolean
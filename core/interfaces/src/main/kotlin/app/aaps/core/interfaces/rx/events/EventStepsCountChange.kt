@@ -0,0 +1,3 @@
+package app.aaps.core.interfaces.rx.events
+
+class EventStepsCountChange : Event()
\ No newline at end of file
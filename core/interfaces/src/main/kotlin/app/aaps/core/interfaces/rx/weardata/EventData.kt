@@ -72,6 +72,9 @@ sealed class EventData : Event() {
     @Serializable
     data class ActionResendData(val from: String) : EventData()
 
+    @Serializable
+    data class ActionSyncGap(val lastSequence: Long) : EventData()
+
     @Serializable
     data class ActionPumpStatus(val timeStamp: Long) : EventData()
 
@@ -237,6 +240,13 @@ sealed class EventData : Event() {
     @Serializable
     data class BolusProgress(val percent: Int, val status: String) : EventData()
 
+    /**
+     * Versioned state sync. [items] contain only data changed since message [sequence] - 1.
+     * GraphData in non [full] message contains only new or changed BG points.
+     */
+    @Serializable
+    data class SyncDelta(val sequence: Long, val full: Boolean, val items: List<EventData>) : EventData()
+
     interface EventDataSet {
 
         var dataset: Int
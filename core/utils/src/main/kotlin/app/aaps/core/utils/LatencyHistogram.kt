@@ -0,0 +1,73 @@
+package app.aaps.core.utils
+
+/**
+ * Fixed bucket latency histogram.
+ *
+ * Recording only increments counters, so it is cheap enough to be used on hot paths.
+ *
+ * @param bounds ascending upper bounds of buckets in milliseconds, values above the last bound go to overflow bucket
+ */
+class LatencyHistogram(val bounds: LongArray = DEFAULT_BOUNDS) {
+
+    private val counts = LongArray(bounds.size + 1)
+    private var sum = 0L
+
+    var count = 0L
+        @Synchronized get
+        private set
+    var max = 0L
+        @Synchronized get
+        private set
+
+    @Synchronized
+    fun record(millis: Long) {
+        val value = millis.coerceAtLeast(0)
+        var bucket = 0
+        while (bucket < bounds.size && value > bounds[bucket]) bucket++
+        counts[bucket]++
+        count++
+        sum += value
+        if (value > max) max = value
+    }
+
+    /**
+     * Copy of bucket counters, last item is overflow bucket
+     */
+    @Synchronized
+    fun counts(): LongArray = counts.copyOf()
+
+    @Synchronized
+    fun average(): Long = if (count == 0L) 0 else sum / count
+
+    /**
+     * Upper bound of bucket containing [fraction] (0..1) of recorded values, [max] for overflow bucket
+     */
+    @Synchronized
+    fun percentile(fraction: Double): Long {
+        if (count == 0L) return 0
+        val target = (fraction * count).toLong().coerceIn(1, count)
+        var cumulative = 0L
+        for (bucket in bounds.indices) {
+            cumulative += counts[bucket]
+            if (cumulative >= target) return minOf(bounds[bucket], max)
+        }
+        return max
+    }
+
+    @Synchronized
+    fun reset() {
+        counts.fill(0)
+        count = 0
+        sum = 0
+        max = 0
+    }
+
+    @Synchronized
+    override fun toString(): String =
+        "n=$count avg=${average()}ms p50<=${percentile(0.5)}ms p95<=${percentile(0.95)}ms max=${max}ms"
+
+    companion object {
+
+        val DEFAULT_BOUNDS = longArrayOf(10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000)
+    }
+}
@@ -0,0 +1,51 @@
+package app.aaps.core.utils
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class LatencyHistogramTest {
+
+    @Test
+    fun recordsIntoBuckets() {
+        val sut = LatencyHistogram(longArrayOf(10, 100, 1000))
+        sut.record(0)
+        sut.record(10)
+        sut.record(11)
+        sut.record(1000)
+        sut.record(5000)
+        sut.record(-5)
+        assertThat(sut.counts().toList()).containsExactly(3L, 1L, 1L, 1L).inOrder()
+        assertThat(sut.count).isEqualTo(6)
+        assertThat(sut.max).isEqualTo(5000)
+        assertThat(sut.average()).isEqualTo((0 + 10 + 11 + 1000 + 5000) / 6L)
+    }
+
+    @Test
+    fun percentileReturnsBucketBound() {
+        val sut = LatencyHistogram(longArrayOf(10, 100, 1000))
+        assertThat(sut.percentile(0.5)).isEqualTo(0)
+        repeat(90) { sut.record(5) }
+        repeat(9) { sut.record(50) }
+        sut.record(20000)
+        assertThat(sut.percentile(0.5)).isEqualTo(10)
+        assertThat(sut.percentile(0.95)).isEqualTo(100)
+        assertThat(sut.percentile(1.0)).isEqualTo(20000)
+    }
+
+    @Test
+    fun percentileIsCappedByMax() {
+        val sut = LatencyHistogram(longArrayOf(10, 100, 1000))
+        sut.record(42)
+        assertThat(sut.percentile(0.5)).isEqualTo(42)
+    }
+
+    @Test
+    fun resetClearsAll() {
+        val sut = LatencyHistogram()
+        sut.record(42)
+        sut.reset()
+        assertThat(sut.count).isEqualTo(0)
+        assertThat(sut.max).isEqualTo(0)
+        assertThat(sut.counts().sum()).isEqualTo(0)
+    }
+}
@@ -21,6 +21,7 @@ import app.aaps.database.entities.UserEntry
 import app.aaps.database.entities.data.NewEntries
 import app.aaps.database.entities.embedments.InterfaceIDs
 import app.aaps.database.entities.interfaces.DBEntry
+import app.aaps.database.entities.interfaces.TraceableDBEntry
 import app.aaps.database.transactions.Transaction
 import io.reactivex.rxjava3.core.Completable
 import io.reactivex.rxjava3.core.Maybe
@@ -159,6 +160,23 @@ class AppRepository @Inject internal constructor(
             .subscribeOn(Schedulers.io())
             .blockingGet()
 
+    /*
+       * Pairs records changed after the last synced id with their current versions in the same way as getNextSyncElement*,
+       * current versions of historic records are loaded by one query. Result ends before the first record whose
+       * current version is missing, like the single record variants do.
+       * */
+    private fun <T : TraceableDBEntry> nextSyncElements(changed: List<T>, current: (List<Long>) -> List<T>): List<Pair<T, T>> {
+        val referenceIds = changed.mapNotNull { it.referenceId }.distinct()
+        val currentById = if (referenceIds.isEmpty()) emptyMap() else current(referenceIds).associateBy { it.id }
+        val result = ArrayList<Pair<T, T>>(changed.size)
+        for (element in changed) {
+            val referenceId = element.referenceId
+            if (referenceId == null) result.add(element to element)
+            else result.add((currentById[referenceId] ?: break) to element)
+        }
+        return result
+    }
+
     /*
        * returns a Pair of the next entity to sync and the ID of the "update".
        * The update id might either be the entry id itself if it is a new entry - or the id
@@ -178,6 +196,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementGlucoseValue returning up to limit records
+       * */
+    fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): List<Pair<GlucoseValue, GlucoseValue>> =
+        nextSyncElements(database.glucoseValueDao.getNextModifiedOrNewAfter(id, limit)) { database.glucoseValueDao.getCurrentFromHistoric(it) }
+
     // TEMP TARGETS
     fun findTemporaryTargetByNSId(nsId: String): TemporaryTarget? =
         database.temporaryTargetDao.findByNSId(nsId)
@@ -201,6 +225,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementTemporaryTarget returning up to limit records
+       * */
+    fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): List<Pair<TemporaryTarget, TemporaryTarget>> =
+        nextSyncElements(database.temporaryTargetDao.getNextModifiedOrNewAfter(id, limit)) { database.temporaryTargetDao.getCurrentFromHistoric(it) }
+
     fun getTemporaryTargetDataFromTime(timestamp: Long, ascending: Boolean): Single<List<TemporaryTarget>> =
         database.temporaryTargetDao.getTemporaryTargetDataFromTime(timestamp)
             .map { if (!ascending) it.reversed() else it }
@@ -249,6 +279,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementProfileSwitch returning up to limit records
+       * */
+    fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): List<Pair<ProfileSwitch, ProfileSwitch>> =
+        nextSyncElements(database.profileSwitchDao.getNextModifiedOrNewAfter(id, limit)) { database.profileSwitchDao.getCurrentFromHistoric(it) }
+
     fun getProfileSwitchActiveAt(timestamp: Long): ProfileSwitch? {
         val tps = database.profileSwitchDao.getTemporaryProfileSwitchActiveAt(timestamp)
             .subscribeOn(Schedulers.io())
@@ -355,6 +391,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementTherapyEvent returning up to limit records
+       * */
+    fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): List<Pair<TherapyEvent, TherapyEvent>> =
+        nextSyncElements(database.therapyEventDao.getNextModifiedOrNewAfter(id, limit)) { database.therapyEventDao.getCurrentFromHistoric(it) }
+
     fun getTherapyEventDataFromTime(timestamp: Long, ascending: Boolean): Single<List<TherapyEvent>> =
         database.therapyEventDao.getTherapyEventDataFromTime(timestamp)
             .map { if (!ascending) it.reversed() else it }
@@ -434,6 +476,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementBolus returning up to limit records
+       * */
+    fun getNextSyncElementsBolus(id: Long, limit: Int): List<Pair<Bolus, Bolus>> =
+        nextSyncElements(database.bolusDao.getNextModifiedOrNewAfterExclude(id, limit, Bolus.Type.PRIMING)) { database.bolusDao.getCurrentFromHistoric(it) }
+
     fun getNewestBolus(): Maybe<Bolus> =
         database.bolusDao.getLastBolusRecord()
             .subscribeOn(Schedulers.io())
@@ -506,6 +554,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementCarbs returning up to limit records
+       * */
+    fun getNextSyncElementsCarbs(id: Long, limit: Int): List<Pair<Carbs, Carbs>> =
+        nextSyncElements(database.carbsDao.getNextModifiedOrNewAfter(id, limit)) { database.carbsDao.getCurrentFromHistoric(it) }
+
     fun getLastCarbs(): Maybe<Carbs> =
         database.carbsDao.getLastCarbsRecordMaybe()
             .subscribeOn(Schedulers.io())
@@ -682,6 +736,12 @@ class AppRepository @Inject internal constructor(
                 }
             }
 
+    /*
+       * Batch variant of getNextSyncElementExtendedBolus returning up to limit records
+       * */
+    fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): List<Pair<ExtendedBolus, ExtendedBolus>> =
+        nextSyncElements(database.extendedBolusDao.getNextModifiedOrNewAfter(id, limit)) { database.extendedBolusDao.getCurrentFromHistoric(it) }
+
     fun getExtendedBolusActiveAt(timestamp: Long): Maybe<ExtendedBolus> =
         database.extendedBolusDao.getExtendedBolusActiveAt(timestamp)
             .subscribeOn(Schedulers.io())
@@ -772,24 +832,27 @@ class AppRepository @Inject internal constructor(
     fun getLastStepsCountFromTimeToTime(startMillis: Long, endMillis: Long) =
         database.stepsCountDao.getLastStepsCountFromTimeToTime(startMillis, endMillis)
 
-    fun collectNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int) = NewEntries(
-        apsResults = database.apsResultDao.getNewEntriesSince(since, until, limit, offset),
-        bolusCalculatorResults = database.bolusCalculatorResultDao.getNewEntriesSince(since, until, limit, offset),
-        boluses = database.bolusDao.getNewEntriesSince(since, until, limit, offset),
-        carbs = database.carbsDao.getNewEntriesSince(since, until, limit, offset),
-        effectiveProfileSwitches = database.effectiveProfileSwitchDao.getNewEntriesSince(since, until, limit, offset),
-        extendedBoluses = database.extendedBolusDao.getNewEntriesSince(since, until, limit, offset),
-        glucoseValues = database.glucoseValueDao.getNewEntriesSince(since, until, limit, offset),
-        offlineEvents = database.offlineEventDao.getNewEntriesSince(since, until, limit, offset),
-        preferencesChanges = database.preferenceChangeDao.getNewEntriesSince(since, until, limit, offset),
-        profileSwitches = database.profileSwitchDao.getNewEntriesSince(since, until, limit, offset),
-        temporaryBasals = database.temporaryBasalDao.getNewEntriesSince(since, until, limit, offset),
-        temporaryTarget = database.temporaryTargetDao.getNewEntriesSince(since, until, limit, offset),
-        therapyEvents = database.therapyEventDao.getNewEntriesSince(since, until, limit, offset),
-        totalDailyDoses = database.totalDailyDoseDao.getNewEntriesSince(since, until, limit, offset),
-        versionChanges = database.versionChangeDao.getNewEntriesSince(since, until, limit, offset),
-        heartRates = database.heartRateDao.getNewEntriesSince(since, until, limit, offset),
-        stepsCount = database.stepsCountDao.getNewEntriesSince(since, until, limit, offset),
+    /**
+     * Next page of entries created in (since, until], up to [limit] entries of every table ordered by id
+     */
+    fun collectNewEntriesSince(since: Long, until: Long, limit: Int, cursor: NewEntries.Cursor) = NewEntries(
+        apsResults = cursor.apsResults?.let { database.apsResultDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        bolusCalculatorResults = cursor.bolusCalculatorResults?.let { database.bolusCalculatorResultDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        boluses = cursor.boluses?.let { database.bolusDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        carbs = cursor.carbs?.let { database.carbsDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        effectiveProfileSwitches = cursor.effectiveProfileSwitches?.let { database.effectiveProfileSwitchDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        extendedBoluses = cursor.extendedBoluses?.let { database.extendedBolusDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        glucoseValues = cursor.glucoseValues?.let { database.glucoseValueDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        offlineEvents = cursor.offlineEvents?.let { database.offlineEventDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        preferencesChanges = cursor.preferencesChanges?.let { database.preferenceChangeDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        profileSwitches = cursor.profileSwitches?.let { database.profileSwitchDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        temporaryBasals = cursor.temporaryBasals?.let { database.temporaryBasalDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        temporaryTarget = cursor.temporaryTarget?.let { database.temporaryTargetDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        therapyEvents = cursor.therapyEvents?.let { database.therapyEventDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        totalDailyDoses = cursor.totalDailyDoses?.let { database.totalDailyDoseDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        versionChanges = cursor.versionChanges?.let { database.versionChangeDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        heartRates = cursor.heartRates?.let { database.heartRateDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
+        stepsCount = cursor.stepsCount?.let { database.stepsCountDao.getNewEntriesSince(since, until, it, limit) } ?: emptyList(),
     )
 
     fun getApsResultCloseTo(timestamp: Long): Maybe<APSResult> =
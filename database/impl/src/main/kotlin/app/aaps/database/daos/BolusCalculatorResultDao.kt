@@ -45,6 +45,6 @@ internal interface BolusCalculatorResultDao : TraceableDao<BolusCalculatorResult
     @Query("SELECT * FROM $TABLE_BOLUS_CALCULATOR_RESULTS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<BolusCalculatorResult>
 
-    @Query("SELECT * FROM $TABLE_BOLUS_CALCULATOR_RESULTS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<BolusCalculatorResult>
+    @Query("SELECT * FROM $TABLE_BOLUS_CALCULATOR_RESULTS WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<BolusCalculatorResult>
 }
\ No newline at end of file
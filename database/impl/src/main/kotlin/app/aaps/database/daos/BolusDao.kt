@@ -63,6 +63,12 @@ internal interface BolusDao : TraceableDao<Bolus> {
     @Query("SELECT * FROM $TABLE_BOLUSES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Bolus>
 
-    @Query("SELECT * FROM $TABLE_BOLUSES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<Bolus>
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE unlikely(id > :id) AND likely(pumpId IS NOT NULL) AND likely(type <> :exclude) ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfterExclude(id: Long, limit: Int, exclude: Bolus.Type = Bolus.Type.PRIMING): List<Bolus>
+
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<Bolus>
+
+    @Query("SELECT * FROM $TABLE_BOLUSES WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<Bolus>
 }
\ No newline at end of file
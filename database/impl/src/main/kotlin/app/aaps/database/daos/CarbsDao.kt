@@ -56,8 +56,14 @@ internal interface CarbsDao : TraceableDao<Carbs> {
     @Query("SELECT * FROM $TABLE_CARBS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<Carbs>
 
-    @Query("SELECT * FROM $TABLE_CARBS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<Carbs>
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<Carbs>
+
+    @Query("SELECT * FROM $TABLE_CARBS WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<Carbs>
+
+    @Query("SELECT * FROM $TABLE_CARBS WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<Carbs>
 
     @Query("SELECT * FROM $TABLE_CARBS WHERE isValid = 1 AND referenceId IS NULL AND timestamp < time() ORDER BY timestamp DESC LIMIT 1")
     fun getMostRecentCarbByDate(): Carbs?
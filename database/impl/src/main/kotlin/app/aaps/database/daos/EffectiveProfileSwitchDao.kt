@@ -53,7 +53,7 @@ internal interface EffectiveProfileSwitchDao : TraceableDao<EffectiveProfileSwit
     @Query("SELECT * FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<EffectiveProfileSwitch>
 
-    @Query("SELECT * FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<EffectiveProfileSwitch>
+    @Query("SELECT * FROM $TABLE_EFFECTIVE_PROFILE_SWITCHES WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<EffectiveProfileSwitch>
 
 }
\ No newline at end of file
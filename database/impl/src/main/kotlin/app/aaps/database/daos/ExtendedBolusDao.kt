@@ -57,10 +57,16 @@ internal interface ExtendedBolusDao : TraceableDao<ExtendedBolus> {
     @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<ExtendedBolus>
 
+    @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<ExtendedBolus>
+
+    @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<ExtendedBolus>
+
     @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE isValid = 1 AND referenceId IS NULL ORDER BY id ASC LIMIT 1")
     fun getOldestRecord(): Maybe<ExtendedBolus>
 
-    @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<ExtendedBolus>
+    @Query("SELECT * FROM $TABLE_EXTENDED_BOLUSES WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<ExtendedBolus>
 
 }
\ No newline at end of file
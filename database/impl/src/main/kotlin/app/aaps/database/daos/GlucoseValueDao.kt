@@ -47,6 +47,12 @@ internal interface GlucoseValueDao : TraceableDao<GlucoseValue> {
     @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<GlucoseValue>
 
-    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<GlucoseValue>
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<GlucoseValue>
+
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<GlucoseValue>
+
+    @Query("SELECT * FROM $TABLE_GLUCOSE_VALUES WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<GlucoseValue>
 }
\ No newline at end of file
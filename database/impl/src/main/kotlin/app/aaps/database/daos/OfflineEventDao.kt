@@ -44,6 +44,6 @@ internal interface OfflineEventDao : TraceableDao<OfflineEvent> {
     @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<OfflineEvent>
 
-    @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<OfflineEvent>
+    @Query("SELECT * FROM $TABLE_OFFLINE_EVENTS WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<OfflineEvent>
 }
\ No newline at end of file
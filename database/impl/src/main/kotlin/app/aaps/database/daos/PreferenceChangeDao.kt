@@ -15,7 +15,7 @@ interface PreferenceChangeDao {
     @Query("DELETE FROM $TABLE_PREFERENCE_CHANGES WHERE timestamp < :than")
     fun deleteOlderThan(than: Long): Int
 
-    @Query("SELECT * FROM $TABLE_PREFERENCE_CHANGES WHERE timestamp > :since AND timestamp <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<PreferenceChange>
+    @Query("SELECT * FROM $TABLE_PREFERENCE_CHANGES WHERE timestamp > :since AND timestamp <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<PreferenceChange>
 
 }
\ No newline at end of file
@@ -55,8 +55,14 @@ internal interface ProfileSwitchDao : ProfileSwitchDaoWorkaround {
     @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<ProfileSwitch>
 
-    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<ProfileSwitch>
+    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<ProfileSwitch>
+
+    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<ProfileSwitch>
+
+    @Query("SELECT * FROM $TABLE_PROFILE_SWITCHES WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<ProfileSwitch>
 }
 
 internal fun ProfileSwitchDao.insertNewEntryImpl(entry: ProfileSwitch): Long {
@@ -28,8 +28,8 @@ internal interface StepsCountDao : TraceableDao<StepsCount> {
     @Query("SELECT * FROM $TABLE_STEPS_COUNT WHERE timestamp BETWEEN :startMillis AND :endMillis ORDER BY timestamp")
     fun getFromTimeToTime(startMillis: Long, endMillis: Long): Single<List<StepsCount>>
 
-    @Query("SELECT * FROM $TABLE_STEPS_COUNT WHERE timestamp > :since AND timestamp <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<StepsCount>
+    @Query("SELECT * FROM $TABLE_STEPS_COUNT WHERE timestamp > :since AND timestamp <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<StepsCount>
 
     @Query("SELECT * FROM $TABLE_STEPS_COUNT WHERE timestamp >= :timestamp ORDER BY timestamp DESC LIMIT 1")
     fun getLastStepsCountFromTime(timestamp: Long): Maybe<StepsCount>
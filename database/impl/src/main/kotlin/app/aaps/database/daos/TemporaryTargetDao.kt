@@ -44,6 +44,12 @@ internal interface TemporaryTargetDao : TraceableDao<TemporaryTarget> {
     @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<TemporaryTarget>
 
-    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<TemporaryTarget>
+    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<TemporaryTarget>
+
+    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<TemporaryTarget>
+
+    @Query("SELECT * FROM $TABLE_TEMPORARY_TARGETS WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<TemporaryTarget>
 }
\ No newline at end of file
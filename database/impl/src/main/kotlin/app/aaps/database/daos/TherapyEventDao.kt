@@ -56,8 +56,14 @@ internal interface TherapyEventDao : TraceableDao<TherapyEvent> {
     @Query("SELECT * FROM $TABLE_THERAPY_EVENTS WHERE id = :referenceId")
     fun getCurrentFromHistoric(referenceId: Long): Maybe<TherapyEvent>
 
-    @Query("SELECT * FROM $TABLE_THERAPY_EVENTS WHERE dateCreated > :since AND dateCreated <= :until LIMIT :limit OFFSET :offset")
-    fun getNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): List<TherapyEvent>
+    @Query("SELECT * FROM $TABLE_THERAPY_EVENTS WHERE id > :id ORDER BY id ASC LIMIT :limit")
+    fun getNextModifiedOrNewAfter(id: Long, limit: Int): List<TherapyEvent>
+
+    @Query("SELECT * FROM $TABLE_THERAPY_EVENTS WHERE id IN (:referenceIds)")
+    fun getCurrentFromHistoric(referenceIds: List<Long>): List<TherapyEvent>
+
+    @Query("SELECT * FROM $TABLE_THERAPY_EVENTS WHERE dateCreated > :since AND dateCreated <= :until AND id > :afterId ORDER BY id ASC LIMIT :limit")
+    fun getNewEntriesSince(since: Long, until: Long, afterId: Long, limit: Int): List<TherapyEvent>
     @Query("DELETE FROM $TABLE_THERAPY_EVENTS WHERE id IN (SELECT id FROM $TABLE_THERAPY_EVENTS WHERE note LIKE '%' || :noteKeyword || '%' ORDER BY timestamp DESC LIMIT 1)")
     fun deleteLastEventMatchingKeyword(noteKeyword: String)
 }
\ No newline at end of file
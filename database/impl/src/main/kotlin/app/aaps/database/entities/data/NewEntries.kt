@@ -36,4 +36,28 @@ data class NewEntries(
     val versionChanges: List<VersionChange>,
     val heartRates: List<HeartRate>,
     val stepsCount: List<StepsCount>,
-)
+) {
+
+    /**
+     * Last id read from every table, next page starts after it. Tables with null are not read.
+     */
+    data class Cursor(
+        val apsResults: Long? = null,
+        val bolusCalculatorResults: Long? = null,
+        val boluses: Long? = null,
+        val carbs: Long? = null,
+        val effectiveProfileSwitches: Long? = null,
+        val extendedBoluses: Long? = null,
+        val glucoseValues: Long? = null,
+        val offlineEvents: Long? = null,
+        val preferencesChanges: Long? = null,
+        val profileSwitches: Long? = null,
+        val temporaryBasals: Long? = null,
+        val temporaryTarget: Long? = null,
+        val therapyEvents: Long? = null,
+        val totalDailyDoses: Long? = null,
+        val versionChanges: Long? = null,
+        val heartRates: Long? = null,
+        val stepsCount: Long? = null,
+    )
+}
@@ -6,11 +6,14 @@ import app.aaps.database.entities.data.GlucoseUnit
 
 /**
  * Inserts data from a CGM source into the database
+ *
+ * Newly inserted neighbours closer than [invalidateInsertedCloserThan] are invalidated in the same transaction
  */
 class CgmSourceTransaction(
     private val glucoseValues: List<GlucoseValue>,
     private val calibrations: List<Calibration>,
-    private val sensorInsertionTime: Long?
+    private val sensorInsertionTime: Long?,
+    private val invalidateInsertedCloserThan: Long = 0
 ) : Transaction<CgmSourceTransaction.TransactionResult>() {
 
     override fun run(): TransactionResult {
@@ -42,6 +45,17 @@ class CgmSourceTransaction(
                 }
             }
         }
+        if (invalidateInsertedCloserThan > 0) {
+            val inserted = result.inserted.sortedBy { it.timestamp }
+            var i = 0
+            while (i < inserted.size - 1) {
+                if (inserted[i + 1].timestamp - inserted[i].timestamp < invalidateInsertedCloserThan) {
+                    invalidate(inserted[i], result)
+                    invalidate(inserted[i + 1], result)
+                    i += 2
+                } else i++
+            }
+        }
         calibrations.forEach {
             if (database.therapyEventDao.findByTimestamp(TherapyEvent.Type.FINGER_STICK_BG_VALUE, it.timestamp) == null) {
                 val therapyEvent = TherapyEvent(
@@ -68,6 +82,13 @@ class CgmSourceTransaction(
         return result
     }
 
+    private fun invalidate(glucoseValue: GlucoseValue, result: TransactionResult) {
+        glucoseValue.isValid = false
+        database.glucoseValueDao.updateExistingEntry(glucoseValue)
+        result.inserted.remove(glucoseValue)
+        result.invalidated.add(glucoseValue)
+    }
+
     data class Calibration(
         val timestamp: Long,
         val value: Double,
@@ -79,6 +100,7 @@ class CgmSourceTransaction(
         val inserted = mutableListOf<GlucoseValue>()
         val updated = mutableListOf<GlucoseValue>()
         val updatedNsId = mutableListOf<GlucoseValue>()
+        val invalidated = mutableListOf<GlucoseValue>()
 
         val calibrationsInserted = mutableListOf<TherapyEvent>()
         val sensorInsertionsInserted = mutableListOf<TherapyEvent>()
@@ -0,0 +1,86 @@
+package app.aaps.database.transactions
+
+import app.aaps.database.DelegatedAppDatabase
+import app.aaps.database.daos.GlucoseValueDao
+import app.aaps.database.daos.TherapyEventDao
+import app.aaps.database.entities.GlucoseValue
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.kotlin.any
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+
+class CgmSourceTransactionTest {
+
+    private val glucoseValueDao: GlucoseValueDao = mock()
+    private val therapyEventDao: TherapyEventDao = mock()
+    private val database: DelegatedAppDatabase = mock()
+
+    @BeforeEach
+    fun prepare() {
+        whenever(database.glucoseValueDao).thenReturn(glucoseValueDao)
+        whenever(database.therapyEventDao).thenReturn(therapyEventDao)
+    }
+
+    private fun gv(timestamp: Long) =
+        GlucoseValue(timestamp = timestamp, raw = null, value = 100.0, trendArrow = GlucoseValue.TrendArrow.FLAT, noise = null, sourceSensor = GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)
+
+    private fun run(timestamps: List<Long>, invalidateInsertedCloserThan: Long = MINUTE): CgmSourceTransaction.TransactionResult =
+        CgmSourceTransaction(timestamps.map { gv(it) }, emptyList(), null, invalidateInsertedCloserThan)
+            .also { it.database = database }
+            .run()
+
+    @Test
+    fun pairsCloserThanWindowAreInvalidated() {
+        val result = run(listOf(0, 30_000, 5 * MINUTE, 5 * MINUTE + 20_000, 10 * MINUTE))
+
+        assertThat(result.invalidated.map { it.timestamp }).containsExactly(0L, 30_000L, 5 * MINUTE, 5 * MINUTE + 20_000).inOrder()
+        assertThat(result.invalidated.none { it.isValid }).isTrue()
+        assertThat(result.inserted.map { it.timestamp }).containsExactly(10 * MINUTE)
+        verify(glucoseValueDao, times(4)).updateExistingEntry(any())
+    }
+
+    @Test
+    fun oddRunInvalidatesPairsOnly() {
+        // each value is paired at most once, the last value of odd run stays valid
+        val result = run(listOf(0, 20_000, 40_000))
+
+        assertThat(result.invalidated.map { it.timestamp }).containsExactly(0L, 20_000L).inOrder()
+        assertThat(result.inserted.map { it.timestamp }).containsExactly(40_000L)
+        assertThat(result.inserted.single().isValid).isTrue()
+    }
+
+    @Test
+    fun unsortedInputIsPairedByTime() {
+        val result = run(listOf(5 * MINUTE, 30_000, 10 * MINUTE, 0))
+
+        assertThat(result.invalidated.map { it.timestamp }).containsExactly(0L, 30_000L).inOrder()
+        assertThat(result.inserted.map { it.timestamp }).containsExactly(5 * MINUTE, 10 * MINUTE)
+    }
+
+    @Test
+    fun nothingIsInvalidatedWithoutWindow() {
+        val result = run(listOf(0, 30_000), invalidateInsertedCloserThan = 0)
+
+        assertThat(result.invalidated).isEmpty()
+        assertThat(result.inserted).hasSize(2)
+    }
+
+    @Test
+    fun existingValuesAreNotInvalidated() {
+        whenever(glucoseValueDao.findByTimestampAndSensor(0, GlucoseValue.SourceSensor.DEXCOM_G6_NATIVE)).thenReturn(gv(0).also { it.id = 1 })
+
+        val result = run(listOf(0, 30_000))
+
+        assertThat(result.invalidated).isEmpty()
+        assertThat(result.inserted.map { it.timestamp }).containsExactly(30_000L)
+    }
+
+    companion object {
+
+        private const val MINUTE = 60_000L
+    }
+}
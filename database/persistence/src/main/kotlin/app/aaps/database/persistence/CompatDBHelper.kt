@@ -8,10 +8,12 @@ import app.aaps.core.interfaces.rx.events.EventDeviceStatusChange
 import app.aaps.core.interfaces.rx.events.EventEffectiveProfileSwitchChanged
 import app.aaps.core.interfaces.rx.events.EventExtendedBolusChange
 import app.aaps.core.interfaces.rx.events.EventFoodDatabaseChanged
+import app.aaps.core.interfaces.rx.events.EventHeartRateChange
 import app.aaps.core.interfaces.rx.events.EventNewBG
 import app.aaps.core.interfaces.rx.events.EventNewHistoryData
 import app.aaps.core.interfaces.rx.events.EventOfflineChange
 import app.aaps.core.interfaces.rx.events.EventProfileSwitchChanged
+import app.aaps.core.interfaces.rx.events.EventStepsCountChange
 import app.aaps.core.interfaces.rx.events.EventTempBasalChange
 import app.aaps.core.interfaces.rx.events.EventTempTargetChange
 import app.aaps.core.interfaces.rx.events.EventTherapyEventChange
@@ -26,8 +28,10 @@ import app.aaps.database.entities.EffectiveProfileSwitch
 import app.aaps.database.entities.ExtendedBolus
 import app.aaps.database.entities.Food
 import app.aaps.database.entities.GlucoseValue
+import app.aaps.database.entities.HeartRate
 import app.aaps.database.entities.OfflineEvent
 import app.aaps.database.entities.ProfileSwitch
+import app.aaps.database.entities.StepsCount
 import app.aaps.database.entities.TemporaryBasal
 import app.aaps.database.entities.TemporaryTarget
 import app.aaps.database.entities.TherapyEvent
@@ -121,5 +125,13 @@ class CompatDBHelper @Inject constructor(
                 aapsLogger.debug(LTag.DATABASE, "Firing EventDeviceStatusChange $ds")
                 rxBus.send(EventDeviceStatusChange())
             }
+            it.filterIsInstance<HeartRate>().firstOrNull()?.let { hr ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventHeartRateChange $hr")
+                rxBus.send(EventHeartRateChange())
+            }
+            it.filterIsInstance<StepsCount>().firstOrNull()?.let { sc ->
+                aapsLogger.debug(LTag.DATABASE, "Firing EventStepsCountChange $sc")
+                rxBus.send(EventStepsCountChange())
+            }
         }
 }
\ No newline at end of file
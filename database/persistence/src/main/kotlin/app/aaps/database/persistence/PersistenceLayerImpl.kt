@@ -171,6 +171,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementBolus(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsBolus(id: Long, limit: Int): List<Pair<BS, BS>> =
+        repository.getNextSyncElementsBolus(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun insertOrUpdateBolus(bolus: BS, action: Action, source: Sources, note: String?): Single<PersistenceLayer.TransactionResult<BS>> =
         repository.runTransactionForResult(InsertOrUpdateBolusTransaction(bolus.toDb()))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while saving Bolus", it) }
@@ -337,6 +340,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementCarbs(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsCarbs(id: Long, limit: Int): List<Pair<CA, CA>> =
+        repository.getNextSyncElementsCarbs(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun insertOrUpdateCarbs(carbs: CA, action: Action, source: Sources, note: String?): Single<PersistenceLayer.TransactionResult<CA>> =
         repository.runTransactionForResult(InsertOrUpdateCarbsTransaction(carbs.toDb()))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while saving Carbs", it) }
@@ -551,6 +557,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementGlucoseValue(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsGlucoseValue(id: Long, limit: Int): List<Pair<GV, GV>> =
+        repository.getNextSyncElementsGlucoseValue(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun getBgReadingsDataFromTimeToTime(start: Long, end: Long, ascending: Boolean): List<GV> =
         repository.compatGetBgReadingsDataFromTime(start, end, ascending)
             .map { list -> list.asSequence().map { it.fromDb() }.toList() }
@@ -579,7 +588,16 @@ class PersistenceLayerImpl @Inject constructor(
     private fun PersistenceLayer.Calibration.toDb() = CgmSourceTransaction.Calibration(timestamp, value, glucoseUnit.toDb())
     override fun insertCgmSourceData(caller: Sources, glucoseValues: List<GV>, calibrations: List<PersistenceLayer.Calibration>, sensorInsertionTime: Long?)
         : Single<PersistenceLayer.TransactionResult<GV>> =
-        repository.runTransactionForResult(CgmSourceTransaction(glucoseValues.asSequence().map { it.toDb() }.toList(), calibrations.asSequence().map { it.toDb() }.toList(), sensorInsertionTime))
+        insertCgmSourceData(caller, glucoseValues, calibrations, sensorInsertionTime, 0)
+
+    override fun insertCgmSourceData(
+        caller: Sources, glucoseValues: List<GV>, calibrations: List<PersistenceLayer.Calibration>, sensorInsertionTime: Long?, invalidateInsertedCloserThan: Long
+    ): Single<PersistenceLayer.TransactionResult<GV>> =
+        repository.runTransactionForResult(
+            CgmSourceTransaction(
+                glucoseValues.asSequence().map { it.toDb() }.toList(), calibrations.asSequence().map { it.toDb() }.toList(), sensorInsertionTime, invalidateInsertedCloserThan
+            )
+        )
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while saving cgm values from ${caller.name}", it) }
             .map { result ->
                 val transactionResult = PersistenceLayer.TransactionResult<GV>()
@@ -591,6 +609,11 @@ class PersistenceLayerImpl @Inject constructor(
                     aapsLogger.debug(LTag.DATABASE, "Updated GlucoseValue from ${caller.name} $it")
                     transactionResult.updated.add(it.fromDb())
                 }
+                result.invalidated.forEach {
+                    aapsLogger.debug(LTag.DATABASE, "Invalidated GlucoseValue from ${caller.name} $it")
+                    transactionResult.invalidated.add(it.fromDb())
+                    log(action = Action.BG_REMOVED, source = caller)
+                }
                 result.sensorInsertionsInserted.forEach {
                     log(
                         action = Action.CAREPORTAL,
@@ -802,6 +825,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementProfileSwitch(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsProfileSwitch(id: Long, limit: Int): List<Pair<PS, PS>> =
+        repository.getNextSyncElementsProfileSwitch(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun getLastProfileSwitchId(): Long? = repository.getLastProfileSwitchId()
     override fun insertOrUpdateProfileSwitch(profileSwitch: PS, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<PersistenceLayer.TransactionResult<PS>> =
         repository.runTransactionForResult(InsertOrUpdateProfileSwitch(profileSwitch.toDb()))
@@ -1101,6 +1127,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementExtendedBolus(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsExtendedBolus(id: Long, limit: Int): List<Pair<EB, EB>> =
+        repository.getNextSyncElementsExtendedBolus(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun invalidateExtendedBolus(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>): Single<PersistenceLayer.TransactionResult<EB>> =
         repository.runTransactionForResult(InvalidateExtendedBolusTransaction(id))
             .doOnError { aapsLogger.error(LTag.DATABASE, "Error while invalidating ExtendedBolus", it) }
@@ -1195,6 +1224,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementTemporaryTarget(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsTemporaryTarget(id: Long, limit: Int): List<Pair<TT, TT>> =
+        repository.getNextSyncElementsTemporaryTarget(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun invalidateTemporaryTarget(id: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>)
         : Single<PersistenceLayer.TransactionResult<TT>> =
         repository.runTransactionForResult(InvalidateTemporaryTargetTransaction(id))
@@ -1341,6 +1373,9 @@ class PersistenceLayerImpl @Inject constructor(
         repository.getNextSyncElementTherapyEvent(id)
             .map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
 
+    override fun getNextSyncElementsTherapyEvent(id: Long, limit: Int): List<Pair<TE, TE>> =
+        repository.getNextSyncElementsTherapyEvent(id, limit).map { pair -> Pair(pair.first.fromDb(), pair.second.fromDb()) }
+
     override fun insertPumpTherapyEventIfNewByTimestamp(therapyEvent: TE, timestamp: Long, action: Action, source: Sources, note: String?, listValues: List<ValueWithUnit>)
         : Single<PersistenceLayer.TransactionResult<TE>> =
         repository.runTransactionForResult(InsertIfNewByTimestampTherapyEventTransaction(therapyEvent.toDb()))
@@ -1782,8 +1817,8 @@ class PersistenceLayerImpl @Inject constructor(
     override fun insertVersionChangeIfChanged(versionName: String, versionCode: Int, gitRemote: String?, commitHash: String?): Completable =
         repository.runTransaction(VersionChangeTransaction(versionName, versionCode, gitRemote, commitHash))
 
-    override fun collectNewEntriesSince(since: Long, until: Long, limit: Int, offset: Int): NE =
-        repository.collectNewEntriesSince(since, until, limit, offset).fromDb()
+    override fun collectNewEntriesSince(since: Long, until: Long, limit: Int, cursor: NE.Cursor): NE =
+        repository.collectNewEntriesSince(since, until, limit, cursor.toDb()).fromDb()
 
     override fun getApsResultCloseTo(timestamp: Long): APSResult? =
         repository.getApsResultCloseTo(timestamp).blockingGet()?.fromDb(injector)
@@ -19,3 +19,20 @@ fun NewEntries.fromDb(): NE =
         totalDailyDoses = this.totalDailyDoses.asSequence().map { it.fromDb() }.toList(),
         heartRates = this.heartRates.asSequence().map { it.fromDb() }.toList()
     )
+
+fun NE.Cursor.toDb(): NewEntries.Cursor =
+    NewEntries.Cursor(
+        bolusCalculatorResults = this.bolusCalculatorResults,
+        boluses = this.boluses,
+        carbs = this.carbs,
+        effectiveProfileSwitches = this.effectiveProfileSwitches,
+        extendedBoluses = this.extendedBoluses,
+        glucoseValues = this.glucoseValues,
+        offlineEvents = this.offlineEvents,
+        profileSwitches = this.profileSwitches,
+        temporaryBasals = this.temporaryBasals,
+        temporaryTarget = this.temporaryTarget,
+        therapyEvents = this.therapyEvents,
+        totalDailyDoses = this.totalDailyDoses,
+        heartRates = this.heartRates,
+    )
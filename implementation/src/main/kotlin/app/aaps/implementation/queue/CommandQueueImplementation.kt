@@ -4,7 +4,6 @@ import android.content.Context
 import android.content.Intent
 import android.os.Handler
 import android.os.HandlerThread
-import android.os.SystemClock
 import android.text.Spanned
 import androidx.appcompat.app.AppCompatActivity
 import androidx.work.ExistingWorkPolicy
@@ -53,6 +52,8 @@ import app.aaps.core.objects.constraints.ConstraintObject
 import app.aaps.core.objects.extensions.getCustomizedName
 import app.aaps.core.objects.profile.ProfileSealed
 import app.aaps.core.utils.HtmlHelper
+import app.aaps.core.utils.notifyAll
+import app.aaps.core.utils.waitMillis
 import app.aaps.implementation.R
 import app.aaps.implementation.queue.commands.CommandBolus
 import app.aaps.implementation.queue.commands.CommandCancelExtendedBolus
@@ -77,6 +78,9 @@ import app.aaps.implementation.queue.commands.CommandUpdateTime
 import dagger.android.HasAndroidInjector
 import io.reactivex.rxjava3.disposables.CompositeDisposable
 import io.reactivex.rxjava3.kotlin.plusAssign
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.IdentityHashMap
 import java.util.LinkedList
 import java.util.concurrent.TimeUnit
 import javax.inject.Inject
@@ -115,6 +119,13 @@ class CommandQueueImplementation @Inject constructor(
 
     @Volatile var performing: Command? = null
 
+    /** Queue wait and execution times of commands processed by [QueueWorker] */
+    val latency = QueueLatency()
+    private val enqueuedAt = IdentityHashMap<Command, Long>()
+    private val changed = Channel<Unit>(Channel.CONFLATED)
+    private val workerLock = Any()
+    private val idleLock = Any()
+
     init {
         disposable += rxBus
             .toObservable(EventProfileSwitchChanged::class.java)
@@ -167,10 +178,11 @@ class CommandQueueImplementation @Inject constructor(
         synchronized(queue) {
             for (i in queue.indices.reversed()) {
                 if (queue[i].commandType == type) {
-                    queue.removeAt(i)
+                    enqueuedAt.remove(queue.removeAt(i))
                 }
             }
         }
+        notifyIdle()
     }
 
     @Suppress("SameParameterValue")
@@ -187,12 +199,21 @@ class CommandQueueImplementation @Inject constructor(
     @Synchronized
     private fun add(command: Command) {
         aapsLogger.debug(LTag.PUMPQUEUE, "Adding: " + command.javaClass.simpleName + " - " + command.log())
-        synchronized(queue) { queue.add(command) }
+        synchronized(queue) {
+            queue.add(command)
+            enqueuedAt[command] = System.currentTimeMillis()
+        }
+        notifyChanged()
     }
 
     @Synchronized
     override fun pickup() {
-        synchronized(queue) { performing = queue.poll() }
+        synchronized(queue) {
+            performing = queue.poll()?.also { command ->
+                enqueuedAt.remove(command)?.let { latency.queueWait(command.commandType).record(System.currentTimeMillis() - it) }
+            }
+        }
+        notifyIdle()
     }
 
     @Synchronized
@@ -204,7 +225,10 @@ class CommandQueueImplementation @Inject constructor(
 
             }
             queue.clear()
+            enqueuedAt.clear()
         }
+        notifyChanged()
+        notifyIdle()
     }
 
     override fun size(): Int = queue.size
@@ -213,6 +237,28 @@ class CommandQueueImplementation @Inject constructor(
 
     override fun resetPerforming() {
         performing = null
+        notifyIdle()
+    }
+
+    private fun isIdle(): Boolean = synchronized(queue) { queue.isEmpty() } && performing == null
+
+    /**
+     * Wakes up callers of [waitForEmptyQueue], must be called after every removal from queue or end of performing
+     */
+    private fun notifyIdle() {
+        synchronized(idleLock) { idleLock.notifyAll() }
+    }
+
+    override fun waitForEmptyQueue(timeoutMillis: Long): Boolean {
+        val deadline = System.currentTimeMillis() + timeoutMillis
+        synchronized(idleLock) {
+            while (!isIdle()) {
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) return false
+                idleLock.waitMillis(remaining)
+            }
+        }
+        return true
     }
 
     private fun workIsRunning(): Boolean {
@@ -239,12 +285,37 @@ class CommandQueueImplementation @Inject constructor(
     }
 
     fun waitForFinishedThread() {
-        while (workIsRunning() && waitingForDisconnect) {
-            aapsLogger.debug(LTag.PUMPQUEUE, "Waiting for previous work finish")
-            SystemClock.sleep(500)
+        synchronized(workerLock) {
+            while (waitingForDisconnect && workIsRunning()) {
+                aapsLogger.debug(LTag.PUMPQUEUE, "Waiting for previous work finish")
+                // woken up by worker end, then only until WorkManager updates the state
+                workerLock.waitMillis(WORK_STATE_CHECK_INTERVAL)
+            }
         }
     }
 
+    /**
+     * Wakes up [QueueWorker] waiting in [awaitChange]
+     */
+    fun notifyChanged() {
+        changed.trySend(Unit)
+    }
+
+    /**
+     * Suspends until a command is added, queue is cleared, connection state changes or [timeoutMillis] elapses
+     */
+    suspend fun awaitChange(timeoutMillis: Long) {
+        if (timeoutMillis <= 0) return
+        withTimeoutOrNull(timeoutMillis) { changed.receive() }
+    }
+
+    /**
+     * Called by [QueueWorker] when it is going to end
+     */
+    fun workerFinished() {
+        synchronized(workerLock) { workerLock.notifyAll() }
+    }
+
     override fun independentConnect(reason: String, callback: Callback?) {
         aapsLogger.debug(LTag.PUMPQUEUE, "Starting new queue")
         val tempCommandQueue = CommandQueueImplementation(
@@ -637,10 +708,11 @@ class CommandQueueImplementation @Inject constructor(
             for (i in queue.indices.reversed()) {
                 val command = queue[i]
                 if (command is CustomCommand && targetType.isInstance(command.commandType)) {
-                    queue.removeAt(i)
+                    enqueuedAt.remove(queue.removeAt(i))
                 }
             }
         }
+        notifyIdle()
     }
 
     override fun spannedStatus(): Spanned {
@@ -687,4 +759,9 @@ class CommandQueueImplementation @Inject constructor(
             context.startActivity(i)
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private const val WORK_STATE_CHECK_INTERVAL = 100L
+    }
+}
@@ -0,0 +1,32 @@
+package app.aaps.implementation.queue
+
+import app.aaps.core.interfaces.queue.Command
+import app.aaps.core.utils.LatencyHistogram
+import java.util.EnumMap
+
+/**
+ * Per command type statistics of time spent waiting in the queue and time spent executing on the pump
+ */
+class QueueLatency {
+
+    private val queueWait = EnumMap<Command.CommandType, LatencyHistogram>(Command.CommandType::class.java)
+    private val execution = EnumMap<Command.CommandType, LatencyHistogram>(Command.CommandType::class.java)
+
+    @Synchronized
+    fun queueWait(type: Command.CommandType): LatencyHistogram = queueWait.getOrPut(type) { LatencyHistogram() }
+
+    @Synchronized
+    fun execution(type: Command.CommandType): LatencyHistogram = execution.getOrPut(type) { LatencyHistogram() }
+
+    @Synchronized
+    fun reset() {
+        queueWait.clear()
+        execution.clear()
+    }
+
+    @Synchronized
+    override fun toString(): String =
+        (queueWait.keys + execution.keys).joinToString(separator = "\n") { type ->
+            "$type wait: ${queueWait[type] ?: "-"} execution: ${execution[type] ?: "-"}"
+        }
+}
@@ -4,7 +4,6 @@ import android.bluetooth.BluetoothManager
 import android.content.Context
 import android.os.Build
 import android.os.PowerManager
-import android.os.SystemClock
 import androidx.work.WorkerParameters
 import app.aaps.core.data.configuration.Constants
 import app.aaps.core.data.time.T
@@ -13,7 +12,6 @@ import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.plugin.ActivePlugin
 import app.aaps.core.interfaces.pump.VirtualPump
-import app.aaps.core.interfaces.queue.CommandQueue
 import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.EventDismissBolusProgressIfRunning
@@ -26,7 +24,9 @@ import app.aaps.core.objects.workflow.LoggingWorker
 import app.aaps.core.ui.R
 import app.aaps.core.utils.extensions.safeDisable
 import app.aaps.core.utils.extensions.safeEnable
+import io.reactivex.rxjava3.disposables.Disposable
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
 import javax.inject.Inject
 
 class QueueWorker internal constructor(
@@ -34,7 +34,7 @@ class QueueWorker internal constructor(
     params: WorkerParameters
 ) : LoggingWorker(context, params, Dispatchers.IO) {
 
-    @Inject lateinit var queue: CommandQueue
+    @Inject lateinit var queue: CommandQueueImplementation
     @Inject lateinit var context: Context
     @Inject lateinit var rxBus: RxBus
     @Inject lateinit var activePlugin: ActivePlugin
@@ -53,6 +53,11 @@ class QueueWorker internal constructor(
         var lastCommandTime: Long
         lastCommandTime = System.currentTimeMillis()
         var connectionStartTime = lastCommandTime
+        // wake up on pump connection changes instead of polling
+        val connectionEvents: Disposable = rxBus
+            .toObservable(EventPumpStatusChanged::class.java)
+            .filter { it.status == EventPumpStatusChanged.Status.CONNECTED || it.status == EventPumpStatusChanged.Status.DISCONNECTED }
+            .subscribe({ queue.notifyChanged() }, { aapsLogger.error(LTag.PUMPQUEUE, "Connection events", it) })
         try {
             while (true) {
                 val secondsElapsed = (System.currentTimeMillis() - connectionStartTime) / 1000
@@ -62,7 +67,7 @@ class QueueWorker internal constructor(
                     if (androidPermission.permissionNotGranted(context, "android.permission.BLUETOOTH_CONNECT")) {
                         aapsLogger.debug(LTag.PUMPQUEUE, "no permission")
                         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.CONNECTING))
-                        SystemClock.sleep(1000)
+                        queue.awaitChange(1000)
                         continue
                     }
                 if (!pump.isConnected() && secondsElapsed > Constants.PUMP_MAX_CONNECTION_TIME_IN_SECONDS) {
@@ -81,7 +86,7 @@ class QueueWorker internal constructor(
                         preferences.put(LongNonKey.BtWatchdogLastBark, System.currentTimeMillis())
                         //toggle BT
                         pump.disconnect("watchdog")
-                        SystemClock.sleep(1000)
+                        delay(1000)
                         (context.getSystemService(Context.BLUETOOTH_SERVICE) as BluetoothManager?)?.adapter?.let { bluetoothAdapter ->
                             bluetoothAdapter.safeDisable(1000)
                             bluetoothAdapter.safeEnable(1000)
@@ -104,20 +109,21 @@ class QueueWorker internal constructor(
                 if (pump.isHandshakeInProgress()) {
                     aapsLogger.debug(LTag.PUMPQUEUE, "handshaking $secondsElapsed")
                     rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.HANDSHAKING, secondsElapsed.toInt()))
-                    SystemClock.sleep(100)
+                    queue.awaitChange(100)
                     continue
                 }
                 if (pump.isConnecting()) {
                     aapsLogger.debug(LTag.PUMPQUEUE, "connecting $secondsElapsed")
                     rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.CONNECTING, secondsElapsed.toInt()))
-                    SystemClock.sleep(1000)
+                    queue.awaitChange(1000)
                     continue
                 }
                 if (!pump.isConnected()) {
                     aapsLogger.debug(LTag.PUMPQUEUE, "connect")
                     rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.CONNECTING, secondsElapsed.toInt()))
                     pump.connect("Connection needed")
-                    SystemClock.sleep(1000)
+                    // pumps connecting synchronously can proceed right away
+                    if (!pump.isConnected()) queue.awaitChange(1000)
                     continue
                 }
                 if (queue.performing() == null) {
@@ -132,11 +138,12 @@ class QueueWorker internal constructor(
                             aapsLogger.debug(LTag.PUMPQUEUE, "performing " + it.log())
                             rxBus.send(EventQueueChanged())
                             rxBus.send(EventPumpStatusChanged(it.status()))
+                            val start = System.currentTimeMillis()
                             it.execute()
                             queue.resetPerforming()
                             rxBus.send(EventQueueChanged())
                             lastCommandTime = System.currentTimeMillis()
-                            SystemClock.sleep(100)
+                            queue.latency.execution(it.commandType).record(lastCommandTime - start)
                             true
                         } == true
                         if (cont) {
@@ -145,8 +152,8 @@ class QueueWorker internal constructor(
                     }
                 }
                 if (queue.size() == 0 && queue.performing() == null) {
-                    val secondsFromLastCommand = (System.currentTimeMillis() - lastCommandTime) / 1000
-                    if (secondsFromLastCommand >= pump.waitForDisconnectionInSeconds()) {
+                    val untilDisconnect = pump.waitForDisconnectionInSeconds() * 1000L - (System.currentTimeMillis() - lastCommandTime)
+                    if (untilDisconnect <= 0) {
                         queue.waitingForDisconnect = true
                         aapsLogger.debug(LTag.PUMPQUEUE, "queue empty. disconnect")
                         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -157,13 +164,17 @@ class QueueWorker internal constructor(
                     } else {
                         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.WAITING_FOR_DISCONNECTION))
                         aapsLogger.debug(LTag.PUMPQUEUE, "waiting for disconnect")
-                        SystemClock.sleep(1000)
+                        // new command or connection change wakes up sooner
+                        queue.awaitChange(untilDisconnect)
                     }
                 }
             }
         } finally {
+            connectionEvents.dispose()
             if (wakeLock?.isHeld == true) wakeLock.release()
+            aapsLogger.debug(LTag.PUMPQUEUE, "Latency\n${queue.latency}")
             aapsLogger.debug(LTag.PUMPQUEUE, "thread end")
+            queue.workerFinished()
         }
     }
 }
\ No newline at end of file
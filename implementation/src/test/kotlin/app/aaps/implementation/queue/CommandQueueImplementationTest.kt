@@ -59,6 +59,8 @@ import org.mockito.Mockito.mock
 import org.mockito.invocation.InvocationOnMock
 import org.mockito.stubbing.Answer
 import java.util.Calendar
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
 
 class CommandQueueImplementationTest : TestBaseWithProfile() {
 
@@ -644,6 +646,52 @@ class CommandQueueImplementationTest : TestBaseWithProfile() {
         assertThat(commandQueue.statusInQueue()).isTrue()
     }
 
+    @Test
+    fun emptyQueueIsReportedImmediately() {
+        assertThat(commandQueue.waitForEmptyQueue(0)).isTrue()
+    }
+
+    @Test
+    fun waitingForEmptyQueueTimesOut() {
+        commandQueue.readStatus("timeout", null)
+        commandQueue.pickup()
+
+        val start = System.currentTimeMillis()
+        assertThat(commandQueue.waitForEmptyQueue(100)).isFalse()
+
+        assertThat(System.currentTimeMillis() - start).isAtLeast(100)
+    }
+
+    @Test
+    fun clearWakesUpWaiter() {
+        commandQueue.readStatus("clear", null)
+        thread {
+            Thread.sleep(50)
+            commandQueue.clear()
+        }
+
+        assertThat(commandQueue.waitForEmptyQueue(5000)).isTrue()
+    }
+
+    @Test
+    fun waiterIsWokenOnlyAfterCommandInFlightFinishes() {
+        repeat(ROUNDS) {
+            val finished = AtomicBoolean()
+            commandQueue.readStatus("round $it", null)
+            // simulated pump picking up and executing the command
+            thread {
+                commandQueue.pickup()
+                Thread.sleep(1)
+                finished.set(true)
+                commandQueue.resetPerforming()
+            }
+
+            // queue is empty since pickup, waiter must wait for the end of the command
+            assertThat(commandQueue.waitForEmptyQueue(10_000)).isTrue()
+            assertThat(finished.get()).isTrue()
+        }
+    }
+
     private class CustomCommand1 : CustomCommand {
 
         override val statusDescription: String
@@ -661,4 +709,9 @@ class CommandQueueImplementationTest : TestBaseWithProfile() {
         override val statusDescription: String
             get() = "CUSTOM COMMAND 3"
     }
+
+    companion object {
+
+        private const val ROUNDS = 50
+    }
 }
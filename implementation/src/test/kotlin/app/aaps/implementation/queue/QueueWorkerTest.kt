@@ -10,17 +10,30 @@ import app.aaps.core.interfaces.androidPermissions.AndroidPermission
 import app.aaps.core.interfaces.constraints.ConstraintsChecker
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.pump.PumpSync
+import app.aaps.core.interfaces.queue.Command
+import app.aaps.core.interfaces.rx.events.EventPumpStatusChanged
 import app.aaps.core.interfaces.ui.UiInteraction
 import app.aaps.core.objects.constraints.ConstraintObject
 import app.aaps.implementation.queue.commands.CommandTempBasalAbsolute
 import app.aaps.shared.tests.TestBaseWithProfile
 import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
 import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withTimeout
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.ArgumentMatchers
 import org.mockito.Mock
 import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.mockito.kotlin.never
+import org.mockito.kotlin.spy
+import org.mockito.kotlin.verifyBlocking
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
 import kotlin.test.assertIs
 import kotlin.time.Duration.Companion.seconds
 
@@ -94,4 +107,40 @@ class QueueWorkerTest : TestBaseWithProfile() {
         assertIs<ListenableWorker.Result.Success>(result)
         assertThat(commandQueue.size()).isEqualTo(0)
     }
+
+    @Test
+    fun synchronouslyConnectedPumpIsNotWaitedFor() = runBlocking {
+        commandQueue = spy(commandQueue)
+        sut = TestListenableWorkerBuilder<QueueWorker>(context).build()
+        commandQueue.tempBasalAbsolute(2.0, 60, true, validProfile, PumpSync.TemporaryBasalType.NORMAL, null)
+
+        assertIs<ListenableWorker.Result.Success>(sut.doWorkAndLog())
+
+        // previous polling implementation slept 1000 ms after connect and 100 ms after command
+        verifyBlocking(commandQueue, never()) { awaitChange(any()) }
+        assertThat(commandQueue.latency.queueWait(Command.CommandType.TEMPBASAL).count).isEqualTo(1)
+        assertThat(commandQueue.latency.execution(Command.CommandType.TEMPBASAL).count).isEqualTo(1)
+    }
+
+    @Test
+    fun commandAddedWhileWaitingForDisconnectionIsPickedUpImmediately() = runBlocking {
+        testPumpPlugin.waitForDisconnection = 60
+        val waiting = CountDownLatch(1)
+        val disposable = rxBus.toObservable(EventPumpStatusChanged::class.java)
+            .filter { it.status == EventPumpStatusChanged.Status.WAITING_FOR_DISCONNECTION }
+            .subscribe { waiting.countDown() }
+        commandQueue.tempBasalAbsolute(2.0, 60, true, validProfile, PumpSync.TemporaryBasalType.NORMAL, null)
+        val worker = async(Dispatchers.IO) { sut.doWorkAndLog() }
+        assertThat(waiting.await(10, TimeUnit.SECONDS)).isTrue()
+
+        commandQueue.tempBasalAbsolute(1.0, 60, true, validProfile, PumpSync.TemporaryBasalType.NORMAL, null)
+
+        // worker waits 60 s for disconnection unless the new command wakes it up
+        withTimeout(20.seconds) { while (commandQueue.latency.execution(Command.CommandType.TEMPBASAL).count < 2) delay(10) }
+        testPumpPlugin.waitForDisconnection = 0
+        commandQueue.notifyChanged()
+        assertIs<ListenableWorker.Result.Success>(worker.await())
+        assertThat(testPumpPlugin.isConnected()).isFalse()
+        disposable.dispose()
+    }
 }
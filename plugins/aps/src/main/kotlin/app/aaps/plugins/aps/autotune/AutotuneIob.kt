@@ -52,9 +52,46 @@ open class AutotuneIob @Inject constructor(
     private lateinit var tempBasals: ArrayList<TB>
     var startBG: Long = 0
     private var endBG: Long = 0
-    private fun range(): Long = (60 * 60 * 1000L * dia + T.hours(2).msecs()).toLong()
+    private fun range(dia: Double = this.dia): Long = (60 * 60 * 1000L * dia + T.hours(2).msecs()).toLong()
+
+    // timestamps of boluses (newest first) for binary search of insulin action window
+    private var indexedBoluses: List<BS>? = null
+    private var indexedSize = 0
+    private var bolusTimes: LongArray? = null
+
+    /**
+     * Database records of one day. They don't depend on tuned profile, so days can be loaded in parallel
+     * while previous days are being tuned.
+     */
+    class DayData(
+        val from: Long,
+        val to: Long,
+        val start: Long,
+        val glucose: List<GV>,
+        val carbs: List<CA>,
+        val boluses: List<BS>,
+        val temporaryBasals: List<TB>,
+        val extendedBoluses: List<EB>
+    )
+
+    fun loadDay(from: Long, to: Long, dia: Double): DayData {
+        val start = from - range(dia)
+        return DayData(
+            from = from,
+            to = to,
+            start = start,
+            glucose = persistenceLayer.getBgReadingsDataFromTimeToTime(from, to, false),
+            carbs = persistenceLayer.getCarbsFromTimeToTimeExpanded(start, to, false),
+            boluses = persistenceLayer.getBolusesFromTimeToTime(start, to, false),
+            temporaryBasals = persistenceLayer.getTemporaryBasalsStartingFromTimeToTime(start, to, false),
+            extendedBoluses = persistenceLayer.getExtendedBolusesStartingFromTimeToTime(start, to, false)
+        )
+    }
 
-    fun initializeData(from: Long, to: Long, tunedProfile: ATProfile) {
+    /**
+     * @param dayData records loaded by [loadDay], used only if loaded for the same range (DIA of tuned profile may change)
+     */
+    fun initializeData(from: Long, to: Long, tunedProfile: ATProfile, dayData: DayData? = null) {
         dia = tunedProfile.dia
         startBG = from
         endBG = to
@@ -64,10 +101,11 @@ open class AutotuneIob @Inject constructor(
         tempBasals = ArrayList()
         if (profileFunction.getProfile(from - range()) == null)
             return
-        initializeBgReadings(from, to)
-        initializeTreatmentData(from - range(), to)
-        initializeTempBasalData(from - range(), to, tunedProfile)
-        initializeExtendedBolusData(from - range(), to, tunedProfile)
+        val data = dayData?.takeIf { it.from == from && it.to == to && it.start == from - range() } ?: loadDay(from, to, dia)
+        initializeBgReadings(data)
+        initializeTreatmentData(from - range(), to, data)
+        initializeTempBasalData(data, tunedProfile)
+        initializeExtendedBolusData(data, tunedProfile)
         sortTempBasal()
         addNeutralTempBasal(from - range(), to, tunedProfile)        // Without Neutral TBR, Autotune Web will ignore iob for periods without TBR running
         sortNsTreatments()
@@ -88,20 +126,21 @@ open class AutotuneIob @Inject constructor(
     @Synchronized
     private fun sortBoluses() {
         boluses = ArrayList(boluses.toList().sortedWith { o1: BS, o2: BS -> if (o2.timestamp > o1.timestamp) 1 else -1 })
+        indexedBoluses = null
     }
 
-    private fun initializeBgReadings(from: Long, to: Long) {
-        glucose = persistenceLayer.getBgReadingsDataFromTimeToTime(from, to, false)
+    private fun initializeBgReadings(data: DayData) {
+        glucose = data.glucose
     }
 
     //nsTreatment is used only for export data, meals is used in AutotunePrep
-    private fun initializeTreatmentData(from: Long, to: Long) {
+    private fun initializeTreatmentData(from: Long, to: Long, data: DayData) {
         val oldestBgDate = if (glucose.isNotEmpty()) glucose[glucose.size - 1].timestamp else from
         aapsLogger.debug(
             LTag.AUTOTUNE,
             "Check BG date: BG Size: " + glucose.size + " OldestBG: " + dateUtil.dateAndTimeAndSecondsString(oldestBgDate) + " to: " + dateUtil.dateAndTimeAndSecondsString(to)
         )
-        val tmpCarbs = persistenceLayer.getCarbsFromTimeToTimeExpanded(from, to, false)
+        val tmpCarbs = data.carbs
         aapsLogger.debug(LTag.AUTOTUNE, "Nb treatments after query: " + tmpCarbs.size)
         var nbCarbs = 0
         for (i in tmpCarbs.indices) {
@@ -114,7 +153,7 @@ open class AutotuneIob @Inject constructor(
                     nbCarbs++
             }
         }
-        val tmpBolus = persistenceLayer.getBolusesFromTimeToTime(from, to, false)
+        val tmpBolus = data.boluses
         var nbSMB = 0
         var nbBolus = 0
         for (i in tmpBolus.indices) {
@@ -135,8 +174,8 @@ open class AutotuneIob @Inject constructor(
     }
 
     //nsTreatment is used only for export data
-    private fun initializeTempBasalData(from: Long, to: Long, tunedProfile: ATProfile) {
-        val tBRs = persistenceLayer.getTemporaryBasalsStartingFromTimeToTime(from, to, false)
+    private fun initializeTempBasalData(data: DayData, tunedProfile: ATProfile) {
+        val tBRs = data.temporaryBasals
         //log.debug("D/AutotunePlugin tempBasal size before cleaning:" + tBRs.size);
         for (i in tBRs.indices) {
             if (tBRs[i].isValid)
@@ -146,8 +185,8 @@ open class AutotuneIob @Inject constructor(
     }
 
     //nsTreatment is used only for export data
-    private fun initializeExtendedBolusData(from: Long, to: Long, tunedProfile: ATProfile) {
-        val extendedBoluses = persistenceLayer.getExtendedBolusesStartingFromTimeToTime(from, to, false)
+    private fun initializeExtendedBolusData(data: DayData, tunedProfile: ATProfile) {
+        val extendedBoluses = data.extendedBoluses
         for (i in extendedBoluses.indices) {
             val eb = extendedBoluses[i]
             if (eb.isValid)
@@ -257,7 +296,14 @@ open class AutotuneIob @Inject constructor(
     private fun getCalculationToTimeTreatments(time: Long, localInsulin: LocalInsulin): IobTotal {
         val total = IobTotal(time)
         val detailedLog = preferences.get(BooleanKey.AutotuneAdditionalLog)
-        for (pos in boluses.indices) {
+        // only boluses in [time - duration, time] contribute, summed in list order as before
+        var first = 0
+        var end = boluses.size
+        bolusTimes()?.let { times ->
+            first = firstIndexBefore(times, time + 1)
+            end = firstIndexBefore(times, time - localInsulin.duration)
+        }
+        for (pos in first until end) {
             val t = boluses[pos]
             if (!t.isValid) continue
             if (t.timestamp > time || t.timestamp < time - localInsulin.duration) continue
@@ -274,6 +320,30 @@ open class AutotuneIob @Inject constructor(
         return total
     }
 
+    @Synchronized
+    private fun bolusTimes(): LongArray? {
+        if (indexedBoluses !== boluses || indexedSize != boluses.size) {
+            val times = LongArray(boluses.size) { boluses[it].timestamp }
+            var sorted = true
+            for (i in 1 until times.size) if (times[i] > times[i - 1]) sorted = false
+            bolusTimes = if (sorted) times else null
+            indexedBoluses = boluses
+            indexedSize = boluses.size
+        }
+        return bolusTimes
+    }
+
+    // first index with timestamp < limit in array sorted newest first
+    private fun firstIndexBefore(times: LongArray, limit: Long): Int {
+        var low = 0
+        var high = times.size
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (times[mid] < limit) high = mid else low = mid + 1
+        }
+        return low
+    }
+
     private fun convertToBoluses(eb: EB): MutableList<BS> {
         val result: MutableList<BS> = ArrayList()
         val aboutFiveMinIntervals = eb.duration / T.mins(5).msecs() + 1
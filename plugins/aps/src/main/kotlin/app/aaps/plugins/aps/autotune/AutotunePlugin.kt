@@ -49,6 +49,8 @@ import dagger.android.HasAndroidInjector
 import org.json.JSONException
 import org.json.JSONObject
 import java.util.TimeZone
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -175,57 +177,63 @@ class AutotunePlugin @Inject constructor(
             rxBus.send(EventAutotuneUpdateGui())
             return
         }
-        var currentCalcDay = 0
-        for (i in 0 until daysBack) {
-            val from = startTime + i * 24 * 60 * 60 * 1000L         // get 24 hours BG values from 4 AM to 4 AM next day
-            val to = from + 24 * 60 * 60 * 1000L
-            if (days.isSet(from)) {
-                currentCalcDay++
+        val dayPrefetch = DayPrefetch(daysBack, startTime, localInsulin.dia)
+        try {
+            var currentCalcDay = 0
+            for (i in 0 until daysBack) {
+                val from = startTime + i * 24 * 60 * 60 * 1000L         // get 24 hours BG values from 4 AM to 4 AM next day
+                val to = from + 24 * 60 * 60 * 1000L
+                if (days.isSet(from)) {
+                    currentCalcDay++
 
-                log("Tune day " + (i + 1) + " of " + daysBack + " (" + currentCalcDay + " of " + calcDays + ")")
-                tunedProfile?.let {
-                    autotuneIob.initializeData(from, to, it)  //autotuneIob contains BG and Treatments data from history (<=> query for ns-treatments and ns-entries)
-                    if (autotuneIob.boluses.isEmpty()) {
+                    log("Tune day " + (i + 1) + " of " + daysBack + " (" + currentCalcDay + " of " + calcDays + ")")
+                    tunedProfile?.let {
+                        val data = dayPrefetch.take(i)
+                        autotuneIob.initializeData(from, to, it, data)  //autotuneIob contains BG and Treatments data from history (<=> query for ns-treatments and ns-entries)
+                        if (autotuneIob.boluses.isEmpty()) {
+                            result = rh.gs(R.string.autotune_error)
+                            log("No basal data on day ${i + 1}")
+                            autotuneFS.exportResult(result)
+                            autotuneFS.exportLogAndZip(lastRun)
+                            rxBus.send(EventAutotuneUpdateGui())
+                            calculationRunning = false
+                            return
+                        }
+                        autotuneFS.exportEntries(autotuneIob)               //<=> ns-entries.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
+                        autotuneFS.exportTreatments(autotuneIob)            //<=> ns-treatments.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine (include treatments ,tempBasal and extended
+                        preppedGlucose = autotunePrep.categorize(it) //<=> autotune.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
+                        preppedGlucose?.let { preppedGlucose ->         //preppedGlucose and tunedProfile should never be null here
+                            autotuneFS.exportPreppedGlucose(preppedGlucose)
+                            tunedProfile = autotuneCore.tuneAllTheThings(preppedGlucose, it, pumpProfile).also { tunedProfile ->
+                                autotuneFS.exportTunedProfile(tunedProfile)   //<=> newprofile.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
+                                if (currentCalcDay < calcDays) {
+                                    log("Partial result for day ${i + 1}".trimIndent())
+                                    result = rh.gs(R.string.autotune_partial_result, currentCalcDay, calcDays)
+                                    rxBus.send(EventAutotuneUpdateGui())
+                                }
+                                logResult = showResults(tunedProfile, pumpProfile)
+                                if (detailedLog)
+                                    autotuneFS.exportLog(lastRun, i + 1)
+                            }
+                        }
+                            ?: {
+                                log("preppedGlucose is null on day ${i + 1}")
+                                tunedProfile = null
+                            }
+                    }
+                    if (tunedProfile == null) {
                         result = rh.gs(R.string.autotune_error)
-                        log("No basal data on day ${i + 1}")
+                        log("TunedProfile is null on day ${i + 1}")
                         autotuneFS.exportResult(result)
                         autotuneFS.exportLogAndZip(lastRun)
                         rxBus.send(EventAutotuneUpdateGui())
                         calculationRunning = false
                         return
                     }
-                    autotuneFS.exportEntries(autotuneIob)               //<=> ns-entries.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
-                    autotuneFS.exportTreatments(autotuneIob)            //<=> ns-treatments.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine (include treatments ,tempBasal and extended
-                    preppedGlucose = autotunePrep.categorize(it) //<=> autotune.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
-                    preppedGlucose?.let { preppedGlucose ->         //preppedGlucose and tunedProfile should never be null here
-                        autotuneFS.exportPreppedGlucose(preppedGlucose)
-                        tunedProfile = autotuneCore.tuneAllTheThings(preppedGlucose, it, pumpProfile).also { tunedProfile ->
-                            autotuneFS.exportTunedProfile(tunedProfile)   //<=> newprofile.yyyymmdd.json files exported for results compare with oref0 autotune on virtual machine
-                            if (currentCalcDay < calcDays) {
-                                log("Partial result for day ${i + 1}".trimIndent())
-                                result = rh.gs(R.string.autotune_partial_result, currentCalcDay, calcDays)
-                                rxBus.send(EventAutotuneUpdateGui())
-                            }
-                            logResult = showResults(tunedProfile, pumpProfile)
-                            if (detailedLog)
-                                autotuneFS.exportLog(lastRun, i + 1)
-                        }
-                    }
-                        ?: {
-                            log("preppedGlucose is null on day ${i + 1}")
-                            tunedProfile = null
-                        }
-                }
-                if (tunedProfile == null) {
-                    result = rh.gs(R.string.autotune_error)
-                    log("TunedProfile is null on day ${i + 1}")
-                    autotuneFS.exportResult(result)
-                    autotuneFS.exportLogAndZip(lastRun)
-                    rxBus.send(EventAutotuneUpdateGui())
-                    calculationRunning = false
-                    return
                 }
             }
+        } finally {
+            dayPrefetch.cancel()                                    // nothing is loaded for a run ended early
         }
         result = rh.gs(R.string.autotune_result, dateUtil.dateAndTimeString(lastRun))
         if (!detailedLog)
@@ -278,6 +286,42 @@ class AutotunePlugin @Inject constructor(
         return
     }
 
+    /**
+     * Loads database records of selected days on background threads while previous days are tuned.
+     * Tuning itself stays sequential because every day starts from profile tuned by previous day,
+     * so at most [PREFETCH_THREADS] days are loaded ahead.
+     */
+    private inner class DayPrefetch(private val daysBack: Int, private val startTime: Long, private val dia: Double) {
+
+        private val executor = Executors.newFixedThreadPool(PREFETCH_THREADS)
+        private val loading = HashMap<Int, Future<AutotuneIob.DayData>>()
+        private var next = 0
+
+        private fun fill() {
+            while (loading.size < PREFETCH_THREADS && next < daysBack) {
+                val from = startTime + next * 24 * 60 * 60 * 1000L
+                if (days.isSet(from)) loading[next] = executor.submit<AutotuneIob.DayData> { autotuneIob.loadDay(from, from + 24 * 60 * 60 * 1000L, dia) }
+                next++
+            }
+        }
+
+        /**
+         * Records of day [i] or null if loading failed, days must be taken in ascending order
+         */
+        fun take(i: Int): AutotuneIob.DayData? {
+            fill()
+            val future = loading.remove(i)
+            fill()
+            return future?.let { runCatching { it.get() }.getOrNull() }
+        }
+
+        fun cancel() {
+            loading.values.forEach { it.cancel(true) }
+            loading.clear()
+            executor.shutdownNow()
+        }
+    }
+
     private fun showResults(tunedProfile: ATProfile?, pumpProfile: ATProfile): String {
         if (tunedProfile == null)
             return "No Result"  // should never occurs
@@ -487,4 +531,9 @@ class AutotunePlugin @Inject constructor(
             //addPreference(AdaptiveSwitchPreference(ctx = context, booleanKey = BooleanKey.AutotuneAdditionalLog, summary = R.string.autotune_additional_log_summary, title = R.string.autotune_additional_log_title))
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        private const val PREFETCH_THREADS = 4
+    }
+}
@@ -1,10 +1,12 @@
 package app.aaps.plugins.aps.di
 
 import app.aaps.core.interfaces.aps.Loop
+import app.aaps.core.interfaces.aps.LoopTracer
 import app.aaps.core.interfaces.autotune.Autotune
 import app.aaps.plugins.aps.OpenAPSFragment
 import app.aaps.plugins.aps.autotune.AutotunePlugin
 import app.aaps.plugins.aps.loop.LoopPlugin
+import app.aaps.plugins.aps.loop.LoopTracerImpl
 import dagger.Binds
 import dagger.Module
 import dagger.android.ContributesAndroidInjector
@@ -26,6 +28,7 @@ abstract class ApsModule {
     interface Bindings {
 
         @Binds fun bindLoop(loopPlugin: LoopPlugin): Loop
+        @Binds fun bindLoopTracer(loopTracerImpl: LoopTracerImpl): LoopTracer
         @Binds fun bindAutotune(autotunePlugin: AutotunePlugin): Autotune
     }
 }
\ No newline at end of file
@@ -10,7 +10,6 @@ import android.content.Intent
 import android.os.Build
 import android.os.Handler
 import android.os.HandlerThread
-import android.os.SystemClock
 import androidx.core.app.NotificationCompat
 import androidx.preference.PreferenceCategory
 import androidx.preference.PreferenceManager
@@ -30,6 +29,9 @@ import app.aaps.core.data.ue.ValueWithUnit
 import app.aaps.core.interfaces.aps.APSResult
 import app.aaps.core.interfaces.aps.Loop
 import app.aaps.core.interfaces.aps.Loop.LastRun
+import app.aaps.core.interfaces.aps.LoopTracer
+import app.aaps.core.interfaces.aps.recordSince
+import app.aaps.core.interfaces.aps.trace
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.constraints.Constraint
 import app.aaps.core.interfaces.constraints.ConstraintsChecker
@@ -119,7 +121,8 @@ class LoopPlugin @Inject constructor(
     private val uiInteraction: UiInteraction,
     private val instantiator: Instantiator,
     private val processedDeviceStatusData: ProcessedDeviceStatusData,
-    private val glucoseStatusProvider: GlucoseStatusProvider
+    private val glucoseStatusProvider: GlucoseStatusProvider,
+    private val loopTracer: LoopTracer
 ) : PluginBase(
     PluginDescription()
         .mainType(PluginType.LOOP)
@@ -275,21 +278,16 @@ class LoopPlugin @Inject constructor(
     }
 
     @Synchronized
-    fun isEmptyQueue(): Boolean {
-        val maxMinutes = 2L
-        val start = dateUtil.now()
-        while (start + T.mins(maxMinutes).msecs() > dateUtil.now()) {
-            if (commandQueue.size() == 0 && commandQueue.performing() == null) return true
-            SystemClock.sleep(1000)
-        }
-        return false
-    }
+    fun isEmptyQueue(): Boolean = commandQueue.waitForEmptyQueue(T.mins(2).msecs())
 
     @Synchronized
     override fun invoke(initiator: String, allowNotification: Boolean, tempBasalFallback: Boolean) {
+        val started = System.nanoTime()
+        var resultProduced = false
+        constraintChecker.beginLoopSnapshot()
         try {
             aapsLogger.debug(LTag.APS, "invoke from $initiator")
-            val loopEnabled = constraintChecker.isLoopInvocationAllowed()
+            val loopEnabled = loopTracer.trace(LoopTracer.Stage.CONSTRAINTS) { constraintChecker.isLoopInvocationAllowed() }
             if (!loopEnabled.value()) {
                 val message = """
                     ${rh.gs(app.aaps.core.ui.R.string.loop_disabled)}
@@ -302,14 +300,14 @@ class LoopPlugin @Inject constructor(
             val pump = activePlugin.activePump
             var apsResult: APSResult? = null
             if (!isEnabled()) return
-            val profile = profileFunction.getProfile()
+            val profile = loopTracer.trace(LoopTracer.Stage.PROFILE) { profileFunction.getProfile() }
             if (profile == null || !profileFunction.isProfileValid("Loop")) {
                 aapsLogger.debug(LTag.APS, rh.gs(app.aaps.core.ui.R.string.no_profile_set))
                 rxBus.send(EventLoopSetLastRunGui(rh.gs(app.aaps.core.ui.R.string.no_profile_set)))
                 return
             }
 
-            if (!isEmptyQueue()) {
+            if (!loopTracer.trace(LoopTracer.Stage.QUEUE_WAIT) { isEmptyQueue() }) {
                 aapsLogger.debug(LTag.APS, rh.gs(app.aaps.core.ui.R.string.pump_busy))
                 rxBus.send(EventLoopSetLastRunGui(rh.gs(app.aaps.core.ui.R.string.pump_busy)))
                 return
@@ -319,7 +317,7 @@ class LoopPlugin @Inject constructor(
             if (pump.baseBasalRate < 0.01) return
             val usedAPS = activePlugin.activeAPS
             if (usedAPS.isEnabled()) {
-                usedAPS.invoke(initiator, tempBasalFallback)
+                loopTracer.trace(LoopTracer.Stage.ALGORITHM) { usedAPS.invoke(initiator, tempBasalFallback) }
                 apsResult = usedAPS.lastAPSResult
             }
 
@@ -330,7 +328,11 @@ class LoopPlugin @Inject constructor(
             }
 
             // Store calculations to DB
-            disposable += persistenceLayer.insertOrUpdateApsResult(apsResult).subscribe()
+            val storeStarted = System.nanoTime()
+            disposable += persistenceLayer.insertOrUpdateApsResult(apsResult)
+                .doFinally { loopTracer.recordSince(LoopTracer.Stage.STORE_RESULT, storeStarted) }
+                .subscribe()
+            resultProduced = true
 
             // Prepare for pumps using % basals
             if (pump.pumpDescription.tempBasalStyle == PumpDescription.PERCENT && allowPercentage()) {
@@ -339,6 +341,7 @@ class LoopPlugin @Inject constructor(
             apsResult.percent = (apsResult.rate / profile.getBasal() * 100).toInt()
 
             // check rate for constraints
+            val constraintsStarted = System.nanoTime()
             val resultAfterConstraints = apsResult.newAndClone()
             resultAfterConstraints.rateConstraint = ConstraintObject(resultAfterConstraints.rate, aapsLogger)
             resultAfterConstraints.rate = constraintChecker.applyBasalConstraints(resultAfterConstraints.rateConstraint!!, profile).value()
@@ -353,6 +356,7 @@ class LoopPlugin @Inject constructor(
                 aapsLogger.debug(LTag.APS, "SMB requested but still in ${preferences.get(IntKey.ApsMaxSmbFrequency)} min interval")
                 resultAfterConstraints.smb = 0.0
             }
+            loopTracer.recordSince(LoopTracer.Stage.APPLY_CONSTRAINTS, constraintsStarted)
             prevCarbsreq = lastRun?.constraintsProcessed?.carbsReq ?: prevCarbsreq
             if (lastRun == null) lastRun = LastRun()
             lastRun?.let { lastRun ->
@@ -465,8 +469,10 @@ class LoopPlugin @Inject constructor(
                         fabricPrivacy.logCustom("APSRequest")
                         // TBR request must be applied first to prevent situation where
                         // SMB was executed and zero TBR afterwards failed
+                        val tbrStarted = System.nanoTime()
                         applyTBRRequest(resultAfterConstraints, profile, object : Callback() {
                             override fun run() {
+                                loopTracer.recordSince(LoopTracer.Stage.TBR_ENACT, tbrStarted)
                                 if (result.enacted || result.success) {
                                     lastRun.tbrSetByPump = result
                                     lastRun.lastTBRRequest = lastRun.lastAPSRun
@@ -475,9 +481,11 @@ class LoopPlugin @Inject constructor(
                                     // executing TBR may take some time thus give more time to SMB
                                     resultAfterConstraints.deliverAt = lastRun.lastTBREnact
                                     rxBus.send(EventLoopUpdateGui())
+                                    val smbStarted = System.nanoTime()
                                     if (resultAfterConstraints.isBolusRequested)
                                         applySMBRequest(resultAfterConstraints, object : Callback() {
                                             override fun run() {
+                                                loopTracer.recordSince(LoopTracer.Stage.SMB_ENACT, smbStarted)
                                                 // Callback is only called if a bolus was actually requested
                                                 if (result.enacted || result.success) {
                                                     lastRun.smbSetByPump = result
@@ -526,6 +534,11 @@ class LoopPlugin @Inject constructor(
                 rxBus.send(EventLoopUpdateGui())
             }
         } finally {
+            constraintChecker.endLoopSnapshot()
+            // runs ended before algorithm produced result are not interesting
+            if (resultProduced) loopTracer.recordSince(LoopTracer.Stage.TOTAL, started)
+            // enact callbacks of this run are written with the next one
+            loopTracer.flush()
             aapsLogger.debug(LTag.APS, "invoke end")
         }
     }
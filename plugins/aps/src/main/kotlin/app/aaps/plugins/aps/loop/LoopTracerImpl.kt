@@ -0,0 +1,119 @@
+package app.aaps.plugins.aps.loop
+
+import android.content.Context
+import app.aaps.core.interfaces.aps.LoopTracer
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.utils.LatencyHistogram
+import java.io.File
+import java.io.IOException
+import java.util.EnumMap
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Keeps histogram of every loop stage in memory and last durations in [TraceRing],
+ * histograms are rebuilt from the ring after restart.
+ * Recording touches memory only, the file is read and written on own thread once per loop run.
+ * Failure of the file only disables persistence, tracing must never break the loop.
+ */
+@Singleton
+class LoopTracerImpl @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val context: Context,
+    private val dateUtil: DateUtil
+) : LoopTracer {
+
+    private val histograms = EnumMap<LoopTracer.Stage, LatencyHistogram>(LoopTracer.Stage::class.java).also { map ->
+        LoopTracer.Stage.entries.forEach { map[it] = LatencyHistogram() }
+    }
+    private val last = EnumMap<LoopTracer.Stage, Long>(LoopTracer.Stage::class.java)
+    private val pending = ArrayList<TraceRing.Entry>()
+    private var since = dateUtil.now()
+
+    // accessed on executor only
+    private var ring: TraceRing? = null
+
+    private val executor: ExecutorService = Executors.newSingleThreadExecutor { Thread(it, "LoopTracer").apply { isDaemon = true } }
+
+    init {
+        executor.execute { load() }
+    }
+
+    private fun load() {
+        try {
+            val ring = TraceRing(File(context.filesDir, FILE_NAME), CAPACITY)
+            val entries = ring.read()
+            synchronized(this) {
+                entries.forEach { entry ->
+                    val stage = LoopTracer.Stage.entries.getOrNull(entry.stage) ?: return@forEach
+                    histograms[stage]?.record(entry.millis)
+                    since = minOf(since, entry.timestamp)
+                }
+            }
+            this.ring = ring
+        } catch (e: IOException) {
+            aapsLogger.error(LTag.APS, "Loop trace file not available", e)
+        }
+    }
+
+    @Synchronized
+    override fun record(stage: LoopTracer.Stage, millis: Long) {
+        histograms[stage]?.record(millis)
+        last[stage] = millis
+        pending.add(TraceRing.Entry(dateUtil.now(), stage.ordinal, millis))
+    }
+
+    override fun flush() {
+        val batch = synchronized(this) {
+            if (pending.isEmpty()) return
+            ArrayList(pending).also { pending.clear() }
+        }
+        executor.execute {
+            try {
+                ring?.append(batch)
+            } catch (e: IOException) {
+                aapsLogger.error(LTag.APS, "Loop trace file not writable", e)
+                ring?.close()
+                ring = null
+            }
+        }
+    }
+
+    override fun report(): String {
+        // history loaded and previous writes done
+        executor.submit(Callable { }).get()
+        synchronized(this) {
+            return "Loop stages since ${dateUtil.dateAndTimeString(since)}\n" +
+                LoopTracer.Stage.entries.joinToString(separator = "\n") { "$it: ${histograms[it]} last=${last[it]?.let { millis -> "${millis}ms" } ?: "-"}" }
+        }
+    }
+
+    override fun reset() {
+        synchronized(this) {
+            histograms.values.forEach { it.reset() }
+            last.clear()
+            pending.clear()
+            since = dateUtil.now()
+        }
+        executor.execute {
+            try {
+                ring?.clear()
+            } catch (e: IOException) {
+                aapsLogger.error(LTag.APS, "Loop trace file not writable", e)
+            }
+        }
+    }
+
+    companion object {
+
+        const val FILE_NAME = "loop_stages.ring"
+
+        // 9 stages of ~288 runs a day, about a day of history
+        const val CAPACITY = 2600
+    }
+}
@@ -0,0 +1,119 @@
+package app.aaps.plugins.aps.loop
+
+import java.io.File
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+
+/**
+ * File of fixed size keeping last [capacity] traced durations.
+ *
+ * Header holds format, capacity, position of next record and number of records.
+ * Records are overwritten in circle so the file never grows.
+ * File of other format or size is recreated empty.
+ */
+class TraceRing(private val file: File, val capacity: Int) {
+
+    class Entry(val timestamp: Long, val stage: Int, val millis: Long)
+
+    private var raf: RandomAccessFile? = null
+    private var next = 0
+    private var size = 0
+
+    @Synchronized
+    @Throws(IOException::class)
+    private fun open(): RandomAccessFile =
+        raf ?: RandomAccessFile(file, "rw").also { raf ->
+            this.raf = raf
+            val valid = raf.length() == HEADER_SIZE + capacity.toLong() * RECORD_SIZE &&
+                raf.readInt() == MAGIC && raf.readInt() == capacity
+            if (valid) {
+                next = raf.readInt()
+                size = raf.readInt()
+            }
+            if (!valid || next !in 0 until capacity || size !in 0..capacity) {
+                raf.setLength(0)
+                raf.setLength(HEADER_SIZE + capacity.toLong() * RECORD_SIZE)
+                raf.seek(0)
+                raf.writeInt(MAGIC)
+                raf.writeInt(capacity)
+                next = 0
+                size = 0
+                writePosition(raf)
+            }
+        }
+
+    private fun writePosition(raf: RandomAccessFile) {
+        raf.seek(8)
+        raf.writeInt(next)
+        raf.writeInt(size)
+    }
+
+    /**
+     * Stored records, oldest first
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun read(): List<Entry> {
+        val raf = open()
+        val bytes = ByteArray(capacity * RECORD_SIZE)
+        raf.seek(HEADER_SIZE.toLong())
+        raf.readFully(bytes)
+        val buffer = ByteBuffer.wrap(bytes)
+        val first = (next - size + capacity) % capacity
+        return List(size) {
+            buffer.position((first + it) % capacity * RECORD_SIZE)
+            Entry(buffer.getLong(), buffer.getInt(), buffer.getInt().toLong())
+        }
+    }
+
+    /**
+     * Writes [entries] with one write per contiguous part of the file and one header update
+     */
+    @Synchronized
+    @Throws(IOException::class)
+    fun append(entries: List<Entry>) {
+        if (entries.isEmpty()) return
+        val raf = open()
+        // older entries than fit into the ring would be overwritten anyway
+        val buffer = ByteBuffer.allocate(minOf(entries.size, capacity) * RECORD_SIZE)
+        entries.takeLast(capacity).forEach { buffer.putLong(it.timestamp).putInt(it.stage).putInt(it.millis.coerceIn(0, Int.MAX_VALUE.toLong()).toInt()) }
+        val bytes = buffer.array()
+        val count = bytes.size / RECORD_SIZE
+        val untilEnd = minOf(count, capacity - next)
+        raf.seek(HEADER_SIZE + next.toLong() * RECORD_SIZE)
+        raf.write(bytes, 0, untilEnd * RECORD_SIZE)
+        if (count > untilEnd) {
+            raf.seek(HEADER_SIZE.toLong())
+            raf.write(bytes, untilEnd * RECORD_SIZE, (count - untilEnd) * RECORD_SIZE)
+        }
+        next = (next + count) % capacity
+        size = minOf(size + count, capacity)
+        writePosition(raf)
+    }
+
+    @Synchronized
+    @Throws(IOException::class)
+    fun clear() {
+        val raf = open()
+        next = 0
+        size = 0
+        writePosition(raf)
+    }
+
+    @Synchronized
+    fun close() {
+        try {
+            raf?.close()
+        } catch (_: IOException) {
+        }
+        raf = null
+    }
+
+    companion object {
+
+        private const val MAGIC = 0x4C545231 // LTR1
+        private const val HEADER_SIZE = 16
+        private const val RECORD_SIZE = 16
+    }
+}
@@ -0,0 +1,66 @@
+package app.aaps.plugins.aps.openAPSAIMI
+
+/**
+ * Steps counted in consecutive time blocks, newest [capacity] blocks are retained.
+ *
+ * Every slot keeps steps of its block and running total up to and including the block,
+ * so sum of any window is difference of two totals.
+ */
+class StepHistory(private val capacity: Int) {
+
+    private val counts = IntArray(capacity)
+    private val totals = LongArray(capacity)
+    private var head = NONE
+    private var total = 0L
+
+    private fun slot(block: Long): Int = Math.floorMod(block, capacity.toLong()).toInt()
+    private fun retained(block: Long): Boolean = head != NONE && block <= head && block > head - capacity
+
+    @Synchronized
+    fun add(block: Long, steps: Int) {
+        when {
+            head == NONE || block > head -> advanceTo(block)
+            !retained(block)             -> return
+        }
+        counts[slot(block)] += steps
+        // block in the past (clock change), shift totals of newer blocks too
+        for (b in block..head) totals[slot(b)] += steps
+        total += steps
+    }
+
+    private fun advanceTo(block: Long) {
+        val from = if (head == NONE) block - capacity + 1 else maxOf(head + 1, block - capacity + 1)
+        for (b in from..block) {
+            counts[slot(b)] = 0
+            totals[slot(b)] = total
+        }
+        head = block
+    }
+
+    /**
+     * Steps in [block]
+     */
+    @Synchronized
+    fun count(block: Long): Int = if (retained(block)) counts[slot(block)] else 0
+
+    /**
+     * Steps in blocks newer than `block - blocks`
+     */
+    @Synchronized
+    fun sumLast(block: Long, blocks: Int): Int {
+        require(blocks <= capacity)
+        return (total - totalAt(block - blocks)).toInt()
+    }
+
+    private fun totalAt(block: Long): Long {
+        if (head == NONE || block >= head) return total
+        if (block > head - capacity) return totals[slot(block)]
+        val oldest = slot(head - capacity + 1)
+        return totals[oldest] - counts[oldest]
+    }
+
+    companion object {
+
+        private const val NONE = Long.MIN_VALUE
+    }
+}
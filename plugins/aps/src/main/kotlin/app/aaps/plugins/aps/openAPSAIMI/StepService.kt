@@ -9,9 +9,10 @@ object StepService : SensorEventListener {
 
     private const val TAG = "StepService"
     private var previousStepCount = -1
-    private val stepsMap = LinkedHashMap<Long, Int>()
     private const val fiveMinutesInMs = 300000
-    private const val numOf5MinBlocksToKeep = 20
+    // longest window is 180 min
+    private const val numOf5MinBlocksToKeep = 36
+    private val history = StepHistory(numOf5MinBlocksToKeep)
 
     override fun onAccuracyChanged(sensor: Sensor?, accuracy: Int) {
         Log.i(TAG, "onAccuracyChanged: Sensor: $sensor; accuracy: $accuracy")
@@ -27,33 +28,21 @@ object StepService : SensorEventListener {
         val now = currentTimeIn5Min()
         val stepCount = sensorEvent.values[0].toInt()
         if(previousStepCount >= 0) {
-            var recentStepCount = stepCount - previousStepCount
-            if(stepsMap.contains(now)) {
-                recentStepCount += stepsMap.getValue(now)
-            }
-            stepsMap[now] = recentStepCount
+            history.add(now, stepCount - previousStepCount)
         }
         previousStepCount = stepCount
-
-        if(stepsMap.size > numOf5MinBlocksToKeep) {
-            val removeBefore = now - numOf5MinBlocksToKeep
-            stepsMap.entries.removeIf { it.key < removeBefore}
-        }
     }
 
     fun getRecentStepCount5Min(): Int {
-        val now = currentTimeIn5Min() - 1
-        return if(stepsMap.contains(now)) stepsMap.getValue(now) else 0
+        return history.count(currentTimeIn5Min() - 1)
     }
 
     fun getRecentStepCount10Min(): Int {
-        val tenMinAgo = currentTimeIn5Min() - 2
-        return if(stepsMap.contains(tenMinAgo)) stepsMap.getValue(tenMinAgo) else 0
+        return history.count(currentTimeIn5Min() - 2)
     }
 
     fun getRecentStepCount15Min(): Int {
-        val fifteenMinAgo = currentTimeIn5Min() - 3
-        return if(stepsMap.contains(fifteenMinAgo)) stepsMap.getValue(fifteenMinAgo) else 0
+        return history.count(currentTimeIn5Min() - 3)
     }
 
     fun getRecentStepCount30Min(): Int {
@@ -68,14 +57,7 @@ object StepService : SensorEventListener {
     }
 
     private fun getStepsInLastXMin(numberOf5MinIncrements: Int): Int {
-        var stepCount = 0
-        val thirtyMinAgo = currentTimeIn5Min() - numberOf5MinIncrements
-        for (entry in stepsMap.entries) {
-            if (entry.key > thirtyMinAgo) {
-                stepCount += entry.value
-            }
-        }
-        return stepCount
+        return history.sumLast(currentTimeIn5Min(), numberOf5MinIncrements)
     }
 
 }
\ No newline at end of file
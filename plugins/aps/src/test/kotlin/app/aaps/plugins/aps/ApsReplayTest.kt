@@ -0,0 +1,479 @@
+package app.aaps.plugins.aps
+
+import android.os.Environment
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.interfaces.aps.APSResult
+import app.aaps.core.interfaces.aps.AutosensDataStore
+import app.aaps.core.interfaces.aps.AutosensResult
+import app.aaps.core.interfaces.aps.CurrentTemp
+import app.aaps.core.interfaces.aps.GlucoseStatus
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.aps.MealData
+import app.aaps.core.interfaces.aps.OapsProfile
+import app.aaps.core.interfaces.aps.OapsProfileAimi
+import app.aaps.core.interfaces.aps.OapsProfileAutoIsf
+import app.aaps.core.interfaces.aps.RT
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.stats.TIR
+import app.aaps.core.interfaces.stats.TddCalculator
+import app.aaps.core.interfaces.stats.TirCalculator
+import app.aaps.core.keys.DoubleKey
+import app.aaps.core.keys.StringKey
+import app.aaps.core.keys.interfaces.BooleanPreferenceKey
+import app.aaps.core.keys.interfaces.DoublePreferenceKey
+import app.aaps.core.keys.interfaces.IntPreferenceKey
+import app.aaps.plugins.aps.openAPSAIMI.DetermineBasalaimiSMB2
+import app.aaps.plugins.aps.openAPSAMA.DetermineBasalAMA
+import app.aaps.plugins.aps.openAPSAutoISF.DetermineBasalAutoISF
+import app.aaps.plugins.aps.openAPSSMB.DetermineBasalSMB
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import io.reactivex.rxjava3.core.Single
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestReporter
+import org.junit.jupiter.api.io.TempDir
+import org.mockito.Mock
+import org.mockito.Mockito
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+import java.io.File
+import kotlin.math.abs
+import kotlin.math.floor
+import kotlin.math.min
+
+/**
+ * JVM replay of APS results recorded on devices (same assets as instrumented ReplayApsResultsTest).
+ *
+ * Every recorded input is passed to the Kotlin algorithm and result is compared
+ * with recorded output, only fields present in the recording are checked.
+ * SMB inputs are passed to AIMI too. There are no AIMI recordings, its results are only checked for sanity.
+ * Latency percentiles of every algorithm are published as test report entries.
+ */
+class ApsReplayTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var tddCalculator: TddCalculator
+    @Mock lateinit var tirCalculator: TirCalculator
+    @Mock lateinit var autosensDataStore: AutosensDataStore
+
+    // AIMI writes its ML training data to external storage
+    @TempDir lateinit var externalStorage: File
+
+    private lateinit var determineBasalAMA: DetermineBasalAMA
+    private lateinit var determineBasalSMB: DetermineBasalSMB
+    private lateinit var determineBasalAutoISF: DetermineBasalAutoISF
+    private lateinit var determineBasalAIMI: DetermineBasalaimiSMB2
+
+    private var units = GlucoseUnit.MGDL
+
+    private class Recording(val filename: String, val algorithm: String, val input: JSONObject, val output: JSONObject)
+
+    /** Invocation of algorithm prepared outside of measured time, [recorded] results can be compared with recording */
+    private class Replay(val algorithm: String, val recorded: Boolean, val run: () -> RT)
+
+    @BeforeEach
+    fun prepare() {
+        whenever(preferences.get(StringKey.GeneralUnits)).thenAnswer { units.asText }
+        determineBasalAMA = DetermineBasalAMA(profileUtil)
+        determineBasalSMB = DetermineBasalSMB(profileUtil, fabricPrivacy)
+        determineBasalAutoISF = DetermineBasalAutoISF(profileUtil)
+        prepareAimi()
+    }
+
+    private fun prepareAimi() {
+        whenever(preferences.get(any<DoublePreferenceKey>())).thenAnswer { (it.arguments[0] as DoublePreferenceKey).defaultValue }
+        whenever(preferences.get(any<IntPreferenceKey>())).thenAnswer { (it.arguments[0] as IntPreferenceKey).defaultValue }
+        whenever(preferences.get(any<BooleanPreferenceKey>())).thenAnswer { (it.arguments[0] as BooleanPreferenceKey).defaultValue }
+        whenever(persistenceLayer.getTherapyEventDataFromTime(any(), any<Boolean>())).thenReturn(Single.just(emptyList()))
+        whenever(persistenceLayer.getUserEntryDataFromTime(any())).thenReturn(Single.just(emptyList()))
+        whenever(persistenceLayer.getTemporaryBasalsStartingFromTime(any(), any())).thenReturn(Single.just(emptyList()))
+        whenever(persistenceLayer.getBolusesFromTime(any(), any())).thenReturn(Single.just(emptyList()))
+        val tir = mock<TIR> {
+            on { belowPct() } doReturn 2.0
+            on { inRangePct() } doReturn 85.0
+            on { abovePct() } doReturn 13.0
+        }
+        whenever(tirCalculator.averageTIR(anyOrNull())).thenReturn(tir)
+        whenever(iobCobCalculator.ads).thenReturn(autosensDataStore)
+
+        Mockito.mockStatic(Environment::class.java).use {
+            it.`when`<File> { Environment.getExternalStorageDirectory() }.thenReturn(externalStorage)
+            determineBasalAIMI = DetermineBasalaimiSMB2(profileUtil, fabricPrivacy)
+        }
+        determineBasalAIMI.preferences = preferences
+        determineBasalAIMI.persistenceLayer = persistenceLayer
+        determineBasalAIMI.tddCalculator = tddCalculator
+        determineBasalAIMI.tirCalculator = tirCalculator
+        determineBasalAIMI.dateUtil = dateUtil
+        determineBasalAIMI.profileFunction = profileFunction
+        determineBasalAIMI.iobCobCalculator = iobCobCalculator
+        determineBasalAIMI.activePlugin = activePlugin
+    }
+
+    @Test
+    fun replayRecordedResults(reporter: TestReporter) {
+        val recordings = RESULTS.listFiles { file -> file.name.endsWith(".json") }.orEmpty().sortedBy { it.name }.map {
+            val json = JSONObject(it.readText())
+            Recording(it.name, json.getString("algorithm"), json.getJSONObject("input"), json.getJSONObject("output"))
+        }
+        assertThat(recordings).isNotEmpty()
+
+        val latencies = LinkedHashMap<String, MutableList<Long>>()
+        val mismatches = ArrayList<String>()
+        val skipped = LinkedHashMap<String, Int>()
+        // first round warms up JIT and is not measured
+        for (round in 0..ROUNDS) {
+            for (recording in recordings) {
+                val replays = replays(recording)
+                if (round == 0 && replays.none { it.recorded }) skipped[recording.algorithm] = (skipped[recording.algorithm] ?: 0) + 1
+                for (replay in replays) {
+                    val started = System.nanoTime()
+                    val result = replay.run()
+                    val elapsed = System.nanoTime() - started
+                    if (round == 0) mismatches.addAll(if (replay.recorded) diff(recording, result) else sanity(recording, replay.algorithm, result))
+                    else latencies.getOrPut(replay.algorithm) { ArrayList() }.add(elapsed)
+                }
+            }
+        }
+
+        latencies.forEach { (algorithm, nanos) ->
+            nanos.sort()
+            fun percentile(fraction: Double) = nanos[((nanos.size - 1) * fraction).toInt()] / 1000
+            reporter.publishEntry(
+                algorithm,
+                "${nanos.size / ROUNDS} recordings, ${skipped[algorithm] ?: 0} skipped, " +
+                    "p50 ${percentile(0.5)} us, p90 ${percentile(0.9)} us, p99 ${percentile(0.99)} us, max ${nanos.last() / 1000} us"
+            )
+        }
+        assertThat(latencies.keys).containsAtLeast("OpenAPSSMBPlugin", "OpenAPSSMBDynamicISFPlugin", "OpenAPSSMBAutoISFPlugin", AIMI)
+        assertThat(mismatches).isEmpty()
+    }
+
+    private fun replays(recording: Recording): List<Replay> {
+        // whole number deltas are evaluated as Int by JS and results differ
+        val delta = recording.input.getJSONObject("glucoseStatus").getDouble("delta")
+        val recorded = if (floor(delta) == delta) null else replay(recording)?.let { Replay(recording.algorithm, true, it) }
+        return listOfNotNull(recorded, replayAimi(recording)?.let { Replay(AIMI, false, it) })
+    }
+
+    /**
+     * Prepare invocation of algorithm outside of measured time
+     *
+     * @return null if recording can't be replayed
+     */
+    private fun replay(recording: Recording): (() -> RT)? {
+        val input = recording.input
+        val profile = input.getJSONObject("profile")
+        units = if (profile.optString("out_units") == "mmol/L") GlucoseUnit.MMOL else GlucoseUnit.MGDL
+        val currentTemp = input.getJSONObject("currenttemp").let { CurrentTemp(duration = it.getInt("duration"), rate = it.getDouble("rate"), minutesrunning = null) }
+        val autosensData = AutosensResult(ratio = input.getJSONObject("autosens_data").getDouble("ratio"))
+        val iobData = input.getJSONArray("iob_data").toIobArray()
+        when (recording.algorithm) {
+            "OpenAPSAMAPlugin"           -> {
+                val glucoseStatus = input.getJSONObject("glucoseStatus").toGlucoseStatus()
+                val mealData = input.getJSONObject("meal_data").let { MealData(carbs = it.getDouble("carbs"), mealCOB = it.getDouble("mealCOB"), slopeFromMinDeviation = 0.0) }
+                val oapsProfile = profile.toOapsProfile(ama = true)
+                return { determineBasalAMA.determine_basal(glucoseStatus, currentTemp, iobData, oapsProfile, autosensData, mealData, currentTime = 0) }
+            }
+
+            "OpenAPSSMBPlugin",
+            "OpenAPSSMBDynamicISFPlugin" -> {
+                val glucoseStatus = input.getJSONObject("glucoseStatus").toGlucoseStatus()
+                val mealData = input.getJSONObject("meal_data").toMealData()
+                val oapsProfile = profile.toOapsProfile(ama = false)
+                val dynIsfMode = recording.algorithm == "OpenAPSSMBDynamicISFPlugin"
+                return {
+                    determineBasalSMB.determine_basal(
+                        glucoseStatus, currentTemp, iobData, oapsProfile, autosensData, mealData, input.getBoolean("microBolusAllowed"), input.getLong("currentTime"),
+                        input.getBoolean("flatBGsDetected"), dynIsfMode
+                    )
+                }
+            }
+
+            "OpenAPSSMBAutoISFPlugin"    -> {
+                // variable sensitivity is calculated before algorithm, only newer recordings contain it
+                val variableSens = recording.output.optDouble("variable_sens")
+                if (variableSens.isNaN()) return null
+                val glucoseStatus = input.getJSONObject("glucoseStatus").toGlucoseStatus()
+                val mealData = input.getJSONObject("meal_data").toMealData()
+                val oapsProfile = profile.toOapsProfileAutoIsf(variableSens)
+                return {
+                    determineBasalAutoISF.determine_basal(
+                        glucoseStatus, currentTemp, iobData, oapsProfile, autosensData, mealData, input.getBoolean("microBolusAllowed"), input.getLong("currentTime"),
+                        input.getBoolean("flatBGsDetected"), autoIsfMode = true, loop_wanted_smb = "dummy", profile_percentage = oapsProfile.profile_percentage,
+                        smb_ratio = oapsProfile.smb_delivery_ratio, smb_max_range_extension = oapsProfile.smb_max_range_extension,
+                        iob_threshold_percent = oapsProfile.iob_threshold_percent, auto_isf_consoleError = mutableListOf(), auto_isf_consoleLog = mutableListOf()
+                    )
+                }
+            }
+
+            else                         -> error("Unsupported algorithm ${recording.algorithm} in ${recording.filename}")
+        }
+    }
+
+    /**
+     * AIMI takes the same inputs as SMB, statistics and history come from mocks
+     *
+     * No ML model is present, AIMI falls back to its calculated SMB.
+     */
+    private fun replayAimi(recording: Recording): (() -> RT)? {
+        if (recording.algorithm != "OpenAPSSMBPlugin" && recording.algorithm != "OpenAPSSMBDynamicISFPlugin") return null
+        val input = recording.input
+        val profile = input.getJSONObject("profile")
+        val currentTemp = input.getJSONObject("currenttemp").let { CurrentTemp(duration = it.getInt("duration"), rate = it.getDouble("rate"), minutesrunning = null) }
+        val autosensData = AutosensResult(ratio = input.getJSONObject("autosens_data").getDouble("ratio"))
+        val iobData = input.getJSONArray("iob_data").toIobArray()
+        val glucoseStatus = input.getJSONObject("glucoseStatus").toGlucoseStatus()
+        val mealData = input.getJSONObject("meal_data").toMealData()
+        val oapsProfile = profile.toOapsProfileAimi(iobData)
+        units = if (profile.optString("out_units") == "mmol/L") GlucoseUnit.MMOL else GlucoseUnit.MGDL
+        whenever(preferences.get(DoubleKey.ApsSmbMaxIob)).thenReturn(oapsProfile.max_iob)
+        return {
+            determineBasalAIMI.determine_basal(
+                glucoseStatus, currentTemp, iobData, oapsProfile, autosensData, mealData, input.getBoolean("microBolusAllowed"), input.getLong("currentTime"),
+                input.getBoolean("flatBGsDetected"), dynIsfMode = recording.algorithm == "OpenAPSSMBDynamicISFPlugin"
+            )
+        }
+    }
+
+    private fun sanity(recording: Recording, algorithm: String, result: RT): List<String> = listOfNotNull(
+        "${recording.filename} $algorithm: algorithm ${result.algorithm}".takeIf { result.algorithm != APSResult.Algorithm.AIMI },
+        "${recording.filename} $algorithm: rate ${result.rate}".takeIf { result.rate?.let { it < 0 || it.isNaN() } == true },
+        "${recording.filename} $algorithm: units ${result.units}".takeIf { result.units?.let { it < 0 || it.isNaN() } == true }
+    )
+
+    private fun diff(recording: Recording, result: RT): List<String> {
+        val actual = mapOf(
+            "tick" to result.tick, "eventualBG" to result.eventualBG, "targetBG" to result.targetBG, "insulinReq" to result.insulinReq,
+            "carbsReq" to result.carbsReq, "carbsReqWithin" to result.carbsReqWithin, "units" to result.units, "sensitivityRatio" to result.sensitivityRatio,
+            "duration" to result.duration, "rate" to result.rate, "COB" to result.COB, "IOB" to result.IOB, "variable_sens" to result.variable_sens
+        )
+        return actual.mapNotNull { (field, value) ->
+            if (!recording.output.has(field)) return@mapNotNull null
+            val expected = recording.output.get(field)
+            val equal = when {
+                expected is Number && value is Number -> abs(expected.toDouble() - value.toDouble()) <= tolerance(recording.algorithm, field)
+                else                                  -> expected.toString() == value.toString()
+            }
+            if (equal) null else "${recording.filename} ${recording.algorithm} $field: expected $expected, was $value"
+        }
+    }
+
+    // eventualBG of AutoISF is not rounded the same way as in JS
+    private fun tolerance(algorithm: String, field: String): Double =
+        if (algorithm == "OpenAPSSMBAutoISFPlugin" && field == "eventualBG") 1.0 else 0.0
+
+    private fun JSONObject.toGlucoseStatus() = GlucoseStatus(
+        glucose = getDouble("glucose"),
+        noise = optDouble("noise", 0.0),
+        delta = getDouble("delta"),
+        shortAvgDelta = getDouble("short_avgdelta"),
+        longAvgDelta = getDouble("long_avgdelta"),
+        date = optLong("date", 0),
+        duraISFminutes = optDouble("dura_ISF_minutes", 0.0),
+        duraISFaverage = optDouble("dura_ISF_average", 0.0),
+        a0 = optDouble("parabola_fit_a0", 0.0),
+        a1 = optDouble("parabola_fit_a1", 0.0),
+        a2 = optDouble("parabola_fit_a2", 0.0),
+        bgAcceleration = optDouble("bg_acceleration", 0.0),
+        corrSqu = optDouble("parabola_fit_correlation", 0.0)
+    )
+
+    private fun JSONObject.toIob(): IobTotal = IobTotal(
+        time = dateUtil.fromISODateString(getString("time")),
+        iob = getDouble("iob"),
+        basaliob = getDouble("basaliob"),
+        bolussnooze = getDouble("bolussnooze"),
+        activity = getDouble("activity"),
+        lastBolusTime = getLong("lastBolusTime"),
+        iobWithZeroTemp = optJSONObject("iobWithZeroTemp")?.toIob()
+    )
+
+    private fun JSONArray.toIobArray(): Array<IobTotal> = Array(length()) { getJSONObject(it).toIob() }
+
+    private fun JSONObject.toMealData() = MealData(
+        carbs = getDouble("carbs"),
+        mealCOB = getDouble("mealCOB"),
+        slopeFromMaxDeviation = getDouble("slopeFromMaxDeviation"),
+        slopeFromMinDeviation = getDouble("slopeFromMinDeviation"),
+        lastBolusTime = getLong("lastBolusTime"),
+        lastCarbTime = getLong("lastCarbTime")
+    )
+
+    // AMA recordings contain only subset of profile
+    private fun JSONObject.toOapsProfile(ama: Boolean) = OapsProfile(
+        dia = if (ama) getDouble("dia") else 0.0,
+        min_5m_carbimpact = if (ama) getDouble("min_5m_carbimpact") else 0.0,
+        max_iob = getDouble("max_iob"),
+        max_daily_basal = getDouble("max_daily_basal"),
+        max_basal = getDouble("max_basal"),
+        min_bg = getDouble("min_bg"),
+        max_bg = getDouble("max_bg"),
+        target_bg = getDouble("target_bg"),
+        carb_ratio = getDouble("carb_ratio"),
+        sens = getDouble("sens"),
+        autosens_adjust_targets = ama && getBoolean("autosens_adjust_targets"),
+        max_daily_safety_multiplier = getDouble("max_daily_safety_multiplier"),
+        current_basal_safety_multiplier = getDouble("current_basal_safety_multiplier"),
+        lgsThreshold = if (ama) 0 else if (has("lgsThreshold")) getInt("lgsThreshold") else null,
+        high_temptarget_raises_sensitivity = optBoolean("high_temptarget_raises_sensitivity"),
+        low_temptarget_lowers_sensitivity = optBoolean("low_temptarget_lowers_sensitivity"),
+        sensitivity_raises_target = optBoolean("sensitivity_raises_target"),
+        resistance_lowers_target = optBoolean("resistance_lowers_target"),
+        adv_target_adjustments = optBoolean("adv_target_adjustments"),
+        exercise_mode = optBoolean("exercise_mode"),
+        half_basal_exercise_target = optInt("half_basal_exercise_target"),
+        maxCOB = optInt("maxCOB"),
+        skip_neutral_temps = getBoolean("skip_neutral_temps"),
+        remainingCarbsCap = optInt("remainingCarbsCap"),
+        enableUAM = optBoolean("enableUAM"),
+        A52_risk_enable = optBoolean("A52_risk_enable"),
+        SMBInterval = optInt("SMBInterval"),
+        enableSMB_with_COB = optBoolean("enableSMB_with_COB"),
+        enableSMB_with_temptarget = optBoolean("enableSMB_with_temptarget"),
+        allowSMB_with_high_temptarget = optBoolean("allowSMB_with_high_temptarget"),
+        enableSMB_always = optBoolean("enableSMB_always"),
+        enableSMB_after_carbs = optBoolean("enableSMB_after_carbs"),
+        maxSMBBasalMinutes = optInt("maxSMBBasalMinutes"),
+        maxUAMSMBBasalMinutes = optInt("maxUAMSMBBasalMinutes"),
+        bolus_increment = optDouble("bolus_increment", 0.0),
+        carbsReqThreshold = optInt("carbsReqThreshold"),
+        current_basal = getDouble("current_basal"),
+        temptargetSet = getBoolean("temptargetSet"),
+        autosens_max = optDouble("autosens_max", 0.0),
+        out_units = optString("out_units"),
+        variable_sens = optDouble("variable_sens", 0.0),
+        insulinDivisor = optInt("insulinDivisor"),
+        TDD = optDouble("TDD", 0.0)
+    )
+
+    private fun JSONObject.toOapsProfileAutoIsf(variableSens: Double) = OapsProfileAutoIsf(
+        dia = 0.0,
+        min_5m_carbimpact = 0.0,
+        max_iob = getDouble("max_iob"),
+        max_daily_basal = getDouble("max_daily_basal"),
+        max_basal = getDouble("max_basal"),
+        min_bg = getDouble("min_bg"),
+        max_bg = getDouble("max_bg"),
+        target_bg = getDouble("target_bg"),
+        carb_ratio = getDouble("carb_ratio"),
+        sens = getDouble("sens"),
+        autosens_adjust_targets = false,
+        max_daily_safety_multiplier = getDouble("max_daily_safety_multiplier"),
+        current_basal_safety_multiplier = getDouble("current_basal_safety_multiplier"),
+        lgsThreshold = null,
+        high_temptarget_raises_sensitivity = getBoolean("high_temptarget_raises_sensitivity"),
+        low_temptarget_lowers_sensitivity = getBoolean("low_temptarget_lowers_sensitivity"),
+        sensitivity_raises_target = getBoolean("sensitivity_raises_target"),
+        resistance_lowers_target = getBoolean("resistance_lowers_target"),
+        adv_target_adjustments = getBoolean("adv_target_adjustments"),
+        exercise_mode = getBoolean("exercise_mode"),
+        half_basal_exercise_target = getInt("half_basal_exercise_target"),
+        maxCOB = getInt("maxCOB"),
+        skip_neutral_temps = getBoolean("skip_neutral_temps"),
+        remainingCarbsCap = getInt("remainingCarbsCap"),
+        enableUAM = getBoolean("enableUAM"),
+        A52_risk_enable = getBoolean("A52_risk_enable"),
+        SMBInterval = getInt("SMBInterval"),
+        enableSMB_with_COB = getBoolean("enableSMB_with_COB"),
+        enableSMB_with_temptarget = getBoolean("enableSMB_with_temptarget"),
+        allowSMB_with_high_temptarget = getBoolean("allowSMB_with_high_temptarget"),
+        enableSMB_always = getBoolean("enableSMB_always"),
+        enableSMB_after_carbs = getBoolean("enableSMB_after_carbs"),
+        maxSMBBasalMinutes = getInt("maxSMBBasalMinutes"),
+        maxUAMSMBBasalMinutes = getInt("maxUAMSMBBasalMinutes"),
+        bolus_increment = getDouble("bolus_increment"),
+        carbsReqThreshold = getInt("carbsReqThreshold"),
+        current_basal = getDouble("current_basal"),
+        temptargetSet = getBoolean("temptargetSet"),
+        autosens_max = getDouble("autosens_max"),
+        out_units = optString("out_units"),
+        variable_sens = variableSens,
+        autoISF_version = optString("autoISF_version"),
+        enable_autoISF = getBoolean("enable_autoISF"),
+        autoISF_max = getDouble("autoISF_max"),
+        autoISF_min = getDouble("autoISF_min"),
+        bgAccel_ISF_weight = getDouble("bgAccel_ISF_weight"),
+        bgBrake_ISF_weight = getDouble("bgBrake_ISF_weight"),
+        pp_ISF_weight = getDouble("pp_ISF_weight"),
+        lower_ISFrange_weight = getDouble("lower_ISFrange_weight"),
+        higher_ISFrange_weight = getDouble("higher_ISFrange_weight"),
+        dura_ISF_weight = getDouble("dura_ISF_weight"),
+        smb_delivery_ratio = getDouble("smb_delivery_ratio"),
+        smb_delivery_ratio_min = getDouble("smb_delivery_ratio_min"),
+        smb_delivery_ratio_max = getDouble("smb_delivery_ratio_max"),
+        smb_delivery_ratio_bg_range = getDouble("smb_delivery_ratio_bg_range"),
+        smb_max_range_extension = getDouble("smb_max_range_extension"),
+        enableSMB_EvenOn_OddOff_always = getBoolean("enableSMB_EvenOn_OddOff_always"),
+        iob_threshold_percent = getInt("iob_threshold_percent"),
+        profile_percentage = getInt("profile_percentage")
+    )
+
+    // activities are calculated by plugin from insulin curve, IOB ticks are close enough for replay
+    private fun JSONObject.toOapsProfileAimi(iobData: Array<IobTotal>) = OapsProfileAimi(
+        dia = AIMI_DIA,
+        min_5m_carbimpact = 0.0,
+        max_iob = getDouble("max_iob"),
+        max_daily_basal = getDouble("max_daily_basal"),
+        max_basal = getDouble("max_basal"),
+        min_bg = getDouble("min_bg"),
+        max_bg = getDouble("max_bg"),
+        target_bg = getDouble("target_bg"),
+        carb_ratio = getDouble("carb_ratio"),
+        sens = getDouble("sens"),
+        autosens_adjust_targets = false,
+        max_daily_safety_multiplier = getDouble("max_daily_safety_multiplier"),
+        current_basal_safety_multiplier = getDouble("current_basal_safety_multiplier"),
+        high_temptarget_raises_sensitivity = optBoolean("high_temptarget_raises_sensitivity"),
+        low_temptarget_lowers_sensitivity = optBoolean("low_temptarget_lowers_sensitivity"),
+        sensitivity_raises_target = optBoolean("sensitivity_raises_target"),
+        resistance_lowers_target = optBoolean("resistance_lowers_target"),
+        adv_target_adjustments = optBoolean("adv_target_adjustments"),
+        exercise_mode = optBoolean("exercise_mode"),
+        half_basal_exercise_target = optInt("half_basal_exercise_target"),
+        maxCOB = optInt("maxCOB"),
+        skip_neutral_temps = getBoolean("skip_neutral_temps"),
+        remainingCarbsCap = optInt("remainingCarbsCap"),
+        enableUAM = optBoolean("enableUAM"),
+        A52_risk_enable = optBoolean("A52_risk_enable"),
+        SMBInterval = optInt("SMBInterval"),
+        enableSMB_with_COB = optBoolean("enableSMB_with_COB"),
+        enableSMB_with_temptarget = optBoolean("enableSMB_with_temptarget"),
+        allowSMB_with_high_temptarget = optBoolean("allowSMB_with_high_temptarget"),
+        enableSMB_always = optBoolean("enableSMB_always"),
+        enableSMB_after_carbs = optBoolean("enableSMB_after_carbs"),
+        maxSMBBasalMinutes = optInt("maxSMBBasalMinutes"),
+        maxUAMSMBBasalMinutes = optInt("maxUAMSMBBasalMinutes"),
+        bolus_increment = optDouble("bolus_increment", 0.0),
+        carbsReqThreshold = optInt("carbsReqThreshold"),
+        current_basal = getDouble("current_basal"),
+        temptargetSet = getBoolean("temptargetSet"),
+        autosens_max = optDouble("autosens_max", 0.0),
+        out_units = optString("out_units"),
+        lgsThreshold = if (has("lgsThreshold")) getInt("lgsThreshold") else null,
+        variable_sens = optDouble("variable_sens", 0.0).takeIf { it > 0 } ?: getDouble("sens"),
+        insulinDivisor = optInt("insulinDivisor"),
+        TDD = optDouble("TDD", 0.0),
+        peakTime = AIMI_PEAK_TIME,
+        futureActivity = iobData[min(iobData.size - 1, 12)].activity,
+        sensorLagActivity = iobData[0].activity,
+        historicActivity = iobData[0].activity,
+        currentActivity = iobData[0].activity
+    )
+
+    companion object {
+
+        // recorded by devices, shared with instrumented test
+        private val RESULTS = File("../../app/src/androidTest/assets/results")
+        private const val ROUNDS = 20
+        private const val AIMI = "OpenAPSAIMIPlugin"
+        private const val AIMI_DIA = 9.0
+        private const val AIMI_PEAK_TIME = 75.0
+    }
+}
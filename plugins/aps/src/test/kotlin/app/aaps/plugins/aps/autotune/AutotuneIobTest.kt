@@ -0,0 +1,173 @@
+package app.aaps.plugins.aps.autotune
+
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.IDs
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.objects.extensions.round
+import app.aaps.core.utils.JsonHelper
+import app.aaps.plugins.aps.autotune.data.ATProfile
+import app.aaps.plugins.aps.autotune.data.LocalInsulin
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.json.JSONArray
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+import java.io.File
+import java.util.Random
+
+class AutotuneIobTest : TestBaseWithProfile() {
+
+    @Mock lateinit var autotuneFS: AutotuneFS
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+
+    private val boluses = ArrayList<BS>()
+    private val temporaryBasals = ArrayList<TB>()
+    private var dayStart = 0L
+    private lateinit var localInsulin: LocalInsulin
+    private lateinit var tunedProfile: ATProfile
+
+    @BeforeEach
+    fun prepare() {
+        // treatments of one day from autotune test fixture repeated for every day
+        val json = JSONArray(File("src/test/res/autotune/test1/aaps-treatments.2022-05-21.json").readText())
+        val day = ArrayList<Any>()
+        for (index in 0 until json.length()) {
+            val treatment = json.getJSONObject(index)
+            val timestamp = dateUtil.fromISODateString(JsonHelper.safeGetString(treatment, "created_at")!!)
+            when (JsonHelper.safeGetString(treatment, "eventType")) {
+                "Temp Basal"                     ->
+                    day.add(TB(timestamp = timestamp, type = TB.Type.NORMAL, isAbsolute = true, rate = JsonHelper.safeGetDouble(treatment, "rate"), duration = JsonHelper.safeGetLong(treatment, "durationInMilliseconds")))
+
+                "Correction Bolus", "Meal Bolus" ->
+                    day.add(BS(timestamp = timestamp, amount = JsonHelper.safeGetDouble(treatment, "insulin"), type = if (JsonHelper.safeGetBoolean(treatment, "isSMB")) BS.Type.SMB else BS.Type.NORMAL))
+            }
+        }
+        dayStart = day.minOf { if (it is TB) it.timestamp else (it as BS).timestamp } / T.hours(1).msecs() * T.hours(1).msecs()
+        for (d in 0 until DAYS) {
+            val shift = d * T.days(1).msecs()
+            day.forEach {
+                if (it is TB) temporaryBasals.add(it.copy(timestamp = it.timestamp + shift, ids = IDs(nightscoutId = "tb_${d}_${it.timestamp}")))
+                if (it is BS) boluses.add(it.copy(timestamp = it.timestamp + shift, ids = IDs(nightscoutId = "bs_${d}_${it.timestamp}")))
+            }
+        }
+
+        whenever(profileFunction.getProfile(any<Long>())).thenReturn(validProfile)
+        whenever(persistenceLayer.getBgReadingsDataFromTimeToTime(any(), any(), any())).thenAnswer { invocation ->
+            val from = invocation.getArgument<Long>(0)
+            val to = invocation.getArgument<Long>(1)
+            ((to - from) / T.mins(5).msecs() downTo 0).map {
+                GV(timestamp = from + it * T.mins(5).msecs(), raw = null, value = 100.0 + it % 50, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.UNKNOWN)
+            }
+        }
+        whenever(persistenceLayer.getCarbsFromTimeToTimeExpanded(any(), any(), any())).thenReturn(emptyList())
+        whenever(persistenceLayer.getExtendedBolusesStartingFromTimeToTime(any(), any(), any())).thenReturn(emptyList())
+        whenever(persistenceLayer.getBolusesFromTimeToTime(any(), any(), any())).thenAnswer { invocation ->
+            boluses.filter { it.timestamp >= invocation.getArgument<Long>(0) && it.timestamp <= invocation.getArgument<Long>(1) }
+        }
+        whenever(persistenceLayer.getTemporaryBasalsStartingFromTimeToTime(any(), any(), any())).thenAnswer { invocation ->
+            temporaryBasals.filter { it.timestamp >= invocation.getArgument<Long>(0) && it.timestamp <= invocation.getArgument<Long>(1) }
+        }
+        localInsulin = LocalInsulin("Test", 75, validProfile.dia)
+        tunedProfile = ATProfile(validProfile, localInsulin, injector)
+    }
+
+    private fun autotuneIob() = AutotuneIob(aapsLogger, persistenceLayer, profileFunction, preferences, dateUtil, autotuneFS)
+
+    @Test
+    fun prefetchedDayIsEqualToQueriedDay() {
+        val from = dayStart + T.days(3).msecs()
+        val to = from + T.days(1).msecs()
+        val queried = autotuneIob().also { it.initializeData(from, to, tunedProfile) }
+        val prefetched = autotuneIob().also { it.initializeData(from, to, tunedProfile, it.loadDay(from, to, tunedProfile.dia)) }
+
+        assertThat(prefetched.boluses.size).isGreaterThan(0)
+        assertThat(prefetched.glucoseToJSON()).isEqualTo(queried.glucoseToJSON())
+        assertThat(prefetched.bolusesToJSON()).isEqualTo(queried.bolusesToJSON())
+        assertThat(prefetched.nsHistoryToJSON()).isEqualTo(queried.nsHistoryToJSON())
+    }
+
+    @Test
+    fun dayLoadedForOtherDiaIsQueriedAgain() {
+        val from = dayStart + T.days(3).msecs()
+        val to = from + T.days(1).msecs()
+        val sut = autotuneIob()
+        val expected = autotuneIob().also { it.initializeData(from, to, tunedProfile) }.bolusesToJSON()
+
+        sut.initializeData(from, to, tunedProfile, sut.loadDay(from, to, tunedProfile.dia + 1.0))
+
+        assertThat(sut.bolusesToJSON()).isEqualTo(expected)
+    }
+
+    @Test
+    fun indexedIobIsIdenticalToLinearScan() {
+        val from = dayStart + T.days(1).msecs()
+        val to = dayStart + T.days(DAYS.toLong()).msecs()
+        val sut = autotuneIob().also { it.initializeData(from, to, tunedProfile) }
+        val counting = CountingList(sut.boluses)
+        sut.boluses = counting
+        val times = (from until to step T.mins(5).msecs()).toList()
+        // builds the index
+        sut.getIOB(from, localInsulin)
+        counting.visits = 0
+
+        val expected = times.map { linearIob(sut.boluses, it) }
+        val indexed = times.map { sut.getIOB(it, localInsulin) }
+
+        for (i in times.indices) {
+            assertThat(indexed[i].iob).isEqualTo(expected[i].iob)
+            assertThat(indexed[i].activity).isEqualTo(expected[i].activity)
+        }
+        // only boluses inside of insulin action window are visited
+        val inWindow = times.sumOf { time -> counting.count { it.timestamp in time - localInsulin.duration..time } }
+        assertThat(counting.visits).isEqualTo(inWindow)
+        assertThat(counting.visits).isLessThan(times.size * counting.size / 10)
+    }
+
+    // linear scan iterates, indexed scan accesses by position
+    private class CountingList(boluses: List<BS>) : ArrayList<BS>(boluses) {
+
+        var visits = 0
+
+        override fun get(index: Int): BS = super.get(index).also { visits++ }
+    }
+
+    @Test
+    fun unsortedBolusesAreScannedLinearly() {
+        val sut = autotuneIob()
+        val sample = boluses.take(100)
+        val time = sample.maxOf { it.timestamp } + T.hours(1).msecs()
+        sut.boluses = ArrayList(sample.shuffled(Random(1)))
+
+        val iob = sut.getIOB(time, localInsulin)
+
+        assertThat(iob.iob).isEqualTo(linearIob(sut.boluses, time).iob)
+        assertThat(iob.iob).isGreaterThan(0.0)
+    }
+
+    // previous implementation checking every bolus for every BG reading
+    private fun linearIob(boluses: List<BS>, time: Long): IobTotal {
+        val total = IobTotal(time)
+        for (t in boluses) {
+            if (!t.isValid) continue
+            if (t.timestamp > time || t.timestamp < time - localInsulin.duration) continue
+            val tIOB = localInsulin.iobCalcForTreatment(t, time)
+            total.iob += tIOB.iobContrib
+            total.activity += tIOB.activityContrib
+        }
+        return total.round()
+    }
+
+    companion object {
+
+        private const val DAYS = 30
+    }
+}
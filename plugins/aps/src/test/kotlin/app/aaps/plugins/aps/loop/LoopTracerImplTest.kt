@@ -0,0 +1,79 @@
+package app.aaps.plugins.aps.loop
+
+import app.aaps.core.interfaces.aps.LoopTracer
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.mockito.kotlin.whenever
+import java.io.File
+
+class LoopTracerImplTest : TestBaseWithProfile() {
+
+    @TempDir lateinit var dir: File
+
+    @BeforeEach
+    fun prepare() {
+        whenever(context.filesDir).thenReturn(dir)
+    }
+
+    @Test
+    fun histogramsAreRestoredFromFile() {
+        LoopTracerImpl(aapsLogger, context, dateUtil).apply {
+            record(LoopTracer.Stage.ALGORITHM, 120)
+            record(LoopTracer.Stage.ALGORITHM, 80)
+            record(LoopTracer.Stage.TOTAL, 900)
+            flush()
+            // waits for the write
+            report()
+        }
+
+        val report = LoopTracerImpl(aapsLogger, context, dateUtil).report()
+
+        assertThat(report).contains("ALGORITHM: n=2")
+        assertThat(report).contains("TOTAL: n=1")
+        assertThat(report).contains("QUEUE_WAIT: n=0")
+    }
+
+    @Test
+    fun lastDurationIsReported() {
+        val sut = LoopTracerImpl(aapsLogger, context, dateUtil)
+        sut.record(LoopTracer.Stage.TBR_ENACT, 1500)
+
+        assertThat(sut.report()).contains("last=1500ms")
+    }
+
+    @Test
+    fun resetClearsFile() {
+        LoopTracerImpl(aapsLogger, context, dateUtil).apply {
+            record(LoopTracer.Stage.PROFILE, 3)
+            flush()
+            reset()
+            assertThat(report()).contains("PROFILE: n=0")
+        }
+
+        assertThat(LoopTracerImpl(aapsLogger, context, dateUtil).report()).contains("PROFILE: n=0")
+    }
+
+    @Test
+    fun unflushedDurationsAreNotWritten() {
+        LoopTracerImpl(aapsLogger, context, dateUtil).apply {
+            record(LoopTracer.Stage.ALGORITHM, 120)
+            assertThat(report()).contains("ALGORITHM: n=1")
+        }
+
+        assertThat(LoopTracerImpl(aapsLogger, context, dateUtil).report()).contains("ALGORITHM: n=0")
+    }
+
+    @Test
+    fun tracingWorksWithoutFile() {
+        whenever(context.filesDir).thenReturn(File(dir, "missing/dir"))
+        val sut = LoopTracerImpl(aapsLogger, context, dateUtil)
+
+        sut.record(LoopTracer.Stage.CONSTRAINTS, 7)
+        sut.flush()
+
+        assertThat(sut.report()).contains("CONSTRAINTS: n=1")
+    }
+}
@@ -0,0 +1,86 @@
+package app.aaps.plugins.aps.loop
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+class TraceRingTest {
+
+    @TempDir lateinit var dir: File
+
+    @Test
+    fun oldestRecordsAreOverwritten() {
+        val sut = TraceRing(File(dir, "ring"), 4)
+        sut.append((1..3).map { TraceRing.Entry(it * 1000L, it % 3, it * 10L) })
+        // wraps around end of the file
+        sut.append((4..6).map { TraceRing.Entry(it * 1000L, it % 3, it * 10L) })
+
+        val entries = sut.read()
+
+        assertThat(entries.map { it.timestamp }).containsExactly(3000L, 4000L, 5000L, 6000L).inOrder()
+        assertThat(entries.map { it.stage }).containsExactly(0, 1, 2, 0).inOrder()
+        assertThat(entries.map { it.millis }).containsExactly(30L, 40L, 50L, 60L).inOrder()
+        assertThat(File(dir, "ring").length()).isEqualTo(16L + 4 * 16)
+    }
+
+    @Test
+    fun recordsSurviveReopen() {
+        val file = File(dir, "ring")
+        TraceRing(file, 4).apply {
+            append(listOf(TraceRing.Entry(1000, 1, 5), TraceRing.Entry(2000, 2, Long.MAX_VALUE)))
+            close()
+        }
+
+        val entries = TraceRing(file, 4).read()
+
+        assertThat(entries.map { it.timestamp }).containsExactly(1000L, 2000L).inOrder()
+        assertThat(entries[1].millis).isEqualTo(Int.MAX_VALUE.toLong())
+    }
+
+    @Test
+    fun fileOfOtherCapacityIsRecreated() {
+        val file = File(dir, "ring")
+        TraceRing(file, 4).apply {
+            append(listOf(TraceRing.Entry(1000, 1, 5)))
+            close()
+        }
+
+        val sut = TraceRing(file, 8)
+
+        assertThat(sut.read()).isEmpty()
+        assertThat(file.length()).isEqualTo(16L + 8 * 16)
+    }
+
+    @Test
+    fun corruptedFileIsRecreated() {
+        val file = File(dir, "ring")
+        file.writeBytes(ByteArray(16 + 4 * 16) { 0x7f })
+
+        val sut = TraceRing(file, 4)
+        sut.append(listOf(TraceRing.Entry(1000, 1, 5)))
+
+        assertThat(sut.read().map { it.timestamp }).containsExactly(1000L)
+    }
+
+    @Test
+    fun batchLargerThanCapacityKeepsNewest() {
+        val sut = TraceRing(File(dir, "ring"), 4)
+        sut.append(listOf(TraceRing.Entry(1000, 0, 1)))
+
+        sut.append((2..7).map { TraceRing.Entry(it * 1000L, 0, it.toLong()) })
+
+        assertThat(sut.read().map { it.timestamp }).containsExactly(4000L, 5000L, 6000L, 7000L).inOrder()
+    }
+
+    @Test
+    fun clearRemovesRecords() {
+        val file = File(dir, "ring")
+        val sut = TraceRing(file, 4)
+        sut.append(listOf(TraceRing.Entry(1000, 1, 5)))
+        sut.clear()
+        sut.close()
+
+        assertThat(TraceRing(file, 4).read()).isEmpty()
+    }
+}
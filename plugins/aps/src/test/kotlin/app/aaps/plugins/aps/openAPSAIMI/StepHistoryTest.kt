@@ -0,0 +1,98 @@
+package app.aaps.plugins.aps.openAPSAIMI
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import java.util.Random
+
+class StepHistoryTest {
+
+    private val windows = intArrayOf(6, 12, 34, 36)
+
+    @Test
+    fun emptyHistoryHasNoSteps() {
+        val sut = StepHistory(CAPACITY)
+
+        assertThat(sut.count(100)).isEqualTo(0)
+        assertThat(sut.sumLast(100, 36)).isEqualTo(0)
+    }
+
+    @Test
+    fun windowsAreSummed() {
+        val sut = StepHistory(CAPACITY)
+        for (block in 1L..40L) sut.add(block, block.toInt())
+
+        assertThat(sut.count(40)).isEqualTo(40)
+        assertThat(sut.count(39)).isEqualTo(39)
+        assertThat(sut.count(41)).isEqualTo(0)
+        // dropped from history
+        assertThat(sut.count(4)).isEqualTo(0)
+        assertThat(sut.sumLast(40, 1)).isEqualTo(40)
+        assertThat(sut.sumLast(40, 6)).isEqualTo((35..40).sum())
+        assertThat(sut.sumLast(40, 34)).isEqualTo((7..40).sum())
+        assertThat(sut.sumLast(40, 36)).isEqualTo((5..40).sum())
+        // later query without new steps
+        assertThat(sut.sumLast(45, 6)).isEqualTo((40..40).sum())
+        assertThat(sut.sumLast(100, 36)).isEqualTo(0)
+    }
+
+    @Test
+    fun gapLongerThanCapacityClearsHistory() {
+        val sut = StepHistory(CAPACITY)
+        for (block in 1L..10L) sut.add(block, 100)
+        sut.add(200, 5)
+
+        assertThat(sut.count(10)).isEqualTo(0)
+        assertThat(sut.sumLast(200, 36)).isEqualTo(5)
+        assertThat(sut.sumLast(201, 36)).isEqualTo(5)
+        assertThat(sut.sumLast(237, 36)).isEqualTo(0)
+    }
+
+    @Test
+    fun stepsOfOlderBlockAreAddedToIt() {
+        val sut = StepHistory(CAPACITY)
+        sut.add(10, 10)
+        sut.add(12, 12)
+        sut.add(11, 11)
+        sut.add(10, 1)
+
+        assertThat(sut.count(10)).isEqualTo(11)
+        assertThat(sut.count(11)).isEqualTo(11)
+        assertThat(sut.sumLast(12, 1)).isEqualTo(12)
+        assertThat(sut.sumLast(12, 2)).isEqualTo(23)
+        assertThat(sut.sumLast(12, 3)).isEqualTo(34)
+    }
+
+    @Test
+    fun matchesScanOfAllBlocks() {
+        val random = Random(1)
+        val sut = StepHistory(CAPACITY)
+        val reference = LinkedHashMap<Long, Int>()
+        var block = 1000L
+        repeat(20_000) {
+            block += when (random.nextInt(10)) {
+                0    -> random.nextInt(50).toLong()
+                1, 2 -> 1
+                else -> 0
+            }
+            val steps = random.nextInt(30)
+            sut.add(block, steps)
+            reference[block] = (reference[block] ?: 0) + steps
+            for (ago in 0L..3L) assertThat(sut.count(block - ago)).isEqualTo(reference[block - ago] ?: 0)
+            for (window in windows) assertThat(sut.sumLast(block, window)).isEqualTo(scan(reference, block, window))
+        }
+    }
+
+    // previous implementation, limited to retained blocks
+    private fun scan(steps: Map<Long, Int>, now: Long, blocks: Int): Int {
+        val head = steps.keys.maxOrNull() ?: return 0
+        var stepCount = 0
+        for (entry in steps.entries)
+            if (entry.key > now - blocks && entry.key > head - CAPACITY) stepCount += entry.value
+        return stepCount
+    }
+
+    companion object {
+
+        private const val CAPACITY = 36
+    }
+}
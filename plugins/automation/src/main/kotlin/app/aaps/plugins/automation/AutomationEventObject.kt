@@ -3,12 +3,15 @@ package app.aaps.plugins.automation
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.automation.AutomationEvent
 import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.plugins.automation.actions.Action
 import app.aaps.plugins.automation.actions.ActionDummy
 import app.aaps.plugins.automation.actions.ActionStopProcessing
+import app.aaps.plugins.automation.events.EventAutomationDataChanged
 import app.aaps.plugins.automation.triggers.TriggerConnector
 import app.aaps.plugins.automation.triggers.TriggerDummy
+import app.aaps.plugins.automation.triggers.TriggerInputs
 import dagger.android.HasAndroidInjector
 import org.json.JSONArray
 import org.json.JSONObject
@@ -18,6 +21,8 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
 
     @Inject lateinit var aapsLogger: AAPSLogger
     @Inject lateinit var dateUtil: DateUtil
+    @Inject lateinit var rxBus: RxBus
+    @Inject lateinit var triggerInputs: TriggerInputs
 
     override var title: String = ""
     override var isEnabled = true
@@ -31,11 +36,31 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
 
     var lastRun: Long = 0
 
+    // result of trigger from previous automation run and versions of inputs it was based on
+    private var lastResult: Boolean? = null
+    private var lastVersions: Map<TriggerInputs.Dependency, Int> = emptyMap()
+
     init {
         injector.androidInjector().inject(this)
     }
 
-    override fun canRun(): Boolean = trigger.shouldRun()
+    override fun canRun(): Boolean {
+        if (!triggerInputs.isInPass()) return trigger.shouldRun()
+        val dependencies = trigger.dependencies()
+        val versions = dependencies.associateWith { triggerInputs.version(it) }
+        lastResult?.let { if (TriggerInputs.Dependency.TIME !in dependencies && versions == lastVersions) return it }
+        return trigger.shouldRun().also {
+            lastResult = it
+            lastVersions = versions
+        }
+    }
+
+    /**
+     * Forget cached trigger result after editing
+     */
+    fun invalidate() {
+        lastResult = null
+    }
     override fun preconditionCanRun(): Boolean = getPreconditions().shouldRun()
     override fun firstActionIcon(): Int? = actions.firstOrNull()?.icon()
 
@@ -52,7 +77,11 @@ class AutomationEventObject(private val injector: HasAndroidInjector) : Automati
     fun areActionsValid(): Boolean {
         var result = true
         for (action in actions) result = result && action.isValid()
-        if (!result) isEnabled = false
+        if (!result && isEnabled) {
+            // persist disabled state, otherwise it's lost on next load
+            isEnabled = false
+            rxBus.send(EventAutomationDataChanged())
+        }
         return result
     }
 
@@ -64,6 +64,7 @@ import app.aaps.plugins.automation.triggers.TriggerCannulaAge
 import app.aaps.plugins.automation.triggers.TriggerConnector
 import app.aaps.plugins.automation.triggers.TriggerDelta
 import app.aaps.plugins.automation.triggers.TriggerHeartRate
+import app.aaps.plugins.automation.triggers.TriggerInputs
 import app.aaps.plugins.automation.triggers.TriggerInsulinAge
 import app.aaps.plugins.automation.triggers.TriggerIob
 import app.aaps.plugins.automation.triggers.TriggerLocation
@@ -109,7 +110,8 @@ class AutomationPlugin @Inject constructor(
     private val locationServiceHelper: LocationServiceHelper,
     private val dateUtil: DateUtil,
     private val activePlugin: ActivePlugin,
-    private val timerUtil: TimerUtil
+    private val timerUtil: TimerUtil,
+    private val triggerInputs: TriggerInputs
 ) : PluginBaseWithPreferences(
     pluginDescription = PluginDescription()
         .mainType(PluginType.GENERAL)
@@ -134,6 +136,9 @@ class AutomationPlugin @Inject constructor(
     private var handler: Handler? = null
     private var refreshLoop: Runnable
 
+    // runs from handler and rx threads are serialized to share one pass of trigger inputs
+    private val processLock = Any()
+
     companion object {
 
         const val EMPTY_EVENT =
@@ -169,7 +174,10 @@ class AutomationPlugin @Inject constructor(
         disposable += rxBus
             .toObservable(EventAutomationDataChanged::class.java)
             .observeOn(aapsSchedulers.io)
-            .subscribe({ storeToSP() }, fabricPrivacy::logException)
+            .subscribe({
+                           synchronized(this) { automationEvents.forEach { it.invalidate() } }
+                           storeToSP()
+                       }, fabricPrivacy::logException)
         disposable += rxBus
             .toObservable(EventLocationChange::class.java)
             .observeOn(aapsSchedulers.io)
@@ -239,6 +247,17 @@ class AutomationPlugin @Inject constructor(
 
     internal fun processActions() {
         if (!config.appInitialized) return
+        synchronized(processLock) {
+            triggerInputs.beginPass()
+            try {
+                processEvents()
+            } finally {
+                triggerInputs.endPass()
+            }
+        }
+    }
+
+    private fun processEvents() {
         var commonEventsEnabled = true
         if (loop.isSuspended || !(loop as PluginBase).isEnabled()) {
             aapsLogger.debug(LTag.AUTOMATION, "Loop deactivated")
@@ -281,8 +300,6 @@ class AutomationPlugin @Inject constructor(
         // TriggerBTDevice can pick up and process these events
         // after processing clear events to prevent repeated actions
         btConnects.clear()
-
-        storeToSP() // save last run time
     }
 
     override fun processEvent(someEvent: AutomationEvent) {
@@ -318,7 +335,10 @@ class AutomationPlugin @Inject constructor(
             }
             SystemClock.sleep(1100)
             event.lastRun = dateUtil.now()
-            if (event.autoRemove) remove(event)
+            if (event.autoRemove) {
+                remove(event)
+                rxBus.send(EventAutomationDataChanged())
+            }
         }
     }
 
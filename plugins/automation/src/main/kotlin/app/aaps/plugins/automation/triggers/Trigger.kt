@@ -44,6 +44,7 @@ abstract class Trigger(val injector: HasAndroidInjector) {
     @Inject lateinit var iobCobCalculator: IobCobCalculator
     @Inject lateinit var glucoseStatusProvider: GlucoseStatusProvider
     @Inject lateinit var dateUtil: DateUtil
+    @Inject lateinit var triggerInputs: TriggerInputs
 
     init {
         @Suppress("LeakingThis")
@@ -51,6 +52,12 @@ abstract class Trigger(val injector: HasAndroidInjector) {
     }
 
     abstract fun shouldRun(): Boolean
+
+    /**
+     * Inputs [shouldRun] depends on. Result is reused while none of them changes.
+     * Triggers keeping state between runs or comparing with current time must depend on [TriggerInputs.Dependency.TIME].
+     */
+    open fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.TIME)
     abstract fun dataJSON(): JSONObject
     abstract fun fromJSON(data: String): Trigger
 
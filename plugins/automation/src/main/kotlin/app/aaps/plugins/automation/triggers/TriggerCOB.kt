@@ -38,8 +38,10 @@ class TriggerCOB(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.COB)
+
     override fun shouldRun(): Boolean {
-        val cobInfo = iobCobCalculator.getCobInfo("AutomationTriggerCOB")
+        val cobInfo = triggerInputs.cob()
         if (cobInfo.displayCob == null) {
             return if (comparator.value === Comparator.Compare.IS_NOT_AVAILABLE) {
                 aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
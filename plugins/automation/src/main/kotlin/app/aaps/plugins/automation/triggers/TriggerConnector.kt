@@ -62,6 +62,9 @@ class TriggerConnector(injector: HasAndroidInjector) : Trigger(injector) {
 
     fun size(): Int = list.size
 
+    @Synchronized override fun dependencies(): Set<TriggerInputs.Dependency> =
+        list.flatMapTo(HashSet()) { it.dependencies() }
+
     @Synchronized override fun shouldRun(): Boolean {
         var result = true
         // check first trigger
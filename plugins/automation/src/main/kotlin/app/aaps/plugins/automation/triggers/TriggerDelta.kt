@@ -62,8 +62,10 @@ class TriggerDelta(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.BG)
+
     override fun shouldRun(): Boolean {
-        val glucoseStatus = glucoseStatusProvider.glucoseStatusData
+        val glucoseStatus = triggerInputs.glucoseStatus()
             ?: return if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
                 aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
                 true
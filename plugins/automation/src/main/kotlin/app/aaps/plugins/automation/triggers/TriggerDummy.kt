@@ -7,6 +7,8 @@ import java.util.Optional
 // Used for instantiation of other triggers only
 class TriggerDummy(injector: HasAndroidInjector, val shouldRun: Boolean = false) : Trigger(injector) {
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = emptySet()
+
     override fun shouldRun(): Boolean {
         return shouldRun
     }
@@ -17,7 +17,7 @@ import java.util.Optional
 
 class TriggerHeartRate(injector: HasAndroidInjector) : Trigger(injector) {
 
-    @VisibleForTesting val averageHeartRateDurationMillis = 330 * 1000L
+    @VisibleForTesting val averageHeartRateDurationMillis = TriggerInputs.HEART_RATE_WINDOW
     private val minValue = 30
     private val maxValue = 250
     var heartRate: InputDouble = InputDouble(80.0, minValue.toDouble(), maxValue.toDouble(), 10.0, DecimalFormat("1"))
@@ -25,13 +25,14 @@ class TriggerHeartRate(injector: HasAndroidInjector) : Trigger(injector) {
         value = Comparator.Compare.IS_EQUAL_OR_GREATER
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.HEART_RATE)
+
     override fun shouldRun(): Boolean {
         if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.info(LTag.AUTOMATION, "HR ready, no limit set ${friendlyDescription()}")
             return true
         }
-        val start = dateUtil.now() - averageHeartRateDurationMillis
-        val hrs = persistenceLayer.getHeartRatesFromTime(start)
+        val hrs = triggerInputs.heartRates(triggerInputs.now() - averageHeartRateDurationMillis)
         val duration = hrs.takeUnless { it.isEmpty() }?.sumOf { hr -> hr.duration } ?: 0L
         if (duration == 0L) {
             aapsLogger.info(LTag.AUTOMATION, "HR not ready, no heart rate measured for ${friendlyDescription()}")
@@ -0,0 +1,165 @@
+package app.aaps.plugins.automation.triggers
+
+import app.aaps.core.data.iob.CobInfo
+import app.aaps.core.data.model.HR
+import app.aaps.core.data.model.SC
+import app.aaps.core.interfaces.aps.GlucoseStatus
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.iob.GlucoseStatusProvider
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.interfaces.receivers.ReceiverStatusStore
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.EventHeartRateChange
+import app.aaps.core.interfaces.rx.events.EventStepsCountChange
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.plugins.automation.services.LastLocationDataContainer
+import java.util.EnumMap
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Data read by triggers during one run of automation.
+ *
+ * Between [beginPass] and [endPass] every input is read once and shared by all triggers of all events.
+ * Each [Dependency] gets a version which changes only when the input differs from the previous pass,
+ * so result of a trigger depending on unchanged inputs can be reused.
+ * Outside of a pass (unit tests, user actions) everything is read directly.
+ */
+@Singleton
+class TriggerInputs @Inject constructor(
+    private val persistenceLayer: PersistenceLayer,
+    private val glucoseStatusProvider: GlucoseStatusProvider,
+    private val iobCobCalculator: IobCobCalculator,
+    private val profileFunction: ProfileFunction,
+    private val locationDataContainer: LastLocationDataContainer,
+    private val receiverStatusStore: ReceiverStatusStore,
+    private val dateUtil: DateUtil,
+    rxBus: RxBus
+) {
+
+    enum class Dependency {
+
+        /** Result may change with time alone, evaluate every pass */
+        TIME,
+        BG,
+        IOB,
+        COB,
+        STEPS,
+        HEART_RATE,
+        LOCATION,
+        NETWORK
+    }
+
+    private class Memo<T>(val value: T)
+
+    @Volatile private var passThread: Thread? = null
+    private var now = 0L
+    private var glucoseStatus: Memo<GlucoseStatus?>? = null
+    private var iob: Memo<Double?>? = null
+    private var cob: Memo<CobInfo>? = null
+    private val fingerprints = EnumMap<Dependency, Any?>(Dependency::class.java)
+    private val versions = EnumMap<Dependency, Int>(Dependency::class.java)
+    private val refreshed = HashSet<Dependency>()
+
+    // windows of sliding queries are kept between passes and read again only after database change
+    private val steps = Window(persistenceLayer::getStepsCountFromTime, SC::timestamp)
+    private val heartRates = Window(persistenceLayer::getHeartRatesFromTime, HR::timestamp)
+
+    private class Window<T>(val query: (Long) -> List<T>, val timestamp: (T) -> Long) {
+
+        @Volatile var changed = true
+        private var from = Long.MAX_VALUE
+        private var cached: List<T> = emptyList()
+
+        fun get(start: Long): List<T> {
+            if (changed || start < from) {
+                changed = false
+                cached = query(start)
+                from = start
+            }
+            return if (start == from) cached else cached.filter { timestamp(it) >= start }
+        }
+    }
+
+    init {
+        // subscriptions are never disposed, inputs live as long as the application
+        rxBus.toObservable(EventStepsCountChange::class.java).subscribe { steps.changed = true }
+        rxBus.toObservable(EventHeartRateChange::class.java).subscribe { heartRates.changed = true }
+    }
+
+    private val inPass get() = passThread === Thread.currentThread()
+
+    fun beginPass() {
+        passThread = Thread.currentThread()
+        now = dateUtil.now()
+        refreshed.clear()
+    }
+
+    fun endPass() {
+        glucoseStatus = null
+        iob = null
+        cob = null
+        passThread = null
+    }
+
+    fun isInPass(): Boolean = inPass
+
+    /**
+     * Time of current pass, so all triggers see the same windows
+     */
+    fun now(): Long = if (inPass) now else dateUtil.now()
+
+    fun glucoseStatus(): GlucoseStatus? =
+        if (!inPass) glucoseStatusProvider.glucoseStatusData
+        else (glucoseStatus ?: Memo(glucoseStatusProvider.glucoseStatusData).also { glucoseStatus = it }).value
+
+    fun iob(): Double? =
+        if (!inPass) calculateIob(dateUtil.now())
+        else (iob ?: Memo(calculateIob(now)).also { iob = it }).value
+
+    fun cob(): CobInfo =
+        if (!inPass) iobCobCalculator.getCobInfo("AutomationTriggerCOB")
+        else (cob ?: Memo(iobCobCalculator.getCobInfo("AutomationTriggerCOB")).also { cob = it }).value
+
+    fun stepsCount(from: Long): List<SC> =
+        if (!inPass) persistenceLayer.getStepsCountFromTime(from) else synchronized(steps) { steps.get(from) }
+
+    fun heartRates(from: Long): List<HR> =
+        if (!inPass) persistenceLayer.getHeartRatesFromTime(from) else synchronized(heartRates) { heartRates.get(from) }
+
+    private fun calculateIob(time: Long): Double? =
+        profileFunction.getProfile()?.let { iobCobCalculator.calculateFromTreatmentsAndTemps(time, it).iob }
+
+    /**
+     * Version of [dependency] in current pass, [Dependency.TIME] changes in every pass
+     */
+    fun version(dependency: Dependency): Int {
+        check(inPass)
+        if (refreshed.add(dependency)) {
+            val fingerprint = when (dependency) {
+                Dependency.TIME       -> now
+                Dependency.BG         -> glucoseStatus()
+                Dependency.IOB        -> iob()
+                Dependency.COB        -> cob().displayCob
+                Dependency.STEPS      -> stepsCount(now - STEPS_WINDOW)
+                Dependency.HEART_RATE -> heartRates(now - HEART_RATE_WINDOW)
+                Dependency.LOCATION   -> locationDataContainer.lastLocation
+                Dependency.NETWORK    -> receiverStatusStore.lastNetworkEvent
+            }
+            if (!versions.containsKey(dependency) || fingerprints[dependency] != fingerprint) {
+                fingerprints[dependency] = fingerprint
+                versions[dependency] = (versions[dependency] ?: 0) + 1
+            }
+        }
+        return versions[dependency]!!
+    }
+
+    companion object {
+
+        // Steps count entries update every 1-1.5 minutes on watch,
+        // so we must get some entries from the last 5 minutes.
+        const val STEPS_WINDOW = 5 * 60 * 1000L
+        const val HEART_RATE_WINDOW = 330 * 1000L
+    }
+}
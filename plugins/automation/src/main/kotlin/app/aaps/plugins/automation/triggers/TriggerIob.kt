@@ -33,10 +33,11 @@ class TriggerIob(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.IOB)
+
     override fun shouldRun(): Boolean {
-        val profile = profileFunction.getProfile() ?: return false
-        val iob = iobCobCalculator.calculateFromTreatmentsAndTemps(dateUtil.now(), profile)
-        if (comparator.value.check(iob.iob, insulin.value)) {
+        val iob = triggerInputs.iob() ?: return false
+        if (comparator.value.check(iob, insulin.value)) {
             aapsLogger.debug(LTag.AUTOMATION, "Ready for execution: " + friendlyDescription())
             return true
         }
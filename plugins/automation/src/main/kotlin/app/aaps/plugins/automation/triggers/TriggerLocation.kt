@@ -79,6 +79,13 @@ class TriggerLocation(injector: HasAndroidInjector) : Trigger(injector), PingPla
         longitude.setValue(latLng.longitude)
     }
 
+    // going in and out compare with previous run
+    override fun dependencies(): Set<TriggerInputs.Dependency> =
+        when (modeSelected.value) {
+            InputLocationMode.Mode.INSIDE, InputLocationMode.Mode.OUTSIDE -> setOf(TriggerInputs.Dependency.LOCATION)
+            else                                                          -> setOf(TriggerInputs.Dependency.TIME)
+        }
+
     @Synchronized override fun shouldRun(): Boolean {
         val location: Location = locationDataContainer.lastLocation ?: return false
         val a = Location("Trigger")
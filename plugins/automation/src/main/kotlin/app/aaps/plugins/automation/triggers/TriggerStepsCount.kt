@@ -23,17 +23,15 @@ class TriggerStepsCount(injector: HasAndroidInjector) : Trigger(injector) {
         value = Comparator.Compare.IS_EQUAL_OR_GREATER
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.STEPS)
+
     override fun shouldRun(): Boolean {
         if (comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
             aapsLogger.info(LTag.AUTOMATION, "Steps count ready, no limit set ${friendlyDescription()}")
             return true
         }
 
-        
-        // Steps count entries update every 1-1.5 minutes on my watch,
-        // so we must get some entries from the last 5 minutes.
-        val start = dateUtil.now() - 5 * 60 * 1000L
-        val measurements = persistenceLayer.getStepsCountFromTime(start)
+        val measurements = triggerInputs.stepsCount(triggerInputs.now() - TriggerInputs.STEPS_WINDOW)
         val lastSC = measurements.lastOrNull { it.duration == measurementDuration.value.toInt() * 60 * 1000L }
         if (lastSC == null) {
             aapsLogger.info(LTag.AUTOMATION, "No steps count measurements available - ${friendlyDescription()}")
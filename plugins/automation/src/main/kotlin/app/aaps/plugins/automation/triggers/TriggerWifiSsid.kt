@@ -43,6 +43,8 @@ class TriggerWifiSsid(injector: HasAndroidInjector) : Trigger(injector) {
         return this
     }
 
+    override fun dependencies(): Set<TriggerInputs.Dependency> = setOf(TriggerInputs.Dependency.NETWORK)
+
     override fun shouldRun(): Boolean {
         val eventNetworkChange = receiverStatusStore.lastNetworkEvent ?: return false
         if (!eventNetworkChange.wifiConnected && comparator.value == Comparator.Compare.IS_NOT_AVAILABLE) {
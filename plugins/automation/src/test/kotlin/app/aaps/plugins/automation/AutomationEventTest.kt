@@ -6,6 +6,7 @@ import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.plugins.automation.actions.Action
 import app.aaps.plugins.automation.actions.ActionLoopEnable
 import app.aaps.plugins.automation.actions.ActionStopProcessing
+import app.aaps.plugins.automation.events.EventAutomationDataChanged
 import app.aaps.plugins.automation.triggers.TriggerConnector
 import app.aaps.plugins.automation.triggers.TriggerConnectorTest
 import app.aaps.plugins.automation.triggers.TriggerDummy
@@ -16,6 +17,8 @@ import dagger.android.HasAndroidInjector
 import org.json.JSONObject
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
 import org.skyscreamer.jsonassert.JSONAssert
 
 class AutomationEventTest : TestBase() {
@@ -28,6 +31,7 @@ class AutomationEventTest : TestBase() {
         AndroidInjector {
             if (it is AutomationEventObject) {
                 it.aapsLogger = aapsLogger
+                it.rxBus = rxBus
             }
             if (it is Action) {
                 it.aapsLogger = aapsLogger
@@ -79,4 +83,23 @@ class AutomationEventTest : TestBase() {
         event.addAction(ActionStopProcessing(injector))
         assertThat(event.hasStopProcessing()).isTrue()
     }
+
+    @Test fun invalidActionDisablesEventAndRequestsStore() {
+        var dataChanges = 0
+        rxBus.toObservable(EventAutomationDataChanged::class.java).subscribe { dataChanges++ }
+        val event = AutomationEventObject(injector)
+        event.addAction(mock<Action> { on { isValid() } doReturn true })
+        assertThat(event.areActionsValid()).isTrue()
+        assertThat(event.isEnabled).isTrue()
+        assertThat(dataChanges).isEqualTo(0)
+
+        event.addAction(mock<Action> { on { isValid() } doReturn false })
+        assertThat(event.areActionsValid()).isFalse()
+        assertThat(event.isEnabled).isFalse()
+        assertThat(dataChanges).isEqualTo(1)
+
+        // already disabled, nothing to store again
+        assertThat(event.areActionsValid()).isFalse()
+        assertThat(dataChanges).isEqualTo(1)
+    }
 }
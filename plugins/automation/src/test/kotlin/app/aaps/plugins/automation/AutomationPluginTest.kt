@@ -1,16 +1,43 @@
 package app.aaps.plugins.automation
 
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.model.SC
+import app.aaps.core.interfaces.aps.GlucoseStatus
 import app.aaps.core.interfaces.aps.Loop
 import app.aaps.core.interfaces.constraints.ConstraintsChecker
 import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.iob.GlucoseStatusProvider
+import app.aaps.core.interfaces.plugin.PluginBase
+import app.aaps.core.interfaces.pump.Pump
+import app.aaps.core.interfaces.receivers.ReceiverStatusStore
+import app.aaps.core.interfaces.rx.events.EventStepsCountChange
+import app.aaps.core.objects.constraints.ConstraintObject
 import app.aaps.core.validators.preferences.AdaptiveListPreference
+import app.aaps.plugins.automation.elements.Comparator
+import app.aaps.plugins.automation.events.EventAutomationDataChanged
+import app.aaps.plugins.automation.keys.AutomationStringKey
+import app.aaps.plugins.automation.services.LastLocationDataContainer
 import app.aaps.plugins.automation.services.LocationServiceHelper
+import app.aaps.plugins.automation.triggers.Trigger
+import app.aaps.plugins.automation.triggers.TriggerBg
+import app.aaps.plugins.automation.triggers.TriggerInputs
+import app.aaps.plugins.automation.triggers.TriggerStepsCount
+import app.aaps.plugins.automation.triggers.TriggerTime
 import app.aaps.plugins.automation.ui.TimerUtil
 import app.aaps.shared.tests.TestBaseWithProfile
 import com.google.common.truth.Truth.assertThat
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.mockingDetails
+import org.mockito.Mockito.withSettings
+import org.mockito.kotlin.any
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.never
+import org.mockito.kotlin.spy
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
 
 class AutomationPluginTest : TestBaseWithProfile() {
 
@@ -19,6 +46,11 @@ class AutomationPluginTest : TestBaseWithProfile() {
     @Mock lateinit var loop: Loop
     @Mock lateinit var locationServiceHelper: LocationServiceHelper
     @Mock lateinit var timerUtil: TimerUtil
+    @Mock lateinit var glucoseStatusProvider: GlucoseStatusProvider
+    @Mock lateinit var locationDataContainer: LastLocationDataContainer
+    @Mock lateinit var receiverStatusStore: ReceiverStatusStore
+    @Mock lateinit var pump: Pump
+    private lateinit var triggerInputs: TriggerInputs
     private lateinit var automationPlugin: AutomationPlugin
 
     init {
@@ -26,13 +58,33 @@ class AutomationPluginTest : TestBaseWithProfile() {
             if (it is AdaptiveListPreference) {
                 it.preferences = preferences
             }
+            if (it is AutomationEventObject) {
+                it.aapsLogger = aapsLogger
+                it.dateUtil = dateUtil
+                it.rxBus = rxBus
+                it.triggerInputs = triggerInputs
+            }
+            if (it is Trigger) {
+                it.aapsLogger = aapsLogger
+                it.rxBus = rxBus
+                it.rh = rh
+                it.profileFunction = profileFunction
+                it.profileUtil = profileUtil
+                it.preferences = preferences
+                it.persistenceLayer = persistenceLayer
+                it.iobCobCalculator = iobCobCalculator
+                it.glucoseStatusProvider = glucoseStatusProvider
+                it.dateUtil = dateUtil
+                it.triggerInputs = triggerInputs
+            }
         }
     }
 
     @BeforeEach fun prepare() {
+        triggerInputs = TriggerInputs(persistenceLayer, glucoseStatusProvider, iobCobCalculator, profileFunction, locationDataContainer, receiverStatusStore, dateUtil, rxBus)
         automationPlugin = AutomationPlugin(
             injector, aapsLogger, rh, preferences, context, fabricPrivacy, loop, rxBus, constraintChecker,
-            aapsSchedulers, config, locationServiceHelper, dateUtil, activePlugin, timerUtil
+            aapsSchedulers, config, locationServiceHelper, dateUtil, activePlugin, timerUtil, triggerInputs
         )
     }
 
@@ -42,4 +94,74 @@ class AutomationPluginTest : TestBaseWithProfile() {
         automationPlugin.addPreferenceScreen(preferenceManager, screen, context, null)
         assertThat(screen.preferenceCount).isGreaterThan(0)
     }
+
+    @Test
+    fun onlyTriggersWithChangedInputsAreEvaluated() {
+        val now = 1_700_000_000_000L
+        whenever(dateUtil.now()).thenReturn(now)
+        val loop = mock(PluginBase::class.java, withSettings().extraInterfaces(Loop::class.java))
+        whenever(loop.isEnabled()).thenReturn(true)
+        automationPlugin = AutomationPlugin(
+            injector, aapsLogger, rh, preferences, context, fabricPrivacy, loop as Loop, rxBus, constraintChecker,
+            aapsSchedulers, config, locationServiceHelper, dateUtil, activePlugin, timerUtil, triggerInputs
+        )
+        whenever(config.appInitialized).thenReturn(true)
+        whenever(activePlugin.activePump).thenReturn(pump)
+        whenever(constraintChecker.isAutomationEnabled()).thenReturn(ConstraintObject(true, aapsLogger))
+        whenever(glucoseStatusProvider.glucoseStatusData).thenReturn(GlucoseStatus(glucose = 100.0, date = now))
+        var steps = listOf(steps(now - 60_000L, 100))
+        whenever(persistenceLayer.getStepsCountFromTime(any())).thenAnswer { steps }
+        var dataChanges = 0
+        rxBus.toObservable(EventAutomationDataChanged::class.java).subscribe { dataChanges++ }
+
+        // 10 rules checking BG, 10 rules checking steps and one depending on time
+        val bgTriggers = (1..10).map { spy(TriggerBg(injector, 70.0, GlucoseUnit.MGDL, Comparator.Compare.IS_LESSER)) }
+        val stepsTriggers = (1..10).map { spy(TriggerStepsCount(injector).also { it.stepsCount.value = 10000.0 }) }
+        val timeTrigger = spy(TriggerTime(injector, now + 3_600_000L))
+        (bgTriggers + stepsTriggers + timeTrigger).forEach { trigger ->
+            automationPlugin.add(AutomationEventObject(injector).also { it.trigger.list.add(trigger) })
+        }
+        dataChanges = 0
+
+        automationPlugin.processActions()
+        assertThat(evaluations(bgTriggers)).isEqualTo(10)
+        assertThat(evaluations(stepsTriggers)).isEqualTo(10)
+        assertThat(evaluations(listOf(timeTrigger))).isEqualTo(1)
+        verify(persistenceLayer).getStepsCountFromTime(now - TriggerInputs.STEPS_WINDOW)
+
+        // nothing changed, only time dependent rule is evaluated and steps are not read again
+        val ticks = 10
+        repeat(ticks) { automationPlugin.processActions() }
+        assertThat(evaluations(bgTriggers)).isEqualTo(10)
+        assertThat(evaluations(stepsTriggers)).isEqualTo(10)
+        assertThat(evaluations(listOf(timeTrigger))).isEqualTo(1 + ticks)
+        assertThat(queries()).isEqualTo(1)
+
+        // new BG re-evaluates BG rules only
+        whenever(glucoseStatusProvider.glucoseStatusData).thenReturn(GlucoseStatus(glucose = 110.0, date = now))
+        automationPlugin.processActions()
+        assertThat(evaluations(bgTriggers)).isEqualTo(20)
+        assertThat(evaluations(stepsTriggers)).isEqualTo(10)
+
+        // new steps are read once and shared by all steps rules
+        steps = steps + steps(now, 200)
+        rxBus.send(EventStepsCountChange())
+        automationPlugin.processActions()
+        assertThat(queries()).isEqualTo(2)
+        assertThat(evaluations(bgTriggers)).isEqualTo(20)
+        assertThat(evaluations(stepsTriggers)).isEqualTo(20)
+
+        // processing does not store event list
+        assertThat(dataChanges).isEqualTo(0)
+        verify(preferences, never()).put(eq(AutomationStringKey.AutomationEvents), any<String>())
+    }
+
+    private fun evaluations(triggers: List<Trigger>): Int =
+        triggers.sumOf { trigger -> mockingDetails(trigger).invocations.count { it.method.name == "shouldRun" } }
+
+    private fun queries(): Int =
+        mockingDetails(persistenceLayer).invocations.count { it.method.name == "getStepsCountFromTime" }
+
+    private fun steps(timestamp: Long, count: Int) =
+        SC(duration = 5 * 60_000L, timestamp = timestamp, steps5min = count, steps10min = count, steps15min = count, steps30min = count, steps60min = count, steps180min = count, device = "watch")
 }
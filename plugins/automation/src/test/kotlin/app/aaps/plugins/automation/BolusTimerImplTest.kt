@@ -13,6 +13,7 @@ import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
 import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.plugins.automation.services.LocationServiceHelper
 import app.aaps.plugins.automation.triggers.Trigger
+import app.aaps.plugins.automation.triggers.TriggerInputs
 import app.aaps.plugins.automation.ui.TimerUtil
 import app.aaps.shared.impl.utils.DateUtilImpl
 import app.aaps.shared.tests.TestBase
@@ -38,6 +39,7 @@ class BolusTimerImplTest : TestBase() {
     @Mock lateinit var profileFunction: ProfileFunction
     @Mock lateinit var timerUtil: TimerUtil
     @Mock lateinit var preferences: Preferences
+    @Mock lateinit var triggerInputs: TriggerInputs
 
     private val injector = HasAndroidInjector {
         AndroidInjector {
@@ -57,7 +59,7 @@ class BolusTimerImplTest : TestBase() {
         dateUtil = DateUtilImpl(context)
         automationPlugin = AutomationPlugin(
             injector, aapsLogger, rh, preferences, context, fabricPrivacy, loop, rxBus, constraintChecker, aapsSchedulers, config, locationServiceHelper, dateUtil,
-            activePlugin, timerUtil
+            activePlugin, timerUtil, triggerInputs
         )
     }
 
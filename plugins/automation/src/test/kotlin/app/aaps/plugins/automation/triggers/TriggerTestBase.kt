@@ -19,6 +19,11 @@ open class TriggerTestBase : TestBaseWithProfile() {
     @Mock lateinit var receiverStatusStore: ReceiverStatusStore
     @Mock lateinit var persistenceLayer: PersistenceLayer
 
+    private val glucoseStatusProvider by lazy { GlucoseStatusProviderImpl(aapsLogger, iobCobCalculator, dateUtil, decimalFormatter) }
+    private val triggerInputs by lazy {
+        TriggerInputs(persistenceLayer, glucoseStatusProvider, iobCobCalculator, profileFunction, locationDataContainer, receiverStatusStore, dateUtil, rxBus)
+    }
+
     @BeforeEach
     fun prepareMock1() {
         `when`(iobCobCalculator.ads).thenReturn(autosensDataStore)
@@ -36,7 +41,8 @@ open class TriggerTestBase : TestBaseWithProfile() {
                 it.persistenceLayer = persistenceLayer
                 it.activePlugin = activePlugin
                 it.iobCobCalculator = iobCobCalculator
-                it.glucoseStatusProvider = GlucoseStatusProviderImpl(aapsLogger, iobCobCalculator, dateUtil, decimalFormatter)
+                it.glucoseStatusProvider = glucoseStatusProvider
+                it.triggerInputs = triggerInputs
                 it.dateUtil = dateUtil
                 it.profileUtil = profileUtil
             }
@@ -9,6 +9,7 @@ import androidx.core.text.toSpanned
 import androidx.fragment.app.FragmentActivity
 import app.aaps.core.data.ue.Action
 import app.aaps.core.data.ue.Sources
+import app.aaps.core.interfaces.aps.LoopTracer
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.iob.IobCobCalculator
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -40,6 +41,7 @@ import app.aaps.plugins.configuration.databinding.MaintenanceFragmentBinding
 import app.aaps.plugins.configuration.maintenance.activities.LogSettingActivity
 import dagger.android.support.DaggerFragment
 import io.reactivex.rxjava3.core.Completable
+import io.reactivex.rxjava3.core.Single
 import io.reactivex.rxjava3.disposables.CompositeDisposable
 import io.reactivex.rxjava3.kotlin.plusAssign
 import io.reactivex.rxjava3.kotlin.subscribeBy
@@ -63,6 +65,7 @@ class MaintenanceFragment : DaggerFragment() {
     @Inject lateinit var fabricPrivacy: FabricPrivacy
     @Inject lateinit var uiInteraction: UiInteraction
     @Inject lateinit var activePlugin: ActivePlugin
+    @Inject lateinit var loopTracer: LoopTracer
     @Inject lateinit var fileListProvider: FileListProvider
 
     private val disposable = CompositeDisposable()
@@ -83,13 +86,25 @@ class MaintenanceFragment : DaggerFragment() {
         val parentClass = this.activity?.let { it::class.java }
         inMenu = parentClass == uiInteraction.singleFragmentActivity
         updateProtectedUi()
-        binding.logSend.setOnClickListener { maintenancePlugin.sendLogs() }
+        binding.logSend.setOnClickListener {
+            disposable +=
+                Completable.fromAction { maintenancePlugin.sendLogs() }
+                    .subscribeOn(aapsSchedulers.io)
+                    .subscribe({ }, fabricPrivacy::logException)
+        }
         binding.logDelete.setOnClickListener {
             disposable +=
                 Completable.fromAction { maintenancePlugin.deleteLogs(5) }
                     .subscribeOn(aapsSchedulers.io)
                     .subscribe({ uel.log(Action.DELETE_LOGS, Sources.Maintenance) }, fabricPrivacy::logException)
         }
+        binding.loopStages.setOnClickListener {
+            disposable +=
+                Single.fromCallable { loopTracer.report() }
+                    .subscribeOn(aapsSchedulers.io)
+                    .observeOn(aapsSchedulers.main)
+                    .subscribe({ report -> activity?.let { OKDialog.show(it, rh.gs(R.string.loop_stages), report) } }, fabricPrivacy::logException)
+        }
         binding.navResetApsResults.setOnClickListener {
             activity?.let { activity ->
                 OKDialog.showConfirmation(activity, rh.gs(R.string.maintenance), rh.gs(R.string.reset_aps_results_confirm), Runnable {
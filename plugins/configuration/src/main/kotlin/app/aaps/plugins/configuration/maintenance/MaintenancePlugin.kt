@@ -10,6 +10,7 @@ import androidx.preference.PreferenceScreen
 import app.aaps.core.data.plugin.PluginType
 import app.aaps.core.data.ue.Action
 import app.aaps.core.data.ue.Sources
+import app.aaps.core.interfaces.aps.LoopTracer
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LoggerUtils
@@ -53,7 +54,8 @@ class MaintenancePlugin @Inject constructor(
     private val config: Config,
     private val fileListProvider: FileListProvider,
     private val loggerUtils: LoggerUtils,
-    private val uel: UserEntryLogger
+    private val uel: UserEntryLogger,
+    private val loopTracer: LoopTracer
 ) : PluginBase(
     PluginDescription()
         .mainType(PluginType.GENERAL)
@@ -180,6 +182,8 @@ class MaintenancePlugin @Inject constructor(
                 }
             }
         }
+        out.putNextEntry(ZipEntry(LOOP_STAGES_FILE))
+        out.write(loopTracer.report().toByteArray())
         out.close()
     }
 
@@ -284,4 +288,9 @@ class MaintenancePlugin @Inject constructor(
             })
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        const val LOOP_STAGES_FILE = "LoopStages.txt"
+    }
+}
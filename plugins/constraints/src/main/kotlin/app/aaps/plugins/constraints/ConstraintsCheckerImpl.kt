@@ -5,22 +5,60 @@ import app.aaps.core.interfaces.constraints.ConstraintsChecker
 import app.aaps.core.interfaces.constraints.PluginConstraints
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.plugin.ActivePlugin
+import app.aaps.core.interfaces.plugin.PluginBase
 import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.EventConfigBuilderChange
 import app.aaps.core.objects.constraints.ConstraintObject
+import java.util.IdentityHashMap
 import javax.inject.Inject
 import javax.inject.Singleton
 
 @Singleton
 class ConstraintsCheckerImpl @Inject constructor(
     private val activePlugin: ActivePlugin,
-    private val aapsLogger: AAPSLogger
+    private val aapsLogger: AAPSLogger,
+    rxBus: RxBus
 ) : ConstraintsChecker {
 
+    /**
+     * Max values already evaluated during current loop run
+     */
+    private class LoopSnapshot {
+
+        val maxBasal = IdentityHashMap<Profile, Constraint<Double>>()
+        val maxBasalPercent = IdentityHashMap<Profile, Constraint<Int>>()
+        var maxBolus: Constraint<Double>? = null
+        var maxExtendedBolus: Constraint<Double>? = null
+        var maxCarbs: Constraint<Int>? = null
+        var maxIOB: Constraint<Double>? = null
+    }
+
+    // Plugins implementing PluginConstraints, enabled state is still checked on every call
+    // because it depends on specialEnableCondition() too
+    @Volatile private var constraintsPlugins: List<PluginBase>? = null
+    private val snapshot = ThreadLocal<LoopSnapshot?>()
+
+    init {
+        // subscription is never disposed, checker lives as long as the application
+        rxBus.toObservable(EventConfigBuilderChange::class.java).subscribe { constraintsPlugins = null }
+    }
+
+    private fun constraintsPlugins(): List<PluginBase> =
+        constraintsPlugins ?: activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java).toList().also { constraintsPlugins = it }
+
+    override fun beginLoopSnapshot() {
+        snapshot.set(LoopSnapshot())
+    }
+
+    override fun endLoopSnapshot() {
+        snapshot.remove()
+    }
+
     override fun isLoopInvocationAllowed(): Constraint<Boolean> = isLoopInvocationAllowed(ConstraintObject(true, aapsLogger))
 
     override fun isLoopInvocationAllowed(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isLoopInvocationAllowed(value)
@@ -31,8 +69,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isClosedLoopAllowed(): Constraint<Boolean> = isClosedLoopAllowed(ConstraintObject(true, aapsLogger))
 
     override fun isClosedLoopAllowed(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isClosedLoopAllowed(value)
@@ -43,8 +80,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isLgsAllowed(): Constraint<Boolean> = isLgsAllowed(ConstraintObject(true, aapsLogger))
 
     override fun isLgsAllowed(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isLgsAllowed(value)
@@ -55,8 +91,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAutosensModeEnabled(): Constraint<Boolean> = isAutosensModeEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isAutosensModeEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isAutosensModeEnabled(value)
@@ -67,8 +102,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isSMBModeEnabled(): Constraint<Boolean> = isSMBModeEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isSMBModeEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isSMBModeEnabled(value)
@@ -79,8 +113,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isUAMEnabled(): Constraint<Boolean> = isUAMEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isUAMEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isUAMEnabled(value)
@@ -91,8 +124,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAdvancedFilteringEnabled(): Constraint<Boolean> = isAdvancedFilteringEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isAdvancedFilteringEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isAdvancedFilteringEnabled(value)
@@ -103,8 +135,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isSuperBolusEnabled(): Constraint<Boolean> = isSuperBolusEnabled(ConstraintObject(true, aapsLogger))
 
     override fun isSuperBolusEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isSuperBolusEnabled(value)
@@ -115,8 +146,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     override fun isAutomationEnabled(): Constraint<Boolean> = isAutomationEnabled(ConstraintObject(true, aapsLogger))
 
     override fun applyBasalConstraints(absoluteRate: Constraint<Double>, profile: Profile): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.applyBasalConstraints(absoluteRate, profile)
@@ -125,8 +155,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyBasalPercentConstraints(percentRate: Constraint<Int>, profile: Profile): Constraint<Int> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
             constrain.applyBasalPercentConstraints(percentRate, profile)
@@ -135,8 +164,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyBolusConstraints(insulin: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
             constrain.applyBolusConstraints(insulin)
@@ -145,8 +173,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyExtendedBolusConstraints(insulin: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
             constrain.applyExtendedBolusConstraints(insulin)
@@ -155,8 +182,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyCarbsConstraints(carbs: Constraint<Int>): Constraint<Int> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
             constrain.applyCarbsConstraints(carbs)
@@ -165,8 +191,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun applyMaxIOBConstraints(maxIob: Constraint<Double>): Constraint<Double> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constrain = p as PluginConstraints
             if (!p.isEnabled()) continue
             constrain.applyMaxIOBConstraints(maxIob)
@@ -175,8 +200,7 @@ class ConstraintsCheckerImpl @Inject constructor(
     }
 
     override fun isAutomationEnabled(value: Constraint<Boolean>): Constraint<Boolean> {
-        val constraintsPlugins = activePlugin.getSpecificPluginsListByInterface(PluginConstraints::class.java)
-        for (p in constraintsPlugins) {
+        for (p in constraintsPlugins()) {
             val constraint = p as PluginConstraints
             if (!p.isEnabled()) continue
             constraint.isAutomationEnabled(value)
@@ -189,20 +213,30 @@ class ConstraintsCheckerImpl @Inject constructor(
      */
 
     override fun getMaxBasalAllowed(profile: Profile): Constraint<Double> =
-        applyBasalConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger), profile)
+        snapshot.get()?.maxBasal?.getOrPut(profile) { applyBasalConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger), profile) }
+            ?: applyBasalConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger), profile)
 
     override fun getMaxBasalPercentAllowed(profile: Profile): Constraint<Int> =
-        applyBasalPercentConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger), profile)
+        snapshot.get()?.maxBasalPercent?.getOrPut(profile) { applyBasalPercentConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger), profile) }
+            ?: applyBasalPercentConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger), profile)
 
-    override fun getMaxBolusAllowed(): Constraint<Double> =
-        applyBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
+    override fun getMaxBolusAllowed(): Constraint<Double> {
+        val snapshot = snapshot.get() ?: return applyBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
+        return snapshot.maxBolus ?: applyBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger)).also { snapshot.maxBolus = it }
+    }
 
-    override fun getMaxExtendedBolusAllowed(): Constraint<Double> =
-        applyExtendedBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
+    override fun getMaxExtendedBolusAllowed(): Constraint<Double> {
+        val snapshot = snapshot.get() ?: return applyExtendedBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
+        return snapshot.maxExtendedBolus ?: applyExtendedBolusConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger)).also { snapshot.maxExtendedBolus = it }
+    }
 
-    override fun getMaxCarbsAllowed(): Constraint<Int> =
-        applyCarbsConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger))
+    override fun getMaxCarbsAllowed(): Constraint<Int> {
+        val snapshot = snapshot.get() ?: return applyCarbsConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger))
+        return snapshot.maxCarbs ?: applyCarbsConstraints(ConstraintObject(Int.MAX_VALUE, aapsLogger)).also { snapshot.maxCarbs = it }
+    }
 
-    override fun getMaxIOBAllowed(): Constraint<Double> =
-        applyMaxIOBConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
-}
\ No newline at end of file
+    override fun getMaxIOBAllowed(): Constraint<Double> {
+        val snapshot = snapshot.get() ?: return applyMaxIOBConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger))
+        return snapshot.maxIOB ?: applyMaxIOBConstraints(ConstraintObject(Double.MAX_VALUE, aapsLogger)).also { snapshot.maxIOB = it }
+    }
+}
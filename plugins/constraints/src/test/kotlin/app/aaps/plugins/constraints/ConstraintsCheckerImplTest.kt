@@ -10,6 +10,7 @@ import app.aaps.core.interfaces.constraints.PluginConstraints
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.plugin.PluginBase
 import app.aaps.core.interfaces.profiling.Profiler
+import app.aaps.core.interfaces.rx.events.EventConfigBuilderChange
 import app.aaps.core.interfaces.pump.DetailedBolusInfoStorage
 import app.aaps.core.interfaces.pump.PumpSync
 import app.aaps.core.interfaces.pump.TemporaryBasalStorage
@@ -45,6 +46,7 @@ import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.Mock
 import org.mockito.Mockito.`when`
+import org.mockito.Mockito.mockingDetails
 
 /**
  * Created by mike on 18.03.2018.
@@ -123,7 +125,7 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
         `when`(preferences.get(DanaStringKey.RName)).thenReturn("")
 
         //SafetyPlugin
-        constraintChecker = ConstraintsCheckerImpl(activePlugin, aapsLogger)
+        constraintChecker = ConstraintsCheckerImpl(activePlugin, aapsLogger, rxBus)
 
         val glucoseStatusProvider = GlucoseStatusProviderImpl(aapsLogger, iobCobCalculator, dateUtil, decimalFormatter)
 
@@ -368,4 +370,65 @@ class ConstraintsCheckerImplTest : TestBaseWithProfile() {
         assertThat(d.reasonList).hasSize(2)
         assertThat(d.getMostLimitedReasons()).isEqualTo("OpenAPSSMB: Limiting IOB to 3.0 U because of max value in preferences")
     }
+
+    @Test
+    fun loopSnapshotMemoizesMaxValues() {
+        `when`(preferences.get(StringKey.LoopApsMode)).thenReturn(ApsMode.CLOSED.name)
+        `when`(preferences.get(DoubleKey.ApsSmbMaxIob)).thenReturn(3.0)
+        `when`(preferences.get(StringKey.SafetyAge)).thenReturn("teenage")
+        openAPSSMBPlugin.setPluginEnabled(PluginType.APS, true)
+
+        // outside of loop every call is evaluated
+        assertThat(constraintChecker.getMaxIOBAllowed()).isNotSameInstanceAs(constraintChecker.getMaxIOBAllowed())
+
+        constraintChecker.beginLoopSnapshot()
+        val first = constraintChecker.getMaxIOBAllowed()
+        `when`(preferences.get(DoubleKey.ApsSmbMaxIob)).thenReturn(2.0)
+        assertThat(constraintChecker.getMaxIOBAllowed()).isSameInstanceAs(first)
+        assertThat(constraintChecker.getMaxBasalAllowed(validProfile)).isSameInstanceAs(constraintChecker.getMaxBasalAllowed(validProfile))
+        constraintChecker.endLoopSnapshot()
+
+        // next run sees changed preferences
+        constraintChecker.beginLoopSnapshot()
+        assertThat(constraintChecker.getMaxIOBAllowed().value()).isWithin(0.01).of(2.0)
+        constraintChecker.endLoopSnapshot()
+    }
+
+    @Test
+    fun pluginListIsScannedOnceUntilConfigurationChanges() {
+        `when`(activePlugin.activePump).thenReturn(danaRPlugin)
+        `when`(preferences.get(StringKey.LoopApsMode)).thenReturn(ApsMode.CLOSED.name)
+        `when`(preferences.get(DoubleKey.ApsSmbMaxIob)).thenReturn(3.0)
+        `when`(preferences.get(DoubleKey.ApsMaxBasal)).thenReturn(1.0)
+        `when`(preferences.get(DoubleKey.ApsMaxCurrentBasalMultiplier)).thenReturn(4.0)
+        `when`(preferences.get(DoubleKey.ApsMaxDailyMultiplier)).thenReturn(3.0)
+        `when`(preferences.get(StringKey.SafetyAge)).thenReturn("teenage")
+        openAPSSMBPlugin.setPluginEnabled(PluginType.APS, true)
+
+        // constraint calls of one loop run: invocation, APS inputs and applying of result
+        fun loop() {
+            constraintChecker.beginLoopSnapshot()
+            constraintChecker.isLoopInvocationAllowed()
+            constraintChecker.isClosedLoopAllowed()
+            constraintChecker.getMaxIOBAllowed()
+            constraintChecker.isAutosensModeEnabled()
+            constraintChecker.isSMBModeEnabled()
+            constraintChecker.isUAMEnabled()
+            constraintChecker.getMaxIOBAllowed()
+            constraintChecker.getMaxBasalAllowed(validProfile)
+            constraintChecker.getMaxBasalAllowed(validProfile)
+            constraintChecker.getMaxIOBAllowed()
+            constraintChecker.endLoopSnapshot()
+        }
+
+        repeat(100) { loop() }
+        assertThat(scans()).isEqualTo(1)
+
+        // plugin enabled or disabled
+        rxBus.send(EventConfigBuilderChange())
+        loop()
+        assertThat(scans()).isEqualTo(2)
+    }
+
+    private fun scans() = mockingDetails(activePlugin).invocations.count { it.method.name == "getSpecificPluginsListByInterface" }
 }
@@ -1,6 +1,5 @@
 package app.aaps.plugins.main.general.smsCommunicator
 
-import android.os.SystemClock
 import app.aaps.core.data.configuration.Constants
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -57,13 +56,8 @@ class AuthRequest(
         if (dateUtil.now() - date < Constants.SMS_CONFIRM_TIMEOUT) {
             processed = true
             if (action.pumpCommand) {
-                val start = dateUtil.now()
                 //wait for empty queue
-                while (start + T.mins(3).msecs() > dateUtil.now()) {
-                    if (commandQueue.size() == 0) break
-                    SystemClock.sleep(100)
-                }
-                if (commandQueue.size() != 0) {
+                if (!commandQueue.waitForEmptyQueue(T.mins(3).msecs())) {
                     aapsLogger.debug(LTag.SMS, "Command timed out: " + requester.text)
                     smsCommunicator.sendSMS(Sms(requester.phoneNumber, rh.gs(R.string.sms_timeout_while_waiting)))
                     return
@@ -2,6 +2,7 @@ package app.aaps.plugins.main.general.smsCommunicator
 
 import app.aaps.core.data.configuration.Constants
 import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.queue.CommandQueue
 import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.smsCommunicator.Sms
 import app.aaps.core.interfaces.smsCommunicator.SmsCommunicator
@@ -15,11 +16,15 @@ import dagger.android.AndroidInjector
 import dagger.android.HasAndroidInjector
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers
 import org.mockito.Mock
 import org.mockito.Mockito.doAnswer
 import org.mockito.Mockito.`when`
 import org.mockito.invocation.InvocationOnMock
 import org.mockito.stubbing.Answer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
 
 class AuthRequestTest : TestBase() {
 
@@ -27,6 +32,7 @@ class AuthRequestTest : TestBase() {
     @Mock lateinit var rh: ResourceHelper
     @Mock lateinit var otp: OneTimePassword
     @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var commandQueue: CommandQueue
 
     private var injector: HasAndroidInjector = HasAndroidInjector {
         AndroidInjector {
@@ -36,6 +42,7 @@ class AuthRequestTest : TestBase() {
                 it.smsCommunicator = smsCommunicator
                 it.otp = otp
                 it.dateUtil = dateUtil
+                it.commandQueue = commandQueue
             }
         }
     }
@@ -45,6 +52,7 @@ class AuthRequestTest : TestBase() {
 
     @BeforeEach fun prepareTests() {
         `when`(rh.gs(R.string.sms_wrong_code)).thenReturn("Wrong code. Command cancelled.")
+        `when`(rh.gs(R.string.sms_timeout_while_waiting)).thenReturn("Timeout while waiting for finish of previous pump communication")
         doAnswer(Answer { invocation: InvocationOnMock ->
             sentSms = invocation.getArgument(0)
             null
@@ -91,4 +99,39 @@ class AuthRequestTest : TestBase() {
         authRequest.action("ABC")
         assertThat(actionCalled).isFalse()
     }
+
+    @Test fun pumpCommandRunsAfterCommandInFlightFinishes() {
+        val commandInFlight = CountDownLatch(1)
+        // queue is empty, picked up command is still performed
+        `when`(commandQueue.waitForEmptyQueue(ArgumentMatchers.anyLong())).thenAnswer { commandInFlight.await(5, TimeUnit.SECONDS) }
+        `when`(otp.checkOTP(anyObject())).thenReturn(OneTimePasswordValidationResult.OK)
+        val action: SmsAction = object : SmsAction(true) {
+            override fun run() {
+                actionCalled = true
+            }
+        }
+        val authRequest = AuthRequest(injector, Sms("aNumber", "aText"), "Request text", "ABC", action)
+
+        val confirmation = thread { authRequest.action("ABC") }
+        assertThat(actionCalled).isFalse()
+        commandInFlight.countDown()
+        confirmation.join(5000)
+
+        assertThat(actionCalled).isTrue()
+    }
+
+    @Test fun pumpCommandIsNotRunWhenCommandInFlightDoesNotFinish() {
+        `when`(commandQueue.waitForEmptyQueue(ArgumentMatchers.anyLong())).thenReturn(false)
+        `when`(otp.checkOTP(anyObject())).thenReturn(OneTimePasswordValidationResult.OK)
+        val action: SmsAction = object : SmsAction(true) {
+            override fun run() {
+                actionCalled = true
+            }
+        }
+
+        AuthRequest(injector, Sms("aNumber", "aText"), "Request text", "ABC", action).action("ABC")
+
+        assertThat(actionCalled).isFalse()
+        assertThat(sentSms!!.text).isEqualTo("Timeout while waiting for finish of previous pump communication")
+    }
 }
@@ -107,6 +107,7 @@ class SmsCommunicatorPluginTest : TestBaseWithProfile() {
             glucoseStatusProvider, persistenceLayer, decimalFormatter, configBuilder
         )
         smsCommunicatorPlugin.setPluginEnabled(PluginType.GENERAL, true)
+        Mockito.`when`(commandQueue.waitForEmptyQueue(ArgumentMatchers.anyLong())).thenReturn(true)
         Mockito.doAnswer { invocation: InvocationOnMock ->
             val callback = invocation.getArgument<Callback>(1)
             callback.result = instantiator.providePumpEnactResult().success(true)
@@ -0,0 +1,155 @@
+package app.aaps.plugins.source
+
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.time.T
+import app.aaps.core.data.ue.Sources
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.utils.DateUtil
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import javax.inject.Inject
+import javax.inject.Singleton
+
+/**
+ * Stores data received by CGM source workers in as few transactions as possible.
+ *
+ * Batch containing current value is stored immediately so regular readings are not delayed.
+ * Older values (backfill after sensor reconnection) are collected until [LINGER] passes without new data
+ * (at most [MAX_LINGER]) and stored in one transaction, triggering one recalculation only.
+ * Values equal to recently stored ones are dropped in memory.
+ * Batch is kept until it is stored, failed write is retried after [RETRY].
+ */
+@Singleton
+class CgmIngestion @Inject constructor(
+    private val aapsLogger: AAPSLogger,
+    private val persistenceLayer: PersistenceLayer,
+    private val dateUtil: DateUtil
+) {
+
+    private data class Key(val timestamp: Long, val sourceSensor: SourceSensor)
+
+    private class Batch(val caller: Sources, val invalidateInsertedCloserThan: Long, val started: Long) {
+
+        val glucoseValues = LinkedHashMap<Key, GV>()
+        val calibrations = mutableListOf<PersistenceLayer.Calibration>()
+        var sensorInsertionTime: Long? = null
+
+        fun accepts(caller: Sources, invalidateInsertedCloserThan: Long, sensorInsertionTime: Long?): Boolean =
+            caller == this.caller && invalidateInsertedCloserThan == this.invalidateInsertedCloserThan &&
+                (sensorInsertionTime == null || this.sensorInsertionTime == null || sensorInsertionTime == this.sensorInsertionTime)
+
+        fun isEmpty(): Boolean = glucoseValues.isEmpty() && calibrations.isEmpty() && sensorInsertionTime == null
+    }
+
+    private val worker = Executors.newSingleThreadScheduledExecutor()
+    private var scheduledFlush: ScheduledFuture<*>? = null
+
+    // batches waiting for storing, oldest first, removed only after successful write
+    private val pending = ArrayDeque<Batch>()
+    private val recent = HashMap<Key, GV>()
+
+    /** Number of transactions, for statistics */
+    var transactions = 0L
+        private set
+
+    /**
+     * Add data to the pending batch
+     *
+     * If the write fails the data is kept and stored by next submit or retry.
+     *
+     * @param invalidateInsertedCloserThan see [PersistenceLayer.insertCgmSourceData]
+     * @return result of the transaction or null if the data is stored later or nothing new was received
+     */
+    @Synchronized
+    fun submit(
+        caller: Sources, glucoseValues: List<GV>, calibrations: List<PersistenceLayer.Calibration>, sensorInsertionTime: Long?, invalidateInsertedCloserThan: Long = 0
+    ): PersistenceLayer.TransactionResult<GV>? {
+        val now = dateUtil.now()
+        val batch = pending.lastOrNull()?.takeIf { it.accepts(caller, invalidateInsertedCloserThan, sensorInsertionTime) }
+            ?: Batch(caller, invalidateInsertedCloserThan, now).also { pending.addLast(it) }
+        glucoseValues.forEach { gv ->
+            val key = Key(gv.timestamp, gv.sourceSensor)
+            val stored = recent[key]
+            if (stored == null || gv.ids.nightscoutId != null || !stored.contentEqualsTo(gv)) batch.glucoseValues[key] = gv
+        }
+        batch.calibrations.addAll(calibrations)
+        if (sensorInsertionTime != null) batch.sensorInsertionTime = sensorInsertionTime
+        if (batch.isEmpty()) {
+            pending.removeLast()
+            return null
+        }
+
+        val current = glucoseValues.any { it.timestamp > now - CURRENT }
+        if (current || now - batch.started >= MAX_LINGER || batch.glucoseValues.size >= MAX_BATCH) return flush()
+        // batches of other source are stored first, this one waits for more data
+        val result = flush(keepLast = true)
+        schedule(LINGER)
+        return result
+    }
+
+    private fun schedule(delay: Long) {
+        scheduledFlush?.cancel(false)
+        scheduledFlush = worker.schedule(
+            {
+                synchronized(this) {
+                    scheduledFlush = null
+                    try {
+                        flush()
+                    } catch (e: Exception) {
+                        aapsLogger.error(LTag.BGSOURCE, "Error while storing CGM values, retrying in ${RETRY / 1000}s", e)
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS
+        )
+    }
+
+    private fun flush(keepLast: Boolean = false): PersistenceLayer.TransactionResult<GV>? {
+        scheduledFlush?.cancel(false)
+        scheduledFlush = null
+        var result: PersistenceLayer.TransactionResult<GV>? = null
+        while (pending.size > if (keepLast) 1 else 0) {
+            val batch = pending.first()
+            aapsLogger.debug(LTag.BGSOURCE, "Storing ${batch.glucoseValues.size} values from ${batch.caller.name} in one transaction")
+            result = try {
+                persistenceLayer.insertCgmSourceData(
+                    batch.caller, batch.glucoseValues.values.toList(), batch.calibrations, batch.sensorInsertionTime, batch.invalidateInsertedCloserThan
+                ).blockingGet()
+            } catch (e: Exception) {
+                schedule(RETRY)
+                throw e
+            }
+            pending.removeFirst()
+            transactions++
+            val oldest = dateUtil.now() - RECENT
+            recent.values.removeIf { it.timestamp < oldest }
+            batch.glucoseValues.forEach { (key, gv) -> if (gv.timestamp >= oldest) recent[key] = gv }
+        }
+        return result
+    }
+
+    private fun GV.contentEqualsTo(other: GV): Boolean =
+        timestamp == other.timestamp &&
+            utcOffset == other.utcOffset &&
+            raw == other.raw &&
+            value == other.value &&
+            trendArrow == other.trendArrow &&
+            noise == other.noise &&
+            sourceSensor == other.sourceSensor
+
+    companion object {
+
+        // values newer than this are stored immediately
+        private val CURRENT = T.mins(4).msecs()
+        private const val LINGER = 2000L
+        private val MAX_LINGER = T.secs(10).msecs()
+        private val RETRY = T.secs(5).msecs()
+        private const val MAX_BATCH = 2000
+
+        // how long stored values are remembered for deduplication
+        private val RECENT = T.hours(3).msecs()
+    }
+}
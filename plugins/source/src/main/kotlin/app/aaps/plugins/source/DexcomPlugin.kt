@@ -12,7 +12,6 @@ import app.aaps.core.data.model.SourceSensor
 import app.aaps.core.data.model.TrendArrow
 import app.aaps.core.data.plugin.PluginType
 import app.aaps.core.data.time.T
-import app.aaps.core.data.ue.Action
 import app.aaps.core.data.ue.Sources
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.db.PersistenceLayer
@@ -78,9 +77,9 @@ class DexcomPlugin @Inject constructor(
         @Inject lateinit var preferences: Preferences
         @Inject lateinit var dateUtil: DateUtil
         @Inject lateinit var dataWorkerStorage: DataWorkerStorage
-        @Inject lateinit var persistenceLayer: PersistenceLayer
         @Inject lateinit var uel: UserEntryLogger
         @Inject lateinit var profileUtil: ProfileUtil
+        @Inject lateinit var cgmIngestion: CgmIngestion
 
         @SuppressLint("CheckResult")
         override suspend fun doWorkAndLog(): Result {
@@ -148,25 +147,9 @@ class DexcomPlugin @Inject constructor(
                 sensorStartTime?.let {
                     if (abs(it - now) > T.months(1).msecs() || it > now) sensorStartTime = null
                 }
-                persistenceLayer.insertCgmSourceData(Sources.Dexcom, glucoseValues, calibrations, sensorStartTime)
-                    .doOnError { ret = Result.failure(workDataOf("Error" to it.toString())) }
-                    .blockingGet()
-                    .also { result ->
-                        // G6 calibration bug workaround (2 additional GVs are created within 1 minute)
-                        for (i in result.inserted.indices) {
-                            if (sourceSensor == SourceSensor.DEXCOM_G6_NATIVE) {
-                                if (i < result.inserted.size - 1) {
-                                    if (abs(result.inserted[i].timestamp - result.inserted[i + 1].timestamp) < T.mins(1).msecs()) {
-                                        persistenceLayer.invalidateGlucoseValue(result.inserted[i].id, Action.BG_REMOVED, Sources.Dexcom, note = null, listValues = listOf()).blockingGet()
-                                        persistenceLayer.invalidateGlucoseValue(result.inserted[i + 1].id, Action.BG_REMOVED, Sources.Dexcom, note = null, listValues = listOf()).blockingGet()
-                                        result.inserted.removeAt(i + 1)
-                                        result.inserted.removeAt(i)
-                                        continue
-                                    }
-                                }
-                            }
-                        }
-                    }
+                // G6 calibration bug workaround (2 additional GVs are created within 1 minute), invalidated in the same transaction
+                val invalidateInsertedCloserThan = if (sourceSensor == SourceSensor.DEXCOM_G6_NATIVE) T.mins(1).msecs() else 0L
+                cgmIngestion.submit(Sources.Dexcom, glucoseValues, calibrations, sensorStartTime, invalidateInsertedCloserThan)
             } catch (e: Exception) {
                 aapsLogger.error("Error while processing intent from Dexcom App", e)
                 ret = Result.failure(workDataOf("Error" to e.toString()))
@@ -81,6 +81,7 @@ class XdripSourcePlugin @Inject constructor(
         @Inject lateinit var dateUtil: DateUtil
         @Inject lateinit var dataWorkerStorage: DataWorkerStorage
         @Inject lateinit var uel: UserEntryLogger
+        @Inject lateinit var cgmIngestion: CgmIngestion
         private val xdripOM = preferences.get(BooleanKey.OApsxdriponeminute)
         fun getSensorStartTime(bundle: Bundle): Long? {
             val now = dateUtil.now()
@@ -143,10 +144,12 @@ class XdripSourcePlugin @Inject constructor(
                 else -> newSensorStartTime
             }
             // Always update glucoseValues, but use the decided sensorStartTime
-            persistenceLayer.insertCgmSourceData(Sources.Xdrip, glucoseValues, emptyList(), finalSensorStartTime)
-                .doOnError { ret = Result.failure(workDataOf("Error" to it.toString())) }
-                .blockingGet()
-                .also { savedValues -> savedValues.all().forEach { xdripSourcePlugin.detectSource(it) } }
+            glucoseValues.forEach { xdripSourcePlugin.detectSource(it) }
+            try {
+                cgmIngestion.submit(Sources.Xdrip, glucoseValues, emptyList(), finalSensorStartTime)
+            } catch (e: Exception) {
+                ret = Result.failure(workDataOf("Error" to e.toString()))
+            }
             xdripSourcePlugin.sensorBatteryLevel = bundle.getInt(Intents.EXTRA_SENSOR_BATTERY, -1)
             return ret
         }
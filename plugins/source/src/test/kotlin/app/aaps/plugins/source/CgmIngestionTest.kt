@@ -0,0 +1,175 @@
+package app.aaps.plugins.source
+
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.data.ue.Sources
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import io.reactivex.rxjava3.core.Single
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.assertThrows
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.never
+import org.mockito.kotlin.timeout
+import org.mockito.kotlin.times
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+
+class CgmIngestionTest : TestBase() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var dateUtil: DateUtil
+
+    private lateinit var sut: CgmIngestion
+    private val now = 1_700_000_000_000L
+    private var failures = 0
+
+    @BeforeEach
+    fun prepare() {
+        whenever(dateUtil.now()).thenReturn(now)
+        whenever(persistenceLayer.insertCgmSourceData(any(), any(), any(), anyOrNull(), any())).thenAnswer { invocation ->
+            if (failures-- > 0) Single.error(IllegalStateException("Database not available"))
+            else Single.just(PersistenceLayer.TransactionResult<GV>().also { it.inserted.addAll(invocation.getArgument<List<GV>>(1)) })
+        }
+        sut = CgmIngestion(aapsLogger, persistenceLayer, dateUtil)
+    }
+
+    private fun gv(timestamp: Long, value: Double = 100.0) =
+        GV(timestamp = timestamp, raw = null, value = value, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.DEXCOM_G6_NATIVE_XDRIP)
+
+    private fun storedValues(count: Int = 1): List<List<GV>> =
+        argumentCaptor<List<GV>>().also { verify(persistenceLayer, times(count)).insertCgmSourceData(any(), it.capture(), any(), anyOrNull(), any()) }.allValues
+
+    @Test
+    fun currentValueIsStoredImmediately() {
+        val result = sut.submit(Sources.Xdrip, listOf(gv(now)), emptyList(), null)
+
+        assertThat(result?.inserted).hasSize(1)
+        assertThat(storedValues().single()).containsExactly(gv(now))
+    }
+
+    @Test
+    fun backfillIsStoredInOneTransaction() {
+        // 3 hours of 1-minute data received one by one after reconnection, current value last
+        val backfill = (180 downTo 0).map { gv(now - T.mins(it.toLong()).msecs(), 100.0 + it) }
+        backfill.dropLast(1).forEach { assertThat(sut.submit(Sources.Xdrip, listOf(it), emptyList(), null)).isNull() }
+        verify(persistenceLayer, never()).insertCgmSourceData(any(), any(), any(), anyOrNull(), any())
+
+        sut.submit(Sources.Xdrip, listOf(backfill.last()), emptyList(), null)
+
+        assertThat(sut.transactions).isEqualTo(1)
+        assertThat(storedValues().single()).containsExactlyElementsIn(backfill).inOrder()
+    }
+
+    @Test
+    fun oldValuesAreStoredAfterLinger() {
+        val backfill = (60 downTo 10).map { gv(now - T.mins(it.toLong()).msecs()) }
+        backfill.forEach { sut.submit(Sources.Xdrip, listOf(it), emptyList(), null) }
+
+        val captor = argumentCaptor<List<GV>>()
+        verify(persistenceLayer, timeout(5000)).insertCgmSourceData(eq(Sources.Xdrip), captor.capture(), any(), anyOrNull(), any())
+        assertThat(captor.firstValue).hasSize(backfill.size)
+    }
+
+    @Test
+    fun repeatedValuesAreDropped() {
+        // every broadcast repeats the last hour
+        val hour = (60 downTo 0 step 5).map { gv(now - T.mins(it.toLong()).msecs()) }
+        sut.submit(Sources.Dexcom, hour, emptyList(), null)
+        whenever(dateUtil.now()).thenReturn(now + T.mins(5).msecs())
+
+        sut.submit(Sources.Dexcom, hour.drop(1) + gv(now + T.mins(5).msecs()), emptyList(), null)
+
+        val stored = storedValues(2)
+        assertThat(stored[0]).hasSize(hour.size)
+        assertThat(stored[1]).containsExactly(gv(now + T.mins(5).msecs()))
+    }
+
+    @Test
+    fun sameValueWithoutNewDataIsNotStored() {
+        sut.submit(Sources.Xdrip, listOf(gv(now)), emptyList(), null)
+
+        assertThat(sut.submit(Sources.Xdrip, listOf(gv(now)), emptyList(), null)).isNull()
+
+        assertThat(sut.transactions).isEqualTo(1)
+    }
+
+    @Test
+    fun changedValueIsStoredAgain() {
+        sut.submit(Sources.Xdrip, listOf(gv(now)), emptyList(), null)
+        sut.submit(Sources.Xdrip, listOf(gv(now, 120.0)), emptyList(), null)
+
+        assertThat(storedValues(2)[1]).containsExactly(gv(now, 120.0))
+    }
+
+    @Test
+    fun otherSourceStoresPendingBatchFirst() {
+        sut.submit(Sources.Xdrip, listOf(gv(now - T.mins(30).msecs())), emptyList(), null)
+
+        sut.submit(Sources.Dexcom, listOf(gv(now - T.mins(20).msecs())), emptyList(), null)
+
+        verify(persistenceLayer).insertCgmSourceData(eq(Sources.Xdrip), any(), any(), anyOrNull(), any())
+        verify(persistenceLayer, never()).insertCgmSourceData(eq(Sources.Dexcom), any(), any(), anyOrNull(), any())
+    }
+
+    @Test
+    fun sensorChangeAndInvalidationAreStoredInSameTransaction() {
+        val sensorStart = now - T.hours(1).msecs()
+        val calibration = PersistenceLayer.Calibration(now - T.mins(2).msecs(), 110.0, GlucoseUnit.MGDL)
+
+        sut.submit(Sources.Dexcom, listOf(gv(now - T.secs(30).msecs()), gv(now)), listOf(calibration), sensorStart, T.mins(1).msecs())
+
+        verify(persistenceLayer).insertCgmSourceData(eq(Sources.Dexcom), any(), eq(listOf(calibration)), eq(sensorStart), eq(T.mins(1).msecs()))
+    }
+
+    @Test
+    fun failedWriteIsStoredWithNextValue() {
+        failures = 1
+        val old = gv(now - T.mins(5).msecs())
+        sut.submit(Sources.Xdrip, listOf(old), emptyList(), null)
+        assertThrows<RuntimeException> { sut.submit(Sources.Xdrip, listOf(gv(now)), emptyList(), null) }
+        whenever(dateUtil.now()).thenReturn(now + T.mins(5).msecs())
+
+        sut.submit(Sources.Xdrip, listOf(gv(now + T.mins(5).msecs())), emptyList(), null)
+
+        assertThat(storedValues(2)[1]).containsExactly(old, gv(now), gv(now + T.mins(5).msecs())).inOrder()
+        assertThat(sut.transactions).isEqualTo(1)
+    }
+
+    @Test
+    fun failedBatchOfOtherSourceIsKept() {
+        failures = 1
+        val xdrip = gv(now - T.mins(30).msecs())
+        sut.submit(Sources.Xdrip, listOf(xdrip), emptyList(), null)
+
+        assertThrows<RuntimeException> { sut.submit(Sources.Dexcom, listOf(gv(now)), emptyList(), null) }
+        sut.submit(Sources.Dexcom, listOf(gv(now + T.secs(10).msecs())), emptyList(), null)
+
+        val captor = argumentCaptor<List<GV>>()
+        verify(persistenceLayer, times(2)).insertCgmSourceData(eq(Sources.Xdrip), captor.capture(), any(), anyOrNull(), any())
+        assertThat(captor.lastValue).containsExactly(xdrip)
+        verify(persistenceLayer).insertCgmSourceData(eq(Sources.Dexcom), eq(listOf(gv(now), gv(now + T.secs(10).msecs()))), any(), anyOrNull(), any())
+    }
+
+    @Test
+    fun failedScheduledWriteIsRetried() {
+        failures = 1
+        val backfill = (60 downTo 10).map { gv(now - T.mins(it.toLong()).msecs()) }
+        backfill.forEach { sut.submit(Sources.Xdrip, listOf(it), emptyList(), null) }
+
+        val captor = argumentCaptor<List<GV>>()
+        verify(persistenceLayer, timeout(15000).times(2)).insertCgmSourceData(eq(Sources.Xdrip), captor.capture(), any(), anyOrNull(), any())
+        assertThat(captor.lastValue).containsExactlyElementsIn(backfill).inOrder()
+        assertThat(sut.transactions).isEqualTo(1)
+    }
+}
@@ -25,6 +25,7 @@ dependencies {
 
     testImplementation(libs.kotlinx.coroutines.test)
     testImplementation(libs.androidx.work.testing)
+    testImplementation(libs.com.squareup.okhttp3.mockwebserver)
 
     testImplementation(project(":shared:tests"))
     testImplementation(project(":implementation"))
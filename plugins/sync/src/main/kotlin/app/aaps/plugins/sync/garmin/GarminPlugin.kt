@@ -39,7 +39,10 @@ import java.time.Clock
 import java.time.Duration
 import java.time.Instant
 import java.util.Date
-import java.util.concurrent.locks.Condition
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -108,10 +111,24 @@ class GarminPlugin @Inject constructor(
     var clock: Clock = Clock.systemUTC()
 
     private val valueLock = ReentrantLock()
-
-    @VisibleForTesting
-    var newValue: Condition = valueLock.newCondition()
     private var lastGlucoseValueTimestamp: Long? = null
+    private var glucoseGeneration = 0
+
+    /** Completed by the next new glucose value, shared by all requests waiting for it. */
+    private var nextGlucose: CompletableFuture<GlucoseSnapshot>? = null
+
+    /** Queries glucose for waiting requests and completes them on timeout. */
+    private val waitExecutor = Executors.newSingleThreadScheduledExecutor { r -> Thread(r, "GarminGlucoseWait").apply { isDaemon = true } }
+
+    /** Glucose values with their encoding, shared by all requests until a new value arrives. */
+    private class GlucoseSnapshot(val generation: Int, val time: Long, val glucoseValues: List<GV>, val encodedGlucose: String)
+
+    /** Response of /get, repeated to devices polling at the same time. */
+    private class StatusResponse(val glucose: GlucoseSnapshot, val time: Long, val body: String)
+
+    private val cacheLock = Any()
+    private var glucoseSnapshot: GlucoseSnapshot? = null
+    private var statusResponse: StatusResponse? = null
     private val glucoseUnitStr get() = if (loopHub.glucoseUnit == GlucoseUnit.MGDL) "mgdl" else "mmoll"
     private val garminAapsKey get() = preferences.get(GarminStringKey.RequestKey)
 
@@ -170,7 +187,7 @@ class GarminPlugin @Inject constructor(
             aapsLogger.info(LTag.GARMIN, "starting HTTP server on $port")
             server?.close()
             server = HttpServer(aapsLogger, port).apply {
-                registerEndpoint("/get", requestHandler(::onGetBloodGlucose))
+                registerAsyncEndpoint("/get", asyncRequestHandler(::onGetBloodGlucose))
                 registerEndpoint("/carbs", requestHandler(::onPostCarbs))
                 registerEndpoint("/connect", requestHandler(::onConnectPump))
                 registerEndpoint("/sgv.json", requestHandler(::onSgv))
@@ -200,11 +217,14 @@ class GarminPlugin @Inject constructor(
     fun onNewBloodGlucose(event: EventNewBG) {
         val timestamp = event.glucoseValueTimestamp ?: return
         aapsLogger.info(LTag.GARMIN, "onNewBloodGlucose ${Date(timestamp)}")
-        valueLock.withLock {
+        val waiting = valueLock.withLock {
             if ((lastGlucoseValueTimestamp ?: 0) >= timestamp) return
             lastGlucoseValueTimestamp = timestamp
-            newValue.signalAll()
+            glucoseGeneration++
+            nextGlucose.also { nextGlucose = null }
         }
+        // one query for all waiting requests
+        if (waiting != null) waitExecutor.execute { completeWithSnapshot(waiting) }
     }
 
     @VisibleForTesting
@@ -228,7 +248,7 @@ class GarminPlugin @Inject constructor(
         "key" to garminAapsKey,
         "command" to "glucose",
         "profile" to loopHub.currentProfileName.first().toString(),
-        "encodedGlucose" to encodedGlucose(getGlucoseValues()),
+        "encodedGlucose" to getGlucoseSnapshot().encodedGlucose,
         "remainingInsulin" to loopHub.insulinOnboard,
         "remainingBasalInsulin" to loopHub.insulinBasalOnboard,
         "glucoseUnit" to glucoseUnitStr,
@@ -245,23 +265,48 @@ class GarminPlugin @Inject constructor(
         return loopHub.getGlucoseValues(from, true)
     }
 
-    /** Get the last 2+ hours of glucose values and waits in case a new value should arrive soon. */
-    private fun getGlucoseValues(maxWait: Duration): List<GV> {
+    /** Gets the last 2+ hours of glucose values, queried again only after a new value. */
+    private fun getGlucoseSnapshot(): GlucoseSnapshot = synchronized(cacheLock) {
+        val generation = valueLock.withLock { glucoseGeneration }
+        glucoseSnapshot?.takeIf {
+            it.generation == generation && clock.millis() - it.time < GLUCOSE_MAX_AGE_MILLIS
+        } ?: getGlucoseValues().let { glucoseValues ->
+            GlucoseSnapshot(generation, clock.millis(), glucoseValues, encodedGlucose(glucoseValues))
+        }.also { glucoseSnapshot = it }
+    }
+
+    /** Get the last 2+ hours of glucose values and waits in case a new value should arrive soon.
+     *
+     * Waiting requests don't block a thread, they are completed by the next new value or after [maxWait].
+     */
+    private fun getGlucoseSnapshot(maxWait: Duration): CompletableFuture<GlucoseSnapshot> {
         val glucoseFrequency = Duration.ofMinutes(5)
-        val glucoseValues = getGlucoseValues()
-        val last = glucoseValues.lastOrNull() ?: return emptyList()
+        val snapshot = getGlucoseSnapshot()
+        val last = snapshot.glucoseValues.lastOrNull() ?: return CompletableFuture.completedFuture(snapshot)
         val delay = Duration.ofMillis(clock.millis() - last.timestamp)
-        return if (!maxWait.isZero
-            && delay > glucoseFrequency
-            && delay < glucoseFrequency.plusMinutes(1)
+        if (maxWait.isZero
+            || delay <= glucoseFrequency
+            || delay >= glucoseFrequency.plusMinutes(1)
         ) {
-            valueLock.withLock {
-                aapsLogger.debug(LTag.GARMIN, "waiting for new glucose (delay=$delay)")
-                newValue.awaitNanos(maxWait.toNanos())
-            }
-            getGlucoseValues()
-        } else {
-            glucoseValues
+            return CompletableFuture.completedFuture(snapshot)
+        }
+        val next = valueLock.withLock {
+            // value may have arrived since the snapshot was taken
+            if (glucoseGeneration != snapshot.generation) null
+            else nextGlucose ?: CompletableFuture<GlucoseSnapshot>().also { nextGlucose = it }
+        } ?: return CompletableFuture.completedFuture(getGlucoseSnapshot())
+        aapsLogger.debug(LTag.GARMIN, "waiting for new glucose (delay=$delay)")
+        val result = CompletableFuture<GlucoseSnapshot>()
+        next.whenComplete { glucose, e -> if (glucose != null) result.complete(glucose) else result.completeExceptionally(e) }
+        waitExecutor.schedule({ if (!result.isDone) completeWithSnapshot(result) }, maxWait.toMillis(), TimeUnit.MILLISECONDS)
+        return result
+    }
+
+    private fun completeWithSnapshot(future: CompletableFuture<GlucoseSnapshot>) {
+        try {
+            future.complete(getGlucoseSnapshot())
+        } catch (e: Exception) {
+            future.completeExceptionally(e)
         }
     }
 
@@ -277,33 +322,55 @@ class GarminPlugin @Inject constructor(
 
     @VisibleForTesting
     fun requestHandler(action: (URI) -> CharSequence) = { caller: SocketAddress, uri: URI, _: String? ->
+        unauthorized(caller, uri) ?: (HttpURLConnection.HTTP_OK to action(uri).also {
+            aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri, result: $it")
+        })
+    }
+
+    @VisibleForTesting
+    fun asyncRequestHandler(action: (URI) -> CompletionStage<CharSequence>) = { caller: SocketAddress, uri: URI, _: String? ->
+        unauthorized(caller, uri)?.let { CompletableFuture.completedFuture(it) }
+            ?: action(uri).thenApply<Pair<Int, CharSequence>> {
+                aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri, result: $it")
+                HttpURLConnection.HTTP_OK to it
+            }
+    }
+
+    /** @return response to request with invalid key or null if the request may be served */
+    private fun unauthorized(caller: SocketAddress, uri: URI): Pair<Int, CharSequence>? {
         val key = garminAapsKey
         val deviceKey = getQueryParameter(uri, "key")
         if (key.isNotEmpty() && key != deviceKey) {
             aapsLogger.warn(LTag.GARMIN, "Invalid AAPS Key from $caller, got '$deviceKey' want '$key' $uri")
             sendPhoneAppMessage()
             Thread.sleep(1000L)
-            HttpURLConnection.HTTP_UNAUTHORIZED to "{}"
-        } else {
-            aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri")
-            HttpURLConnection.HTTP_OK to action(uri).also {
-                aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri, result: $it")
-            }
+            return HttpURLConnection.HTTP_UNAUTHORIZED to "{}"
         }
+        aapsLogger.info(LTag.GARMIN, "get from $caller resp , req: $uri")
+        return null
     }
 
     /** Responses to get glucose value request by the device.
      *
-     * Also, gets the heart rate readings from the device.
+     * Also, gets the heart rate readings from the device. Devices polling within
+     * a few seconds get the same response instance, which the server sends without encoding it again.
      */
     @VisibleForTesting
-    fun onGetBloodGlucose(uri: URI): CharSequence {
+    fun onGetBloodGlucose(uri: URI): CompletableFuture<CharSequence> {
         receiveHeartRate(uri)
-        val profileName = loopHub.currentProfileName
         val waitSec = getQueryParameter(uri, "wait", 0L)
-        val glucoseValues = getGlucoseValues(Duration.ofSeconds(waitSec))
+        return getGlucoseSnapshot(Duration.ofSeconds(waitSec)).thenApply<CharSequence> { glucose ->
+            synchronized(cacheLock) {
+                statusResponse?.takeIf { it.glucose === glucose && clock.millis() - it.time < STATUS_MAX_AGE_MILLIS }?.body
+                    ?: StatusResponse(glucose, clock.millis(), statusJson(glucose)).also { statusResponse = it }.body
+            }
+        }
+    }
+
+    private fun statusJson(glucose: GlucoseSnapshot): String {
+        val profileName = loopHub.currentProfileName
         val jo = JsonObject()
-        jo.addProperty("encodedGlucose", encodedGlucose(glucoseValues))
+        jo.addProperty("encodedGlucose", glucose.encodedGlucose)
         jo.addProperty("remainingInsulin", loopHub.insulinOnboard)
         jo.addProperty("remainingBasalInsulin", loopHub.insulinBasalOnboard)
         loopHub.lowGlucoseMark.takeIf { it > 0.0 }?.let {
@@ -497,4 +564,12 @@ class GarminPlugin @Inject constructor(
             )
         }
     }
+
+    companion object {
+
+        /** Glucose query window moves with time, refresh it even without new values. */
+        private const val GLUCOSE_MAX_AGE_MILLIS = 60_000L
+        /** IOB and basal change without new glucose values too. */
+        private const val STATUS_MAX_AGE_MILLIS = 15_000L
+    }
 }
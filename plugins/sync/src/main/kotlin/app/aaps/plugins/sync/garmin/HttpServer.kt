@@ -4,42 +4,74 @@ import android.os.StrictMode
 import androidx.annotation.VisibleForTesting
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
-import java.io.BufferedOutputStream
+import java.io.ByteArrayInputStream
 import java.io.ByteArrayOutputStream
 import java.io.Closeable
 import java.io.IOException
 import java.io.InputStream
-import java.io.OutputStream
 import java.lang.Thread.UncaughtExceptionHandler
 import java.net.HttpURLConnection
 import java.net.Inet4Address
 import java.net.InetSocketAddress
-import java.net.ServerSocket
-import java.net.Socket
 import java.net.SocketAddress
-import java.net.SocketTimeoutException
 import java.net.URI
+import java.net.URISyntaxException
+import java.nio.ByteBuffer
+import java.nio.channels.SelectionKey
+import java.nio.channels.Selector
+import java.nio.channels.ServerSocketChannel
+import java.nio.channels.SocketChannel
 import java.nio.charset.Charset
 import java.nio.charset.StandardCharsets
 import java.time.Duration
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionStage
 import java.util.concurrent.ConcurrentHashMap
-import java.util.concurrent.Executor
-import java.util.concurrent.Executors
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import java.util.regex.Pattern
 import kotlin.concurrent.withLock
 
-/** Basic HTTP server to communicate with Garmin device via localhost. */
-class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val port: Int) : Closeable {
+/** Basic HTTP server to communicate with Garmin device via localhost.
+ *
+ * Connections are accepted, read and written by a single selector thread,
+ * endpoints run on a bounded pool of workers. Requests waiting for an asynchronous
+ * endpoint to complete don't hold a worker.
+ */
+class HttpServer internal constructor(
+    private var aapsLogger: AAPSLogger,
+    val port: Int,
+    workers: Int = WORKERS
+) : Closeable {
 
     private val serverThread: Thread
-    private val workerExecutor: Executor = Executors.newCachedThreadPool()
-    private val endpoints: MutableMap<String, (SocketAddress, URI, String?) -> Pair<Int, CharSequence>> =
+    private val workerExecutor = ThreadPoolExecutor(
+        workers, workers, 60L, TimeUnit.SECONDS, ArrayBlockingQueue(QUEUE_SIZE)
+    ) { r -> Thread(r, "GarminHttpWorker").apply { isDaemon = true } }.apply { allowCoreThreadTimeOut(true) }
+    private val endpoints: MutableMap<String, (SocketAddress, URI, String?) -> CompletionStage<Pair<Int, CharSequence>>> =
         ConcurrentHashMap()
-    private var serverSocket: ServerSocket? = null
+    private val encoded: MutableMap<String, Response> = ConcurrentHashMap()
+    private val selector: Selector = Selector.open()
+    private val responded = ConcurrentLinkedQueue<Connection>()
+    private var serverChannel: ServerSocketChannel? = null
+    @Volatile private var closed = false
     private val readyLock = ReentrantLock()
     private val readyCond = readyLock.newCondition()
 
+    /** Response with encoded header and body, shared by all requests returning the same body. */
+    private class Response(val code: Int, val body: CharSequence, val bytes: ByteBuffer)
+
+    private class Connection(val channel: SocketChannel, val key: SelectionKey, val deadline: Long) {
+
+        val request = ByteArrayOutputStream()
+        var endOfInput = false
+        var response: ByteBuffer? = null
+    }
+
     init {
         serverThread = Thread { runServer() }
         serverThread.name = "GarminHttpServer"
@@ -47,55 +79,61 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
         serverThread.uncaughtExceptionHandler = UncaughtExceptionHandler { _, e ->
             e.printStackTrace()
             aapsLogger.error(LTag.GARMIN, "uncaught in HTTP server", e)
-            serverSocket?.use {}
+            serverChannel?.use {}
         }
         serverThread.start()
     }
 
     override fun close() {
-        try {
-            serverSocket?.close()
-            serverSocket = null
-        } catch (_: IOException) {
-        }
+        closed = true
+        selector.wakeup()
         try {
             serverThread.join(10_000L)
         } catch (_: InterruptedException) {
         }
+        workerExecutor.shutdownNow()
     }
 
     /** Wait for the server to start listing to requests. */
     fun awaitReady(wait: Duration): Boolean {
         var waitNanos = wait.toNanos()
         readyLock.withLock {
-            while (serverSocket?.isBound != true && waitNanos > 0L) {
+            while (!isBound() && waitNanos > 0L) {
                 waitNanos = readyCond.awaitNanos(waitNanos)
             }
         }
-        return serverSocket?.isBound == true
+        return isBound()
     }
 
-    /** Register an endpoint (path) to handle requests. */
-    fun registerEndpoint(path: String, endpoint: (SocketAddress, URI, String?) -> Pair<Int, CharSequence>) {
+    private fun isBound() = serverChannel?.socket()?.isBound == true
+
+    /** Register an endpoint (path) to handle requests.
+     *
+     * Endpoint returning the same body instance again is served from the already encoded bytes.
+     */
+    fun registerEndpoint(path: String, endpoint: (SocketAddress, URI, String?) -> Pair<Int, CharSequence>) =
+        registerAsyncEndpoint(path) { caller, uri, body -> CompletableFuture.completedFuture(endpoint(caller, uri, body)) }
+
+    /** Register an endpoint (path) completing its response later, e.g. a long poll waiting for new data.
+     *
+     * The connection is parked until the response completes, no worker is held meanwhile.
+     */
+    fun registerAsyncEndpoint(path: String, endpoint: (SocketAddress, URI, String?) -> CompletionStage<Pair<Int, CharSequence>>) {
         aapsLogger.info(LTag.GARMIN, "Register: '$path'")
         endpoints[path] = endpoint
     }
 
-    // @Suppress("all")
-    private fun respond(
-        @Suppress("SameParameterValue") code: Int,
-        body: CharSequence,
-        @Suppress("SameParameterValue") contentType: String,
-        out: OutputStream
-    ) {
-        respond(code, body.toString().toByteArray(Charset.forName("UTF8")), contentType, out)
+    private fun respond(code: Int, body: CharSequence, path: String): ByteBuffer {
+        val cached = encoded[path]
+        if (cached != null && cached.code == code && cached.body === body) return cached.bytes.duplicate()
+        val bytes = respond(code, body.toString().toByteArray(Charsets.UTF_8), "application/json")
+        encoded[path] = Response(code, body, bytes)
+        return bytes.duplicate()
     }
 
-    private fun respond(code: Int, out: OutputStream) {
-        respond(code, null as ByteArray?, null, out)
-    }
+    private fun respond(code: Int): ByteBuffer = respond(code, null, null)
 
-    private fun respond(code: Int, body: ByteArray?, contentType: String?, out: OutputStream) {
+    private fun respond(code: Int, body: ByteArray?, contentType: String?): ByteBuffer {
         val header = StringBuilder()
         header.append("HTTP/1.1 ").append(code).append(" OK\r\n")
         if (body != null) {
@@ -105,43 +143,48 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
             appendHeader("Content-Type", contentType, header)
         }
         header.append("\r\n")
-        val bout = BufferedOutputStream(out)
-        bout.write(header.toString().toByteArray(StandardCharsets.US_ASCII))
+        val headerBytes = header.toString().toByteArray(StandardCharsets.US_ASCII)
+        val buffer = ByteBuffer.allocate(headerBytes.size + (body?.size ?: 0))
+        buffer.put(headerBytes)
         if (body != null) {
-            bout.write(body)
+            buffer.put(body)
         }
-        bout.flush()
+        buffer.flip()
+        return buffer.asReadOnlyBuffer()
     }
 
-    private fun handleRequest(s: Socket) {
-        val out = s.getOutputStream()
+    private fun handleRequest(caller: SocketAddress, request: ByteArray): CompletionStage<ByteBuffer> {
         try {
-            val (uri, reqBody) = parseRequest(s.getInputStream())
+            val (uri, reqBody) = parseRequest(ByteArrayInputStream(request))
             if ("favicon.ico" == uri.path) {
-                respond(HttpURLConnection.HTTP_NOT_FOUND, out)
-                return
+                return CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_NOT_FOUND))
             }
-            val endpoint = endpoints[uri.path ?: ""]
-            if (endpoint == null) {
+            val path = uri.path ?: ""
+            val endpoint = endpoints[path]
+            return if (endpoint == null) {
                 aapsLogger.error(LTag.GARMIN, "request path not found '" + uri.path + "'")
-                respond(HttpURLConnection.HTTP_NOT_FOUND, out)
+                CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_NOT_FOUND))
             } else {
                 try {
-                    val (code, body) = endpoint(s.remoteSocketAddress, uri, reqBody)
-                    respond(code, body, "application/json", out)
+                    endpoint(caller, uri, reqBody).handle { response, e ->
+                        if (response != null) {
+                            respond(response.first, response.second, path)
+                        } else {
+                            aapsLogger.error(LTag.GARMIN, "endpoint " + uri.path + " failed", e)
+                            respond(HttpURLConnection.HTTP_INTERNAL_ERROR)
+                        }
+                    }
                 } catch (e: Exception) {
                     aapsLogger.error(LTag.GARMIN, "endpoint " + uri.path + " failed", e)
-                    respond(HttpURLConnection.HTTP_INTERNAL_ERROR, out)
+                    CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_INTERNAL_ERROR))
                 }
             }
-        } catch (e: SocketTimeoutException) {
-            // Client may just connect without sending anything.
-            aapsLogger.debug(LTag.GARMIN, "socket timeout: " + e.message)
-            return
         } catch (e: IOException) {
             aapsLogger.error(LTag.GARMIN, "Invalid request", e)
-            respond(HttpURLConnection.HTTP_BAD_REQUEST, out)
-            return
+            return CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_BAD_REQUEST))
+        } catch (e: URISyntaxException) {
+            aapsLogger.error(LTag.GARMIN, "Invalid request", e)
+            return CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_BAD_REQUEST))
         }
     }
 
@@ -151,46 +194,151 @@ class HttpServer internal constructor(private var aapsLogger: AAPSLogger, val po
         val policy = StrictMode.ThreadPolicy.Builder()?.permitAll()?.build()
         if (policy != null) StrictMode.setThreadPolicy(policy)
         readyLock.withLock {
-            serverSocket = ServerSocket()
-            serverSocket!!.bind(
+            serverChannel = ServerSocketChannel.open()
+            serverChannel!!.bind(
                 // Garmin will only connect to IP4 localhost. Therefore, we need to explicitly listen
                 // on that loopback interface and cannot use InetAddress.getLoopbackAddress(). That
                 // gives ::1 (IP6 localhost).
                 InetSocketAddress(Inet4Address.getByAddress(byteArrayOf(127, 0, 0, 1)), port)
             )
+            serverChannel!!.configureBlocking(false)
+            serverChannel!!.register(selector, SelectionKey.OP_ACCEPT)
             readyCond.signalAll()
         }
-        aapsLogger.info(LTag.GARMIN, "accept connections on " + serverSocket!!.localSocketAddress)
-        while (true) {
-            val socket = serverSocket!!.accept()
-            aapsLogger.info(LTag.GARMIN, "accept " + socket.remoteSocketAddress)
-            workerExecutor.execute {
-                Thread.currentThread().name = "worker" + Thread.currentThread().id
+        aapsLogger.info(LTag.GARMIN, "accept connections on " + serverChannel!!.localAddress)
+        val readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE)
+        while (!closed) {
+            selector.select(1000L)
+            while (true) {
+                val connection = responded.poll() ?: break
+                if (connection.key.isValid) connection.key.interestOps(SelectionKey.OP_WRITE)
+            }
+            val keys = selector.selectedKeys().iterator()
+            while (keys.hasNext()) {
+                val key = keys.next()
+                keys.remove()
                 try {
-                    socket.use { s ->
-                        s.soTimeout = 10_000
-                        handleRequest(s)
+                    when {
+                        !key.isValid     -> {}
+                        key.isAcceptable -> accept()
+                        key.isReadable   -> read(key.attachment() as Connection, readBuffer)
+                        key.isWritable   -> write(key.attachment() as Connection)
                     }
-                } catch (e: Exception) {
+                } catch (e: IOException) {
                     aapsLogger.error(LTag.GARMIN, "response failed", e)
+                    (key.attachment() as? Connection)?.let(::disconnect)
                 }
             }
+            closeExpired()
         }
     } catch (e: IOException) {
         aapsLogger.error("Server crashed", e)
     } finally {
         try {
-            serverSocket?.close()
-            serverSocket = null
+            selector.keys().forEach { key -> (key.attachment() as? Connection)?.let(::disconnect) }
+            serverChannel?.close()
+            serverChannel = null
+            selector.close()
         } catch (e: IOException) {
             aapsLogger.error(LTag.GARMIN, "Socked close failed", e)
         }
     }
 
+    private fun accept() {
+        val channel = serverChannel?.accept() ?: return
+        aapsLogger.info(LTag.GARMIN, "accept " + channel.remoteAddress)
+        channel.configureBlocking(false)
+        val key = channel.register(selector, SelectionKey.OP_READ)
+        key.attach(Connection(channel, key, System.currentTimeMillis() + TIMEOUT_MILLIS))
+    }
+
+    private fun read(connection: Connection, buffer: ByteBuffer) {
+        buffer.clear()
+        val read = connection.channel.read(buffer)
+        if (read < 0) connection.endOfInput = true
+        else connection.request.write(buffer.array(), 0, read)
+        val request = connection.request
+        if (!connection.endOfInput && request.size() < MAX_REQUEST_SIZE && !isComplete(request.toByteArray())) return
+        if (request.size() == 0) {
+            disconnect(connection)
+            return
+        }
+        connection.key.interestOps(0)
+        val caller = connection.channel.remoteAddress
+        val bytes = request.toByteArray()
+        try {
+            workerExecutor.execute {
+                val response = try {
+                    handleRequest(caller, bytes)
+                } catch (e: Exception) {
+                    aapsLogger.error(LTag.GARMIN, "response failed", e)
+                    CompletableFuture.completedFuture(respond(HttpURLConnection.HTTP_INTERNAL_ERROR))
+                }
+                // pending response is written once completed, worker is free meanwhile
+                response.whenComplete { buffer, _ ->
+                    connection.response = buffer ?: respond(HttpURLConnection.HTTP_INTERNAL_ERROR)
+                    responded.add(connection)
+                    selector.wakeup()
+                }
+            }
+        } catch (_: RejectedExecutionException) {
+            aapsLogger.warn(LTag.GARMIN, "too many requests, reject $caller")
+            connection.response = respond(HttpURLConnection.HTTP_UNAVAILABLE)
+            connection.key.interestOps(SelectionKey.OP_WRITE)
+        }
+    }
+
+    private fun write(connection: Connection) {
+        val response = connection.response ?: return
+        connection.channel.write(response)
+        if (!response.hasRemaining()) disconnect(connection)
+    }
+
+    private fun disconnect(connection: Connection) {
+        connection.key.cancel()
+        try {
+            connection.channel.close()
+        } catch (_: IOException) {
+        }
+    }
+
+    private fun closeExpired() {
+        val now = System.currentTimeMillis()
+        for (key in selector.keys()) {
+            val connection = key.takeIf { it.isValid }?.attachment() as? Connection ?: continue
+            // Client may just connect without sending anything.
+            if (connection.response == null && key.interestOps() == SelectionKey.OP_READ && now > connection.deadline) {
+                aapsLogger.debug(LTag.GARMIN, "socket timeout " + connection.channel.remoteAddress)
+                disconnect(connection)
+            }
+        }
+    }
+
     companion object {
 
+        private const val WORKERS = 4
+        private const val QUEUE_SIZE = 32
+        private const val TIMEOUT_MILLIS = 10_000L
+        private const val READ_BUFFER_SIZE = 4096
+        private const val MAX_REQUEST_SIZE = 64 * 1024
+
         private val REQUEST_HEADER = Pattern.compile("(GET|POST) (\\S*) HTTP/1.1")
         private val HEADER_LINE = Pattern.compile("([A-Za-z-]+)\\s*:\\s*(.*)")
+        private val CONTENT_LENGTH = Pattern.compile("^Content-Length\\s*:\\s*(\\d+)\\s*$", Pattern.MULTILINE)
+
+        /** Whether [request] contains the header and the whole body announced by Content-Length.
+         *
+         * POST without Content-Length is read until the client closes its output.
+         */
+        @VisibleForTesting
+        internal fun isComplete(request: ByteArray): Boolean {
+            val text = String(request, StandardCharsets.ISO_8859_1)
+            val crlf = text.indexOf("\r\n\r\n")
+            val headerEnd = if (crlf >= 0) crlf + 4 else text.indexOf("\n\n").takeIf { it >= 0 }?.plus(2) ?: return false
+            if (!text.startsWith("POST")) return true
+            val m = CONTENT_LENGTH.matcher(text.substring(0, headerEnd).replace("\r", ""))
+            return m.find() && request.size - headerEnd >= m.group(1)!!.toInt()
+        }
 
         private fun readLine(input: InputStream, charset: Charset): String {
             val buffer = ByteArrayOutputStream(input.available())
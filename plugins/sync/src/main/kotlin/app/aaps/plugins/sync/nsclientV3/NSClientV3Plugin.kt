@@ -141,6 +141,12 @@ class NSClientV3Plugin @Inject constructor(
     companion object {
 
         const val RECORDS_TO_LOAD = 500
+
+        // downloaded pages waiting for processing
+        const val PREFETCH_PAGES = 2
+
+        // pages received during first load before data is stored and cursor persisted
+        const val COMMIT_PAGES = 10
     }
 
     private val disposable = CompositeDisposable()
@@ -173,7 +179,7 @@ class NSClientV3Plugin @Inject constructor(
     val maxAge = T.days(100).msecs()
     internal var newestDataOnServer: LastModified? = null // timestamp of last modification for every collection provided by server
     internal var lastLoadedSrvModified = LastModified(LastModified.Collections()) // max srvLastModified timestamp of last fetched data for every collection
-    internal var firstLoadContinueTimestamp = LastModified(LastModified.Collections()) // timestamp of last fetched data for every collection during initial load
+    internal var firstLoadContinueTimestamp = LastModified(LastModified.Collections()) // timestamp of last fetched data for every collection during initial load, persisted to resume interrupted load
     internal var initialLoadFinished = false
 
     private val fullSyncSemaphore = Object()
@@ -208,6 +214,7 @@ class NSClientV3Plugin @Inject constructor(
         handler = Handler(HandlerThread(this::class.simpleName + "Handler").also { it.start() }.looper)
 
         lastLoadedSrvModified = Json.decodeFromString(preferences.get(NsclientStringKey.V3LastModified))
+        firstLoadContinueTimestamp = Json.decodeFromString(preferences.get(NsclientStringKey.V3FirstLoadContinue))
 
         setClient()
 
@@ -416,6 +423,7 @@ class NSClientV3Plugin @Inject constructor(
         lastLoadedSrvModified = LastModified(LastModified.Collections())
         initialLoadFinished = false
         storeLastLoadedSrvModified()
+        storeFirstLoadContinueTimestamp()
         dataSyncSelectorV3.resetToNextFullSync()
         synchronized(fullSyncSemaphore) {
             fullSyncRequested = true
@@ -730,6 +738,10 @@ class NSClientV3Plugin @Inject constructor(
         preferences.put(NsclientStringKey.V3LastModified, Json.encodeToString(LastModified.serializer(), lastLoadedSrvModified))
     }
 
+    fun storeFirstLoadContinueTimestamp() {
+        preferences.put(NsclientStringKey.V3FirstLoadContinue, Json.encodeToString(LastModified.serializer(), firstLoadContinueTimestamp))
+    }
+
     internal fun executeLoop(origin: String, forceNew: Boolean) {
         if (preferences.get(BooleanKey.NsClient3UseWs) && initialLoadFinished) return
         if (preferences.get(NsclientBooleanKey.NsPaused)) {
@@ -10,5 +10,6 @@ enum class NsclientStringKey(
     override val exportable: Boolean = true
 ) : StringNonPreferenceKey {
 
-    V3LastModified("ns_client_v3_last_modified", Json.encodeToString(LastModified.serializer(), LastModified(LastModified.Collections())))
-}
\ No newline at end of file
+    V3LastModified("ns_client_v3_last_modified", Json.encodeToString(LastModified.serializer(), LastModified(LastModified.Collections()))),
+    V3FirstLoadContinue("ns_client_v3_first_load_continue", Json.encodeToString(LastModified.serializer(), LastModified(LastModified.Collections())))
+}
@@ -3,6 +3,7 @@ package app.aaps.plugins.sync.nsclientV3.workers
 import android.content.Context
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
+import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.nsclient.StoreDataForDb
 import app.aaps.core.interfaces.rx.bus.RxBus
@@ -12,7 +13,6 @@ import app.aaps.core.interfaces.sync.NsClient
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.keys.BooleanKey
 import app.aaps.core.keys.interfaces.Preferences
-import app.aaps.core.nssdk.interfaces.NSAndroidClient
 import app.aaps.core.nssdk.localmodel.entry.NSSgvV3
 import app.aaps.core.objects.workflow.LoggingWorker
 import app.aaps.plugins.sync.nsShared.NsIncomingDataProcessor
@@ -39,59 +39,97 @@ class LoadBgWorker(
             return Result.success(workDataOf("Result" to "Load not enabled"))
 
         val nsAndroidClient = nsClientV3Plugin.nsAndroidClient ?: return Result.failure(workDataOf("Error" to "AndroidClient is null"))
-        var continueLoading = true
+        val isFirstLoad = nsClientV3Plugin.isFirstLoad(NsClient.Collection.ENTRIES)
+        var finished = false
+        var pages = 0
         try {
-            while (continueLoading) {
-                val isFirstLoad = nsClientV3Plugin.isFirstLoad(NsClient.Collection.ENTRIES)
-                val lastLoaded =
-                    if (isFirstLoad) max(nsClientV3Plugin.firstLoadContinueTimestamp.collections.entries, dateUtil.now() - nsClientV3Plugin.maxAge)
-                    else max(nsClientV3Plugin.lastLoadedSrvModified.collections.entries, dateUtil.now() - nsClientV3Plugin.maxAge)
-                if ((nsClientV3Plugin.newestDataOnServer?.collections?.entries ?: Long.MAX_VALUE) > lastLoaded) {
-                    val sgvs: List<NSSgvV3>
-                    val response: NSAndroidClient.ReadResponse<List<NSSgvV3>>?
-                    if (isFirstLoad) response = nsAndroidClient.getSgvsNewerThan(lastLoaded, NSClientV3Plugin.RECORDS_TO_LOAD)
-                    else {
-                        response = nsAndroidClient.getSgvsModifiedSince(lastLoaded, NSClientV3Plugin.RECORDS_TO_LOAD)
-                        aapsLogger.debug(LTag.NSCLIENT, "lastLoadedSrvModified: ${response.lastServerModified}")
-                        response.lastServerModified?.let { nsClientV3Plugin.lastLoadedSrvModified.collections.entries = it }
-                        nsClientV3Plugin.storeLastLoadedSrvModified()
-                        nsClientV3Plugin.scheduleIrregularExecution() // Idea is to run after 5 min after last BG
-                    }
-                    sgvs = response.values
-                    aapsLogger.debug(LTag.NSCLIENT, "SGVS: $sgvs")
-                    if (sgvs.isNotEmpty()) {
-                        val action = if (isFirstLoad) "RCV-F" else "RCV"
-                        rxBus.send(EventNSClientNewLog("◄ $action", "${sgvs.size} SVGs from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                        // Schedule processing of fetched data and continue of loading
-                        continueLoading = response.code != 304 && nsIncomingDataProcessor.processSgvs(sgvs, nsClientV3Plugin.doingFullSync)
-                    } else {
-                        // End first load
-                        if (isFirstLoad) {
-                            nsClientV3Plugin.lastLoadedSrvModified.collections.entries = lastLoaded
+            val start = lastLoaded(isFirstLoad)
+            if (newestOnServer() > start)
+                downloadPages(
+                    from = start,
+                    prefetch = NSClientV3Plugin.PREFETCH_PAGES,
+                    fetch = { from ->
+                        if (isFirstLoad) nsAndroidClient.getSgvsNewerThan(from, NSClientV3Plugin.RECORDS_TO_LOAD)
+                        else nsAndroidClient.getSgvsModifiedSince(from, NSClientV3Plugin.RECORDS_TO_LOAD)
+                    },
+                    next = { response ->
+                        val cursor =
+                            if (response.code == 304 || response.values.isEmpty()) null
+                            else if (isFirstLoad) latestAccepted(response.values)
+                            else response.lastServerModified
+                        cursor?.let { max(it, dateUtil.now() - nsClientV3Plugin.maxAge) }?.takeIf { newestOnServer() > it }
+                    },
+                    process = { from, response ->
+                        if (!isFirstLoad) {
+                            aapsLogger.debug(LTag.NSCLIENT, "lastLoadedSrvModified: ${response.lastServerModified}")
+                            response.lastServerModified?.let { nsClientV3Plugin.lastLoadedSrvModified.collections.entries = it }
                             nsClientV3Plugin.storeLastLoadedSrvModified()
+                            nsClientV3Plugin.scheduleIrregularExecution() // Idea is to run after 5 min after last BG
+                        }
+                        val sgvs = response.values
+                        aapsLogger.debug(LTag.NSCLIENT, "SGVS: $sgvs")
+                        if (sgvs.isNotEmpty()) {
+                            val action = if (isFirstLoad) "RCV-F" else "RCV"
+                            rxBus.send(EventNSClientNewLog("◄ $action", "${sgvs.size} SVGs from ${dateUtil.dateAndTimeAndSecondsString(from)}"))
+                            // Schedule processing of fetched data and continue of loading
+                            val continueLoading = response.code != 304 && nsIncomingDataProcessor.processSgvs(sgvs, nsClientV3Plugin.doingFullSync)
+                            if (isFirstLoad && ++pages % NSClientV3Plugin.COMMIT_PAGES == 0) commit()
+                            finished = !continueLoading
+                            continueLoading && newestOnServer() > lastLoaded(isFirstLoad)
+                        } else {
+                            // End first load
+                            if (isFirstLoad) {
+                                nsClientV3Plugin.lastLoadedSrvModified.collections.entries = from
+                                nsClientV3Plugin.storeLastLoadedSrvModified()
+                            }
+                            rxBus.send(EventNSClientNewLog("◄ RCV BG END", "No data from ${dateUtil.dateAndTimeAndSecondsString(from)}"))
+                            finished = true
+                            false
                         }
-                        rxBus.send(EventNSClientNewLog("◄ RCV BG END", "No data from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                        continueLoading = false
                     }
-                } else {
+                )
+            if (!finished) {
+                val loaded = lastLoaded(isFirstLoad)
+                if (newestOnServer() <= loaded) {
                     // End first load
                     if (isFirstLoad) {
-                        nsClientV3Plugin.lastLoadedSrvModified.collections.entries = lastLoaded
+                        nsClientV3Plugin.lastLoadedSrvModified.collections.entries = loaded
                         nsClientV3Plugin.storeLastLoadedSrvModified()
                     }
-                    rxBus.send(EventNSClientNewLog("◄ RCV BG END", "No new data from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                    continueLoading = false
+                    rxBus.send(EventNSClientNewLog("◄ RCV BG END", "No new data from ${dateUtil.dateAndTimeAndSecondsString(loaded)}"))
                 }
             }
         } catch (error: Exception) {
             aapsLogger.error("Error: ", error)
             rxBus.send(EventNSClientNewLog("◄ ERROR", error.localizedMessage))
             nsClientV3Plugin.lastOperationError = error.localizedMessage
+            // Keep what was received, next run continues from there
+            if (isFirstLoad) commit()
             return Result.failure(workDataOf("Error" to error.localizedMessage))
         }
 
-        storeDataForDb.storeGlucoseValuesToDb()
+        commit()
         nsClientV3Plugin.lastOperationError = null
         return Result.success()
     }
+
+    private fun lastLoaded(isFirstLoad: Boolean): Long =
+        if (isFirstLoad) max(nsClientV3Plugin.firstLoadContinueTimestamp.collections.entries, dateUtil.now() - nsClientV3Plugin.maxAge)
+        else max(nsClientV3Plugin.lastLoadedSrvModified.collections.entries, dateUtil.now() - nsClientV3Plugin.maxAge)
+
+    private fun newestOnServer(): Long = nsClientV3Plugin.newestDataOnServer?.collections?.entries ?: Long.MAX_VALUE
+
+    /**
+     * Timestamp [NsIncomingDataProcessor.processSgvs] stores as continue timestamp of first load
+     */
+    private fun latestAccepted(sgvs: List<NSSgvV3>): Long? =
+        sgvs.mapNotNull { it.date }.filter { it < dateUtil.now() + T.mins(1).msecs() }.maxOrNull()
+
+    /**
+     * Store received data and only then persist cursor of first load
+     */
+    private fun commit() {
+        storeDataForDb.storeGlucoseValuesToDb()
+        nsClientV3Plugin.storeFirstLoadContinueTimestamp()
+    }
 }
\ No newline at end of file
@@ -9,7 +9,6 @@ import app.aaps.core.interfaces.rx.bus.RxBus
 import app.aaps.core.interfaces.rx.events.EventNSClientNewLog
 import app.aaps.core.interfaces.sync.NsClient
 import app.aaps.core.interfaces.utils.DateUtil
-import app.aaps.core.nssdk.interfaces.NSAndroidClient
 import app.aaps.core.nssdk.localmodel.treatment.NSTreatment
 import app.aaps.core.objects.workflow.LoggingWorker
 import app.aaps.plugins.sync.nsShared.NsIncomingDataProcessor
@@ -33,61 +32,96 @@ class LoadTreatmentsWorker(
     override suspend fun doWorkAndLog(): Result {
         val nsAndroidClient = nsClientV3Plugin.nsAndroidClient ?: return Result.failure(workDataOf("Error" to "AndroidClient is null"))
 
-        var continueLoading = true
+        val isFirstLoad = nsClientV3Plugin.isFirstLoad(NsClient.Collection.TREATMENTS)
+        var finished = false
+        var pages = 0
         try {
-            while (continueLoading) {
-                val isFirstLoad = nsClientV3Plugin.isFirstLoad(NsClient.Collection.TREATMENTS)
-                val lastLoaded =
-                    if (isFirstLoad) max(nsClientV3Plugin.firstLoadContinueTimestamp.collections.treatments, dateUtil.now() - nsClientV3Plugin.maxAge)
-                    else max(nsClientV3Plugin.lastLoadedSrvModified.collections.treatments, dateUtil.now() - nsClientV3Plugin.maxAge)
-                if ((nsClientV3Plugin.newestDataOnServer?.collections?.treatments ?: Long.MAX_VALUE) > lastLoaded) {
-                    val treatments: List<NSTreatment>
-                    val response: NSAndroidClient.ReadResponse<List<NSTreatment>>?
-                    if (isFirstLoad) {
-                        val lastLoadedIso = dateUtil.toISOString(lastLoaded)
-                        response = nsAndroidClient.getTreatmentsNewerThan(lastLoadedIso, NSClientV3Plugin.RECORDS_TO_LOAD)
-                    } else {
-                        response = nsAndroidClient.getTreatmentsModifiedSince(lastLoaded, NSClientV3Plugin.RECORDS_TO_LOAD)
-                        aapsLogger.debug(LTag.NSCLIENT, "lastLoadedSrvModified: ${response.lastServerModified}")
-                        response.lastServerModified?.let { nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = it }
-                        nsClientV3Plugin.storeLastLoadedSrvModified()
-                    }
-                    treatments = response.values
-                    aapsLogger.debug(LTag.NSCLIENT, "TREATMENTS: $treatments")
-                    if (treatments.isNotEmpty()) {
-                        val action = if (isFirstLoad) "RCV-F" else "RCV"
-                        rxBus.send(EventNSClientNewLog("◄ $action", "${treatments.size} TRs from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                        // Schedule processing of fetched data and continue of loading
-                        continueLoading =
-                            response.code != 304 && nsIncomingDataProcessor.processTreatments(response.values, nsClientV3Plugin.doingFullSync)
-                    } else {
-                        // End first load
-                        if (isFirstLoad) {
-                            nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = lastLoaded
+            val start = lastLoaded(isFirstLoad)
+            if (newestOnServer() > start)
+                downloadPages(
+                    from = start,
+                    prefetch = NSClientV3Plugin.PREFETCH_PAGES,
+                    fetch = { from ->
+                        if (isFirstLoad) nsAndroidClient.getTreatmentsNewerThan(dateUtil.toISOString(from), NSClientV3Plugin.RECORDS_TO_LOAD)
+                        else nsAndroidClient.getTreatmentsModifiedSince(from, NSClientV3Plugin.RECORDS_TO_LOAD)
+                    },
+                    next = { response ->
+                        val cursor =
+                            if (response.code == 304 || response.values.isEmpty()) null
+                            else if (isFirstLoad) latestReceived(response.values)
+                            else response.lastServerModified
+                        cursor?.let { max(it, dateUtil.now() - nsClientV3Plugin.maxAge) }?.takeIf { newestOnServer() > it }
+                    },
+                    process = { from, response ->
+                        if (!isFirstLoad) {
+                            aapsLogger.debug(LTag.NSCLIENT, "lastLoadedSrvModified: ${response.lastServerModified}")
+                            response.lastServerModified?.let { nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = it }
                             nsClientV3Plugin.storeLastLoadedSrvModified()
                         }
-                        rxBus.send(EventNSClientNewLog("◄ RCV TR END", "No data from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                        continueLoading = false
+                        val treatments = response.values
+                        aapsLogger.debug(LTag.NSCLIENT, "TREATMENTS: $treatments")
+                        if (treatments.isNotEmpty()) {
+                            val action = if (isFirstLoad) "RCV-F" else "RCV"
+                            rxBus.send(EventNSClientNewLog("◄ $action", "${treatments.size} TRs from ${dateUtil.dateAndTimeAndSecondsString(from)}"))
+                            // Schedule processing of fetched data and continue of loading
+                            val continueLoading =
+                                response.code != 304 && nsIncomingDataProcessor.processTreatments(response.values, nsClientV3Plugin.doingFullSync)
+                            if (isFirstLoad && ++pages % NSClientV3Plugin.COMMIT_PAGES == 0) commit()
+                            finished = !continueLoading
+                            continueLoading && newestOnServer() > lastLoaded(isFirstLoad)
+                        } else {
+                            // End first load
+                            if (isFirstLoad) {
+                                nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = from
+                                nsClientV3Plugin.storeLastLoadedSrvModified()
+                            }
+                            rxBus.send(EventNSClientNewLog("◄ RCV TR END", "No data from ${dateUtil.dateAndTimeAndSecondsString(from)}"))
+                            finished = true
+                            false
+                        }
                     }
-                } else {
+                )
+            if (!finished) {
+                val loaded = lastLoaded(isFirstLoad)
+                if (newestOnServer() <= loaded) {
                     // End first load
                     if (isFirstLoad) {
-                        nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = lastLoaded
+                        nsClientV3Plugin.lastLoadedSrvModified.collections.treatments = loaded
                         nsClientV3Plugin.storeLastLoadedSrvModified()
                     }
-                    rxBus.send(EventNSClientNewLog("◄ RCV TR END", "No new data from ${dateUtil.dateAndTimeAndSecondsString(lastLoaded)}"))
-                    continueLoading = false
+                    rxBus.send(EventNSClientNewLog("◄ RCV TR END", "No new data from ${dateUtil.dateAndTimeAndSecondsString(loaded)}"))
                 }
             }
         } catch (error: Exception) {
             aapsLogger.error("Error: ", error)
             rxBus.send(EventNSClientNewLog("◄ ERROR", error.localizedMessage))
             nsClientV3Plugin.lastOperationError = error.localizedMessage
+            // Keep what was received, next run continues from there
+            if (isFirstLoad) commit()
             return Result.failure(workDataOf("Error" to error.localizedMessage))
         }
 
-        storeDataForDb.storeTreatmentsToDb()
+        commit()
         nsClientV3Plugin.lastOperationError = null
         return Result.success()
     }
+
+    private fun lastLoaded(isFirstLoad: Boolean): Long =
+        if (isFirstLoad) max(nsClientV3Plugin.firstLoadContinueTimestamp.collections.treatments, dateUtil.now() - nsClientV3Plugin.maxAge)
+        else max(nsClientV3Plugin.lastLoadedSrvModified.collections.treatments, dateUtil.now() - nsClientV3Plugin.maxAge)
+
+    private fun newestOnServer(): Long = nsClientV3Plugin.newestDataOnServer?.collections?.treatments ?: Long.MAX_VALUE
+
+    /**
+     * Timestamp [NsIncomingDataProcessor.processTreatments] stores as continue timestamp of first load
+     */
+    private fun latestReceived(treatments: List<NSTreatment>): Long? = treatments.mapNotNull { it.date }.maxOrNull()?.takeIf { it > 0 }
+
+    /**
+     * Hand received data over to storage and only then persist cursor of first load
+     */
+    private fun commit() {
+        storeDataForDb.storeTreatmentsToDb()
+        nsClientV3Plugin.storeFirstLoadContinueTimestamp()
+    }
 }
\ No newline at end of file
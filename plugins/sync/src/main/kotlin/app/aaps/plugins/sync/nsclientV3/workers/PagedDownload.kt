@@ -0,0 +1,40 @@
+package app.aaps.plugins.sync.nsclientV3.workers
+
+import app.aaps.core.nssdk.interfaces.NSAndroidClient
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+
+/**
+ * Download consecutive pages of one collection while previous pages are being processed
+ *
+ * Request of next page needs only cursor derived from previous response so it is issued as soon as the response arrives.
+ * At most [prefetch] downloaded pages wait for processing (plus one request in flight).
+ * Pages are processed one by one in order of download.
+ *
+ * @param from cursor of the first page
+ * @param fetch download page starting at cursor
+ * @param next cursor of the page following the response or null if it's the last one
+ * @param process process page downloaded from cursor, return false to stop loading
+ */
+internal suspend fun <T> downloadPages(
+    from: Long,
+    prefetch: Int,
+    fetch: suspend (from: Long) -> NSAndroidClient.ReadResponse<List<T>>,
+    next: (response: NSAndroidClient.ReadResponse<List<T>>) -> Long?,
+    process: suspend (from: Long, response: NSAndroidClient.ReadResponse<List<T>>) -> Boolean
+) = coroutineScope {
+    val pages = Channel<Pair<Long, NSAndroidClient.ReadResponse<List<T>>>>(prefetch)
+    val producer = launch {
+        var cursor: Long? = from
+        while (cursor != null) {
+            val response = fetch(cursor)
+            pages.send(cursor to response)
+            cursor = next(response)
+        }
+        pages.close()
+    }
+    for ((cursor, response) in pages)
+        if (!process(cursor, response)) break
+    producer.cancel()
+}
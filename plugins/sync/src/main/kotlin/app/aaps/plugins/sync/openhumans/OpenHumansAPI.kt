@@ -17,8 +17,10 @@ import okhttp3.Request
 import okhttp3.RequestBody
 import okhttp3.Response
 import okio.BufferedSink
+import okio.source
 import org.json.JSONArray
 import org.json.JSONObject
+import java.io.File
 import java.io.IOException
 import java.text.SimpleDateFormat
 import java.util.Date
@@ -102,16 +104,19 @@ class OpenHumansAPI @Inject constructor(
         )
     }
 
-    suspend fun uploadFile(url: String, content: ByteArray) {
+    /**
+     * Uploads [file] streamed from disk
+     */
+    suspend fun uploadFile(url: String, file: File) {
         val request = Request.Builder()
             .url(url)
             .put(object : RequestBody() {
                 override fun contentType(): MediaType? = null
 
-                override fun contentLength(): Long = content.size.toLong()
+                override fun contentLength(): Long = file.length()
 
                 override fun writeTo(sink: BufferedSink) {
-                    sink.write(content)
+                    file.source().use { sink.writeAll(it) }
                 }
             })
             .build()
@@ -0,0 +1,258 @@
+package app.aaps.plugins.sync.openhumans
+
+import app.aaps.core.data.model.HasIDs
+import app.aaps.core.data.model.NE
+import app.aaps.core.data.model.data.Block
+import app.aaps.core.interfaces.db.PersistenceLayer
+import org.json.JSONArray
+import org.json.JSONObject
+import java.io.File
+import java.security.DigestOutputStream
+import java.security.MessageDigest
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import javax.inject.Inject
+
+/**
+ * Writes pages of database entries into zip files of the Open Humans upload.
+ *
+ * Tables are read page by page with a keyset cursor, every page is written to its own zip file
+ * with one JSON array per table, so only one page is held in memory regardless of history size.
+ */
+class OpenHumansExporter @Inject constructor(
+    private val persistenceLayer: PersistenceLayer
+) {
+
+    /**
+     * @param tags tags of tables written into the zip
+     * @param md5 MD5 of the zip
+     */
+    class Zip(val tags: List<String>, val md5: String)
+
+    private class Table<T>(val tag: String, val entries: (NE) -> List<T>, val block: JSONObject.(entry: T) -> Unit) {
+
+        fun write(page: NE, zos: ZipOutputStream): Boolean {
+            val list = entries(page)
+            if (list.isEmpty()) return false
+            zos.putNextEntry(ZipEntry("$tag.json"))
+            val writer = zos.bufferedWriter()
+            writer.write("[")
+            list.forEachIndexed { index, entry ->
+                if (index > 0) writer.write(",")
+                writer.write(JSONObject().apply { block(entry) }.toString())
+            }
+            writer.write("]")
+            writer.flush()
+            zos.closeEntry()
+            return true
+        }
+    }
+
+    private fun <T : HasIDs> dbTable(tag: String, entries: (NE) -> List<T>, block: JSONObject.(entry: T) -> Unit) =
+        Table(tag, entries) {
+            put("structureVersion", 2)
+            put("id", it.id)
+            put("version", it.version)
+            put("dateCreated", it.dateCreated)
+            put("isValid", it)
+            put("referenceId", it.referenceId)
+            put("pumpType", it.ids.pumpType)
+            put("pumpSerialHash", it.ids.pumpSerial?.sha256())
+            put("pumpId", it.ids.pumpId)
+            put("startId", it.ids.startId)
+            put("endId", it.ids.endId)
+            block(it)
+        }
+
+    private val tables = tables()
+
+    /**
+     * @return page of entries created in (since, until] following [cursor] or null if there are no more entries
+     */
+    fun nextPage(since: Long, until: Long, cursor: NE.Cursor, pageSize: Int = PAGE_SIZE): NE? =
+        persistenceLayer.collectNewEntriesSince(since, until, pageSize, cursor).takeIf { page -> tables.any { it.entries(page).isNotEmpty() } }
+
+    /**
+     * Writes [files] followed by tables of [page] into zip [target]
+     */
+    fun writeZip(target: File, files: Map<String, ByteArray>, page: NE): Zip {
+        val md5 = MessageDigest.getInstance("MD5")
+        val tags = mutableListOf<String>()
+        ZipOutputStream(DigestOutputStream(target.outputStream().buffered(), md5)).use { zos ->
+            files.forEach { (name, bytes) ->
+                zos.putNextEntry(ZipEntry(name))
+                zos.write(bytes)
+                zos.closeEntry()
+            }
+            tables.forEach { if (it.write(page, zos)) tags.add(it.tag) }
+        }
+        return Zip(tags, md5.digest().toHexString())
+    }
+
+    // APSResults, APSResultLinks, MultiwaveBolusLinks, PreferenceChanges and VersionChanges are not available in NE
+    private fun tables(): List<Table<*>> = listOf(
+        dbTable("BolusCalculatorResults", NE::bolusCalculatorResults) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("targetBGLow", it.targetBGLow)
+            put("targetBGHigh", it.targetBGHigh)
+            put("isf", it.isf)
+            put("ic", it.ic)
+            put("bolusIOB", it.bolusIOB)
+            put("wasBolusIOBUsed", it.wasBolusIOBUsed)
+            put("basalIOB", it.basalIOB)
+            put("wasBasalIOBUsed", it.wasBasalIOBUsed)
+            put("glucoseValue", it.glucoseValue)
+            put("wasGlucoseUsed", it.wasGlucoseUsed)
+            put("glucoseDifference", it.glucoseDifference)
+            put("glucoseInsulin", it.glucoseInsulin)
+            put("glucoseTrend", it.glucoseTrend)
+            put("wasTrendUsed", it.wasTrendUsed)
+            put("trendInsulin", it.trendInsulin)
+            put("cob", it.cob)
+            put("wasCOBUsed", it.wasCOBUsed)
+            put("cobInsulin", it.cobInsulin)
+            put("carbs", it.carbs)
+            put("wereCarbsUsed", it.wereCarbsUsed)
+            put("carbsInsulin", it.carbsInsulin)
+            put("otherCorrection", it.otherCorrection)
+            put("wasSuperbolusUsed", it.wasSuperbolusUsed)
+            put("superbolusInsulin", it.superbolusInsulin)
+            put("wasTempTargetUsed", it.wasTempTargetUsed)
+            put("totalInsulin", it.totalInsulin)
+            put("percentageCorrection", it.percentageCorrection)
+        },
+        dbTable("Boluses", NE::boluses) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("amount", it.amount)
+            put("type", it.type.toString())
+            put("isBasalInsulin", it.isBasalInsulin)
+            put("insulinEndTime", it.icfg?.insulinEndTime)
+            put("peak", it.icfg?.peak)
+        },
+        dbTable("Carbs", NE::carbs) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("duration", it.duration)
+            put("amount", it.amount)
+        },
+        dbTable("EffectiveProfileSwitches", NE::effectiveProfileSwitches) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("basalBlocks", it.basalBlocks.serialize())
+            put("isfBlocks", it.isfBlocks.serialize())
+            put("icBlocks", it.icBlocks.serialize())
+            put("icBlocks", it.icBlocks.serialize())
+            put("targetBlocks", it.targetBlocks)
+            put("glucoseUnit", it.glucoseUnit.toString())
+            put("originalTimeshift", it.originalTimeshift)
+            put("originalPercentage", it.originalPercentage)
+            put("originalDuration", it.originalDuration)
+            put("originalEnd", it.originalEnd)
+            put("insulinEndTime", it.iCfg.insulinEndTime)
+            put("insulinEndTime", it.iCfg.peak)
+        },
+        dbTable("ExtendedBoluses", NE::extendedBoluses) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("duration", it.duration)
+            put("amount", it.amount)
+            put("isEmulatingTempBasal", it.isEmulatingTempBasal)
+        },
+        dbTable("GlucoseValues", NE::glucoseValues) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("raw", it.raw)
+            put("value", it.value)
+            put("trendArrow", it.trendArrow.toString())
+            put("noise", it.noise)
+            put("sourceSensor", it.sourceSensor.toString())
+        },
+        dbTable("OfflineEvents", NE::offlineEvents) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("reason", it.reason.toString())
+            put("duration", it.duration)
+        },
+        dbTable("ProfileSwitches", NE::profileSwitches) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("basalBlocks", it.basalBlocks.serialize())
+            put("isfBlocks", it.basalBlocks.serialize())
+            put("icBlocks", it.icBlocks.serialize())
+            put("basalBlocks", it.basalBlocks.serialize())
+            put("glucoseUnit", it.glucoseUnit.toString())
+            put("timeshift", it.timeshift)
+            put("percentage", it.percentage)
+            put("duration", it.duration)
+            put("insulinEndTime", it.iCfg.insulinEndTime)
+            put("peak", it.iCfg.peak)
+        },
+        dbTable("TemporaryBasals", NE::temporaryBasals) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("type", it.type.toString())
+            put("isAbsolute", it.isAbsolute)
+            put("rate", it.rate)
+            put("duration", it.duration)
+        },
+        dbTable("TemporaryTargets", NE::temporaryTarget) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("reason", it.reason.toString())
+            put("highTarget", it.highTarget)
+            put("lowTarget", it.lowTarget)
+            put("duration", it.duration)
+        },
+        dbTable("TherapyEvents", NE::therapyEvents) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("type", it.type.toString())
+            put("glucose", it.glucose)
+            put("glucoseType", it.glucoseType?.toString())
+            put("glucoseUnit", it.glucoseUnit.toString())
+        },
+        dbTable("TotalDailyDoses", NE::totalDailyDoses) {
+            put("timestamp", it.timestamp)
+            put("utcOffset", it.utcOffset)
+            put("basalAmount", it.basalAmount)
+            put("bolusAmount", it.bolusAmount)
+            put("totalAmount", it.totalAmount)
+            put("carbs", it.carbs)
+        }
+    )
+
+    private fun String.sha256(): String {
+        val messageDigest = MessageDigest.getInstance("SHA-256")
+        messageDigest.update(toByteArray())
+        return messageDigest.digest().toHexString()
+    }
+
+    private fun List<Block>.serialize(): JSONArray {
+        val jsonArray = JSONArray()
+        forEach {
+            val jsonObject = JSONObject()
+            jsonObject.put("duration", it.duration)
+            jsonObject.put("amount", it.amount)
+            jsonArray.put(jsonObject)
+        }
+        return jsonArray
+    }
+
+    companion object {
+
+        const val PAGE_SIZE = 1000
+
+        private val HEX_DIGITS = "0123456789ABCDEF".toCharArray()
+
+        private fun ByteArray.toHexString(): String {
+            val stringBuilder = StringBuilder(size * 2)
+            forEach {
+                stringBuilder.append(HEX_DIGITS[(it.toInt() shr 4) and 0x0F])
+                stringBuilder.append(HEX_DIGITS[it.toInt() and 0x0F])
+            }
+            return stringBuilder.toString()
+        }
+    }
+}
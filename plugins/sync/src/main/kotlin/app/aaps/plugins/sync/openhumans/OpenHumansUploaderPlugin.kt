@@ -21,10 +21,8 @@ import androidx.work.NetworkType
 import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.PeriodicWorkRequestBuilder
 import androidx.work.WorkManager
-import app.aaps.core.data.model.HasIDs
-import app.aaps.core.data.model.data.Block
+import app.aaps.core.data.model.NE
 import app.aaps.core.data.plugin.PluginType
-import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.plugin.PluginBaseWithPreferences
 import app.aaps.core.interfaces.plugin.PluginDescription
@@ -48,17 +46,13 @@ import io.reactivex.rxjava3.kotlin.plusAssign
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.withContext
-import org.json.JSONArray
 import org.json.JSONObject
-import java.io.ByteArrayOutputStream
-import java.security.MessageDigest
+import java.io.File
 import java.text.SimpleDateFormat
 import java.util.Locale
 import java.util.TimeZone
 import java.util.UUID
 import java.util.concurrent.TimeUnit
-import java.util.zip.ZipEntry
-import java.util.zip.ZipOutputStream
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -68,8 +62,8 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
     aapsLogger: AAPSLogger,
     preferences: Preferences,
     private val context: Context,
-    private val persistenceLayer: PersistenceLayer,
     private val openHumansAPI: OpenHumansAPI,
+    private val openHumansExporter: OpenHumansExporter,
     stateDelegate: OHStateDelegate,
     counterDelegate: OHCounterDelegate,
     appIdDelegate: OHAppIDDelegate,
@@ -137,61 +131,11 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         }
     }
 
-    private fun String.sha256(): String {
-        val messageDigest = MessageDigest.getInstance("SHA-256")
-        messageDigest.update(toByteArray())
-        return messageDigest.digest().toHexString()
-    }
-
-    private fun <T : HasIDs> ZipOutputStream.writeDBEntryFile(name: String, list: List<T>, block: JSONObject.(entry: T) -> Unit) = writeJSONArrayFile(name, list) {
-        put("structureVersion", 2)
-        put("id", it.id)
-        put("version", it.version)
-        put("dateCreated", it.dateCreated)
-        put("isValid", it)
-        put("referenceId", it.referenceId)
-        put("pumpType", it.ids.pumpType)
-        put("pumpSerialHash", it.ids.pumpSerial?.sha256())
-        put("pumpId", it.ids.pumpId)
-        put("startId", it.ids.startId)
-        put("endId", it.ids.endId)
-        block(it)
-    }
-
-    private fun <T> ZipOutputStream.writeJSONArrayFile(name: String, list: List<T>, block: JSONObject.(entry: T) -> Unit) {
-        val jsonArray = JSONArray()
-        list.forEach { entry ->
-            val jsonObject = JSONObject()
-            jsonObject.block(entry)
-            jsonArray.put(jsonObject)
-        }
-        writeFile(name, jsonArray.toString().toByteArray())
-    }
-
-    private fun ZipOutputStream.writeFile(name: String, bytes: ByteArray) {
-        putNextEntry(ZipEntry(name))
-        write(bytes)
-        closeEntry()
-    }
-
-    private fun List<Block>.serialize(): JSONArray {
-        val jsonArray = JSONArray()
-        forEach {
-            val jsonObject = JSONObject()
-            jsonObject.put("duration", it.duration)
-            jsonObject.put("amount", it.amount)
-            jsonArray.put(jsonObject)
-        }
-        return jsonArray
-    }
-
     internal suspend fun uploadData() {
         try {
             withContext(Dispatchers.Default) {
                 val timestamp = System.currentTimeMillis()
-                val offset = openHumansState!!.uploadOffset
-                var page = 0
-                while (uploadDataPaged(offset, timestamp, page++));
+                uploadEntries(openHumansState!!.uploadOffset, timestamp)
                 withContext(Dispatchers.Main) {
                     openHumansState = openHumansState!!.copy(uploadOffset = timestamp)
                 }
@@ -205,35 +149,52 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         }
     }
 
-    private suspend fun uploadDataPaged(since: Long, until: Long, page: Int): Boolean {
-        val data = persistenceLayer
-            .collectNewEntriesSince(since, until, 1000, 1000 * page)
-//            .let { data -> data.copy(preferencesChanges = data.preferencesChanges.filter { it.key.isAllowedKey() }) }
-        val hasData = with(data) {
-//            apsResults.isNotEmpty() ||
-//                apsResultLinks.isNotEmpty() ||
-            bolusCalculatorResults.isNotEmpty() ||
-                boluses.isNotEmpty() ||
-                carbs.isNotEmpty() ||
-                effectiveProfileSwitches.isNotEmpty() ||
-                extendedBoluses.isNotEmpty() ||
-                glucoseValues.isNotEmpty() ||
-//                multiwaveBolusLinks.isNotEmpty() ||
-                offlineEvents.isNotEmpty() ||
-//                preferencesChanges.isNotEmpty() ||
-                profileSwitches.isNotEmpty() ||
-                temporaryBasals.isNotEmpty() ||
-                temporaryTarget.isNotEmpty() ||
-                therapyEvents.isNotEmpty() ||
-                totalDailyDoses.isNotEmpty() //||
-//                versionChanges.isNotEmpty()
+    /**
+     * Uploads entries created in (since, until] in one zip per page, zip is written to cache directory and uploaded from there
+     */
+    private suspend fun uploadEntries(since: Long, until: Long) {
+        val directory = File(context.cacheDir, UPLOAD_DIRECTORY).apply {
+            deleteRecursively()
+            mkdirs()
         }
-        if (!hasData) return false
+        try {
+            var cursor = NE.Cursor()
+            while (true) {
+                val page = openHumansExporter.nextPage(since, until, cursor) ?: break
+                uploadPage(page, until, File(directory, "upload.zip"))
+                cursor = page.next(cursor)
+            }
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    private suspend fun uploadPage(page: NE, until: Long, zipFile: File) {
+        val uploadNumber = this.uploadCounter++
+        val uploadDate = System.currentTimeMillis()
+        val infoFiles = infoFiles(uploadNumber, uploadDate, until)
+        val zip = openHumansExporter.writeZip(zipFile, infoFiles, page)
+        val tags = infoFiles.keys.map { it.removeSuffix(".json") } + zip.tags
 
-        val baos = ByteArrayOutputStream()
-        val zos = ZipOutputStream(baos)
-        val tags = mutableListOf<String>()
+        val fileName = "upload-num$uploadNumber-ver2-date${FILE_NAME_DATE_FORMAT.format(uploadDate)}-appid${appId.toString().replace("-", "")}.zip"
 
+        val metaData = OpenHumansAPI.FileMetadata(
+            tags = tags,
+            description = "AAPS Database Upload",
+            md5 = zip.md5,
+            creationDate = uploadDate
+        )
+
+        refreshAccessTokenIfNeeded()
+
+        val preparedUpload = openHumansAPI.prepareFileUpload(openHumansState!!.accessToken, fileName, metaData)
+        openHumansAPI.uploadFile(preparedUpload.uploadURL, zipFile)
+        openHumansAPI.completeFileUpload(openHumansState!!.accessToken, preparedUpload.fileId)
+        zipFile.delete()
+    }
+
+    private fun infoFiles(uploadNumber: Long, uploadDate: Long, until: Long): Map<String, ByteArray> {
+        val files = LinkedHashMap<String, ByteArray>()
         val applicationInfo = JSONObject()
         //TODO: Move build configuration to core module
         /*applicationInfo.put("versionName", BuildConfig.VERSION_NAME)
@@ -243,8 +204,7 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         applicationInfo.put("hasGitInfo", hasGitInfo)
         applicationInfo.put("customRemote", customRemote)*/
         applicationInfo.put("applicationId", appId.toString())
-        zos.writeFile("ApplicationInfo.json", applicationInfo.toString().toByteArray())
-        tags.add("ApplicationInfo")
+        files["ApplicationInfo.json"] = applicationInfo.toString().toByteArray()
 
         val deviceInfo = JSONObject()
         deviceInfo.put("brand", android.os.Build.BRAND)
@@ -252,8 +212,7 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         deviceInfo.put("manufacturer", android.os.Build.MANUFACTURER)
         deviceInfo.put("model", android.os.Build.MODEL)
         deviceInfo.put("product", android.os.Build.PRODUCT)
-        zos.writeFile("DeviceInfo.json", deviceInfo.toString().toByteArray())
-        tags.add("DeviceInfo")
+        files["DeviceInfo.json"] = deviceInfo.toString().toByteArray()
 
         val displayMetrics = DisplayMetrics()
         @Suppress("DEPRECATION")
@@ -267,302 +226,15 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         displayInfo.put("scaledDensity", displayMetrics.scaledDensity)
         displayInfo.put("xdpi", displayMetrics.xdpi)
         displayInfo.put("ydpi", displayMetrics.ydpi)
-        zos.writeFile("DisplayInfo.json", displayInfo.toString().toByteArray())
-        tags.add("DisplayInfo")
+        files["DisplayInfo.json"] = displayInfo.toString().toByteArray()
 
-        val uploadNumber = this.uploadCounter++
-        val uploadDate = System.currentTimeMillis()
         val uploadInfo = JSONObject()
         uploadInfo.put("fileVersion", 2)
         uploadInfo.put("counter", uploadNumber)
         uploadInfo.put("timestamp", until)
         uploadInfo.put("utcOffset", TimeZone.getDefault().getOffset(uploadDate))
-        zos.writeFile("UploadInfo.json", uploadInfo.toString().toByteArray())
-        tags.add("UploadInfo")
-
-        /*
-                if (data.apsResults.isNotEmpty()) {
-                    zos.writeDBEntryFile("APSResults.json", data.apsResults) {
-                        put("timestamp", it.timestamp)
-                        put("utcOffset", it.utcOffset)
-                        put("algorithm", it.algorithm.toString())
-                        put("glucoseStatus", JSONObject(it.glucoseStatusJson))
-                        put("currentTemp", JSONObject(it.currentTempJson))
-                        put("iobData", JSONObject(it.iobDataJson))
-                        put("profile", JSONObject(it.profileJson))
-                        put("autosensData", JSONObject(it.autosensDataJson ?: ""))
-                        put("mealData", JSONObject(it.mealDataJson))
-                        put("isMicroBolusAllowed", it.isMicroBolusAllowed)
-                        put("result", JSONObject(it.resultJson))
-                    }
-                    tags.add("APSResults")
-                }
-
-                if (data.apsResultLinks.isNotEmpty()) {
-                    zos.writeDBEntryFile("APSResultLinks.json", data.apsResultLinks) {
-                        put("apsResultId", it.apsResultId)
-                        put("smbId", it.smbId)
-                        put("tbrId", it.tbrId)
-                    }
-                    tags.add("APSResultLinks")
-                }
-        */
-
-        if (data.bolusCalculatorResults.isNotEmpty()) {
-            zos.writeDBEntryFile("BolusCalculatorResults.json", data.bolusCalculatorResults) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("targetBGLow", it.targetBGLow)
-                put("targetBGHigh", it.targetBGHigh)
-                put("isf", it.isf)
-                put("ic", it.ic)
-                put("bolusIOB", it.bolusIOB)
-                put("wasBolusIOBUsed", it.wasBolusIOBUsed)
-                put("basalIOB", it.basalIOB)
-                put("wasBasalIOBUsed", it.wasBasalIOBUsed)
-                put("glucoseValue", it.glucoseValue)
-                put("wasGlucoseUsed", it.wasGlucoseUsed)
-                put("glucoseDifference", it.glucoseDifference)
-                put("glucoseInsulin", it.glucoseInsulin)
-                put("glucoseTrend", it.glucoseTrend)
-                put("wasTrendUsed", it.wasTrendUsed)
-                put("trendInsulin", it.trendInsulin)
-                put("cob", it.cob)
-                put("wasCOBUsed", it.wasCOBUsed)
-                put("cobInsulin", it.cobInsulin)
-                put("carbs", it.carbs)
-                put("wereCarbsUsed", it.wereCarbsUsed)
-                put("carbsInsulin", it.carbsInsulin)
-                put("otherCorrection", it.otherCorrection)
-                put("wasSuperbolusUsed", it.wasSuperbolusUsed)
-                put("superbolusInsulin", it.superbolusInsulin)
-                put("wasTempTargetUsed", it.wasTempTargetUsed)
-                put("totalInsulin", it.totalInsulin)
-                put("percentageCorrection", it.percentageCorrection)
-            }
-            tags.add("BolusCalculatorResults")
-        }
-
-        if (data.boluses.isNotEmpty()) {
-            zos.writeDBEntryFile("Boluses.json", data.boluses) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("amount", it.amount)
-                put("type", it.type.toString())
-                put("isBasalInsulin", it.isBasalInsulin)
-                put("insulinEndTime", it.icfg?.insulinEndTime)
-                put("peak", it.icfg?.peak)
-            }
-            tags.add("Boluses")
-        }
-
-        if (data.carbs.isNotEmpty()) {
-            zos.writeDBEntryFile("Carbs.json", data.carbs) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("duration", it.duration)
-                put("amount", it.amount)
-            }
-            tags.add("Carbs")
-        }
-
-        if (data.effectiveProfileSwitches.isNotEmpty()) {
-            zos.writeDBEntryFile("EffectiveProfileSwitches.json", data.effectiveProfileSwitches) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("basalBlocks", it.basalBlocks.serialize())
-                put("isfBlocks", it.isfBlocks.serialize())
-                put("icBlocks", it.icBlocks.serialize())
-                put("icBlocks", it.icBlocks.serialize())
-                val targetBlocks = JSONArray()
-                it.targetBlocks.forEach { block ->
-                    val jsonObject = JSONObject()
-                    jsonObject.put("duration", block.duration)
-                    jsonObject.put("lowTarget", block.lowTarget)
-                    jsonObject.put("highTarget", block.highTarget)
-                    targetBlocks.put(jsonObject)
-                }
-                put("targetBlocks", it.targetBlocks)
-                put("glucoseUnit", it.glucoseUnit.toString())
-                put("originalTimeshift", it.originalTimeshift)
-                put("originalPercentage", it.originalPercentage)
-                put("originalDuration", it.originalDuration)
-                put("originalEnd", it.originalEnd)
-                put("insulinEndTime", it.iCfg.insulinEndTime)
-                put("insulinEndTime", it.iCfg.peak)
-            }
-            tags.add("EffectiveProfileSwitches")
-        }
-
-        if (data.extendedBoluses.isNotEmpty()) {
-            zos.writeDBEntryFile("ExtendedBoluses.json", data.extendedBoluses) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("duration", it.duration)
-                put("amount", it.amount)
-                put("isEmulatingTempBasal", it.isEmulatingTempBasal)
-            }
-            tags.add("ExtendedBoluses")
-        }
-
-        if (data.glucoseValues.isNotEmpty()) {
-            zos.writeDBEntryFile("GlucoseValues.json", data.glucoseValues) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("raw", it.raw)
-                put("value", it.value)
-                put("trendArrow", it.trendArrow.toString())
-                put("noise", it.noise)
-                put("sourceSensor", it.sourceSensor.toString())
-            }
-            tags.add("GlucoseValues")
-        }
-
-        /*
-                if (data.multiwaveBolusLinks.isNotEmpty()) {
-                    zos.writeDBEntryFile("MultiwaveBolusLinks.json", data.multiwaveBolusLinks) {
-                        put("bolusId", it.bolusId)
-                        put("extendedBolusId", it.extendedBolusId)
-                    }
-                    tags.add("MultiwaveBolusLinks")
-                }
-        */
-
-        if (data.offlineEvents.isNotEmpty()) {
-            zos.writeDBEntryFile("OfflineEvents.json", data.offlineEvents) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("reason", it.reason.toString())
-                put("duration", it.duration)
-            }
-            tags.add("OfflineEvents")
-        }
-
-        /*
-                if (data.preferencesChanges.isNotEmpty()) {
-                    zos.writeJSONArrayFile("PreferenceChanges.json", data.preferencesChanges) {
-                        put("structureVersion", 2)
-                        put("id", it.id)
-                        put("timestamp", it.timestamp)
-                        put("utcOffset", it.utcOffset)
-                        put("structureVersion", 2)
-                        put("key", it.key)
-                        put("value", it.value)
-                    }
-                    tags.add("PreferenceChanges")
-                }
-        */
-
-        if (data.profileSwitches.isNotEmpty()) {
-            zos.writeDBEntryFile("ProfileSwitches.json", data.profileSwitches) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("basalBlocks", it.basalBlocks.serialize())
-                put("isfBlocks", it.basalBlocks.serialize())
-                put("icBlocks", it.icBlocks.serialize())
-                put("basalBlocks", it.basalBlocks.serialize())
-                val targetBlocks = JSONArray()
-                it.targetBlocks.forEach { block ->
-                    val jsonObject = JSONObject()
-                    jsonObject.put("duration", block.duration)
-                    jsonObject.put("lowTarget", block.lowTarget)
-                    jsonObject.put("highTarget", block.highTarget)
-                    targetBlocks.put(jsonObject)
-                }
-                put("glucoseUnit", it.glucoseUnit.toString())
-                put("timeshift", it.timeshift)
-                put("percentage", it.percentage)
-                put("duration", it.duration)
-                put("insulinEndTime", it.iCfg.insulinEndTime)
-                put("peak", it.iCfg.peak)
-            }
-            tags.add("ProfileSwitches")
-        }
-
-        if (data.temporaryBasals.isNotEmpty()) {
-            zos.writeDBEntryFile("TemporaryBasals.json", data.temporaryBasals) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("type", it.type.toString())
-                put("isAbsolute", it.isAbsolute)
-                put("rate", it.rate)
-                put("duration", it.duration)
-            }
-            tags.add("TemporaryBasals")
-        }
-
-        if (data.temporaryTarget.isNotEmpty()) {
-            zos.writeDBEntryFile("TemporaryTargets.json", data.temporaryTarget) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("reason", it.reason.toString())
-                put("highTarget", it.highTarget)
-                put("lowTarget", it.lowTarget)
-                put("duration", it.duration)
-            }
-            tags.add("TemporaryTargets")
-        }
-
-        if (data.therapyEvents.isNotEmpty()) {
-            zos.writeDBEntryFile("TherapyEvents.json", data.therapyEvents) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("type", it.type.toString())
-                put("glucose", it.glucose)
-                put("glucoseType", it.glucoseType?.toString())
-                put("glucoseUnit", it.glucoseUnit.toString())
-            }
-            tags.add("TherapyEvents")
-        }
-
-        if (data.totalDailyDoses.isNotEmpty()) {
-            zos.writeDBEntryFile("TotalDailyDoses.json", data.totalDailyDoses) {
-                put("timestamp", it.timestamp)
-                put("utcOffset", it.utcOffset)
-                put("basalAmount", it.basalAmount)
-                put("bolusAmount", it.bolusAmount)
-                put("totalAmount", it.totalAmount)
-                put("carbs", it.carbs)
-            }
-            tags.add("TotalDailyDoses")
-        }
-
-        /*
-                if (data.versionChanges.isNotEmpty()) {
-                    zos.writeJSONArrayFile("VersionChanges.json", data.versionChanges) {
-                        put("structureVersion", 2)
-                        put("id", it.id)
-                        put("timestamp", it.timestamp)
-                        put("utcOffset", it.utcOffset)
-                        put("versionCode", it.versionCode)
-                        put("versionName", it.versionName)
-                        val customGitRemote = it.gitRemote != "https://github.com/nightscout/AndroidAPS.git"
-                        put("customGitRemote", customGitRemote)
-                        put("commitHash", if (customGitRemote) null else it.commitHash)
-                    }
-                    tags.add("VersionChanges")
-                }
-        */
-
-        zos.close()
-        val bytes = baos.toByteArray()
-
-        val fileName = "upload-num$uploadNumber-ver2-date${FILE_NAME_DATE_FORMAT.format(uploadDate)}-appid${appId.toString().replace("-", "")}.zip"
-
-        val metaData = OpenHumansAPI.FileMetadata(
-            tags = tags,
-            description = "AAPS Database Upload",
-            md5 = MessageDigest.getInstance("MD5").digest(bytes).toHexString(),
-            creationDate = uploadDate
-        )
-
-        refreshAccessTokenIfNeeded()
-
-        val preparedUpload = openHumansAPI.prepareFileUpload(openHumansState!!.accessToken, fileName, metaData)
-        openHumansAPI.uploadFile(preparedUpload.uploadURL, bytes)
-        openHumansAPI.completeFileUpload(openHumansState!!.accessToken, preparedUpload.fileId)
-
-        return true
+        files["UploadInfo.json"] = uploadInfo.toString().toByteArray()
+        return files
     }
 
     private fun cancelWorker() = WorkManager.getInstance(context).cancelUniqueWork(WORK_NAME_PERIODIC)
@@ -588,15 +260,6 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
         scheduleWorker(replace = true, delay = true)
     }
 
-    private fun ByteArray.toHexString(): String {
-        val stringBuilder = StringBuilder()
-        map { it.toInt() }.forEach {
-            stringBuilder.append(HEX_DIGITS[(it shr 4) and 0x0F])
-            stringBuilder.append(HEX_DIGITS[it and 0x0F])
-        }
-        return stringBuilder.toString()
-    }
-
     private suspend fun refreshAccessTokenIfNeeded() {
         val state = openHumansState!!
         if (state.expiresAt <= System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)) {
@@ -677,10 +340,9 @@ class OpenHumansUploaderPlugin @Inject internal constructor(
 
     private companion object {
 
-        val HEX_DIGITS = "0123456789ABCDEF".toCharArray()
-
         @Suppress("PrivatePropertyName")
         private val FILE_NAME_DATE_FORMAT = SimpleDateFormat("yyyyMMdd'T'HHmmss", Locale.US).apply { timeZone = TimeZone.getTimeZone("UTC") }
+        const val UPLOAD_DIRECTORY = "openhumans"
         const val WORK_NAME_PERIODIC = "Open Humans Periodic"
         const val WORK_NAME_MANUAL = "Open Humans Manual"
         const val NOTIFICATION_CHANNEL_WORKER = "OpenHumansWorker"
@@ -15,10 +15,17 @@ class InfoInterceptor(val aapsLogger: AAPSLogger) : Interceptor {
         val request = chain.request()
         request.body?.let {
             aapsLogger.debug(LTag.TIDEPOOL, "Interceptor Body size: " + it.contentLength())
+            // streamed upload chunks have unknown length and would be buffered here as a whole
+            if (it.contentLength() !in 0..MAX_LOGGED_BODY) return chain.proceed(request)
             val requestBuffer = Buffer()
             it.writeTo(requestBuffer)
             aapsLogger.debug(LTag.TIDEPOOL, "Interceptor Body: " + requestBuffer.readUtf8())
         }
         return chain.proceed(request)
     }
+
+    companion object {
+
+        private const val MAX_LOGGED_BODY = 4096L
+    }
 }
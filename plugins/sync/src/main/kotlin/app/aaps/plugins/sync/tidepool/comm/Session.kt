@@ -13,8 +13,6 @@ class Session(
     internal var token: String? = null
     internal var authReply: AuthReplyMessage? = null
     internal var datasetReply: DatasetReplyMessage? = null
-    internal var start: Long = 0
-    internal var end: Long = 0
 
     @Volatile
     internal var iterations: Int = 0
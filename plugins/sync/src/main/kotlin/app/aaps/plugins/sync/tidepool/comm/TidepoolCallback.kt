@@ -14,7 +14,9 @@ internal class TidepoolCallback<T>(
     private val session: Session,
     private val name: String,
     private val onSuccess: () -> Unit,
-    private val onFail: () -> Unit
+    private val onFail: () -> Unit,
+    /** Called instead of [onFail] when server asks to slow down, with Retry-After in ms if provided */
+    private val onThrottled: ((retryAfter: Long?) -> Unit)? = null
 ) :
     Callback<T> {
 
@@ -24,6 +26,9 @@ internal class TidepoolCallback<T>(
             session.populateBody(response.body())
             session.populateHeaders(response.headers())
             onSuccess()
+        } else if (onThrottled != null && (response.code() == 429 || response.code() == 503)) {
+            aapsLogger.debug(LTag.TIDEPOOL, "$name throttled: " + response.code())
+            onThrottled(response.headers()["Retry-After"]?.toLongOrNull()?.let { it * 1000 })
         } else {
             val msg = name + " was not successful: " + response.code() + " " + response.message()
             aapsLogger.debug(LTag.TIDEPOOL, msg)
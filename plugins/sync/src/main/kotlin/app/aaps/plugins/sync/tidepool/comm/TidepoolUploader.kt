@@ -2,7 +2,6 @@ package app.aaps.plugins.sync.tidepool.comm
 
 import android.content.Context
 import android.os.PowerManager
-import android.os.SystemClock
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.configuration.Config
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -22,12 +21,14 @@ import app.aaps.plugins.sync.tidepool.messages.AuthRequestMessage
 import app.aaps.plugins.sync.tidepool.messages.DatasetReplyMessage
 import app.aaps.plugins.sync.tidepool.messages.OpenDatasetRequestMessage
 import app.aaps.plugins.sync.tidepool.messages.UploadReplyMessage
-import okhttp3.MediaType.Companion.toMediaTypeOrNull
 import okhttp3.OkHttpClient
-import okhttp3.RequestBody.Companion.toRequestBody
 import okhttp3.logging.HttpLoggingInterceptor
+import org.jetbrains.annotations.VisibleForTesting
 import retrofit2.Retrofit
 import retrofit2.converter.gson.GsonConverterFactory
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -54,8 +55,20 @@ class TidepoolUploader @Inject constructor(
         private const val PRODUCTION_BASE_URL = "https://api.tidepool.org"
         internal const val VERSION = "0.0.1"
         const val PUMP_TYPE = "Tandem"
+        private val MIN_RETRY_DELAY = T.secs(1).msecs()
+        private val MAX_RETRY_DELAY = T.mins(5).msecs()
     }
 
+    private class Prefetched(val start: Long, val chunk: Future<UploadChunk.Chunk?>)
+
+    private val scheduler = Executors.newSingleThreadScheduledExecutor()
+    private var prefetched: Prefetched? = null
+    private var uploadInProgress = false
+    private var retryDelay = 0L
+
+    /** Replaces Tidepool server in tests */
+    @VisibleForTesting internal var baseUrl: String? = null
+
     private var retrofit: Retrofit? = null
 
     private var session: Session? = null
@@ -80,7 +93,7 @@ class TidepoolUploader @Inject constructor(
                 }.build()
 
             retrofit = Retrofit.Builder()
-                .baseUrl(if (preferences.get(BooleanKey.TidepoolUseTestServers)) INTEGRATION_BASE_URL else PRODUCTION_BASE_URL)
+                .baseUrl(baseUrl ?: if (preferences.get(BooleanKey.TidepoolUseTestServers)) INTEGRATION_BASE_URL else PRODUCTION_BASE_URL)
                 .client(client)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build()
@@ -206,6 +219,13 @@ class TidepoolUploader @Inject constructor(
         }
     }
 
+    /**
+     * Uploads data since last end chunk by chunk.
+     *
+     * Chunks are sent one after another as last end may move only in order. While one is being uploaded
+     * the following one is read from database, so at most two chunks are held in memory. Next upload starts
+     * when the previous is confirmed, throttled requests are repeated after Retry-After or backoff.
+     */
     @Synchronized
     fun doUpload() {
         if (!isAllowed) {
@@ -213,52 +233,89 @@ class TidepoolUploader @Inject constructor(
             aapsLogger.debug(LTag.TIDEPOOL, "Blocked by connectivity settings")
             return
         }
-        session.let { session ->
-            if (session == null) {
-                aapsLogger.error("Session is null, cannot proceed")
+        val session = session
+        if (session == null) {
+            aapsLogger.error("Session is null, cannot proceed")
+            releaseWakeLock()
+            return
+        }
+        if (uploadInProgress) {
+            aapsLogger.debug(LTag.TIDEPOOL, "Upload already in progress")
+            return
+        }
+        extendWakeLock(60000)
+        session.iterations++
+        var start = uploadChunk.getLastEnd()
+        while (true) {
+            val chunk = takePrefetched(start) ?: uploadChunk.getChunk(start, uploadChunk.endOfChunk(start))
+            if (chunk == null) {
+                aapsLogger.debug(LTag.TIDEPOOL, "Nothing to upload")
                 releaseWakeLock()
                 return
             }
-            extendWakeLock(60000)
-            session.iterations++
-            val chunk = uploadChunk.getNext(session)
-            when {
-                chunk == null -> {
-                    aapsLogger.error("Upload chunk is null, cannot proceed")
-                    releaseWakeLock()
-                }
+            if (chunk.records.isNotEmpty()) {
+                upload(session, chunk)
+                return
+            }
+            aapsLogger.debug(LTag.TIDEPOOL, "Empty dataset - marking as succeeded")
+            rxBus.send(EventTidepoolStatus(("No data to upload")))
+            uploadChunk.setLastEnd(chunk.end)
+            start = chunk.end
+        }
+    }
 
-                chunk.length == 2 -> {
-                    aapsLogger.debug(LTag.TIDEPOOL, "Empty dataset - marking as succeeded")
-                    rxBus.send(EventTidepoolStatus(("No data to upload")))
+    private fun upload(session: Session, chunk: UploadChunk.Chunk) {
+        val service = session.service
+        val token = session.token
+        val uploadId = session.datasetReply?.getUploadId()
+        if (service == null || token == null || uploadId == null) {
+            aapsLogger.error("Session is not open, cannot proceed")
+            releaseWakeLock()
+            return
+        }
+        uploadInProgress = true
+        rxBus.send(EventTidepoolStatus(("Uploading")))
+        prefetch(chunk.end)
+        service.doUpload(token, uploadId, chunk.requestBody()).enqueue(TidepoolCallback<UploadReplyMessage>(
+            aapsLogger, rxBus, session, "Data Upload",
+            {
+                synchronized(this) {
+                    uploadChunk.setLastEnd(chunk.end)
+                    retryDelay = 0
+                    uploadInProgress = false
+                    connectionStatus = ConnectionStatus.CONNECTED
+                    rxBus.send(EventTidepoolStatus(("Upload completed OK")))
                     releaseWakeLock()
                     uploadNext()
                 }
-
-                else -> {
-                    val body = chunk.toRequestBody("application/json".toMediaTypeOrNull())
-
-                    rxBus.send(EventTidepoolStatus(("Uploading")))
-                    if (session.service != null && session.token != null && session.datasetReply != null) {
-                        val call = session.service.doUpload(session.token!!, session.datasetReply!!.getUploadId()!!, body)
-                        call.enqueue(TidepoolCallback<UploadReplyMessage>(
-                            aapsLogger, rxBus, session, "Data Upload",
-                            {
-                                uploadChunk.setLastEnd(session.end)
-                                connectionStatus = ConnectionStatus.CONNECTED
-                                rxBus.send(EventTidepoolStatus(("Upload completed OK")))
-                                releaseWakeLock()
-                                uploadNext()
-                            }, {
-                                connectionStatus = ConnectionStatus.DISCONNECTED
-                                rxBus.send(EventTidepoolStatus(("Upload FAILED")))
-                                releaseWakeLock()
-                            })
-                        )
-                    }
+            }, {
+                synchronized(this) {
+                    dropPrefetched()
+                    uploadInProgress = false
+                    connectionStatus = ConnectionStatus.DISCONNECTED
+                    rxBus.send(EventTidepoolStatus(("Upload FAILED")))
+                    releaseWakeLock()
                 }
-            }
+            }, { retryAfter ->
+                synchronized(this) {
+                    retryDelay = retryAfter ?: (retryDelay * 2).coerceIn(MIN_RETRY_DELAY, MAX_RETRY_DELAY)
+                    rxBus.send(EventTidepoolStatus("Upload throttled, retry in ${retryDelay / 1000} s"))
+                    scheduler.schedule({ retry(session, chunk) }, retryDelay, TimeUnit.MILLISECONDS)
+                }
+            })
+        )
+    }
+
+    @Synchronized
+    private fun retry(session: Session, chunk: UploadChunk.Chunk) {
+        if (!isAllowed || session !== this.session) {
+            dropPrefetched()
+            uploadInProgress = false
+            releaseWakeLock()
+            return
         }
+        extendWakeLock(60000)
+        upload(session, chunk)
     }
 
     private fun uploadNext() {
@@ -268,12 +325,38 @@ class TidepoolUploader @Inject constructor(
             return
         }
         if (uploadChunk.getLastEnd() < dateUtil.now() - T.hours(3).msecs() - T.mins(1).msecs()) {
-            SystemClock.sleep(3000)
             aapsLogger.debug(LTag.TIDEPOOL, "Restarting doUpload. Last: " + dateUtil.dateAndTimeString(uploadChunk.getLastEnd()))
             doUpload()
+        } else dropPrefetched()
+    }
+
+    // reads the chunk following the one being uploaded in background
+    private fun prefetch(start: Long) {
+        if (prefetched?.start == start) return
+        dropPrefetched()
+        prefetched = Prefetched(start, scheduler.submit<UploadChunk.Chunk?> { uploadChunk.getChunk(start, uploadChunk.endOfChunk(start)) })
+    }
+
+    private fun takePrefetched(start: Long): UploadChunk.Chunk? {
+        val prefetched = prefetched ?: return null
+        this.prefetched = null
+        if (prefetched.start != start) {
+            prefetched.chunk.cancel(false)
+            return null
+        }
+        return try {
+            prefetched.chunk.get()
+        } catch (e: Exception) {
+            aapsLogger.error(LTag.TIDEPOOL, "Reading of chunk failed", e)
+            null
         }
     }
 
+    private fun dropPrefetched() {
+        prefetched?.chunk?.cancel(false)
+        prefetched = null
+    }
+
     fun deleteDataSet() {
         if (session?.datasetReply?.id != null) {
             extendWakeLock(60000)
@@ -22,6 +22,12 @@ import app.aaps.plugins.sync.tidepool.elements.WizardElement
 import app.aaps.plugins.sync.tidepool.events.EventTidepoolStatus
 import app.aaps.plugins.sync.tidepool.keys.TidepoolLongKey
 import app.aaps.plugins.sync.tidepool.utils.GsonInstance
+import okhttp3.MediaType
+import okhttp3.MediaType.Companion.toMediaTypeOrNull
+import okhttp3.RequestBody
+import okio.BufferedSink
+import java.io.StringWriter
+import java.io.Writer
 import java.util.LinkedList
 import javax.inject.Inject
 import javax.inject.Singleton
@@ -42,34 +48,51 @@ class UploadChunk @Inject constructor(
 
     private val maxUploadSize = T.days(7).msecs() // don't change this
 
-    fun getNext(session: Session?): String? {
-        session ?: return null
-
-        session.start = getLastEnd()
-        // do not upload last 3h, TBR can be still running
-        session.end = min(session.start + maxUploadSize, dateUtil.now() - T.hours(3).msecs())
+    /**
+     * Records of one upload written as JSON array straight into the request body
+     */
+    class Chunk(val start: Long, val end: Long, val records: List<BaseElement>) {
+
+        fun writeJson(out: Writer) {
+            val gson = GsonInstance.defaultGsonInstance()
+            val writer = gson.newJsonWriter(out)
+            writer.beginArray()
+            records.forEach { gson.toJson(it, it.javaClass, writer) }
+            writer.endArray()
+            writer.flush()
+        }
 
-        val result = get(session.start, session.end)
-        if (result.length < 3) {
-            aapsLogger.debug(LTag.TIDEPOOL, "No records in this time period, setting start to best end time")
-            setLastEnd(session.end)
+        // not one-shot, records are written again if OkHttp retries the request
+        fun requestBody(): RequestBody = object : RequestBody() {
+            override fun contentType(): MediaType? = JSON
+            override fun writeTo(sink: BufferedSink) = writeJson(sink.outputStream().writer())
         }
-        return result
     }
 
-    fun get(start: Long, end: Long): String {
+    /**
+     * End of chunk starting at [start], last 3h are not uploaded as TBR can be still running
+     */
+    fun endOfChunk(start: Long): Long = min(start + maxUploadSize, dateUtil.now() - T.hours(3).msecs())
+
+    fun get(start: Long, end: Long): String =
+        getChunk(start, end)?.let { chunk -> StringWriter().also { chunk.writeJson(it) }.toString() } ?: ""
+
+    /**
+     * @return records of (start, end] or null if range is not valid
+     */
+    fun getChunk(start: Long, end: Long): Chunk? {
 
         aapsLogger.debug(LTag.TIDEPOOL, "Syncing data between: " + dateUtil.dateAndTimeString(start) + " -> " + dateUtil.dateAndTimeString(end))
         if (end <= start) {
             aapsLogger.debug(LTag.TIDEPOOL, "End is <= start: " + dateUtil.dateAndTimeString(start) + " " + dateUtil.dateAndTimeString(end))
-            return ""
+            return null
         }
         if (end - start > maxUploadSize) {
             aapsLogger.debug(LTag.TIDEPOOL, "More than max range - rejecting")
-            return ""
+            return null
         }
 
-        val records = LinkedList<BaseElement>()
+        val records = ArrayList<BaseElement>()
 
         records.addAll(getTreatments(start, end))
         records.addAll(getBloodTests(start, end))
@@ -77,7 +100,7 @@ class UploadChunk @Inject constructor(
         records.addAll(getBgReadings(start, end))
         records.addAll(getProfiles(start, end))
 
-        return GsonInstance.defaultGsonInstance().toJson(records)
+        return Chunk(start, end, records)
     }
 
     fun getLastEnd(): Long {
@@ -165,4 +188,8 @@ class UploadChunk @Inject constructor(
         return selection
     }
 
-}
\ No newline at end of file
+    companion object {
+
+        private val JSON = "application/json".toMediaTypeOrNull()
+    }
+}
@@ -131,7 +131,11 @@ class WearPlugin @Inject constructor(
                 //  AAPSClient want pass data to AAPS
                 //  AAPSClient2 want pass data to AAPS or AAPSClient 1
                 // ) do it here as the data is prepared
-                if (config.AAPSCLIENT && preferences.get(BooleanKey.WearBroadcastData)) broadcastData(it.payload)
+                if (config.AAPSCLIENT && preferences.get(BooleanKey.WearBroadcastData)) {
+                    val payload = it.payload
+                    if (payload is EventData.SyncDelta) payload.items.forEach { item -> broadcastData(item) }
+                    else broadcastData(payload)
+                }
             }
     }
 
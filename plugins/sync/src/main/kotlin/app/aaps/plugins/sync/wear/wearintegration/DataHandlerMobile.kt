@@ -139,6 +139,9 @@ class DataHandlerMobile @Inject constructor(
     private val disposable = CompositeDisposable()
     private var handler = Handler(HandlerThread(this::class.simpleName + "Handler").also { it.start() }.looper)
 
+    private val deltaSync = WearDeltaSync()
+    // set when watch answered WearDeltaSync.probe(), until then legacy events are sent
+    @Volatile private var watchSupportsDelta = false
     private var lastBolusWizard: BolusWizard? = null
     private var lastQuickWizardEntry: QuickWizardEntry? = null
 
@@ -171,8 +174,20 @@ class DataHandlerMobile @Inject constructor(
             .observeOn(aapsSchedulers.io)
             .subscribe({
                            aapsLogger.debug(LTag.WEAR, "ResendData received from ${it.sourceNodeId}")
+                           // watch may have been replaced by older build, support is confirmed again by probe
+                           watchSupportsDelta = false
+                           deltaSync.requestFull()
                            resendData(it.from)
                        }, fabricPrivacy::logException)
+        disposable += rxBus
+            .toObservable(EventData.ActionSyncGap::class.java)
+            .observeOn(aapsSchedulers.io)
+            .subscribe({
+                           aapsLogger.debug(LTag.WEAR, "SyncGap after ${it.lastSequence} received from ${it.sourceNodeId}")
+                           watchSupportsDelta = true
+                           deltaSync.requestFull()
+                           resendData("SyncGap")
+                       }, fabricPrivacy::logException)
         disposable += rxBus
             .toObservable(EventData.ActionPumpStatus::class.java)
             .observeOn(aapsSchedulers.io)
@@ -1185,49 +1200,55 @@ class DataHandlerMobile @Inject constructor(
             validTo = validTo()
         )
 
+    /**
+     * Sends state to the watch. Only items changed since last message are sent, see [WearDeltaSync].
+     * Watch not supporting deltas receives every item as separate event.
+     */
     fun resendData(from: String) {
         aapsLogger.debug(LTag.WEAR, "Sending data to wear from $from")
+        val items = ArrayList<EventData>()
         // SingleBg
-        iobCobCalculator.ads.lastBg()?.let { rxBus.send(EventMobileToWear(getSingleBG(it))) }
+        iobCobCalculator.ads.lastBg()?.let { items.add(getSingleBG(it)) }
         // Preferences
-        rxBus.send(
-            EventMobileToWear(
-                EventData.Preferences(
-                    timeStamp = System.currentTimeMillis(),
-                    wearControl = preferences.get(BooleanKey.WearControl),
-                    unitsMgdl = profileFunction.getUnits() == GlucoseUnit.MGDL,
-                    bolusPercentage = preferences.get(IntKey.OverviewBolusPercentage),
-                    maxCarbs = preferences.get(IntKey.SafetyMaxCarbs),
-                    maxBolus = preferences.get(DoubleKey.SafetyMaxBolus),
-                    insulinButtonIncrement1 = preferences.get(DoubleKey.OverviewInsulinButtonIncrement1),
-                    insulinButtonIncrement2 = preferences.get(DoubleKey.OverviewInsulinButtonIncrement2),
-                    carbsButtonIncrement1 = preferences.get(IntKey.OverviewCarbsButtonIncrement1),
-                    carbsButtonIncrement2 = preferences.get(IntKey.OverviewCarbsButtonIncrement2)
-                )
+        items.add(
+            EventData.Preferences(
+                timeStamp = System.currentTimeMillis(),
+                wearControl = preferences.get(BooleanKey.WearControl),
+                unitsMgdl = profileFunction.getUnits() == GlucoseUnit.MGDL,
+                bolusPercentage = preferences.get(IntKey.OverviewBolusPercentage),
+                maxCarbs = preferences.get(IntKey.SafetyMaxCarbs),
+                maxBolus = preferences.get(DoubleKey.SafetyMaxBolus),
+                insulinButtonIncrement1 = preferences.get(DoubleKey.OverviewInsulinButtonIncrement1),
+                insulinButtonIncrement2 = preferences.get(DoubleKey.OverviewInsulinButtonIncrement2),
+                carbsButtonIncrement1 = preferences.get(IntKey.OverviewCarbsButtonIncrement1),
+                carbsButtonIncrement2 = preferences.get(IntKey.OverviewCarbsButtonIncrement2)
             )
         )
         // QuickWizard
-        rxBus.send(
-            EventMobileToWear(
-                EventData.QuickWizard(
-                    ArrayList(quickWizard.list().filter { it.forDevice(QuickWizardEntry.DEVICE_WATCH) }.map { it.toWear() })
-                )
-            )
-        )
+        items.add(EventData.QuickWizard(ArrayList(quickWizard.list().filter { it.forDevice(QuickWizardEntry.DEVICE_WATCH) }.map { it.toWear() })))
         //UserAction
-        sendUserActions()
+        items.add(userActions())
         // GraphData
         iobCobCalculator.ads.getBucketedDataTableCopy()?.let { bucketedData ->
-            rxBus.send(EventMobileToWear(EventData.GraphData(ArrayList(bucketedData.map { getSingleBG(it) }))))
+            items.add(EventData.GraphData(ArrayList(bucketedData.map { getSingleBG(it) })))
         }
         // Treatments
-        sendTreatments()
+        treatments()?.let { items.add(it) }
         // Status
         // Keep status last. Wear start refreshing after status received
-        sendStatus(from)
+        items.add(status(from))
+        sendSync(items)
         handleAvailableLoopStates()
     }
 
+    private fun sendSync(items: List<EventData>) {
+        if (watchSupportsDelta) deltaSync.prepare(items)?.let { rxBus.send(EventMobileToWear(it)) }
+        else {
+            items.forEach { rxBus.send(EventMobileToWear(it)) }
+            rxBus.send(EventMobileToWear(WearDeltaSync.probe()))
+        }
+    }
+
     private fun AutomationEvent.toWear(now: Long): EventData.UserAction.UserActionEntry =
         EventData.UserAction.UserActionEntry(
             timeStamp = now,
@@ -1236,25 +1257,23 @@ class DataHandlerMobile @Inject constructor(
         )
 
     fun sendUserActions() {
+        sendSync(listOf(userActions()))
+    }
+
+    private fun userActions(): EventData.UserAction {
         val now = System.currentTimeMillis()
         val events = automation.userEvents()
-        rxBus.send(
-            EventMobileToWear(
-                EventData.UserAction(
-                    ArrayList(events.filter { it.isEnabled && it.canRun() }.map { it.toWear(now) })
-                )
-            )
-        )
+        return EventData.UserAction(ArrayList(events.filter { it.isEnabled && it.canRun() }.map { it.toWear(now) }))
     }
 
-    private fun sendTreatments() {
+    private fun treatments(): EventData.TreatmentData? {
         val now = System.currentTimeMillis()
         val startTimeWindow = now - (60000 * 60 * 5.5).toLong()
         val basals = arrayListOf<EventData.TreatmentData.Basal>()
         val temps = arrayListOf<EventData.TreatmentData.TempBasal>()
         val boluses = arrayListOf<EventData.TreatmentData.Treatment>()
         val predictions = arrayListOf<EventData.SingleBg>()
-        val profile = profileFunction.getProfile() ?: return
+        val profile = profileFunction.getProfile() ?: return null
         var beginBasalSegmentTime = startTimeWindow
         var runningTime = startTimeWindow
         var beginBasalValue = profile.getBasal(beginBasalSegmentTime)
@@ -1272,7 +1291,7 @@ class DataHandlerMobile @Inject constructor(
             }
         }
         while (runningTime < now) {
-            val profileTB = profileFunction.getProfile(runningTime) ?: return
+            val profileTB = profileFunction.getProfile(runningTime) ?: return null
             //basal rate
             endBasalValue = profile.getBasal(runningTime)
             if (endBasalValue != beginBasalValue) {
@@ -1370,7 +1389,7 @@ class DataHandlerMobile @Inject constructor(
                         )
                     )
         }
-        rxBus.send(EventMobileToWear(EventData.TreatmentData(temps, basals, boluses, predictions)))
+        return EventData.TreatmentData(temps, basals, boluses, predictions)
     }
 
     private fun predictionColor(context: Context?, data: GV): Int {
@@ -1384,7 +1403,7 @@ class DataHandlerMobile @Inject constructor(
         }
     }
 
-    private fun sendStatus(caller: String) {
+    private fun status(caller: String): EventData.Status {
         val profile = profileFunction.getProfile()
         var status = rh.gs(app.aaps.core.ui.R.string.noprofile)
         var iobSum = ""
@@ -1451,28 +1470,24 @@ class DataHandlerMobile @Inject constructor(
             else                   -> 0
         }
 
-        rxBus.send(
-            EventMobileToWear(
-                EventData.Status(
-                    dataset = 0,
-                    externalStatus = status,
-                    iobSum = iobSum,
-                    iobDetail = iobDetail,
-                    cob = cobString,
-                    currentBasal = currentBasal,
-                    battery = phoneBattery.toString(),
-                    rigBattery = rigBattery,
-                    openApsStatus = openApsStatus,
-                    bgi = bgiString,
-                    batteryLevel = if (phoneBattery >= 30) 1 else 0,
-                    patientName = patientName,
-                    tempTarget = tempTarget,
-                    tempTargetLevel = tempTargetLevel,
-                    reservoirString = reservoirString,
-                    reservoir = reservoir,
-                    reservoirLevel = reservoirLevel
-                )
-            )
+        return EventData.Status(
+            dataset = 0,
+            externalStatus = status,
+            iobSum = iobSum,
+            iobDetail = iobDetail,
+            cob = cobString,
+            currentBasal = currentBasal,
+            battery = phoneBattery.toString(),
+            rigBattery = rigBattery,
+            openApsStatus = openApsStatus,
+            bgi = bgiString,
+            batteryLevel = if (phoneBattery >= 30) 1 else 0,
+            patientName = patientName,
+            tempTarget = tempTarget,
+            tempTargetLevel = tempTargetLevel,
+            reservoirString = reservoirString,
+            reservoir = reservoir,
+            reservoirLevel = reservoirLevel
         )
     }
 
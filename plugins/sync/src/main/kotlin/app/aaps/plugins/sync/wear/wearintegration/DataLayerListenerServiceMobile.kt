@@ -73,7 +73,9 @@ class DataLayerListenerServiceMobile : WearableListenerService() {
 
     private val rxPath get() = getString(app.aaps.core.interfaces.R.string.path_rx_bridge)
     private val rxWatchfacePath get() = getString(app.aaps.core.interfaces.R.string.path_rx_data_bridge)
+    private val rxSyncPath get() = getString(app.aaps.core.interfaces.R.string.path_rx_sync_bridge)
 
+    @ExperimentalSerializationApi
     override fun onCreate() {
         AndroidInjection.inject(this)
         super.onCreate()
@@ -82,7 +84,11 @@ class DataLayerListenerServiceMobile : WearableListenerService() {
         disposable += rxBus
             .toObservable(EventMobileToWear::class.java)
             .observeOn(aapsSchedulers.io)
-            .subscribe { sendMessage(rxPath, it.payload.serialize()) }
+            .subscribe {
+                // state sync is binary, everything else stays json
+                if (it.payload is EventData.SyncDelta) sendMessage(rxSyncPath, it.payload.serializeByte())
+                else sendMessage(rxPath, it.payload.serialize())
+            }
         disposable += rxBus
             .toObservable(EventMobileToWearWatchface::class.java)
             .observeOn(aapsSchedulers.io)
@@ -0,0 +1,86 @@
+package app.aaps.plugins.sync.wear.wearintegration
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import kotlinx.serialization.ExperimentalSerializationApi
+
+/**
+ * Remembers state last sent to the watch and wraps only changed items into [EventData.SyncDelta].
+ *
+ * Items are compared on their ProtoBuf form, graph data are reduced to new or changed BG points.
+ * Full snapshot is produced for the first message and after [requestFull] (watch reported a gap).
+ * [EventData.Status] is always sent last, watch redraws after status is received.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+class WearDeltaSync {
+
+    private var sequence = 0L
+    private var fullRequired = true
+    private val lastSent = HashMap<String, ByteArray>()
+    private var lastGraph = HashMap<Long, ByteArray>()
+
+    @Synchronized
+    fun requestFull() {
+        fullRequired = true
+    }
+
+    /**
+     * @return message to send or null if nothing changed
+     */
+    @Synchronized
+    fun prepare(items: List<EventData>): EventData.SyncDelta? {
+        val full = fullRequired
+        if (full) lastSent.clear()
+        val changed = ArrayList<EventData>(items.size)
+        var statusChanged = false
+        for (item in items) {
+            if (item is EventData.GraphData) {
+                graphDelta(item, full)?.let { changed.add(it) }
+                continue
+            }
+            val key = key(item)
+            val bytes = comparable(item).serializeByte()
+            val isChanged = lastSent[key]?.contentEquals(bytes) != true
+            lastSent[key] = bytes
+            if (item is EventData.Status) statusChanged = statusChanged || isChanged
+            else if (isChanged) changed.add(item)
+        }
+        if (changed.isEmpty() && !statusChanged) return null
+        // Keep status last. Wear start refreshing after status received
+        changed.addAll(items.filterIsInstance<EventData.Status>())
+        fullRequired = false
+        return EventData.SyncDelta(++sequence, full, changed)
+    }
+
+    private fun graphDelta(graphData: EventData.GraphData, full: Boolean): EventData.GraphData? {
+        val current = HashMap<Long, ByteArray>(graphData.entries.size * 2)
+        val changed = ArrayList<EventData.SingleBg>()
+        for (bg in graphData.entries) {
+            val bytes = bg.serializeByte()
+            current[bg.timeStamp] = bytes
+            if (full || lastGraph[bg.timeStamp]?.contentEquals(bytes) != true) changed.add(bg)
+        }
+        // points leaving the graph window are dropped on watch side
+        lastGraph = current
+        return if (changed.isEmpty()) null else EventData.GraphData(changed)
+    }
+
+    private fun key(item: EventData): String =
+        if (item is EventData.EventDataSet) item.javaClass.simpleName + item.dataset else item.javaClass.simpleName
+
+    // values regenerated on every resend must not make item look changed
+    private fun comparable(item: EventData): EventData =
+        when (item) {
+            is EventData.Preferences -> item.copy(timeStamp = 0)
+            is EventData.UserAction  -> EventData.UserAction(ArrayList(item.entries.map { it.copy(timeStamp = 0) }))
+            else                     -> item
+        }
+
+    companion object {
+
+        /**
+         * Delta out of sequence, watch supporting deltas answers it with [EventData.ActionSyncGap].
+         * Older watch builds don't listen on sync path and ignore it.
+         */
+        fun probe(): EventData.SyncDelta = EventData.SyncDelta(sequence = 0, full = false, items = emptyList())
+    }
+}
@@ -1,5 +1,6 @@
 package app.aaps.plugins.sync.xdrip
 
+import app.aaps.core.data.model.HasIDs
 import app.aaps.core.data.time.T
 import app.aaps.core.interfaces.db.PersistenceLayer
 import app.aaps.core.interfaces.logging.AAPSLogger
@@ -78,6 +79,7 @@ class DataSyncSelectorXdripImpl @Inject constructor(
     override fun queueSize(): Long = queueCounter.size()
 
     private var running = false
+    private var progress = ""
     private val sync = Any()
 
     override suspend fun doUpload() {
@@ -110,6 +112,9 @@ class DataSyncSelectorXdripImpl @Inject constructor(
             //processChangedOfflineEvents()
             // not supported at the moment
             //processChangedProfileStore()
+            // treatments of all tables are coalesced into shared bundles
+            sendEntries(force = true, progress)
+            sendTreatments(force = true, progress)
         }
         running = false
     }
@@ -134,116 +139,102 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         else preferences.remove(XdripLongKey.DeviceStatusLastSyncedId)
     }
 
-    private fun confirmLastGlucoseValueIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.GlucoseValueLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting GlucoseValue data sync from $lastSynced")
-            preferences.put(XdripLongKey.GlucoseValueLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedGlucoseValues() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastGlucoseValueId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.GlucoseValueLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.GlucoseValueLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.gvsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementGlucoseValue(startId).blockingGet()?.let { gv ->
-                aapsLogger.info(LTag.XDRIP, "Loading GlucoseValue data Start: $startId ${gv.first} forID: ${gv.second.id} ")
-                if (!isOld(gv.first.timestamp))
-                    preparedEntries.add(DataSyncSelector.PairGlucoseValue(gv.first, gv.second.id))
-                sendEntries(force = false, progress)
-                confirmLastGlucoseValueIdIfGreater(gv.second.id)
-            } ?: break
-        }
-        sendEntries(force = true, progress)
-    }
-
-    private fun sendEntries(force: Boolean, progress: String) {
-        if (preparedEntries.isNotEmpty() && (preparedEntries.size >= 100 || force)) {
-            xdripPlugin.sendToXdrip("entries", preparedEntries.toList(), progress)
-            preparedEntries.clear()
-        }
-    }
-
-    private fun sendTreatments(force: Boolean, progress: String) {
-        if (preparedTreatments.isNotEmpty() && (preparedTreatments.size >= 100 || force)) {
-            xdripPlugin.sendToXdrip("treatments", preparedTreatments.toList(), progress)
-            preparedTreatments.clear()
-        }
-    }
-
-    private fun sendFoods(force: Boolean, progress: String) {
-        if (preparedFoods.isNotEmpty() && (preparedFoods.size >= 100 || force)) {
-            xdripPlugin.sendToXdrip("food", preparedFoods.toList(), progress)
-            preparedFoods.clear()
-        }
-    }
-
-    private fun confirmLastBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.BolusLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting Bolus data sync from $lastSynced")
-            preferences.put(XdripLongKey.BolusLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedBoluses() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastBolusId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.BolusLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.BolusLastSyncedId, 0)
-                startId = 0
+    private fun sendEntries(force: Boolean, progress: String) = send("entries", preparedEntries, force, progress)
+    private fun sendTreatments(force: Boolean, progress: String) = send("treatments", preparedTreatments, force, progress)
+    private fun sendFoods(force: Boolean, progress: String) = send("food", preparedFoods, force, progress)
+
+    // broadcasts full bundles, the rest only if forced
+    private fun send(collection: String, prepared: MutableList<DataSyncSelector.DataPair>, force: Boolean, progress: String) {
+        while (prepared.size >= BUNDLE_SIZE || force && prepared.isNotEmpty()) {
+            val bundle = prepared.take(BUNDLE_SIZE)
+            xdripPlugin.sendToXdrip(collection, bundle, progress)
+            prepared.subList(0, bundle.size).clear()
+        }
+    }
+
+    /**
+     * Reads records changed after last synced id stored in [key] [BATCH_SIZE] at a time
+     * and stores last synced id once per batch. Prepared records are broadcast in bundles of [BUNDLE_SIZE].
+     */
+    private fun <T : HasIDs> processChanged(
+        name: String,
+        key: XdripLongKey,
+        lastDbId: Long?,
+        setRemaining: (Long) -> Unit,
+        load: (id: Long, limit: Int) -> List<Pair<T, T>>,
+        prepared: MutableList<DataSyncSelector.DataPair>,
+        send: (force: Boolean, progress: String) -> Unit,
+        prepare: (value: T, id: Long) -> DataSyncSelector.DataPair?
+    ) {
+        val lastId = lastDbId ?: 0L
+        var startId = preferences.get(key)
+        if (startId > lastId) {
+            preferences.put(key, 0)
+            startId = 0
+        }
+        setRemaining(lastId - startId)
+        while (isEnabled && startId < lastId) {
+            val batch = load(startId, BATCH_SIZE)
+            if (batch.isEmpty()) break
+            val batchEnd = batch.last().second.id
+            aapsLogger.info(LTag.XDRIP, "Loading $name data Start: $startId ${batch.size} records up to ID: $batchEnd")
+            for ((value, changed) in batch) prepare(value, changed.id)?.let { prepared.add(it) }
+            progress = "$batchEnd/$lastId"
+            send(false, progress)
+            preferences.put(key, batchEnd)
+            startId = batchEnd
+            setRemaining(lastId - startId)
+            if (batch.size < BATCH_SIZE) break
+        }
+    }
+
+    private fun processChangedGlucoseValues() =
+        processChanged(
+            "GlucoseValue", XdripLongKey.GlucoseValueLastSyncedId, persistenceLayer.getLastGlucoseValueId(), { queueCounter.gvsRemaining = it },
+            persistenceLayer::getNextSyncElementsGlucoseValue, preparedEntries, ::sendEntries
+        ) { gv, id -> if (!isOld(gv.timestamp)) DataSyncSelector.PairGlucoseValue(gv, id) else null }
+
+    private fun processChangedBoluses() =
+        processChanged(
+            "Bolus", XdripLongKey.BolusLastSyncedId, persistenceLayer.getLastBolusId(), { queueCounter.bolusesRemaining = it },
+            persistenceLayer::getNextSyncElementsBolus, preparedTreatments, ::sendTreatments
+        ) { bolus, id -> if (!isOld(bolus.timestamp)) DataSyncSelector.PairBolus(bolus, id) else null }
+
+    private fun processChangedCarbs() =
+        processChanged(
+            "Carbs", XdripLongKey.CarbsLastSyncedId, persistenceLayer.getLastCarbsId(), { queueCounter.carbsRemaining = it },
+            persistenceLayer::getNextSyncElementsCarbs, preparedTreatments, ::sendTreatments
+        ) { carb, id -> if (!isOld(carb.timestamp)) DataSyncSelector.PairCarbs(carb, id) else null }
+
+    private fun processChangedTempTargets() =
+        processChanged(
+            "TemporaryTarget", XdripLongKey.TemporaryTargetLastSyncedId, persistenceLayer.getLastTemporaryTargetId(), { queueCounter.ttsRemaining = it },
+            persistenceLayer::getNextSyncElementsTemporaryTarget, preparedTreatments, ::sendTreatments
+        ) { tt, id -> if (!isOld(tt.timestamp)) DataSyncSelector.PairTemporaryTarget(tt, id) else null }
+
+    private fun processChangedTherapyEvents() =
+        processChanged(
+            "TherapyEvents", XdripLongKey.TherapyEventLastSyncedId, persistenceLayer.getLastTherapyEventId(), { queueCounter.tesRemaining = it },
+            persistenceLayer::getNextSyncElementsTherapyEvent, preparedTreatments, ::sendTreatments
+        ) { te, id -> if (!isOld(te.timestamp)) DataSyncSelector.PairTherapyEvent(te, id) else null }
+
+    private fun processChangedExtendedBoluses() =
+        processChanged(
+            "ExtendedBolus", XdripLongKey.ExtendedBolusLastSyncedId, persistenceLayer.getLastExtendedBolusId(), { queueCounter.ebsRemaining = it },
+            persistenceLayer::getNextSyncElementsExtendedBolus, preparedTreatments, ::sendTreatments
+        ) { eb, id ->
+            if (profileFunction.getProfile(eb.timestamp) != null && !isOld(eb.timestamp)) DataSyncSelector.PairExtendedBolus(eb, id)
+            else {
+                aapsLogger.info(LTag.XDRIP, "Ignoring ExtendedBolus. No profile: $id ")
+                null
             }
-            queueCounter.bolusesRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementBolus(startId).blockingGet()?.let { bolus ->
-                aapsLogger.info(LTag.XDRIP, "Loading Bolus data Start: $startId ${bolus.first} forID: ${bolus.second.id} ")
-                if (!isOld(bolus.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairBolus(bolus.first, bolus.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastBolusIdIfGreater(bolus.second.id)
-            } ?: break
         }
-        sendTreatments(force = true, progress)
-    }
 
-    private fun confirmLastCarbsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.CarbsLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting Carbs data sync from $lastSynced")
-            preferences.put(XdripLongKey.CarbsLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedCarbs() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastCarbsId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.CarbsLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.CarbsLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.carbsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementCarbs(startId).blockingGet()?.let { carb ->
-                aapsLogger.info(LTag.XDRIP, "Loading Carbs data Start: $startId ${carb.first} forID: ${carb.second.id} ")
-                if (!isOld(carb.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairCarbs(carb.first, carb.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastCarbsIdIfGreater(carb.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
+    private fun processChangedProfileSwitches() =
+        processChanged(
+            "ProfileSwitch", XdripLongKey.ProfileSwitchLastSyncedId, persistenceLayer.getLastProfileSwitchId(), { queueCounter.pssRemaining = it },
+            persistenceLayer::getNextSyncElementsProfileSwitch, preparedTreatments, ::sendTreatments
+        ) { ps, id -> if (!isOld(ps.timestamp)) DataSyncSelector.PairProfileSwitch(ps, id) else null }
 
     private fun confirmLastBolusCalculatorResultsIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.BolusCalculatorLastSyncedId)) {
@@ -275,36 +266,6 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendTreatments(force = true, progress)
     }
 
-    private fun confirmLastTempTargetsIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.TemporaryTargetLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting TemporaryTarget data sync from $lastSynced")
-            preferences.put(XdripLongKey.TemporaryTargetLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedTempTargets() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastTemporaryTargetId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.TemporaryTargetLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.TemporaryTargetLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.ttsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementTemporaryTarget(startId).blockingGet()?.let { tt ->
-                aapsLogger.info(LTag.XDRIP, "Loading TemporaryTarget data Start: $startId ${tt.first} forID: ${tt.second.id} ")
-                if (!isOld(tt.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairTemporaryTarget(tt.first, tt.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastTempTargetsIdIfGreater(tt.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
     private fun confirmLastFoodIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.FoodLastSyncedId)) {
             //aapsLogger.debug(LTag.XDRIP, "Setting Food data sync from $lastSynced")
@@ -334,36 +295,6 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendFoods(force = true, progress)
     }
 
-    private fun confirmLastTherapyEventIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.TherapyEventLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting TherapyEvents data sync from $lastSynced")
-            preferences.put(XdripLongKey.TherapyEventLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedTherapyEvents() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastTherapyEventId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.TherapyEventLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.TherapyEventLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.tesRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementTherapyEvent(startId).blockingGet()?.let { te ->
-                aapsLogger.info(LTag.XDRIP, "Loading TherapyEvents data Start: $startId ${te.first} forID: ${te.second.id} ")
-                if (!isOld(te.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairTherapyEvent(te.first, te.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastTherapyEventIdIfGreater(te.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
     private fun confirmLastDeviceStatusIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.DeviceStatusLastSyncedId)) {
             //aapsLogger.debug(LTag.XDRIP, "Setting DeviceStatus data sync from $lastSynced")
@@ -420,69 +351,6 @@ class DataSyncSelectorXdripImpl @Inject constructor(
         sendTreatments(force = true, progress)
     }
 
-    private fun confirmLastExtendedBolusIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.ExtendedBolusLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting ExtendedBolus data sync from $lastSynced")
-            preferences.put(XdripLongKey.ExtendedBolusLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedExtendedBoluses() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastExtendedBolusId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.ExtendedBolusLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.ExtendedBolusLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.ebsRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementExtendedBolus(startId).blockingGet()?.let { eb ->
-                aapsLogger.info(LTag.XDRIP, "Loading ExtendedBolus data Start: $startId ${eb.first} forID: ${eb.second.id} ")
-                val profile = profileFunction.getProfile(eb.first.timestamp)
-                if (profile != null && !isOld(eb.first.timestamp)) {
-                    preparedTreatments.add(DataSyncSelector.PairExtendedBolus(eb.first, eb.second.id))
-                    sendTreatments(force = false, progress)
-                } else
-                    aapsLogger.info(LTag.XDRIP, "Ignoring ExtendedBolus. No profile: ${eb.second.id} ")
-                confirmLastExtendedBolusIdIfGreater(eb.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
-    private fun confirmLastProfileSwitchIdIfGreater(lastSynced: Long) {
-        if (lastSynced > preferences.get(XdripLongKey.ProfileSwitchLastSyncedId)) {
-            //aapsLogger.debug(LTag.XDRIP, "Setting ProfileSwitch data sync from $lastSynced")
-            preferences.put(XdripLongKey.ProfileSwitchLastSyncedId, lastSynced)
-        }
-    }
-
-    private fun processChangedProfileSwitches() {
-        var progress: String
-        val lastDbId = persistenceLayer.getLastProfileSwitchId() ?: 0L
-        while (true) {
-            if (!isEnabled) return
-            var startId = preferences.get(XdripLongKey.ProfileSwitchLastSyncedId)
-            if (startId > lastDbId) {
-                preferences.put(XdripLongKey.ProfileSwitchLastSyncedId, 0)
-                startId = 0
-            }
-            queueCounter.pssRemaining = lastDbId - startId
-            progress = "$startId/$lastDbId"
-            persistenceLayer.getNextSyncElementProfileSwitch(startId).blockingGet()?.let { ps ->
-                aapsLogger.info(LTag.XDRIP, "Loading ProfileSwitch data Start: $startId ${ps.first} forID: ${ps.second.id} ")
-                if (!isOld(ps.first.timestamp))
-                    preparedTreatments.add(DataSyncSelector.PairProfileSwitch(ps.first, ps.second.id))
-                sendTreatments(force = false, progress)
-                confirmLastProfileSwitchIdIfGreater(ps.second.id)
-            } ?: break
-        }
-        sendTreatments(force = true, progress)
-    }
-
     private fun confirmLastEffectiveProfileSwitchIdIfGreater(lastSynced: Long) {
         if (lastSynced > preferences.get(XdripLongKey.EffectiveProfileSwitchLastSyncedId)) {
             //aapsLogger.debug(LTag.XDRIP, "Setting EffectiveProfileSwitch data sync from $lastSynced")
@@ -569,4 +437,13 @@ class DataSyncSelectorXdripImpl @Inject constructor(
             processChangedProfileStore()
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        /** Records read from database by one query */
+        const val BATCH_SIZE = 500
+
+        /** Records sent in one broadcast */
+        const val BUNDLE_SIZE = 100
+    }
+}
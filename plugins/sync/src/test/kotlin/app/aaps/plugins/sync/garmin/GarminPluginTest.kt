@@ -19,11 +19,12 @@ import com.google.common.truth.Truth
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.mockito.ArgumentCaptor
-import org.mockito.ArgumentMatchers.anyLong
 import org.mockito.Mock
 import org.mockito.Mockito.atMost
 import org.mockito.Mockito.mock
@@ -44,7 +45,9 @@ import java.time.Duration
 import java.time.Instant
 import java.time.ZoneId
 import java.time.temporal.ChronoUnit
-import java.util.concurrent.locks.Condition
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.ranges.LongProgression.Companion.fromClosedRange
 
 class GarminPluginTest : TestBaseWithProfile() {
@@ -165,12 +168,10 @@ class GarminPluginTest : TestBaseWithProfile() {
         val from = getGlucoseValuesFrom
         val lastTimestamp = clock.instant()
         val prev = createGlucoseValue(clock.instant())
-        gp.newValue = mock(Condition::class.java)
         `when`(loopHub.getGlucoseValues(from, true)).thenReturn(listOf(prev))
         gp.onNewBloodGlucose(EventNewBG(lastTimestamp.toEpochMilli()))
         assertArrayEquals(arrayOf(prev), gp.getGlucoseValues().toTypedArray())
 
-        verify(gp.newValue).signalAll()
         verify(loopHub).getGlucoseValues(from, true)
     }
 
@@ -198,13 +199,59 @@ class GarminPluginTest : TestBaseWithProfile() {
         }
         gp.onStop()
 
-        verify(loopHub, times(2)).getGlucoseValues(anyObject(), eq(true))
+        // second request without new glucose value is served from cache
+        verify(loopHub).getGlucoseValues(anyObject(), eq(true))
+        verify(loopHub).insulinOnboard
+        verify(loopHub).temporaryBasal
+        verify(loopHub).isConnected
+        verify(loopHub).glucoseUnit
+        verify(loopHub).lowGlucoseMark
+        verify(loopHub).highGlucoseMark
+    }
+
+    @Test
+    fun concurrentPollsShareCachedResponse() {
+        `when`(preferences.get(GarminStringKey.RequestKey)).thenReturn("")
+        `when`(preferences.get(GarminBooleanKey.LocalHttpServer)).thenReturn(true)
+        `when`(preferences.get(GarminIntKey.LocalHttpPort)).thenReturn(28894)
+        `when`(loopHub.getGlucoseValues(getGlucoseValuesFrom, true)).thenAnswer {
+            // database query takes some time
+            Thread.sleep(50)
+            (0L..25L).map { createGlucoseValue(clock.instant().minusSeconds(300L * (25L - it)), 100.0 + it) }
+        }
+        gp.setupHttpServer(Duration.ofSeconds(10))
+        val devices = 16
+        val polls = 50
+        val responses = ConcurrentHashMap.newKeySet<String>()
+        val failures = AtomicInteger()
+
+        (1..devices).map {
+            Thread {
+                repeat(polls) {
+                    val resp = URI("http://127.0.0.1:28894/get").toURL().openConnection() as HttpURLConnection
+                    if (resp.responseCode == 200) responses.add(resp.inputStream.reader().use { r -> r.readText() })
+                    else failures.incrementAndGet()
+                }
+            }.apply { start() }
+        }.forEach { it.join() }
+        gp.onStop()
+
+        assertEquals(0, failures.get())
+        assertEquals(1, responses.size)
+        verify(loopHub).getGlucoseValues(getGlucoseValuesFrom, true)
+        verify(loopHub).insulinOnboard
+        verify(loopHub).temporaryBasal
+        verify(loopHub).isConnected
+        verify(loopHub).glucoseUnit
+
+        // new glucose value is queried again
+        gp.onNewBloodGlucose(EventNewBG(clock.millis()))
+        gp.onGetBloodGlucose(createUri(emptyMap()))
+        verify(loopHub, times(2)).getGlucoseValues(getGlucoseValuesFrom, true)
         verify(loopHub, times(2)).insulinOnboard
         verify(loopHub, times(2)).temporaryBasal
         verify(loopHub, times(2)).isConnected
         verify(loopHub, times(2)).glucoseUnit
-        verify(loopHub, times(2)).lowGlucoseMark
-        verify(loopHub, times(2)).highGlucoseMark
     }
 
     @Test
@@ -323,7 +370,7 @@ class GarminPluginTest : TestBaseWithProfile() {
         )
         val hr = createHeartRate(99)
         val uri = createUri(hr)
-        val result = gp.onGetBloodGlucose(uri)
+        val result = gp.onGetBloodGlucose(uri).get()
         assertEquals(
             """{"encodedGlucose":"0A+6AQ==",""" +
                 """"remainingInsulin":3.14,"remainingBasalInsulin":2.71,""" +
@@ -360,8 +407,10 @@ class GarminPluginTest : TestBaseWithProfile() {
         val params = createHeartRate(99).toMutableMap()
         params["wait"] = 10
         val uri = createUri(params)
-        gp.newValue = mock(Condition::class.java)
-        val result = gp.onGetBloodGlucose(uri)
+        val pending = gp.onGetBloodGlucose(uri)
+        assertFalse(pending.isDone)
+        gp.onNewBloodGlucose(EventNewBG(clock.millis()))
+        val result = pending.get(10, TimeUnit.SECONDS)
         assertEquals(
             """{"encodedGlucose":"/wS6AQ==",""" +
                 """"remainingInsulin":3.14,"remainingBasalInsulin":0.0,""" +
@@ -369,7 +418,6 @@ class GarminPluginTest : TestBaseWithProfile() {
                 """"profile":"D","connected":true}""",
             result.toString()
         )
-        verify(gp.newValue).awaitNanos(anyLong())
         verify(loopHub, times(2)).getGlucoseValues(from, true)
         verify(loopHub).insulinOnboard
         verify(loopHub).temporaryBasal
@@ -385,6 +433,36 @@ class GarminPluginTest : TestBaseWithProfile() {
         )
     }
 
+    @Test
+    fun waitingPollsShareOneQuery() {
+        `when`(loopHub.getGlucoseValues(getGlucoseValuesFrom, true)).thenReturn(
+            listOf(createGlucoseValue(clock.instant().minusSeconds(330)))
+        )
+        val uri = createUri(mapOf("wait" to 10))
+        val pending = (1..3).map { gp.onGetBloodGlucose(uri) }
+        assertTrue(pending.none { it.isDone })
+
+        gp.onNewBloodGlucose(EventNewBG(clock.millis()))
+
+        val results = pending.map { it.get(10, TimeUnit.SECONDS) }
+        assertEquals(1, results.toSet().size)
+        // first request and one refresh for all waiting
+        verify(loopHub, times(2)).getGlucoseValues(getGlucoseValuesFrom, true)
+    }
+
+    @Test
+    fun waitingPollCompletesAfterTimeout() {
+        `when`(loopHub.getGlucoseValues(getGlucoseValuesFrom, true)).thenReturn(
+            listOf(createGlucoseValue(clock.instant().minusSeconds(330)))
+        )
+        val pending = gp.onGetBloodGlucose(createUri(mapOf("wait" to 1)))
+        assertFalse(pending.isDone)
+
+        assertTrue(pending.get(10, TimeUnit.SECONDS).isNotEmpty())
+        // nothing new, cached values are returned
+        verify(loopHub).getGlucoseValues(getGlucoseValuesFrom, true)
+    }
+
     @Test
     fun testOnPostCarbs() {
         val uri = createUri(mapOf("carbs" to "12"))
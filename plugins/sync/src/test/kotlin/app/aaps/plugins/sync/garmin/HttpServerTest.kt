@@ -2,15 +2,22 @@ package app.aaps.plugins.sync.garmin
 
 import app.aaps.shared.tests.TestBase
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import java.io.ByteArrayInputStream
 import java.io.InputStream
 import java.net.HttpURLConnection
+import java.net.Socket
 import java.net.SocketAddress
 import java.net.URI
 import java.nio.charset.Charset
 import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 
 internal class HttpServerTest: TestBase() {
 
@@ -96,4 +103,83 @@ internal class HttpServerTest: TestBase() {
             assertEquals(404, resp.responseCode)
         }
     }
+
+    @Test fun testIsComplete() {
+        assertFalse(HttpServer.isComplete("GET /foo HTTP/1.1\r\nHost: x\r\n".toByteArray()))
+        assertTrue(HttpServer.isComplete("GET /foo HTTP/1.1\r\nHost: x\r\n\r\n".toByteArray()))
+        assertFalse(HttpServer.isComplete("POST /foo HTTP/1.1\r\nContent-Length: 7\r\n\r\na=1".toByteArray()))
+        assertTrue(HttpServer.isComplete("POST /foo HTTP/1.1\r\nContent-Length: 7\r\n\r\na=1&b=2".toByteArray()))
+        // without length body ends with input
+        assertFalse(HttpServer.isComplete("POST /foo HTTP/1.1\r\n\r\na=1&b=2".toByteArray()))
+    }
+
+    @Test fun testAsyncEndpointDoesNotHoldWorker() {
+        val port = 28898
+        val next = CompletableFuture<Pair<Int, CharSequence>>()
+        val clients = Executors.newFixedThreadPool(8)
+        HttpServer(aapsLogger, port, 2).use { server ->
+            server.registerAsyncEndpoint("/wait") { _: SocketAddress, _: URI, _: String? -> next }
+            server.registerEndpoint("/foo") { _: SocketAddress, _: URI, _: String? -> HttpURLConnection.HTTP_OK to "test" }
+            assertTrue(server.awaitReady(Duration.ofSeconds(10)))
+            val waiting = (1..8).map {
+                CompletableFuture.supplyAsync({
+                    val resp = URI("http://127.0.0.1:$port/wait").toURL().openConnection() as HttpURLConnection
+                    resp.inputStream.reader().use { r -> r.readText() }
+                }, clients)
+            }
+            // more waiting requests than workers, others are still served
+            Thread.sleep(200)
+            val resp = URI("http://127.0.0.1:$port/foo").toURL().openConnection() as HttpURLConnection
+            assertEquals(200, resp.responseCode)
+            assertTrue(waiting.none { it.isDone })
+
+            next.complete(HttpURLConnection.HTTP_OK to "new")
+            assertEquals(listOf("new"), waiting.map { it.get(10, TimeUnit.SECONDS) }.distinct())
+        }
+        clients.shutdown()
+    }
+
+    @Test fun testConcurrentRequests() {
+        val port = 28896
+        val workers = ConcurrentHashMap.newKeySet<Thread>()
+        val handled = AtomicInteger()
+        val body = "{\"glucose\":100}"
+        HttpServer(aapsLogger, port, 4).use { server ->
+            server.registerEndpoint("/get") { _: SocketAddress, _: URI, _: String? ->
+                workers.add(Thread.currentThread())
+                handled.incrementAndGet()
+                Thread.sleep(2)
+                HttpURLConnection.HTTP_OK to body
+            }
+            assertTrue(server.awaitReady(Duration.ofSeconds(10)))
+            val clients = 24
+            val requests = 40
+            val failures = AtomicInteger()
+            (1..clients).map {
+                Thread {
+                    repeat(requests) {
+                        val resp = URI("http://127.0.0.1:$port/get").toURL().openConnection() as HttpURLConnection
+                        val content = resp.inputStream.reader().use { r -> r.readText() }
+                        if (resp.responseCode != 200 || content != body) failures.incrementAndGet()
+                    }
+                }.apply { start() }
+            }.forEach { it.join() }
+            assertEquals(0, failures.get())
+            assertEquals(clients * requests, handled.get())
+            assertTrue(workers.size <= 4)
+        }
+    }
+
+    @Test fun testRequest_Idle() {
+        val port = 28897
+        HttpServer(aapsLogger, port).use { server ->
+            server.registerEndpoint("/foo") { _: SocketAddress, _: URI, _: String? -> HttpURLConnection.HTTP_OK to "test" }
+            assertTrue(server.awaitReady(Duration.ofSeconds(10)))
+            // connection without request doesn't block others
+            Socket("127.0.0.1", port).use {
+                val resp = URI("http://127.0.0.1:$port/foo").toURL().openConnection() as HttpURLConnection
+                assertEquals(200, resp.responseCode)
+            }
+        }
+    }
 }
@@ -0,0 +1,225 @@
+package app.aaps.plugins.sync.nsclientV3.workers
+
+import android.content.Context
+import androidx.work.ListenableWorker
+import androidx.work.testing.TestListenableWorkerBuilder
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.configuration.Config
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.L
+import app.aaps.core.interfaces.nsclient.StoreDataForDb
+import app.aaps.core.interfaces.objects.Instantiator
+import app.aaps.core.interfaces.plugin.ActivePlugin
+import app.aaps.core.interfaces.profile.ProfileSource
+import app.aaps.core.interfaces.receivers.ReceiverStatusStore
+import app.aaps.core.interfaces.resources.ResourceHelper
+import app.aaps.core.interfaces.source.NSClientSource
+import app.aaps.core.interfaces.sync.NsClient
+import app.aaps.core.interfaces.ui.UiInteraction
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.interfaces.utils.fabric.FabricPrivacy
+import app.aaps.core.keys.interfaces.Preferences
+import app.aaps.core.nssdk.exceptions.UnsuccessfulNightscoutException
+import app.aaps.core.nssdk.interfaces.NSAndroidClient
+import app.aaps.core.nssdk.localmodel.entry.Direction
+import app.aaps.core.nssdk.localmodel.entry.NSSgvV3
+import app.aaps.core.nssdk.localmodel.entry.NsUnits
+import app.aaps.core.nssdk.remotemodel.LastModified
+import app.aaps.implementation.utils.DecimalFormatterImpl
+import app.aaps.plugins.sync.nsShared.NsIncomingDataProcessor
+import app.aaps.plugins.sync.nsclient.ReceiverDelegate
+import app.aaps.plugins.sync.nsclientV3.DataSyncSelectorV3
+import app.aaps.plugins.sync.nsclientV3.NSClientV3Plugin
+import app.aaps.plugins.sync.nsclientV3.keys.NsclientStringKey
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import dagger.android.AndroidInjector
+import dagger.android.HasAndroidInjector
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.Dispatcher
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import okhttp3.mockwebserver.RecordedRequest
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.argumentCaptor
+import org.mockito.kotlin.atLeastOnce
+import org.mockito.kotlin.doSuspendableAnswer
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.assertIs
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * Full resync of synthetic history served by local [MockWebServer]
+ */
+internal class FullResyncTest : TestBase() {
+
+    abstract class ContextWithInjector : Context(), HasAndroidInjector
+
+    @Mock lateinit var preferences: Preferences
+    @Mock lateinit var fabricPrivacy: FabricPrivacy
+    @Mock lateinit var dateUtil: DateUtil
+    @Mock lateinit var rh: ResourceHelper
+    @Mock lateinit var config: Config
+    @Mock lateinit var dataSyncSelectorV3: DataSyncSelectorV3
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var receiverStatusStore: ReceiverStatusStore
+    @Mock lateinit var nsClientSource: NSClientSource
+    @Mock lateinit var storeDataForDb: StoreDataForDb
+    @Mock lateinit var activePlugin: ActivePlugin
+    @Mock lateinit var instantiator: Instantiator
+    @Mock lateinit var profileSource: ProfileSource
+    @Mock lateinit var uiInteraction: UiInteraction
+    @Mock lateinit var context: ContextWithInjector
+    @Mock lateinit var l: L
+
+    // logging of every received page would dominate measured time
+    @Mock lateinit var logger: AAPSLogger
+
+    private lateinit var nsClientV3Plugin: NSClientV3Plugin
+    private lateinit var nsIncomingDataProcessor: NsIncomingDataProcessor
+    private lateinit var server: MockWebServer
+    private val client = OkHttpClient()
+    private val requests = AtomicInteger()
+    private val fetches = AtomicInteger()
+    private val processed = AtomicInteger()
+
+    // second page requested while the first one is being processed
+    private val secondFetchStarted = CountDownLatch(1)
+    private var prefetchedDuringProcessing = false
+    private var failAtRequest = Int.MAX_VALUE
+
+    private val now = 1_700_000_000_000L
+
+    // 5 min data of whole sync period
+    private val history = (1 until T.days(100).msecs() / T.mins(5).msecs()).map { now - T.days(100).msecs() + it * T.mins(5).msecs() }
+
+    private val injector = HasAndroidInjector {
+        AndroidInjector {
+            if (it is LoadBgWorker) {
+                it.aapsLogger = logger
+                it.fabricPrivacy = fabricPrivacy
+                it.preferences = preferences
+                it.rxBus = rxBus
+                it.context = context
+                it.dateUtil = dateUtil
+                it.nsClientV3Plugin = nsClientV3Plugin
+                it.nsClientSource = nsClientSource
+                it.nsIncomingDataProcessor = nsIncomingDataProcessor
+                it.storeDataForDb = storeDataForDb
+            }
+        }
+    }
+
+    @BeforeEach
+    fun setUp() {
+        server = MockWebServer()
+        server.dispatcher = object : Dispatcher() {
+            override fun dispatch(request: RecordedRequest): MockResponse {
+                if (requests.incrementAndGet() == failAtRequest) return MockResponse().setResponseCode(500)
+                val from = request.requestUrl?.queryParameter("from")?.toLong() ?: 0
+                val limit = request.requestUrl?.queryParameter("limit")?.toInt() ?: 0
+                val page = history.filter { it > from }.take(limit)
+                val result = JSONArray(page.map { JSONObject().put("date", it).put("sgv", 100 + it / T.mins(5).msecs() % 50) })
+                return MockResponse().setBody(JSONObject().put("status", 200).put("result", result).toString())
+            }
+        }
+        server.start()
+
+        whenever(context.applicationContext).thenReturn(context)
+        whenever(context.androidInjector()).thenReturn(injector.androidInjector())
+        whenever(dateUtil.now()).thenReturn(now)
+        whenever(nsClientSource.isEnabled()).thenReturn(true)
+        whenever(storeDataForDb.addToGlucoseValues(any())).thenAnswer {
+            // sequential download would never request next page before this returns
+            if (processed.incrementAndGet() == 1) prefetchedDuringProcessing = secondFetchStarted.await(10, TimeUnit.SECONDS)
+            true
+        }
+        val receiverDelegate = ReceiverDelegate(rxBus, rh, preferences, receiverStatusStore, aapsSchedulers, fabricPrivacy)
+        nsClientV3Plugin = NSClientV3Plugin(
+            logger, rh, preferences, aapsSchedulers, rxBus, context, fabricPrivacy,
+            receiverDelegate, config, dateUtil, dataSyncSelectorV3, persistenceLayer,
+            nsClientSource, storeDataForDb, DecimalFormatterImpl(rh), l
+        )
+        nsClientV3Plugin.newestDataOnServer = LastModified(LastModified.Collections(entries = history.last()))
+        nsClientV3Plugin.nsAndroidClient = mock<NSAndroidClient> {
+            onBlocking { getSgvsNewerThan(any(), any()) } doSuspendableAnswer { fetch(it.getArgument(0), it.getArgument(1)) }
+        }
+        whenever(activePlugin.activeNsClient).thenReturn(nsClientV3Plugin)
+        nsIncomingDataProcessor = NsIncomingDataProcessor(
+            logger, nsClientSource, preferences, rxBus, dateUtil, activePlugin, storeDataForDb, config, instantiator, profileSource, uiInteraction
+        )
+    }
+
+    @AfterEach
+    fun tearDown() {
+        server.shutdown()
+    }
+
+    private suspend fun fetch(from: Long, limit: Int): NSAndroidClient.ReadResponse<List<NSSgvV3>> = withContext(Dispatchers.IO) {
+        if (fetches.incrementAndGet() == 2) secondFetchStarted.countDown()
+        client.newCall(Request.Builder().url(server.url("/entries?from=$from&limit=$limit")).build()).execute().use { response ->
+            if (!response.isSuccessful) throw UnsuccessfulNightscoutException("Unsuccessful")
+            val result = JSONObject(response.body!!.string()).getJSONArray("result")
+            NSAndroidClient.ReadResponse(response.code, 0, List(result.length()) {
+                val json = result.getJSONObject(it)
+                NSSgvV3(
+                    date = json.getLong("date"), identifier = "id${json.getLong("date")}", utcOffset = 0, isValid = true, sgv = json.getDouble("sgv"),
+                    units = NsUnits.MG_DL, direction = Direction.FLAT, noise = null, filtered = null, unfiltered = null
+                )
+            })
+        }
+    }
+
+    private suspend fun runWorker(): ListenableWorker.Result {
+        val sut = TestListenableWorkerBuilder<LoadBgWorker>(context).build()
+        // like in WorkManager, not on the test thread
+        return withContext(Dispatchers.IO) { sut.doWorkAndLog() }
+    }
+
+    private fun storedTimestamps(): List<Long> =
+        argumentCaptor<MutableList<GV>>().also { verify(storeDataForDb, atLeastOnce()).addToGlucoseValues(it.capture()) }.allValues.flatten().map { it.timestamp }
+
+    @Test
+    fun fullResyncOfLargeHistory() = runTest(timeout = 60.seconds) {
+        val result = runWorker()
+
+        assertIs<ListenableWorker.Result.Success>(result)
+        assertThat(storedTimestamps()).containsExactlyElementsIn(history).inOrder()
+        assertThat(nsClientV3Plugin.lastLoadedSrvModified.collections.entries).isEqualTo(history.last())
+        assertThat(prefetchedDuringProcessing).isTrue()
+    }
+
+    @Test
+    fun interruptedResyncContinuesFromPersistedCursor() = runTest(timeout = 60.seconds) {
+        failAtRequest = 25
+
+        assertIs<ListenableWorker.Result.Failure>(runWorker())
+
+        val persisted = argumentCaptor<String>().also { verify(preferences, atLeastOnce()).put(eq(NsclientStringKey.V3FirstLoadContinue), it.capture()) }.lastValue
+        val cursor = nsClientV3Plugin.firstLoadContinueTimestamp.collections.entries
+        assertThat(persisted).contains("$cursor")
+        assertThat(nsClientV3Plugin.isFirstLoad(NsClient.Collection.ENTRIES)).isTrue()
+
+        assertIs<ListenableWorker.Result.Success>(runWorker())
+        // nothing received twice, nothing lost
+        assertThat(storedTimestamps()).containsExactlyElementsIn(history).inOrder()
+    }
+}
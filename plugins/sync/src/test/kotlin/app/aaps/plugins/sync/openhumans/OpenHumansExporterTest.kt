@@ -0,0 +1,239 @@
+package app.aaps.plugins.sync.openhumans
+
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.model.ICfg
+import app.aaps.core.data.model.IDs
+import app.aaps.core.data.model.NE
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TB
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.model.data.Block
+import app.aaps.core.data.model.data.TargetBlock
+import app.aaps.core.data.pump.defs.PumpType
+import app.aaps.core.interfaces.db.PersistenceLayer
+import com.google.common.truth.Truth.assertThat
+import com.sun.net.httpserver.HttpServer
+import kotlinx.coroutines.test.runTest
+import org.json.JSONArray
+import org.json.JSONObject
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.mockito.Mockito.mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.whenever
+import java.io.File
+import java.io.OutputStream
+import java.net.InetSocketAddress
+import java.security.DigestInputStream
+import java.security.MessageDigest
+import java.util.zip.ZipInputStream
+
+class OpenHumansExporterTest {
+
+    @TempDir lateinit var directory: File
+
+    private val persistenceLayer: PersistenceLayer = mock(PersistenceLayer::class.java)
+    private lateinit var database: SyntheticDatabase
+    private lateinit var sut: OpenHumansExporter
+
+    /**
+     * Generates entries of requested page on demand, nothing is retained between pages
+     */
+    private class SyntheticDatabase(val glucoseValues: Int, val boluses: Int, val temporaryBasals: Int) {
+
+        var pages = 0
+        var pageSizes = mutableSetOf<Int>()
+        var sampleEvery = Int.MAX_VALUE
+        var baseline = 0L
+        var peakGrowth = 0L
+
+        fun page(limit: Int, cursor: NE.Cursor): NE {
+            if (pages++ % sampleEvery == 0) peakGrowth = maxOf(peakGrowth, usedMemory() - baseline)
+            pageSizes.add(limit)
+            return NE(
+                bolusCalculatorResults = emptyList(),
+                boluses = ids(cursor.boluses, limit, boluses).map {
+                    BS(id = it, dateCreated = time(it * 20), ids = IDs(pumpType = PumpType.GENERIC_AAPS, pumpSerial = "serial", pumpId = it), timestamp = time(it * 20), amount = 0.1 * (it % 30), type = BS.Type.SMB)
+                },
+                carbs = emptyList(),
+                effectiveProfileSwitches = emptyList(),
+                extendedBoluses = emptyList(),
+                glucoseValues = ids(cursor.glucoseValues, limit, glucoseValues).map {
+                    GV(id = it, dateCreated = time(it), timestamp = time(it), raw = null, value = 100.0 + it % 150, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.DEXCOM_G6_NATIVE)
+                },
+                offlineEvents = emptyList(),
+                profileSwitches = emptyList(),
+                temporaryBasals = ids(cursor.temporaryBasals, limit, temporaryBasals).map {
+                    TB(id = it, dateCreated = time(it * 6), timestamp = time(it * 6), type = TB.Type.NORMAL, isAbsolute = true, rate = 0.05 * (it % 40), duration = 30 * 60_000L)
+                },
+                temporaryTarget = emptyList(),
+                therapyEvents = emptyList(),
+                totalDailyDoses = emptyList(),
+                heartRates = emptyList()
+            )
+        }
+
+        private fun ids(after: Long, limit: Int, total: Int): List<Long> = ((after + 1)..minOf(after + limit, total.toLong())).toList()
+        private fun time(index: Long) = START + index * 5 * 60_000L
+    }
+
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+    private var uploadedBytes = 0L
+    private var uploadedMd5 = ""
+    private val uploadedEntries = mutableMapOf<String, Long>()
+
+    @BeforeEach
+    fun prepare() {
+        sut = OpenHumansExporter(persistenceLayer)
+        whenever(persistenceLayer.collectNewEntriesSince(any(), any(), any(), any())).thenAnswer {
+            database.page(it.getArgument(2), it.getArgument(3))
+        }
+        // fake of the storage upload URL, body is consumed as stream
+        server.createContext("/upload") { exchange ->
+            val md5 = MessageDigest.getInstance("MD5")
+            val body = DigestInputStream(exchange.requestBody, md5)
+            ZipInputStream(body).use { zip ->
+                while (true) {
+                    val entry = zip.nextEntry ?: break
+                    uploadedEntries[entry.name] = (uploadedEntries[entry.name] ?: 0) + zip.copyTo(OutputStream.nullOutputStream())
+                }
+                body.copyTo(OutputStream.nullOutputStream())
+            }
+            uploadedBytes = exchange.requestHeaders.getFirst("Content-Length").toLong()
+            uploadedMd5 = md5.digest().joinToString("") { "%02X".format(it) }
+            exchange.sendResponseHeaders(200, -1)
+            exchange.close()
+        }
+        server.start()
+    }
+
+    @AfterEach
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    private fun pages(): List<NE> {
+        val pages = mutableListOf<NE>()
+        var cursor = NE.Cursor()
+        while (true) {
+            val page = sut.nextPage(0, Long.MAX_VALUE, cursor) ?: return pages
+            pages.add(page)
+            cursor = page.next(cursor)
+            // not exported, not read from database
+            assertThat(cursor.heartRates).isNull()
+        }
+    }
+
+    private fun zipEntries(zip: File): Map<String, String> {
+        val entries = LinkedHashMap<String, String>()
+        ZipInputStream(zip.inputStream()).use {
+            while (true) {
+                val entry = it.nextEntry ?: break
+                entries[entry.name] = it.readBytes().decodeToString()
+            }
+        }
+        return entries
+    }
+
+    @Test
+    fun everyPageIsWrittenToOwnZip() {
+        database = SyntheticDatabase(glucoseValues = 2500, boluses = 3, temporaryBasals = 0)
+
+        val pages = pages()
+        val zips = pages.mapIndexed { index, page -> File(directory, "upload$index.zip").let { it to sut.writeZip(it, mapOf("UploadInfo.json" to "{}".toByteArray()), page) } }
+
+        assertThat(pages).hasSize(3)
+        assertThat(zips.map { it.second.tags }).containsExactly(listOf("Boluses", "GlucoseValues"), listOf("GlucoseValues"), listOf("GlucoseValues")).inOrder()
+        val entries = zips.map { zipEntries(it.first) }
+        assertThat(entries[0].keys).containsExactly("UploadInfo.json", "Boluses.json", "GlucoseValues.json").inOrder()
+        assertThat(entries.sumOf { JSONArray(it["GlucoseValues.json"]).length() }).isEqualTo(2500)
+        assertThat(JSONArray(entries[2]["GlucoseValues.json"]).getJSONObject(499).getLong("id")).isEqualTo(2500)
+        val glucoseValue = JSONArray(entries[0]["GlucoseValues.json"]).getJSONObject(7)
+        assertThat(glucoseValue.getDouble("value")).isEqualTo(108.0)
+        assertThat(glucoseValue.getString("trendArrow")).isEqualTo("FLAT")
+        assertThat(glucoseValue.has("raw")).isFalse()
+        assertThat(glucoseValue.has("pumpSerialHash")).isFalse()
+        val bolus = JSONArray(entries[0]["Boluses.json"]).getJSONObject(0)
+        assertThat(bolus.getString("pumpType")).isEqualTo("GENERIC_AAPS")
+        assertThat(bolus.getString("pumpSerialHash")).hasLength(64)
+        assertThat(bolus.getString("type")).isEqualTo("SMB")
+    }
+
+    @Test
+    fun fieldsOfPreviousUploadsAreKept() {
+        val eps = EPS(
+            id = 1, timestamp = START, basalBlocks = listOf(Block(3_600_000, 1.0)), isfBlocks = listOf(Block(3_600_000, 50.0)),
+            icBlocks = listOf(Block(3_600_000, 10.0)), targetBlocks = listOf(TargetBlock(3_600_000, 90.0, 110.0)), glucoseUnit = GlucoseUnit.MGDL,
+            originalProfileName = "p", originalCustomizedName = "p", originalTimeshift = 0, originalPercentage = 100, originalDuration = 0, originalEnd = 0,
+            iCfg = ICfg("insulin", insulinEndTime = 18_000_000, peak = 4_500_000)
+        )
+        whenever(persistenceLayer.collectNewEntriesSince(any(), any(), any(), any())).thenReturn(
+            NE(
+                bolusCalculatorResults = emptyList(), boluses = emptyList(), carbs = emptyList(), effectiveProfileSwitches = listOf(eps), extendedBoluses = emptyList(),
+                glucoseValues = emptyList(), offlineEvents = emptyList(), profileSwitches = emptyList(), temporaryBasals = emptyList(), temporaryTarget = emptyList(),
+                therapyEvents = emptyList(), totalDailyDoses = emptyList(), heartRates = emptyList()
+            )
+        )
+        val zip = File(directory, "upload.zip")
+
+        sut.writeZip(zip, emptyMap(), sut.nextPage(0, Long.MAX_VALUE, NE.Cursor())!!)
+
+        val json = JSONArray(zipEntries(zip)["EffectiveProfileSwitches.json"]).getJSONObject(0)
+        assertThat(json.getString("isValid")).isEqualTo(eps.toString())
+        assertThat(json.getLong("insulinEndTime")).isEqualTo(4_500_000)
+        assertThat(json.has("peak")).isFalse()
+        assertThat(json.getJSONArray("icBlocks").getJSONObject(0).getDouble("amount")).isEqualTo(10.0)
+    }
+
+    @Test
+    fun nothingNewProducesNoPage() {
+        database = SyntheticDatabase(glucoseValues = 0, boluses = 0, temporaryBasals = 0)
+
+        assertThat(sut.nextPage(0, Long.MAX_VALUE, NE.Cursor())).isNull()
+    }
+
+    @Test
+    fun multiYearHistoryIsExportedInBoundedMemory() = runTest {
+        // three years of 5 min CGM data, a TBR every 30 min and a bolus every 100 min
+        val years = 3
+        database = SyntheticDatabase(glucoseValues = years * 365 * 288, boluses = years * 365 * 288 / 20, temporaryBasals = years * 365 * 48)
+        database.sampleEvery = 50
+        database.baseline = usedMemory()
+        val api = OpenHumansAPI("http://127.0.0.1:${server.address.port}", "id", "secret", "redirect")
+        val zip = File(directory, "upload.zip")
+        var zips = 0
+
+        var cursor = NE.Cursor()
+        while (true) {
+            val page = sut.nextPage(0, Long.MAX_VALUE, cursor) ?: break
+            val md5 = sut.writeZip(zip, mapOf("UploadInfo.json" to JSONObject().put("fileVersion", 2).toString().toByteArray()), page).md5
+            api.uploadFile("http://127.0.0.1:${server.address.port}/upload", zip)
+            assertThat(uploadedBytes).isEqualTo(zip.length())
+            assertThat(uploadedMd5).isEqualTo(md5)
+            zips++
+            cursor = page.next(cursor)
+        }
+
+        assertThat(database.pageSizes).containsExactly(OpenHumansExporter.PAGE_SIZE)
+        assertThat(zips).isEqualTo((years * 365 * 288 + OpenHumansExporter.PAGE_SIZE - 1) / OpenHumansExporter.PAGE_SIZE)
+        assertThat(database.peakGrowth).isLessThan(MEMORY_BOUND)
+        assertThat(uploadedEntries.values.sum()).isGreaterThan(2 * MEMORY_BOUND)
+    }
+
+    companion object {
+
+        private const val START = 1_600_000_000_000L
+        private const val MEMORY_BOUND = 32L * 1024 * 1024
+
+        private fun usedMemory(): Long {
+            val runtime = Runtime.getRuntime()
+            System.gc()
+            return runtime.totalMemory() - runtime.freeMemory()
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package app.aaps.plugins.sync.tidepool.comm
+
+import android.content.Context
+import android.os.PowerManager
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.logging.L
+import app.aaps.core.interfaces.logging.LogElement
+import app.aaps.core.keys.StringKey
+import app.aaps.plugins.sync.nsclient.ReceiverDelegate
+import app.aaps.plugins.sync.tidepool.keys.TidepoolLongKey
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import io.reactivex.rxjava3.core.Single
+import org.json.JSONArray
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.whenever
+import java.net.InetSocketAddress
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class TidepoolUploaderTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var receiverDelegate: ReceiverDelegate
+    @Mock lateinit var l: L
+    @Mock lateinit var logElement: LogElement
+    @Mock lateinit var powerManager: PowerManager
+
+    private lateinit var sut: TidepoolUploader
+
+    private val server = HttpServer.create(InetSocketAddress("127.0.0.1", 0), 0)
+    private val received = CopyOnWriteArrayList<String>()
+    private var uploads = 0
+    private var throttle = 0
+    private var streamed = true
+    private var readsAhead = 0
+    private var requests = 0
+    private val readStarts = CopyOnWriteArrayList<Long>()
+
+    // next chunk read from database while the first one is being uploaded
+    private val nextChunkRead = CountDownLatch(1)
+    private var readDuringUpload = false
+
+    @Volatile private var lastEnd = 0L
+    private var now = 0L
+
+    @BeforeEach
+    fun prepare() {
+        now = dateUtil.now()
+        lastEnd = now - T.days(DAYS).msecs() - T.hours(3).msecs()
+        whenever(preferences.get(StringKey.TidepoolUsername)).thenReturn("user")
+        whenever(preferences.get(StringKey.TidepoolPassword)).thenReturn("password")
+        whenever(preferences.get(TidepoolLongKey.LastEnd)).thenAnswer { lastEnd }
+        doAnswer { lastEnd = it.getArgument(1) }.whenever(preferences).put(any<TidepoolLongKey>(), any<Long>())
+        whenever(context.getSystemService(Context.POWER_SERVICE)).thenReturn(powerManager)
+        whenever(l.findByName(any())).thenReturn(logElement)
+        whenever(receiverDelegate.allowed).thenReturn(true)
+        whenever(persistenceLayer.getTherapyEventDataFromToTime(any(), any())).thenReturn(Single.just(emptyList()))
+        // 5 min CGM readings in (start, end]
+        whenever(persistenceLayer.getBgReadingsDataFromTimeToTime(any(), any(), any())).thenAnswer { invocation ->
+            val start = invocation.getArgument<Long>(0)
+            val end = invocation.getArgument<Long>(1)
+            readStarts.add(start)
+            if (start > lastEnd) {
+                readsAhead++
+                nextChunkRead.countDown()
+            }
+            readings(start, end)
+        }
+
+        val uploadChunk = UploadChunk(preferences, rxBus, aapsLogger, profileFunction, profileUtil, activePlugin, persistenceLayer, dateUtil)
+        sut = TidepoolUploader(aapsLogger, rxBus, context, rh, preferences, uploadChunk, dateUtil, receiverDelegate, config, l)
+        sut.baseUrl = "http://127.0.0.1:${server.address.port}"
+
+        server.createContext("/auth/login") { exchange ->
+            exchange.responseHeaders.add(SESSION_TOKEN_HEADER, "token")
+            exchange.reply(200, """{"userid":"user1"}""")
+        }
+        server.createContext("/v1/users/user1/data_sets") { exchange ->
+            exchange.reply(200, """[{"uploadId":"upload1"}]""")
+        }
+        server.createContext("/v1/datasets/upload1/data") { exchange ->
+            streamed = streamed && exchange.requestHeaders.getFirst("Transfer-Encoding") == "chunked"
+            val body = exchange.requestBody.reader().readText()
+            // uploader reading one chunk after another would never read the next one before this reply
+            if (requests++ == 0) readDuringUpload = nextChunkRead.await(10, TimeUnit.SECONDS)
+            if (throttle > 0) {
+                throttle--
+                exchange.responseHeaders.add("Retry-After", "0")
+                exchange.reply(429, "")
+                return@createContext
+            }
+            uploads++
+            val records = JSONArray(body)
+            for (i in 0 until records.length()) received.add(records.getJSONObject(i).getString("time"))
+            exchange.reply(200, "{}")
+        }
+        server.start()
+    }
+
+    @AfterEach
+    fun tearDown() {
+        server.stop(0)
+    }
+
+    @Test
+    fun backfillsMonthInOrder() {
+        sut.doLogin(doUpload = true)
+        waitForBackfill()
+
+        assertThat(received).containsExactlyElementsIn(expectedTimes()).inOrder()
+        assertThat(uploads).isEqualTo(5)
+        assertThat(streamed).isTrue()
+        assertThat(readDuringUpload).isTrue()
+        assertThat(readsAhead).isGreaterThan(0)
+        // every chunk is read once, in order, prefetched chunk is used
+        assertThat(readStarts).isInOrder()
+        assertThat(readStarts).containsNoDuplicates()
+    }
+
+    @Test
+    fun throttledChunkIsRepeated() {
+        throttle = 2
+        sut.doLogin(doUpload = true)
+        waitForBackfill()
+
+        assertThat(throttle).isEqualTo(0)
+        assertThat(received).containsExactlyElementsIn(expectedTimes()).inOrder()
+    }
+
+    private fun waitForBackfill() {
+        val timeout = System.currentTimeMillis() + 30_000
+        while (lastEnd < now - T.hours(3).msecs() - T.mins(1).msecs() && System.currentTimeMillis() < timeout) Thread.sleep(10)
+        assertThat(lastEnd).isAtLeast(now - T.hours(3).msecs() - T.mins(1).msecs())
+    }
+
+    private fun expectedTimes(): List<String> =
+        readings(now - T.days(DAYS).msecs() - T.hours(3).msecs(), lastEnd).map { dateUtil.toISOAsUTC(it.timestamp) }
+
+    private fun readings(start: Long, end: Long): List<GV> {
+        val first = (start / STEP + 1) * STEP
+        return (first..end step STEP).map {
+            GV(timestamp = it, raw = null, value = 100.0 + it / STEP % 100, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.DEXCOM_G6_NATIVE)
+        }
+    }
+
+    private fun HttpExchange.reply(code: Int, body: String) {
+        val bytes = body.toByteArray()
+        sendResponseHeaders(code, if (bytes.isEmpty()) -1 else bytes.size.toLong())
+        if (bytes.isNotEmpty()) responseBody.write(bytes)
+        close()
+    }
+
+    companion object {
+
+        private const val DAYS = 31L
+        private const val STEP = 5 * 60_000L
+    }
+}
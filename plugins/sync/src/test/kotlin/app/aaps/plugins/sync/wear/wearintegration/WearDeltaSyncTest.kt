@@ -0,0 +1,126 @@
+package app.aaps.plugins.sync.wear.wearintegration
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class WearDeltaSyncTest {
+
+    private val now = 1_700_000_000_000L
+
+    @Test
+    fun firstMessageIsFullSnapshot() {
+        val sut = WearDeltaSync()
+        val delta = sut.prepare(state(now, iob = "1.00"))!!
+        assertThat(delta.full).isTrue()
+        assertThat(delta.sequence).isEqualTo(1)
+        assertThat(delta.items).hasSize(6)
+    }
+
+    @Test
+    fun unchangedStateSendsNothing() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        // preferences timestamp differs on every resend but is not a change
+        assertThat(sut.prepare(state(now, iob = "1.00", preferencesTimestamp = now + 1000))).isNull()
+    }
+
+    @Test
+    fun onlyChangedItemsAndNewBgPointsAreSent() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        val delta = sut.prepare(state(now + 5 * 60_000, iob = "1.20"))!!
+        assertThat(delta.full).isFalse()
+        assertThat(delta.sequence).isEqualTo(2)
+        val graph = delta.items.filterIsInstance<EventData.GraphData>().single()
+        assertThat(graph.entries.map { it.timeStamp }).containsExactly(now + 5 * 60_000)
+        assertThat(delta.items.filterIsInstance<EventData.Status>().single().iobSum).isEqualTo("1.20")
+        assertThat(delta.items.filterIsInstance<EventData.SingleBg>()).hasSize(1)
+        assertThat(delta.items.filterIsInstance<EventData.Preferences>()).isEmpty()
+        assertThat(delta.items.filterIsInstance<EventData.QuickWizard>()).isEmpty()
+        assertThat(delta.items.filterIsInstance<EventData.TreatmentData>()).isEmpty()
+    }
+
+    @Test
+    fun statusIsSentLastWithEveryDelta() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        // new BG only, status unchanged
+        val items = state(now + 5 * 60_000, iob = "1.00").map { if (it is EventData.Status) it.copy(openApsStatus = now) else it }
+        val delta = sut.prepare(items)!!
+        assertThat(delta.items.last()).isInstanceOf(EventData.Status::class.java)
+        assertThat(delta.items.filterIsInstance<EventData.Status>()).hasSize(1)
+    }
+
+    @Test
+    fun probeSurvivesProtoBufRoundTrip() {
+        val probe = WearDeltaSync.probe()
+        assertThat(probe.full).isFalse()
+        assertThat(probe.items).isEmpty()
+        assertThat(EventData.deserializeByte(probe.serializeByte())).isEqualTo(probe)
+    }
+
+    @Test
+    fun fullSnapshotAfterGap() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        sut.requestFull()
+        val delta = sut.prepare(state(now, iob = "1.00"))!!
+        assertThat(delta.full).isTrue()
+        assertThat(delta.sequence).isEqualTo(2)
+        assertThat(delta.items.filterIsInstance<EventData.GraphData>().single().entries).hasSize(GRAPH_POINTS)
+    }
+
+    @Test
+    fun deltaSurvivesProtoBufRoundTrip() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        val delta = sut.prepare(state(now + 5 * 60_000, iob = "1.20"))!!
+        assertThat(EventData.deserializeByte(delta.serializeByte())).isEqualTo(delta)
+    }
+
+    @Test
+    fun bytesPerUpdate() {
+        val sut = WearDeltaSync()
+        sut.prepare(state(now, iob = "1.00"))
+        var before = 0L
+        var after = 0L
+        val updates = 12
+        for (i in 1..updates) {
+            val items = state(now + i * 5 * 60_000L, iob = "1.${i}0")
+            // previous implementation sent every item as separate json message
+            before += items.sumOf { it.serialize().toByteArray().size }
+            after += sut.prepare(items)!!.serializeByte().size
+        }
+        assertThat(after * 10).isLessThan(before)
+    }
+
+    private fun bg(timestamp: Long, sgv: Double) = EventData.SingleBg(
+        dataset = 0, timeStamp = timestamp, sgvString = sgv.toInt().toString(), glucoseUnits = "mg/dl", slopeArrow = "→",
+        delta = "+1", deltaDetailed = "+1.0", avgDelta = "+1", avgDeltaDetailed = "+1.0", sgvLevel = 0, sgv = sgv, high = 180.0, low = 70.0, color = 0
+    )
+
+    private fun state(newest: Long, iob: String, preferencesTimestamp: Long = newest): List<EventData> {
+        val graph = ArrayList((0 until GRAPH_POINTS).map { bg(newest - it * 5 * 60_000L, 100.0 + (newest / 300_000 - it) % 50) })
+        val boluses = ArrayList((0 until 20).map { EventData.TreatmentData.Treatment(now - it * 900_000L, 0.3, 0.0, isSMB = true, isValid = true) })
+        val basals = ArrayList((0 until 22).map { EventData.TreatmentData.Basal(now - (it + 1) * 900_000L, now - it * 900_000L, 0.8) })
+        val temps = ArrayList((0 until 10).map { EventData.TreatmentData.TempBasal(now - (it + 1) * 1_800_000L, 0.8, now - it * 1_800_000L, 1.2, 0.4) })
+        return listOf(
+            graph.first(),
+            EventData.Preferences(preferencesTimestamp, true, true, 100, 50, 5.0, 0.5, 1.0, 10, 20),
+            EventData.QuickWizard(arrayListOf(EventData.QuickWizard.QuickWizardEntry("guid", "Snack", 20, 0, 86400))),
+            EventData.GraphData(graph),
+            EventData.TreatmentData(temps, basals, boluses, arrayListOf()),
+            EventData.Status(
+                dataset = 0, externalStatus = "Closed Loop", iobSum = iob, iobDetail = "($iob|0.00)", cob = "0g", currentBasal = "0.80U/h",
+                battery = "80", rigBattery = "", openApsStatus = newest, bgi = "-0.5", batteryLevel = 1, tempTarget = "100", tempTargetLevel = 0,
+                reservoirString = "120U", reservoir = 120.0, reservoirLevel = 0
+            )
+        )
+    }
+
+    companion object {
+
+        private const val GRAPH_POINTS = 288
+    }
+}
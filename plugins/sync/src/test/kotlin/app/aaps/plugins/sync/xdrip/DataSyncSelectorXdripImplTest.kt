@@ -0,0 +1,122 @@
+package app.aaps.plugins.sync.xdrip
+
+import app.aaps.core.data.model.BS
+import app.aaps.core.data.model.CA
+import app.aaps.core.data.model.GV
+import app.aaps.core.data.model.HasIDs
+import app.aaps.core.data.model.SourceSensor
+import app.aaps.core.data.model.TrendArrow
+import app.aaps.core.data.time.T
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.sync.DataSyncSelector
+import app.aaps.core.interfaces.sync.XDripBroadcast
+import app.aaps.plugins.sync.xdrip.keys.XdripLongKey
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import dagger.Lazy
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.whenever
+
+class DataSyncSelectorXdripImplTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+
+    private lateinit var sut: DataSyncSelectorXdripImpl
+
+    private val broadcaster = FakeBroadcaster()
+    private val stored = mutableMapOf<XdripLongKey, Long>()
+    private var queries = 0
+    private var glucoseValues = listOf<GV>()
+    private var boluses = listOf<BS>()
+    private var carbs = listOf<CA>()
+
+    class FakeBroadcaster : XDripBroadcast {
+
+        val broadcasts = mutableListOf<Pair<String, List<DataSyncSelector.DataPair>>>()
+
+        override fun isEnabled(): Boolean = true
+        override fun sendCalibration(bg: Double): Boolean = true
+        override fun sendToXdrip(collection: String, dataPair: DataSyncSelector.DataPair, progress: String) {
+            broadcasts.add(collection to listOf(dataPair))
+        }
+
+        override fun sendToXdrip(collection: String, dataPairs: List<DataSyncSelector.DataPair>, progress: String) {
+            broadcasts.add(collection to dataPairs)
+        }
+    }
+
+    @BeforeEach
+    fun prepare() {
+        whenever(preferences.get(any<XdripLongKey>())).thenAnswer { stored[it.getArgument(0)] ?: 0L }
+        doAnswer { stored[it.getArgument(0)] = it.getArgument(1) }.whenever(preferences).put(any<XdripLongKey>(), any<Long>())
+        whenever(persistenceLayer.getLastGlucoseValueId()).thenAnswer { glucoseValues.lastOrNull()?.id }
+        whenever(persistenceLayer.getLastBolusId()).thenAnswer { boluses.lastOrNull()?.id }
+        whenever(persistenceLayer.getLastCarbsId()).thenAnswer { carbs.lastOrNull()?.id }
+        whenever(persistenceLayer.getNextSyncElementsGlucoseValue(any(), any())).thenAnswer { page(glucoseValues, it.getArgument(0), it.getArgument(1)) }
+        whenever(persistenceLayer.getNextSyncElementsBolus(any(), any())).thenAnswer { page(boluses, it.getArgument(0), it.getArgument(1)) }
+        whenever(persistenceLayer.getNextSyncElementsCarbs(any(), any())).thenAnswer { page(carbs, it.getArgument(0), it.getArgument(1)) }
+        sut = DataSyncSelectorXdripImpl(aapsLogger, dateUtil, profileFunction, activePlugin, Lazy { broadcaster }, persistenceLayer, rxBus, preferences)
+    }
+
+    private fun <T : HasIDs> page(table: List<T>, id: Long, limit: Int): List<Pair<T, T>> {
+        queries++
+        return table.filter { it.id > id }.take(limit).map { it to it }
+    }
+
+    @Test
+    fun catchUpAfterOutageIsBatched() = runTest {
+        val now = dateUtil.now()
+        // two days without connection, older readings are skipped but acknowledged
+        val count = 2 * 24 * 60 * 2
+        glucoseValues = (1..count).map {
+            GV(id = it.toLong(), timestamp = now - (count - it) * 30_000L + 15_000L, raw = null, value = 120.0, trendArrow = TrendArrow.FLAT, noise = null, sourceSensor = SourceSensor.DEXCOM_G6_NATIVE)
+        }
+        val recent = glucoseValues.count { it.timestamp >= now - T.days(1).msecs() }
+
+        sut.doUpload()
+
+        val entries = broadcaster.broadcasts.filter { it.first == "entries" }
+        assertThat(queries).isEqualTo(count / DataSyncSelectorXdripImpl.BATCH_SIZE + 1)
+        assertThat(entries.size).isEqualTo((recent + DataSyncSelectorXdripImpl.BUNDLE_SIZE - 1) / DataSyncSelectorXdripImpl.BUNDLE_SIZE)
+        assertThat(entries.all { it.second.size <= DataSyncSelectorXdripImpl.BUNDLE_SIZE }).isTrue()
+        assertThat(entries.flatMap { it.second }.map { it.id }).containsExactlyElementsIn((count - recent + 1L..count.toLong()).toList()).inOrder()
+        assertThat(stored[XdripLongKey.GlucoseValueLastSyncedId]).isEqualTo(count.toLong())
+
+        // nothing new
+        queries = 0
+        broadcaster.broadcasts.clear()
+        sut.doUpload()
+        assertThat(queries).isEqualTo(0)
+        assertThat(broadcaster.broadcasts).isEmpty()
+    }
+
+    @Test
+    fun treatmentsOfTablesShareBundle() = runTest {
+        val now = dateUtil.now()
+        boluses = (1..30).map { BS(id = it.toLong(), timestamp = now - it * 60_000L, amount = 1.0, type = BS.Type.NORMAL) }
+        carbs = (1..20).map { CA(id = it.toLong(), timestamp = now - it * 60_000L, duration = 0, amount = 10.0) }
+
+        sut.doUpload()
+
+        assertThat(broadcaster.broadcasts.map { it.first }).containsExactly("treatments")
+        assertThat(broadcaster.broadcasts[0].second).hasSize(50)
+        assertThat(stored[XdripLongKey.BolusLastSyncedId]).isEqualTo(30L)
+        assertThat(stored[XdripLongKey.CarbsLastSyncedId]).isEqualTo(20L)
+    }
+
+    @Test
+    fun syncRestartsWhenDatabaseWasCleared() = runTest {
+        stored[XdripLongKey.BolusLastSyncedId] = 1000L
+        boluses = listOf(BS(id = 1, timestamp = dateUtil.now(), amount = 1.0, type = BS.Type.NORMAL))
+
+        sut.doUpload()
+
+        assertThat(broadcaster.broadcasts.flatMap { it.second }.map { it.id }).containsExactly(1L)
+        assertThat(stored[XdripLongKey.BolusLastSyncedId]).isEqualTo(1L)
+    }
+}
@@ -14,6 +14,8 @@ import app.aaps.core.interfaces.rx.events.EventOverviewBolusProgress
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.interfaces.utils.DecimalFormatter
 import app.aaps.core.keys.interfaces.Preferences
+import app.aaps.core.utils.notifyAll
+import app.aaps.core.utils.waitMillis
 import app.aaps.pump.dana.keys.DanaIntKey
 import app.aaps.pump.dana.keys.DanaStringKey
 import org.joda.time.DateTime
@@ -60,7 +62,31 @@ class DanaPump @Inject constructor(
     var lastConnection: Long = 0
     var lastSettingsRead: Long = 0
     @JvmField var readHistoryFrom: Long = 0 // start next history read from this timestamp
-    @JvmField var historyDoneReceived: Boolean = false // true when last history message is received
+    private val historyDoneLock = Any()
+    var historyDoneReceived: Boolean = false // true when last history message is received
+        set(value) {
+            field = value
+            if (value) synchronized(historyDoneLock) { historyDoneLock.notifyAll() }
+        }
+
+    /**
+     * Blocks until the last history message is received, [isConnected] turns false or [timeoutMillis] elapses.
+     * Wakes up immediately when [historyDoneReceived] is set.
+     *
+     * @return true if history has been received completely
+     */
+    fun awaitHistoryDone(timeoutMillis: Long, isConnected: () -> Boolean): Boolean {
+        val deadline = System.currentTimeMillis() + timeoutMillis
+        synchronized(historyDoneLock) {
+            while (!historyDoneReceived && isConnected()) {
+                val remaining = deadline - System.currentTimeMillis()
+                if (remaining <= 0) break
+                // connection loss is not signalled, re-check it periodically
+                historyDoneLock.waitMillis(min(remaining, CONNECTION_CHECK_INTERVAL))
+            }
+            return historyDoneReceived
+        }
+    }
 
     // Info
     var serialNumber = ""
@@ -476,6 +502,7 @@ class DanaPump @Inject constructor(
         const val DELIVERY_BASAL = 0x04
         const val DELIVERY_EXT_BOLUS = 0x08
         const val PROFILE_PREFIX = "DanaR-"
+        private const val CONNECTION_CHECK_INTERVAL = 500L
 
         // Dana R btModel
         const val DOMESTIC_MODEL = 0x01
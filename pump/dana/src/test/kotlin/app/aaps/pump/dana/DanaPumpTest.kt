@@ -19,4 +19,23 @@ class DanaPumpTest : TestBaseWithProfile() {
         sut.hwModel = 0x05
         assertThat(sut.modelFriendlyName()).contains("DanaRS")
     }
+
+    @Test
+    fun awaitHistoryDoneWakesUpOnSignal() {
+        sut.historyDoneReceived = false
+        Thread {
+            Thread.sleep(50)
+            sut.historyDoneReceived = true
+        }.start()
+        val start = System.currentTimeMillis()
+        assertThat(sut.awaitHistoryDone(10000) { true }).isTrue()
+        assertThat(System.currentTimeMillis() - start).isLessThan(400L)
+    }
+
+    @Test
+    fun awaitHistoryDoneTimesOut() {
+        sut.historyDoneReceived = false
+        assertThat(sut.awaitHistoryDone(100) { true }).isFalse()
+        assertThat(sut.awaitHistoryDone(10000) { false }).isFalse()
+    }
 }
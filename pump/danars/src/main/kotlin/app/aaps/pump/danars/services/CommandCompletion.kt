@@ -0,0 +1,75 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.pump.PumpSync
+
+/**
+ * Completion of a state changing DanaRS command (TBR, extended bolus).
+ *
+ * Instead of waiting a fixed time after the command packet is acknowledged,
+ * pump history is read (which itself completes on the last history record)
+ * until the synced pump state reflects the command. Only if the pump has not
+ * written the record yet another history read is issued, bounded by [timeoutMillis].
+ * State known before the command (TBR or EB running before, not yet synced cancel)
+ * must not be taken as completion, see [isNewTemporaryBasal] and [isNewExtendedBolus].
+ */
+class CommandCompletion(
+    private val aapsLogger: AAPSLogger,
+    private val loadEvents: (settleMillis: Long) -> Unit,
+    private val expectedPumpState: () -> PumpSync.PumpState,
+    private val isConnected: () -> Boolean,
+    private val now: () -> Long = System::currentTimeMillis
+) {
+
+    /**
+     * Time to capture right before the command is sent, in whole seconds as pump history records are
+     */
+    fun sendTime(): Long = now().let { it - it % 1000 }
+
+    fun await(name: String, timeoutMillis: Long = TIMEOUT, isComplete: (PumpSync.PumpState) -> Boolean): PumpSync.PumpState {
+        val start = now()
+        var attempt = 0
+        while (true) {
+            loadEvents(if (attempt++ == 0) FIRST_SETTLE_TIME else RETRY_SETTLE_TIME)
+            val state = expectedPumpState()
+            val elapsed = now() - start
+            when {
+                isComplete(state)        -> {
+                    aapsLogger.debug(LTag.PUMPCOMM, "$name completed in $elapsed ms after $attempt history reads")
+                    return state
+                }
+
+                !isConnected()           -> {
+                    aapsLogger.debug(LTag.PUMPCOMM, "$name not confirmed, disconnected after $elapsed ms")
+                    return state
+                }
+
+                elapsed >= timeoutMillis -> {
+                    aapsLogger.warn(LTag.PUMPCOMM, "$name not confirmed by pump history in $elapsed ms")
+                    return state
+                }
+            }
+        }
+    }
+
+    companion object {
+
+        const val TIMEOUT = 6000L
+        // time given to the pump to write the history record before it's requested
+        const val FIRST_SETTLE_TIME = 200L
+        const val RETRY_SETTLE_TIME = 500L
+
+        /**
+         * [tbr] was started by the command sent at [sent], not [previous] running before
+         */
+        fun isNewTemporaryBasal(tbr: PumpSync.PumpState.TemporaryBasal?, previous: PumpSync.PumpState.TemporaryBasal?, sent: Long): Boolean =
+            tbr != null && (tbr.timestamp >= sent || previous != null && tbr.id != previous.id)
+
+        /**
+         * [eb] was started by the command sent at [sent], not [previous] running before
+         */
+        fun isNewExtendedBolus(eb: PumpSync.PumpState.ExtendedBolus?, previous: PumpSync.PumpState.ExtendedBolus?, sent: Long): Boolean =
+            eb != null && (eb.timestamp >= sent || previous != null && eb.timestamp != previous.timestamp)
+    }
+}
@@ -116,6 +116,14 @@ class DanaRSService : DaggerService() {
     private val disposable = CompositeDisposable()
     private val mBinder: IBinder = LocalBinder()
     private var lastApproachingDailyLimit: Long = 0
+    private val commandCompletion by lazy {
+        CommandCompletion(
+            aapsLogger = aapsLogger,
+            loadEvents = { settleMillis -> loadEvents(settleMillis) },
+            expectedPumpState = { pumpSync.expectedPumpState() },
+            isConnected = { isConnected }
+        )
+    }
 
     override fun onCreate() {
         super.onCreate()
@@ -258,19 +266,19 @@ class DanaRSService : DaggerService() {
         aapsLogger.debug(LTag.PUMPCOMM, "Pump status loaded")
     }
 
-    fun loadEvents(): PumpEnactResult {
+    fun loadEvents(): PumpEnactResult = loadEvents(1000)
+
+    private fun loadEvents(settleMillis: Long): PumpEnactResult {
         if (!danaRSPlugin.isInitialized()) {
             val result = instantiator.providePumpEnactResult().success(false)
             result.comment = "pump not initialized"
             return result
         }
-        SystemClock.sleep(1000)
+        SystemClock.sleep(settleMillis)
         val msg = DanaRSPacketAPSHistoryEvents(injector, danaPump.readHistoryFrom)
         aapsLogger.debug(LTag.PUMPCOMM, "Loading event history from: " + dateUtil.dateAndTimeString(danaPump.readHistoryFrom))
         sendMessage(msg)
-        while (!danaPump.historyDoneReceived && bleComm.isConnected) {
-            SystemClock.sleep(100)
-        }
+        danaPump.awaitHistoryDone(HISTORY_TIMEOUT) { bleComm.isConnected }
         danaPump.readHistoryFrom = if (danaPump.lastEventTimeLoaded != 0L) danaPump.lastEventTimeLoaded - T.mins(1).msecs() else 0
         aapsLogger.debug(LTag.PUMPCOMM, "Events loaded")
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.gettingpumpstatus)))
@@ -382,11 +390,12 @@ class DanaRSService : DaggerService() {
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketBasalSetTemporaryBasal(injector, percent, durationInHours)
+        val previous = pumpSync.expectedPumpState().temporaryBasal
+        val sent = commandCompletion.sendTime()
         sendMessage(msgTBR)
-        SystemClock.sleep(200)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val tbr = pumpSync.expectedPumpState().temporaryBasal
+        val tbr = commandCompletion.await("TBR $percent%") {
+            !msgTBR.success() || CommandCompletion.isNewTemporaryBasal(it.temporaryBasal, previous, sent) && it.temporaryBasal?.rate == percent.toDouble()
+        }.temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
         return msgTBR.success()
@@ -403,10 +412,12 @@ class DanaRSService : DaggerService() {
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketAPSBasalSetTemporaryBasal(injector, percent)
+        val previous = pumpSync.expectedPumpState().temporaryBasal
+        val sent = commandCompletion.sendTime()
         sendMessage(msgTBR)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val tbr = pumpSync.expectedPumpState().temporaryBasal
+        val tbr = commandCompletion.await("TBR $percent%") {
+            !msgTBR.success() || CommandCompletion.isNewTemporaryBasal(it.temporaryBasal, previous, sent) && it.temporaryBasal?.rate == percent.toDouble()
+        }.temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
         return msgTBR.success()
@@ -427,10 +438,12 @@ class DanaRSService : DaggerService() {
         }
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingtempbasal)))
         val msgTBR = DanaRSPacketAPSBasalSetTemporaryBasal(injector, percent)
+        val previous = pumpSync.expectedPumpState().temporaryBasal
+        val sent = commandCompletion.sendTime()
         sendMessage(msgTBR)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val tbr = pumpSync.expectedPumpState().temporaryBasal
+        val tbr = commandCompletion.await("TBR $percent%") {
+            !msgTBR.success() || CommandCompletion.isNewTemporaryBasal(it.temporaryBasal, previous, sent) && it.temporaryBasal?.rate == percent.toDouble()
+        }.temporaryBasal
         aapsLogger.debug(LTag.PUMPCOMM, "Expected TBR found: $tbr")
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
@@ -442,9 +455,7 @@ class DanaRSService : DaggerService() {
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingtempbasal)))
         val msgCancel = DanaRSPacketBasalSetCancelTemporaryBasal(injector)
         sendMessage(msgCancel)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val tbr = pumpSync.expectedPumpState().temporaryBasal
+        val tbr = commandCompletion.await("TBR cancel") { !msgCancel.success() || it.temporaryBasal == null }.temporaryBasal
         danaPump.fromTemporaryBasal(tbr)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
         return msgCancel.success()
@@ -454,11 +465,12 @@ class DanaRSService : DaggerService() {
         if (!isConnected) return false
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.settingextendedbolus)))
         val msgExtended = DanaRSPacketBolusSetExtendedBolus(injector, insulin, durationInHalfHours)
+        val previous = pumpSync.expectedPumpState().extendedBolus
+        val sent = commandCompletion.sendTime()
         sendMessage(msgExtended)
-        SystemClock.sleep(200)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val eb = pumpSync.expectedPumpState().extendedBolus
+        val eb = commandCompletion.await("Extended bolus $insulin U") {
+            !msgExtended.success() || CommandCompletion.isNewExtendedBolus(it.extendedBolus, previous, sent)
+        }.extendedBolus
         danaPump.fromExtendedBolus(eb)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
         return msgExtended.success()
@@ -469,9 +481,7 @@ class DanaRSService : DaggerService() {
         rxBus.send(EventPumpStatusChanged(rh.gs(R.string.stoppingextendedbolus)))
         val msgStop = DanaRSPacketBolusSetExtendedBolusCancel(injector)
         sendMessage(msgStop)
-        loadEvents()
-        SystemClock.sleep(4500)
-        val eb = pumpSync.expectedPumpState().extendedBolus
+        val eb = commandCompletion.await("Extended bolus cancel") { !msgStop.success() || it.extendedBolus == null }.extendedBolus
         danaPump.fromExtendedBolus(eb)
         rxBus.send(EventPumpStatusChanged(EventPumpStatusChanged.Status.DISCONNECTING))
         return msgStop.success()
@@ -546,4 +556,10 @@ class DanaRSService : DaggerService() {
             SystemClock.sleep(min(timeToWholeMinute, 100))
         }
     }
-}
\ No newline at end of file
+
+    companion object {
+
+        // only a safety net, history loading completes on the last record or on disconnection
+        private val HISTORY_TIMEOUT = T.mins(5).msecs()
+    }
+}
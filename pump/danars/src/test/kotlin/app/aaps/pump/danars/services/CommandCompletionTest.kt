@@ -0,0 +1,124 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.core.interfaces.pump.PumpSync
+import app.aaps.shared.tests.TestBase
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class CommandCompletionTest : TestBase() {
+
+    private fun completion(peer: SimulatedDanaRSPeer) = CommandCompletion(
+        aapsLogger = aapsLogger,
+        loadEvents = { peer.loadEvents(it) },
+        expectedPumpState = { peer.expectedPumpState() },
+        isConnected = { peer.connected },
+        now = { peer.now }
+    )
+
+    // previous flow: sleep(200), loadEvents() with sleep(1000), sleep(4500)
+    private fun legacyTempBasal(peer: SimulatedDanaRSPeer, percent: Int): Long {
+        val start = peer.now
+        peer.setTemporaryBasal(percent, 60)
+        peer.sleep(200)
+        peer.loadEvents(1000)
+        peer.sleep(4500)
+        return peer.now - start
+    }
+
+    private fun tempBasal(peer: SimulatedDanaRSPeer, percent: Int, cancelFirst: Boolean = false): Long {
+        val start = peer.now
+        if (cancelFirst) peer.cancelTemporaryBasal()
+        val completion = completion(peer)
+        val previous = peer.expectedPumpState().temporaryBasal
+        val sent = completion.sendTime()
+        peer.setTemporaryBasal(percent, 60)
+        val state = completion.await("TBR") { CommandCompletion.isNewTemporaryBasal(it.temporaryBasal, previous, sent) && it.temporaryBasal?.rate == percent.toDouble() }
+        assertThat(state.temporaryBasal?.rate).isEqualTo(percent.toDouble())
+        assertThat(state.temporaryBasal?.timestamp).isAtLeast(sent)
+        return peer.now - start
+    }
+
+    private fun extendedBolus(peer: SimulatedDanaRSPeer, amount: Double): PumpSync.PumpState.ExtendedBolus? {
+        val completion = completion(peer)
+        val previous = peer.expectedPumpState().extendedBolus
+        val sent = completion.sendTime()
+        peer.setExtendedBolus(amount, 60)
+        return completion.await("EB") { CommandCompletion.isNewExtendedBolus(it.extendedBolus, previous, sent) }.extendedBolus
+    }
+
+    @Test
+    fun tempBasalCompletesOnHistorySync() {
+        val legacy = legacyTempBasal(SimulatedDanaRSPeer(), 150)
+        val peer = SimulatedDanaRSPeer()
+        val latency = tempBasal(peer, 150)
+        assertThat(latency).isLessThan(legacy)
+        assertThat(latency).isLessThan(2000L)
+    }
+
+    @Test
+    fun fastPumpNeedsSingleHistoryRead() {
+        val peer = SimulatedDanaRSPeer(historyWriteDelay = 100)
+        tempBasal(peer, 80)
+        assertThat(peer.historyReads).isEqualTo(1)
+    }
+
+    @Test
+    fun sameTemporaryBasalAgainWaitsForNewRecord() {
+        val peer = SimulatedDanaRSPeer()
+        tempBasal(peer, 150)
+        val previous = peer.expectedPumpState().temporaryBasal
+        peer.sleep(60_000)
+
+        // cancel is not in synced history yet, previous TBR of the same percent is still running
+        tempBasal(peer, 150, cancelFirst = true)
+
+        val current = peer.expectedPumpState().temporaryBasal
+        assertThat(current?.id).isNotEqualTo(previous?.id)
+        assertThat(current?.timestamp).isGreaterThan(previous?.timestamp)
+    }
+
+    @Test
+    fun extendedBolusWhileAnotherIsRunningWaitsForNewRecord() {
+        val peer = SimulatedDanaRSPeer()
+        val first = extendedBolus(peer, 1.0)
+        assertThat(first?.amount).isEqualTo(1.0)
+        peer.sleep(60_000)
+        val reads = peer.historyReads
+
+        val second = extendedBolus(peer, 2.0)
+
+        assertThat(second?.amount).isEqualTo(2.0)
+        assertThat(second?.timestamp).isGreaterThan(first?.timestamp)
+        // history write delay is longer than first settle time, stale state was not accepted
+        assertThat(peer.historyReads - reads).isGreaterThan(1)
+    }
+
+    @Test
+    fun cancelIsConfirmedWhenTemporaryBasalDisappears() {
+        val peer = SimulatedDanaRSPeer()
+        tempBasal(peer, 120)
+        peer.cancelTemporaryBasal()
+        val state = completion(peer).await("TBR cancel") { it.temporaryBasal == null }
+        assertThat(state.temporaryBasal).isNull()
+    }
+
+    @Test
+    fun timeoutIsOnlyFallback() {
+        val peer = SimulatedDanaRSPeer(historyWriteDelay = 60_000)
+        val start = peer.now
+        peer.setTemporaryBasal(200, 30)
+        val state = completion(peer).await("TBR", timeoutMillis = 3000) { it.temporaryBasal != null }
+        assertThat(state.temporaryBasal).isNull()
+        assertThat(peer.now - start).isAtLeast(3000L)
+        assertThat(peer.now - start).isLessThan(3000L + CommandCompletion.RETRY_SETTLE_TIME + 500)
+    }
+
+    @Test
+    fun disconnectionStopsWaiting() {
+        val peer = SimulatedDanaRSPeer(historyWriteDelay = 60_000)
+        peer.setTemporaryBasal(200, 30)
+        peer.connected = false
+        completion(peer).await("TBR") { it.temporaryBasal != null }
+        assertThat(peer.historyReads).isEqualTo(1)
+    }
+}
@@ -0,0 +1,76 @@
+package app.aaps.pump.danars.services
+
+import app.aaps.core.data.pump.defs.PumpType
+import app.aaps.core.interfaces.pump.PumpSync
+
+/**
+ * Minimal DanaRS peer on a virtual clock.
+ *
+ * Every packet costs [roundTripMillis] until its response arrives. A state change
+ * is acknowledged immediately but appears in pump history only after [historyWriteDelay],
+ * like on the real pump. History download costs one round trip per record plus the final one.
+ */
+class SimulatedDanaRSPeer(
+    private val roundTripMillis: Long = 60,
+    private val historyWriteDelay: Long = 700
+) {
+
+    var now = 0L
+        private set
+    var connected = true
+    var packetsSent = 0
+        private set
+    var historyReads = 0
+        private set
+
+    private class Record(val visibleFrom: Long, val sync: () -> Unit)
+
+    private val history = mutableListOf<Record>()
+    private var syncedTemporaryBasal: PumpSync.PumpState.TemporaryBasal? = null
+    private var syncedExtendedBolus: PumpSync.PumpState.ExtendedBolus? = null
+    private var lastSyncedIndex = 0
+
+    fun sleep(millis: Long) {
+        now += millis
+    }
+
+    fun setTemporaryBasal(percent: Int, durationMinutes: Int) {
+        exchange()
+        val tbr = PumpSync.PumpState.TemporaryBasal(
+            timestamp = now, duration = durationMinutes * 60_000L, rate = percent.toDouble(), isAbsolute = false,
+            type = PumpSync.TemporaryBasalType.NORMAL, id = history.size.toLong(), pumpId = now, pumpType = PumpType.DANA_RS
+        )
+        history.add(Record(now + historyWriteDelay) { syncedTemporaryBasal = tbr })
+    }
+
+    fun cancelTemporaryBasal() {
+        exchange()
+        history.add(Record(now + historyWriteDelay) { syncedTemporaryBasal = null })
+    }
+
+    fun setExtendedBolus(amount: Double, durationMinutes: Int) {
+        exchange()
+        val eb = PumpSync.PumpState.ExtendedBolus(
+            timestamp = now, duration = durationMinutes * 60_000L, amount = amount, rate = amount * 60 / durationMinutes, pumpType = PumpType.DANA_RS
+        )
+        history.add(Record(now + historyWriteDelay) { syncedExtendedBolus = eb })
+    }
+
+    // DanaRSPacketAPSHistoryEvents: request, one packet per new record, final 0xFF record
+    fun loadEvents(settleMillis: Long) {
+        sleep(settleMillis)
+        historyReads++
+        exchange()
+        while (lastSyncedIndex < history.size && history[lastSyncedIndex].visibleFrom <= now) {
+            history[lastSyncedIndex++].sync()
+            now += roundTripMillis / 2
+        }
+    }
+
+    fun expectedPumpState(): PumpSync.PumpState = PumpSync.PumpState(syncedTemporaryBasal, syncedExtendedBolus, null, null, "")
+
+    private fun exchange() {
+        packetsSent++
+        now += roundTripMillis
+    }
+}
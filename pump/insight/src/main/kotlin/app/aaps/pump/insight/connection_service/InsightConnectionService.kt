@@ -88,6 +88,7 @@ import app.aaps.pump.insight.utils.crypto.Cryptograph.deriveKeys
 import app.aaps.pump.insight.utils.crypto.Cryptograph.generateRSAKey
 import app.aaps.pump.insight.utils.crypto.Cryptograph.getServicePasswordHash
 import app.aaps.pump.insight.utils.crypto.KeyPair
+import app.aaps.pump.insight.utils.crypto.SatlCipher
 import dagger.android.DaggerService
 import org.spongycastle.crypto.InvalidCipherTextException
 import java.io.IOException
@@ -119,6 +120,8 @@ class InsightConnectionService : DaggerService(), ConnectionEstablisher.Callback
     private var outputStreamWriter: OutputStreamWriter? = null
     private var keyRequest: KeyRequest? = null
     private val buffer = ByteBuf(BUFFER_SIZE)
+    private var incomingCipher: SatlCipher? = null
+    private var outgoingCipher: SatlCipher? = null
     @get:Synchronized var verificationString: String? = null
         private set
     private val messageQueue = MessageQueue()
@@ -305,6 +308,8 @@ class InsightConnectionService : DaggerService(), ConnectionEstablisher.Callback
         timeoutTimer = null
 
         buffer.clear()
+        incomingCipher = null
+        outgoingCipher = null
         verificationString = null
         intKeyPair = null
         intRandomBytes = null
@@ -419,7 +424,8 @@ class InsightConnectionService : DaggerService(), ConnectionEstablisher.Callback
         this.buffer.putBytes(buffer, bytesRead)
         try {
             while (hasCompletePacket(this.buffer)) {
-                val satlMessage = deserialize(this.buffer, pairingDataStorage.lastNonceReceived, pairingDataStorage.incomingKey)
+                incomingCipher = SatlCipher.reuse(incomingCipher, pairingDataStorage.incomingKey)
+                val satlMessage = deserialize(this.buffer, pairingDataStorage.lastNonceReceived, incomingCipher)
                 satlMessage?.let {
                     if (pairingDataStorage.incomingKey != null && pairingDataStorage.lastNonceReceived != null && !pairingDataStorage.lastNonceReceived!!.isSmallerThan(it.nonce!!)) {
                         throw InvalidNonceException()
@@ -439,7 +445,10 @@ class InsightConnectionService : DaggerService(), ConnectionEstablisher.Callback
             pairingDataStorage.lastNonceSent = it
             satlMessage.nonce = it
         }
-        val serialized = satlMessage.serialize(pairingDataStorage.outgoingKey)
+        val serialized = synchronized(this) {
+            outgoingCipher = SatlCipher.reuse(outgoingCipher, pairingDataStorage.outgoingKey)
+            satlMessage.serialize(outgoingCipher)
+        }
         timeoutTimer?.interrupt()
         timeoutTimer = runDelayed("TimeoutTimer", RESPONSE_TIMEOUT) {
             timeoutTimer = null
@@ -11,6 +11,7 @@ import app.aaps.pump.insight.exceptions.InvalidSatlCommandException
 import app.aaps.pump.insight.utils.ByteBuf
 import app.aaps.pump.insight.utils.Nonce
 import app.aaps.pump.insight.utils.crypto.Cryptograph
+import app.aaps.pump.insight.utils.crypto.SatlCipher
 
 abstract class SatlMessage {
 
@@ -22,8 +23,10 @@ abstract class SatlMessage {
 
     protected open fun parse(byteBuf: ByteBuf) = Unit
 
-    fun serialize(key: ByteArray?): ByteBuf {
-        val byteBuf: ByteBuf = if (nonce == null || key == null) serializeCRC() else serializeCTR(nonce!!.productionalBytes, key, SatlCommands.fromType(this))
+    fun serialize(key: ByteArray?): ByteBuf = serialize(SatlCipher.reuse(null, key))
+
+    fun serialize(cipher: SatlCipher?): ByteBuf {
+        val byteBuf: ByteBuf = if (nonce == null || cipher == null) serializeCRC() else serializeCTR(nonce!!.productionalBytes, cipher, SatlCommands.fromType(this))
         satlContent = byteBuf.getBytes(8, byteBuf.filledSize - 16)
         return byteBuf
     }
@@ -45,21 +48,24 @@ abstract class SatlMessage {
         return byteBuf
     }
 
-    private fun serializeCTR(nonce: ByteBuf, key: ByteArray, commandId: Byte): ByteBuf {
-        val data = data
-        val encryptedData = ByteBuf.from(Cryptograph.encryptDataCTR(data.bytes, key, nonce.bytes))
-        val length = 29 + encryptedData.filledSize
+    private fun serializeCTR(nonce: ByteBuf, cipher: SatlCipher, commandId: Byte): ByteBuf {
+        val payload = data.bytes
+        val nonceBytes = nonce.bytes
+        val length = 29 + payload.size
         val byteBuf = ByteBuf(length + 8)
         byteBuf.putUInt32LE(PREAMBLE)
         byteBuf.putUInt16LE(length)
         byteBuf.putUInt16LE(length.inv())
         byteBuf.putByte(VERSION)
         byteBuf.putByte(commandId)
-        byteBuf.putUInt16LE(encryptedData.filledSize)
+        byteBuf.putUInt16LE(payload.size)
         byteBuf.putUInt32LE(commID)
-        byteBuf.putByteBuf(nonce)
-        byteBuf.putByteBuf(encryptedData)
-        byteBuf.putBytes(Cryptograph.produceCCMTag(byteBuf.getBytes(16, 13), data.bytes, byteBuf.getBytes(8, 21), key))
+        byteBuf.putBytes(nonceBytes)
+        // tag is calculated over the plain payload, then the same array is encrypted in place
+        val tag = cipher.produceCCMTag(nonceBytes, payload, byteBuf.getBytes(8, 21))
+        cipher.processCTR(nonceBytes, payload)
+        byteBuf.putBytes(payload)
+        byteBuf.putBytes(tag)
         return byteBuf
     }
 
@@ -78,9 +84,21 @@ abstract class SatlMessage {
             IncompatibleSatlVersionException::class,
             InvalidSatlCommandException::class
         )
-        fun deserialize(data: ByteBuf, lastNonce: Nonce?, key: ByteArray?): SatlMessage? {
+        fun deserialize(data: ByteBuf, lastNonce: Nonce?, key: ByteArray?): SatlMessage? = deserialize(data, lastNonce, SatlCipher.reuse(null, key))
+
+        @JvmStatic
+        @Throws(
+            InvalidMacTrailerException::class,
+            InvalidSatlCRCException::class,
+            InvalidNonceException::class,
+            InvalidPreambleException::class,
+            InvalidPacketLengthsException::class,
+            IncompatibleSatlVersionException::class,
+            InvalidSatlCommandException::class
+        )
+        fun deserialize(data: ByteBuf, lastNonce: Nonce?, cipher: SatlCipher?): SatlMessage? {
             val satlContent = data.getBytes(8, data.filledSize - 16)
-            val satlMessage: SatlMessage? = if (key == null) deserializeCRC(data) else lastNonce?.let { deserializeCTR(data, it, key) }
+            val satlMessage: SatlMessage? = if (cipher == null) deserializeCRC(data) else lastNonce?.let { deserializeCTR(data, it, cipher) }
             satlMessage?.let { it.satlContent = satlContent }
             return satlMessage
         }
@@ -93,7 +111,7 @@ abstract class SatlMessage {
             IncompatibleSatlVersionException::class,
             InvalidSatlCommandException::class
         )
-        private fun deserializeCTR(data: ByteBuf, lastNonce: Nonce, key: ByteArray): SatlMessage {
+        private fun deserializeCTR(data: ByteBuf, lastNonce: Nonce, cipher: SatlCipher): SatlMessage {
             val preamble = data.readUInt32LE()
             val packetLength = data.readUInt16LE()
             val packetLengthXOR = data.readUInt16LE() xor 65535
@@ -104,11 +122,11 @@ abstract class SatlMessage {
             val dataLength = data.readUInt16LE()
             val commId = data.readUInt32LE()
             val nonce = data.readBytes(13)
-            var payload = data.readBytes(dataLength)
+            val payload = data.readBytes(dataLength)
             val trailer = data.readBytes(8)
             val parsedNonce = Nonce.fromProductionalBytes(nonce)
-            payload = Cryptograph.encryptDataCTR(payload, key, nonce)
-            if (!trailer.contentEquals(Cryptograph.produceCCMTag(nonce, payload, header, key))) throw InvalidMacTrailerException()
+            cipher.processCTR(nonce, payload)
+            if (!cipher.verifyCCMTag(nonce, payload, header, trailer)) throw InvalidMacTrailerException()
             if (!lastNonce.isSmallerThan(parsedNonce)) throw InvalidNonceException()
             if (preamble != PREAMBLE) throw InvalidPreambleException()
             if (packetLength != packetLengthXOR) throw InvalidPacketLengthsException()
@@ -5,48 +5,75 @@ import java.math.RoundingMode
 import java.nio.charset.StandardCharsets
 import kotlin.experimental.and
 
+/**
+ * Byte buffer backed by a fixed-capacity ring.
+ *
+ * Consuming bytes from the front (read*, [shift]) only moves the head index, so the
+ * receive buffer in [app.aaps.pump.insight.connection_service.InsightConnectionService]
+ * no longer copies its whole content for every parsed message.
+ */
 class ByteBuf(length: Int) {
 
     private val _bytes: ByteArray = ByteArray(length)
+    private var head = 0
     var filledSize = 0
         private set
     val bytes: ByteArray
-        get() {
-            val bytes = ByteArray(filledSize)
-            System.arraycopy(_bytes, 0, bytes, 0, filledSize)
-            return bytes
-        }
+        get() = getBytes(0, filledSize)
+
+    val capacity: Int
+        get() = _bytes.size
+
+    private fun index(position: Int): Int {
+        val i = head + position
+        return if (i >= _bytes.size) i - _bytes.size else i
+    }
 
     fun shift(offset: Int) {
-        System.arraycopy(_bytes, offset, _bytes, 0, _bytes.size - offset)
+        if (offset >= filledSize) {
+            head = 0
+            filledSize = 0
+            return
+        }
+        head = index(offset)
         filledSize -= offset
     }
 
-    // public byte getByte(int position) { return _bytes[position]; }
-    private val byte: Byte
-        get() = _bytes[0]
+    fun getByte(position: Int): Byte = _bytes[index(position)]
 
     fun readByte(): Byte {
-        val b = byte
+        val b = getByte(0)
         shift(1)
         return b
     }
 
     fun putByte(b: Byte) {
-        _bytes[filledSize] = b
+        if (filledSize >= _bytes.size) throw IndexOutOfBoundsException("ByteBuf overflow: ${filledSize + 1} > ${_bytes.size}")
+        _bytes[index(filledSize)] = b
         filledSize += 1
     }
 
     fun putBytes(b: Byte, count: Int) {
-        for (i in 0 until count) _bytes[filledSize++] = b
+        for (i in 0 until count) putByte(b)
     }
 
     fun getBytes(position: Int, length: Int): ByteArray {
         val copy = ByteArray(length)
-        System.arraycopy(_bytes, position, copy, 0, length)
+        getBytes(position, copy, 0, length)
         return copy
     }
 
+    /**
+     * Copies [length] bytes starting at [position] into [target] without allocating
+     */
+    fun getBytes(position: Int, target: ByteArray, targetOffset: Int, length: Int) {
+        if (length == 0) return
+        val start = index(position)
+        val firstPart = minOf(length, _bytes.size - start)
+        System.arraycopy(_bytes, start, target, targetOffset, firstPart)
+        if (firstPart < length) System.arraycopy(_bytes, 0, target, targetOffset + firstPart, length - firstPart)
+    }
+
     fun getBytes(length: Int): ByteArray {
         return getBytes(0, length)
     }
@@ -62,13 +89,22 @@ class ByteBuf(length: Int) {
     }
 
     @JvmOverloads fun putBytes(bytes: ByteArray, length: Int = bytes.size) {
-        System.arraycopy(bytes, 0, _bytes, filledSize, length)
+        putBytes(bytes, 0, length)
+    }
+
+    fun putBytes(bytes: ByteArray, offset: Int, length: Int) {
+        if (length == 0) return
+        if (filledSize + length > _bytes.size) throw IndexOutOfBoundsException("ByteBuf overflow: ${filledSize + length} > ${_bytes.size}")
+        val start = index(filledSize)
+        val firstPart = minOf(length, _bytes.size - start)
+        System.arraycopy(bytes, offset, _bytes, start, firstPart)
+        if (firstPart < length) System.arraycopy(bytes, offset + firstPart, _bytes, 0, length - firstPart)
         filledSize += length
     }
 
     private fun getBytesLE(position: Int, length: Int): ByteArray {
         val copy = ByteArray(length)
-        for (i in 0 until length) copy[i] = _bytes[length - 1 - i + position]
+        for (i in 0 until length) copy[i] = getByte(length - 1 - i + position)
         return copy
     }
 
@@ -80,7 +116,7 @@ class ByteBuf(length: Int) {
     }
 
     private fun putBytesLE(bytes: ByteArray, length: Int) {
-        for (i in 0 until length) _bytes[filledSize + length - 1 - i] = bytes[i]
+        for (i in 0 until length) _bytes[index(filledSize + length - 1 - i)] = bytes[i]
         filledSize += length
     }
 
@@ -89,11 +125,11 @@ class ByteBuf(length: Int) {
     }
 
     fun putByteBuf(byteBuf: ByteBuf) {
-        putBytes(byteBuf.bytes, byteBuf.filledSize)
+        for (i in 0 until byteBuf.filledSize) putByte(byteBuf.getByte(i))
     }
 
     private fun getUInt8(position: Int): Short {
-        return _bytes[position].toShort() and 0xFF
+        return getByte(position).toShort() and 0xFF
     }
 
     // private short getUInt8() { return getUInt8(0); }
@@ -108,9 +144,8 @@ class ByteBuf(length: Int) {
     }
 
     fun getUInt16LE(position: Int): Int {
-        var p = position
-        return (_bytes[p++].toShort() and 0xFF) +
-            (_bytes[p].toShort() and 0xFF) * 256 // Convert to short and replace "or" by "+" and "shl 8" by "* 256" to fix convertion compared to java
+        return (getByte(position).toShort() and 0xFF) +
+            (getByte(position + 1).toShort() and 0xFF) * 256 // Convert to short and replace "or" by "+" and "shl 8" by "* 256" to fix convertion compared to java
     }
 
     //private int getUInt16LE() { return getUInt16LE(0); }
@@ -182,10 +217,9 @@ class ByteBuf(length: Int) {
     }
 
     private fun getShort(position: Int): Short {
-        var p = position
         return (
-            (_bytes[p++].toLong() and 0xFF) shl 8 or
-                (_bytes[p].toLong() and 0xFF)
+            (getByte(position).toLong() and 0xFF) shl 8 or
+                (getByte(position + 1).toLong() and 0xFF)
             ).toShort()  // Convert to Long and keep "or", "and" & "shl" to fix convertion compared to java
     }
 
@@ -202,11 +236,10 @@ class ByteBuf(length: Int) {
     }
 
     private fun getUInt32LE(position: Int): Long {
-        var p = position
-        return _bytes[p++].toLong() and 0xFF or (
-            _bytes[p++].toLong() and 0xFF shl 8) or (
-            _bytes[p++].toLong() and 0xFF shl 16) or (
-            _bytes[p].toLong() and 0xFF shl 24)
+        return getByte(position).toLong() and 0xFF or (
+            getByte(position + 1).toLong() and 0xFF shl 8) or (
+            getByte(position + 2).toLong() and 0xFF shl 16) or (
+            getByte(position + 3).toLong() and 0xFF shl 24)
     }
 
     // private long getUInt32LE() { return getUInt32LE(0); }
@@ -273,7 +306,8 @@ class ByteBuf(length: Int) {
     }
 
     fun clear() {
-        shift(filledSize)
+        head = 0
+        filledSize = 0
     }
 
     companion object {
@@ -0,0 +1,122 @@
+package app.aaps.pump.insight.utils.crypto
+
+import org.spongycastle.crypto.engines.TwofishEngine
+import org.spongycastle.crypto.params.KeyParameter
+
+/**
+ * Pre-keyed Twofish context for one direction of a SATL session.
+ *
+ * The key schedule is computed once when the session keys are derived and the
+ * CTR / CBC-MAC primitives work in place over caller provided buffers using
+ * scratch blocks owned by this instance, so no engine or intermediate arrays
+ * are created per message.
+ */
+class SatlCipher(val key: ByteArray) {
+
+    private val engine = TwofishEngine().also { it.init(true, KeyParameter(key)) }
+    private val counterBlock = ByteArray(BLOCK_SIZE)
+    private val keyStream = ByteArray(BLOCK_SIZE)
+    private val macBlock = ByteArray(BLOCK_SIZE)
+    private val tagBlock = ByteArray(TAG_SIZE)
+    private var macPosition = 0
+
+    /**
+     * Encrypts or decrypts (CTR is symmetric) [length] bytes of [data] starting at [offset] in place
+     */
+    @Synchronized
+    fun processCTR(nonce: ByteArray, data: ByteArray, offset: Int = 0, length: Int = data.size - offset) {
+        var done = 0
+        var counter = 1
+        while (done < length) {
+            encryptCounterBlock(nonce, counter++)
+            val chunk = minOf(BLOCK_SIZE, length - done)
+            for (i in 0 until chunk) data[offset + done + i] = (data[offset + done + i].toInt() xor keyStream[i].toInt()).toByte()
+            done += chunk
+        }
+    }
+
+    /**
+     * Calculates the 8 byte CCM tag over plain [payload] and [header] and writes it into [tag] at [tagOffset]
+     */
+    @Synchronized
+    fun produceCCMTag(
+        nonce: ByteArray,
+        payload: ByteArray, payloadOffset: Int, payloadLength: Int,
+        header: ByteArray, headerOffset: Int, headerLength: Int,
+        tag: ByteArray, tagOffset: Int
+    ) {
+        // B0 = flags | nonce | payload length, encrypted as the CBC-MAC starting block
+        fillPrimitive(macBlock, IV_FLAGS, nonce, payloadLength)
+        engine.processBlock(macBlock, 0, macBlock, 0)
+        macPosition = 0
+        absorb((headerLength shr 8).toByte())
+        absorb(headerLength.toByte())
+        for (i in 0 until headerLength) absorb(header[headerOffset + i])
+        flushMac()
+        for (i in 0 until payloadLength) absorb(payload[payloadOffset + i])
+        flushMac()
+        encryptCounterBlock(nonce, 0)
+        for (i in 0 until TAG_SIZE) tag[tagOffset + i] = (macBlock[i].toInt() xor keyStream[i].toInt()).toByte()
+    }
+
+    fun produceCCMTag(nonce: ByteArray, payload: ByteArray, header: ByteArray): ByteArray =
+        ByteArray(TAG_SIZE).also { produceCCMTag(nonce, payload, 0, payload.size, header, 0, header.size, it, 0) }
+
+    /**
+     * Verifies [trailer] against the tag of plain [payload] without allocating
+     */
+    @Synchronized
+    fun verifyCCMTag(nonce: ByteArray, payload: ByteArray, header: ByteArray, trailer: ByteArray): Boolean {
+        if (trailer.size != TAG_SIZE) return false
+        produceCCMTag(nonce, payload, 0, payload.size, header, 0, header.size, tagBlock, 0)
+        var diff = 0
+        for (i in 0 until TAG_SIZE) diff = diff or (tagBlock[i].toInt() xor trailer[i].toInt())
+        return diff == 0
+    }
+
+    private fun absorb(b: Byte) {
+        macBlock[macPosition] = (macBlock[macPosition].toInt() xor b.toInt()).toByte()
+        if (++macPosition == BLOCK_SIZE) {
+            engine.processBlock(macBlock, 0, macBlock, 0)
+            macPosition = 0
+        }
+    }
+
+    // zero padding of a partial block is a no-op on the xor-accumulated state
+    private fun flushMac() {
+        if (macPosition == 0) return
+        engine.processBlock(macBlock, 0, macBlock, 0)
+        macPosition = 0
+    }
+
+    private fun encryptCounterBlock(nonce: ByteArray, counter: Int) {
+        fillPrimitive(counterBlock, CTR_FLAGS, nonce, counter)
+        engine.processBlock(counterBlock, 0, keyStream, 0)
+    }
+
+    private fun fillPrimitive(block: ByteArray, flags: Byte, nonce: ByteArray, number: Int) {
+        block[0] = flags
+        System.arraycopy(nonce, 0, block, 1, NONCE_SIZE)
+        block[14] = (number shr 8).toByte()
+        block[15] = number.toByte()
+    }
+
+    companion object {
+
+        const val BLOCK_SIZE = 16
+        const val TAG_SIZE = 8
+        private const val NONCE_SIZE = 13
+        private const val IV_FLAGS: Byte = 0x59
+        private const val CTR_FLAGS: Byte = 0x01
+
+        /**
+         * Returns [current] while it is still keyed with [key] (same array instance), otherwise a new context
+         */
+        fun reuse(current: SatlCipher?, key: ByteArray?): SatlCipher? =
+            when {
+                key == null                            -> null
+                current != null && current.key === key -> current
+                else                                   -> SatlCipher(key)
+            }
+    }
+}
@@ -2,6 +2,7 @@ package app.aaps.pump.insight.utils
 
 import app.aaps.shared.tests.TestBase
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
 import org.junit.Assert.assertTrue
 import org.junit.jupiter.api.Test
 
@@ -109,4 +110,32 @@ class ByteBufTest : TestBase() {
 
     }
 
-}
\ No newline at end of file
+    @Test
+    fun testRingWrapAround() {
+        val sut = ByteBuf(8)
+        sut.putBytes(byteArrayOf(1, 2, 3, 4, 5, 6))
+        sut.shift(5)
+        // next put wraps over the end of the backing array
+        sut.putBytes(byteArrayOf(7, 8, 9, 10, 11))
+        assertEquals(6, sut.filledSize)
+        assertTrue(sut.bytes.contentEquals(byteArrayOf(6, 7, 8, 9, 10, 11)))
+        assertEquals(0x0807, sut.getUInt16LE(1))
+        assertTrue(sut.readBytes(3).contentEquals(byteArrayOf(6, 7, 8)))
+        sut.putUInt32LE(0x04030201)
+        assertTrue(sut.bytes.contentEquals(byteArrayOf(9, 10, 11, 1, 2, 3, 4)))
+        assertEquals(0x04030201, sut.getBytes(3, 4).let { ByteBuf.from(it).readUInt32LE() })
+        sut.clear()
+        assertEquals(0, sut.filledSize)
+    }
+
+    @Test
+    fun testOverflowIsRejected() {
+        val sut = ByteBuf(4)
+        sut.putBytes(byteArrayOf(1, 2, 3))
+        assertThrows(IndexOutOfBoundsException::class.java) { sut.putBytes(byteArrayOf(4, 5)) }
+        assertThrows(IndexOutOfBoundsException::class.java) {
+            sut.putByte(4)
+            sut.putByte(5)
+        }
+    }
+}
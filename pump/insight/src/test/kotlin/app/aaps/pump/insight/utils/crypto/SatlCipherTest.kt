@@ -0,0 +1,135 @@
+package app.aaps.pump.insight.utils.crypto
+
+import app.aaps.pump.insight.utils.ByteBuf
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.spongycastle.crypto.engines.TwofishEngine
+import org.spongycastle.crypto.modes.CBCBlockCipher
+import org.spongycastle.crypto.params.KeyParameter
+import org.spongycastle.crypto.params.ParametersWithIV
+import kotlin.random.Random
+
+class SatlCipherTest {
+
+    private val random = Random(42)
+    private val key = ByteArray(16) { it.toByte() }
+    private val nonce = byteArrayOf(1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0)
+    private val header = ByteArray(21) { (0x20 + it).toByte() }
+
+    @Test
+    fun ctrMatchesReferenceImplementation() {
+        val sut = SatlCipher(key)
+        for (size in listOf(0, 1, 15, 16, 17, 31, 32, 100, 511)) {
+            val data = random.nextBytes(size)
+            val expected = referenceCTR(data, key, nonce)
+            val inPlace = data.copyOf()
+            sut.processCTR(nonce, inPlace)
+            assertThat(inPlace).isEqualTo(expected)
+            // CTR is symmetric
+            sut.processCTR(nonce, inPlace)
+            assertThat(inPlace).isEqualTo(data)
+        }
+    }
+
+    @Test
+    fun ctrWorksOnSlice() {
+        val sut = SatlCipher(key)
+        val data = random.nextBytes(40)
+        val buffer = ByteArray(50).also { System.arraycopy(data, 0, it, 5, data.size) }
+        sut.processCTR(nonce, buffer, 5, data.size)
+        assertThat(buffer.copyOfRange(5, 45)).isEqualTo(referenceCTR(data, key, nonce))
+        assertThat(buffer.copyOfRange(0, 5)).isEqualTo(ByteArray(5))
+        assertThat(buffer.copyOfRange(45, 50)).isEqualTo(ByteArray(5))
+    }
+
+    @Test
+    fun tagMatchesReferenceImplementation() {
+        val sut = SatlCipher(key)
+        for (size in listOf(0, 1, 13, 14, 16, 30, 64, 255)) {
+            val payload = random.nextBytes(size)
+            val expected = referenceCCMTag(nonce, payload, header, key)
+            assertThat(sut.produceCCMTag(nonce, payload, header)).isEqualTo(expected)
+            assertThat(sut.verifyCCMTag(nonce, payload, header, expected)).isTrue()
+            expected[3] = (expected[3].toInt() xor 0x01).toByte()
+            assertThat(sut.verifyCCMTag(nonce, payload, header, expected)).isFalse()
+        }
+    }
+
+    @Test
+    fun cryptographDelegatesToCipher() {
+        val payload = random.nextBytes(77)
+        assertThat(Cryptograph.encryptDataCTR(payload, key, nonce)).isEqualTo(referenceCTR(payload, key, nonce))
+        assertThat(Cryptograph.produceCCMTag(nonce, payload, header, key)).isEqualTo(referenceCCMTag(nonce, payload, header, key))
+    }
+
+    @Test
+    fun reuseKeepsContextForSameKey() {
+        val first = SatlCipher.reuse(null, key)
+        assertThat(SatlCipher.reuse(first, key)).isSameInstanceAs(first)
+        assertThat(SatlCipher.reuse(first, key.copyOf())).isNotSameInstanceAs(first)
+        assertThat(SatlCipher.reuse(first, null)).isNull()
+    }
+
+    @Test
+    fun keyedContextIsReusedAcrossMessages() {
+        val sut = SatlCipher(key)
+        repeat(100) {
+            val messageNonce = nonce.copyOf().also { n -> n[0] = it.toByte() }
+            val payload = random.nextBytes(64)
+            val encrypted = payload.copyOf()
+            sut.processCTR(messageNonce, encrypted)
+            assertThat(encrypted).isEqualTo(referenceCTR(payload, key, messageNonce))
+            assertThat(sut.produceCCMTag(messageNonce, encrypted, header)).isEqualTo(referenceCCMTag(messageNonce, encrypted, header, key))
+        }
+    }
+
+    // Previous per-message implementation, kept as known answer reference
+
+    private fun referenceCombine(array1: ByteArray, array2: ByteArray): ByteArray = array1 + array2
+
+    private fun referenceXOR(array1: ByteArray, array2: ByteArray): ByteArray =
+        ByteArray(minOf(array1.size, array2.size)) { (array1[it].toInt() xor array2[it].toInt()).toByte() }
+
+    private fun referencePad(input: ByteArray): ByteArray {
+        val modulus = input.size % 16
+        return if (modulus == 0) input else referenceCombine(input, ByteArray(16 - modulus))
+    }
+
+    private fun referencePrimitive(headerByte: Byte, nonce: ByteArray, number: Short): ByteArray {
+        val byteBuf = ByteBuf(16)
+        byteBuf.putByte(headerByte)
+        byteBuf.putBytes(nonce)
+        byteBuf.putShort(number)
+        return byteBuf.bytes
+    }
+
+    private fun referenceCTR(data: ByteArray, key: ByteArray, nonce: ByteArray): ByteArray {
+        val padded = referencePad(data)
+        val length = padded.size shr 4
+        val result = ByteArray(length * 16)
+        val engine = TwofishEngine()
+        engine.init(true, KeyParameter(key))
+        for (i in 0 until length) engine.processBlock(referencePrimitive(0x01, nonce, (i + 1).toShort()), 0, result, i * 16)
+        return referenceXOR(padded, result).copyOf(data.size)
+    }
+
+    private fun referenceCCMTag(nonce: ByteArray, payload: ByteArray, header: ByteArray, key: ByteArray): ByteArray {
+        val engine = TwofishEngine()
+        engine.init(true, KeyParameter(key))
+        val initializationVector = ByteArray(engine.blockSize)
+        engine.processBlock(referencePrimitive(0x59, nonce, payload.size.toShort()), 0, initializationVector, 0)
+        val cbc = CBCBlockCipher(TwofishEngine())
+        cbc.init(true, ParametersWithIV(KeyParameter(key), initializationVector))
+        val processedHeader = ByteBuf(2 + header.size).also {
+            it.putShort(header.size.toShort())
+            it.putBytes(header)
+        }.bytes
+        val combine = referenceCombine(referencePad(processedHeader), referencePad(payload))
+        val result = ByteArray(combine.size)
+        for (i in 0 until combine.size / 16) cbc.processBlock(combine, i * 16, result, i * 16)
+        val result2 = result.copyOfRange(result.size - 16, result.size - 8)
+        val ctr = ByteArray(engine.blockSize)
+        engine.processBlock(referencePrimitive(0x01, nonce, 0), 0, ctr, 0)
+        return referenceXOR(result2, ctr)
+    }
+}
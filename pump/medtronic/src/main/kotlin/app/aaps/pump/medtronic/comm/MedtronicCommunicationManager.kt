@@ -368,9 +368,8 @@ class MedtronicCommunicationManager @Inject constructor(
                 return pumpTotalResult
             }
             rawHistoryPage.dumpToDebug()
-            val medtronicHistoryEntries = medtronicPumpHistoryDecoder.processPageAndCreateRecords(rawHistoryPage)
+            val medtronicHistoryEntries = medtronicPumpHistoryDecoder.processPage(rawHistoryPage, pumpTotalResult)
             aapsLogger.debug(LTag.PUMPCOMM, String.format(Locale.ENGLISH, "getPumpHistory: Found %d history entries.", medtronicHistoryEntries.size))
-            pumpTotalResult.addHistoryEntries(medtronicHistoryEntries) //, pageNumber)
             aapsLogger.debug(LTag.PUMPCOMM, String.format(Locale.ENGLISH, "getPumpHistory: Search status: Search finished: %b", pumpTotalResult.isSearchFinished))
             if (pumpTotalResult.isSearchFinished) {
                 medtronicPumpStatus.pumpDeviceState = PumpDeviceState.Sleeping
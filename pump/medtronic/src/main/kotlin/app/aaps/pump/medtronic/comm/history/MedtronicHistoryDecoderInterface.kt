@@ -6,5 +6,5 @@ package app.aaps.pump.medtronic.comm.history
 interface MedtronicHistoryDecoderInterface<T> {
 
     fun decodeRecord(record: T): RecordDecodeStatus?
-    fun createRecords(dataClearInput: MutableList<Byte>): MutableList<T>
+    fun createRecords(dataClearInput: ByteArray): MutableList<T>
 }
\ No newline at end of file
@@ -5,6 +5,7 @@ import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.utils.DateTimeUtil
 import app.aaps.core.utils.pump.ByteUtil
 import app.aaps.pump.medtronic.comm.history.MedtronicHistoryDecoder
+import app.aaps.pump.medtronic.comm.history.RawHistoryPage
 import app.aaps.pump.medtronic.comm.history.RecordDecodeStatus
 import app.aaps.pump.medtronic.comm.history.pump.PumpHistoryEntryType.Companion.getByCode
 import app.aaps.pump.medtronic.data.dto.BasalProfile
@@ -19,6 +20,8 @@ import java.util.Locale
 import javax.inject.Inject
 import javax.inject.Singleton
 import kotlin.experimental.and
+import kotlin.math.max
+import kotlin.math.min
 
 /**
  * This file was taken from GGC - GNU Gluco Control (ggc.sourceforge.net), application for diabetes
@@ -36,21 +39,29 @@ class MedtronicPumpHistoryDecoder @Inject constructor(
     //private var tbrPreviousRecord: PumpHistoryEntry? = null
     private var changeTimeRecord: PumpHistoryEntry? = null
 
-    override fun createRecords(dataClearInput: MutableList<Byte>): MutableList<PumpHistoryEntry> {
+    override fun createRecords(dataClearInput: ByteArray): MutableList<PumpHistoryEntry> = createRecords(dataClearInput, null)
+
+    /**
+     * Walks raw page data with an index and creates entries only for records that are not known yet.
+     *
+     * When [knownRecords] has a search date, dated records not after it are only counted (no entry
+     * is created or decoded), so on reconnect only the few new records of a page are materialized.
+     */
+    fun createRecords(dataClearInput: ByteArray, knownRecords: PumpHistoryResult?): MutableList<PumpHistoryEntry> {
         prepareStatistics()
         var counter = 0
         var record = 0
-        var incompletePacket: Boolean
         val outList: MutableList<PumpHistoryEntry> = mutableListOf()
         var skipped: String? = null
         if (dataClearInput.isEmpty()) {
             aapsLogger.error(LTag.PUMPBTCOMM, "Empty page.")
             return outList
         }
+        val model = medtronicUtil.medtronicPumpModel
+        val knownUntil = knownRecords?.knownUntil
         do {
             val opCode: Int = dataClearInput[counter].toInt()
             var special = false
-            incompletePacket = false
             var skippedRecords = false
             if (opCode == 0) {
                 counter++
@@ -67,54 +78,51 @@ class MedtronicPumpHistoryDecoder @Inject constructor(
                 aapsLogger.error(LTag.PUMPBTCOMM, "We had some skipped bytes, which might indicate error in pump history. Please report this problem.")
             }
             val entryType = getByCode(opCode.toByte())
-            val pe = PumpHistoryEntry()
-            pe.setEntryType(medtronicUtil.medtronicPumpModel, entryType, if (entryType == PumpHistoryEntryType.UnknownBasePacket) opCode.toByte() else null)
-            pe.offset = counter
+            val start = counter
             counter++
             if (counter >= 1022) {
                 break
             }
-            val listRawData: MutableList<Byte> = ArrayList()
-            listRawData.add(opCode.toByte())
             if (entryType === PumpHistoryEntryType.UnabsorbedInsulin
                 || entryType === PumpHistoryEntryType.UnabsorbedInsulin512
             ) {
-                val elements: Int = dataClearInput[counter].toInt()
-                listRawData.add(elements.toByte())
+                val els = getUnsignedInt(dataClearInput[counter])
                 counter++
-                val els = getUnsignedInt(elements)
-                for (k in 0 until els - 2) {
-                    if (counter < 1022) {
-                        listRawData.add(dataClearInput[counter])
-                        counter++
-                    }
-                }
+                val available = min(1022, dataClearInput.size) - counter
+                counter += max(0, min(els - 2, available))
                 special = true
             } else {
-                for (j in 0 until entryType.getTotalLength(medtronicUtil.medtronicPumpModel) - 1) {
-                    try {
-                        listRawData.add(dataClearInput[counter])
-                        counter++
-                    } catch (ex: Exception) {
-                        aapsLogger.error(
-                            LTag.PUMPBTCOMM, "OpCode: " + ByteUtil.shortHexString(opCode.toByte()) + ", Invalid package: "
-                                + ByteUtil.getHex(listRawData)
-                        )
-                        // throw ex;
-                        incompletePacket = true
-                        break
-                    }
+                val end = start + entryType.getTotalLength(model)
+                if (end > dataClearInput.size) {
+                    aapsLogger.error(
+                        LTag.PUMPBTCOMM, "OpCode: " + ByteUtil.shortHexString(opCode.toByte()) + ", Invalid package: "
+                            + ByteUtil.getHex(dataClearInput.copyOfRange(start, dataClearInput.size))
+                    )
+                    break
                 }
-                if (incompletePacket) break
+                counter = end
             }
             if (entryType === PumpHistoryEntryType.None) {
                 aapsLogger.error(LTag.PUMPBTCOMM, "Error in code. We should have not come into this branch.")
             } else {
+                val headLength = entryType.getHeadLength(model)
+                if (headLength == 0) special = true
+                // already known record: read only its date from the page, do not create an entry
+                if (knownUntil != null && !special && entryType.dateLength > 0 && entryType !== PumpHistoryEntryType.ChangeTime) {
+                    val atechDateTime = parseATechDateTime(dataClearInput, start + headLength, entryType.dateLength, entryType)
+                    if (atechDateTime != 0L && atechDateTime <= knownUntil) {
+                        knownRecords?.skipKnownEntry(atechDateTime)
+                        record++
+                        continue
+                    }
+                }
+                val pe = PumpHistoryEntry()
+                pe.setEntryType(model, entryType, if (entryType == PumpHistoryEntryType.UnknownBasePacket) opCode.toByte() else null)
+                pe.offset = start
                 if (pe.entryType === PumpHistoryEntryType.UnknownBasePacket) {
                     pe.opCode = opCode.toByte()
                 }
-                if (entryType.getHeadLength(medtronicUtil.medtronicPumpModel) == 0) special = true
-                pe.setData(listRawData, special)
+                pe.setData(dataClearInput.copyOfRange(start, counter).toMutableList(), special)
                 val decoded = decodeRecord(pe)
                 if (decoded === RecordDecodeStatus.OK || decoded === RecordDecodeStatus.Ignored) {
                     //Log.i(TAG, "#" + record + " " + decoded.getDescription() + " " + pe);
@@ -132,6 +140,17 @@ class MedtronicPumpHistoryDecoder @Inject constructor(
         return outList
     }
 
+    /**
+     * Streaming page processing used on history download: decodes only records newer than the
+     * search date of [result] and hands them over, older records just mark the search as finished.
+     */
+    fun processPage(rawHistoryPage: RawHistoryPage, result: PumpHistoryResult): MutableList<PumpHistoryEntry> {
+        val records = createRecords(checkPage(rawHistoryPage), result)
+        runPostDecodeTasks()
+        result.addHistoryEntries(records)
+        return records
+    }
+
     override fun decodeRecord(record: PumpHistoryEntry): RecordDecodeStatus {
         return try {
             decodeRecordInternal(record)
@@ -489,46 +508,54 @@ class MedtronicPumpHistoryDecoder @Inject constructor(
             aapsLogger.warn(LTag.PUMPBTCOMM, "DateTime not set.")
         }
         val dt = entry.datetime
-        if (entry.dateTimeLength == 5) {
-            val seconds: Int = (dt.get(0) and 0x3F.toByte()).toInt()
-            val minutes: Int = (dt.get(1) and 0x3F.toByte()).toInt()
-            val hour: Int = (dt.get(2) and 0x1F).toInt()
-            val month: Int = (dt.get(0).toInt() shr 4 and 0x0c) + (dt.get(1).toInt() shr 6 and 0x03)
+        if (entry.dateTimeLength == 2 && (dt[0] and 0x1F).toInt() == 32) {
+            aapsLogger.warn(
+                LTag.PUMPBTCOMM, String.format(
+                    Locale.ENGLISH, "Entry: Day 32 %s = [%s] %s", entry.entryType.name,
+                    ByteUtil.getHex(entry.rawData), entry
+                )
+            )
+        }
+        if (entry.dateTimeLength == 5 || entry.dateTimeLength == 2) {
+            entry.atechDateTime = parseATechDateTime(dt, 0, entry.dateTimeLength, entry.entryType)
+        } else {
+            aapsLogger.warn(LTag.PUMPBTCOMM, "Unknown datetime format: " + entry.dateTimeLength)
+        }
+    }
+
+    /**
+     * Decodes pump date of [length] bytes at [offset] of [dt] into ATech date time, 0 for unknown format
+     */
+    private fun parseATechDateTime(dt: ByteArray, offset: Int, length: Int, entryType: PumpHistoryEntryType): Long {
+        if (length == 5) {
+            val seconds: Int = (dt[offset] and 0x3F.toByte()).toInt()
+            val minutes: Int = (dt[offset + 1] and 0x3F.toByte()).toInt()
+            val hour: Int = (dt[offset + 2] and 0x1F).toInt()
+            val month: Int = (dt[offset].toInt() shr 4 and 0x0c) + (dt[offset + 1].toInt() shr 6 and 0x03)
             // ((dt[0] & 0xC0) >> 6) | ((dt[1] & 0xC0) >> 4);
-            val dayOfMonth: Int = (dt.get(3) and 0x1F).toInt()
-            val year = fix2DigitYear((dt.get(4) and 0x3F.toByte()).toInt()) // Assuming this is correct, need to verify. Otherwise this will be
+            val dayOfMonth: Int = (dt[offset + 3] and 0x1F).toInt()
+            val year = fix2DigitYear((dt[offset + 4] and 0x3F.toByte()).toInt()) // Assuming this is correct, need to verify. Otherwise this will be
             // a problem in 2016.
-            entry.atechDateTime = DateTimeUtil.toATechDate(year, month, dayOfMonth, hour, minutes, seconds)
-        } else if (entry.dateTimeLength == 2) {
+            return DateTimeUtil.toATechDate(year, month, dayOfMonth, hour, minutes, seconds)
+        } else if (length == 2) {
             //val low = ByteUtil.asUINT8(dt.get(0)) and 0x1F
-            val mhigh = ByteUtil.asUINT8(dt.get(0)) and 0xE0 shr 4
-            val mlow = ByteUtil.asUINT8(dt.get(1)) and 0x80 shr 7
+            val mhigh = ByteUtil.asUINT8(dt[offset]) and 0xE0 shr 4
+            val mlow = ByteUtil.asUINT8(dt[offset + 1]) and 0x80 shr 7
             val month = mhigh + mlow
             // int dayOfMonth = low + 1;
-            val dayOfMonth: Int = (dt.get(0) and 0x1F).toInt()
-            val year = 2000 + (ByteUtil.asUINT8(dt.get(1)) and 0x7F)
+            val dayOfMonth: Int = (dt[offset] and 0x1F).toInt()
+            val year = 2000 + (ByteUtil.asUINT8(dt[offset + 1]) and 0x7F)
             var hour = 0
             var minutes = 0
             var seconds = 0
-
-            //LOG.debug("DT: {} {} {}", year, month, dayOfMonth);
-            if (dayOfMonth == 32) {
-                aapsLogger.warn(
-                    LTag.PUMPBTCOMM, String.format(
-                        Locale.ENGLISH, "Entry: Day 32 %s = [%s] %s", entry.entryType.name,
-                        ByteUtil.getHex(entry.rawData), entry
-                    )
-                )
-            }
-            if (isEndResults(entry.entryType)) {
+            if (isEndResults(entryType)) {
                 hour = 23
                 minutes = 59
                 seconds = 59
             }
-            entry.atechDateTime = DateTimeUtil.toATechDate(year, month, dayOfMonth, hour, minutes, seconds)
-        } else {
-            aapsLogger.warn(LTag.PUMPBTCOMM, "Unknown datetime format: " + entry.dateTimeLength)
+            return DateTimeUtil.toATechDate(year, month, dayOfMonth, hour, minutes, seconds)
         }
+        return 0L
     }
 
     private fun isEndResults(entryType: PumpHistoryEntryType?): Boolean {
@@ -19,6 +19,20 @@ class PumpHistoryResult(private val aapsLogger: AAPSLogger, searchEntry: PumpHis
     private var searchType = SearchType.None
     var unprocessedEntries: MutableList<PumpHistoryEntry> = ArrayList()
     var validEntries: MutableList<PumpHistoryEntry> = ArrayList()
+    private var skippedOlderEntries = 0
+
+    /**
+     * Records with date time not after this value are already known and don't need to be decoded
+     */
+    val knownUntil: Long?
+        get() = if (searchType == SearchType.Date) searchDate else null
+
+    /**
+     * Called by decoder for record that was not created because it is not after [knownUntil]
+     */
+    fun skipKnownEntry(atechDateTime: Long) {
+        if (DateTimeUtil.getYear(atechDateTime) > 2015) skippedOlderEntries++
+    }
 
     fun addHistoryEntries(entries: MutableList<PumpHistoryEntry> /*, page: Int*/) {
         unprocessedEntries = entries
@@ -28,7 +42,8 @@ class PumpHistoryResult(private val aapsLogger: AAPSLogger, searchEntry: PumpHis
 
     // TODO Bug #145 need to check if we had timeChange that went -1, that situation needs to be evaluated separately
     private fun processEntries() {
-        var olderEntries = 0
+        var olderEntries = skippedOlderEntries
+        skippedOlderEntries = 0
         unprocessedEntries.reverse()
         when (searchType) {
             SearchType.None      ->                 //aapsLogger.debug(LTag.PUMPCOMM,"PE. None search");
@@ -0,0 +1,106 @@
+package app.aaps.pump.omnipod.dash.driver.comm.endecrypt
+
+import org.spongycastle.crypto.engines.AESEngine
+import org.spongycastle.crypto.params.KeyParameter
+
+/**
+ * AES-CCM (13 byte nonce, 8 byte tag) keyed once for the whole pod session.
+ *
+ * CCMBlockCipher initializes AES again for CTR and CBC-MAC on every packet. Here the key schedule is
+ * computed in the constructor and messages are processed in place using scratch blocks of this instance.
+ */
+class CcmCipher(key: ByteArray) {
+
+    private val engine = AESEngine().also { it.init(true, KeyParameter(key)) }
+    private val counterBlock = ByteArray(BLOCK_SIZE)
+    private val keyStream = ByteArray(BLOCK_SIZE)
+    private val macBlock = ByteArray(BLOCK_SIZE)
+    private var macPosition = 0
+
+    /**
+     * Encrypts [length] bytes of [data] at [offset] in place and writes the tag right after them,
+     * [data] must have [TAG_SIZE] bytes of room behind the payload
+     */
+    @Synchronized
+    fun encrypt(nonce: ByteArray, header: ByteArray, data: ByteArray, offset: Int = 0, length: Int = data.size - offset - TAG_SIZE) {
+        calculateMac(nonce, header, data, offset, length)
+        encryptCounterBlock(nonce, 0)
+        for (i in 0 until TAG_SIZE) data[offset + length + i] = (macBlock[i].toInt() xor keyStream[i].toInt()).toByte()
+        processCTR(nonce, data, offset, length)
+    }
+
+    /**
+     * Decrypts [length] bytes of [data] at [offset] in place and checks them against [tag] at [tagOffset]
+     *
+     * @return false if tag does not match, [data] is left decrypted anyway
+     */
+    @Synchronized
+    fun decrypt(nonce: ByteArray, header: ByteArray, data: ByteArray, offset: Int, length: Int, tag: ByteArray, tagOffset: Int): Boolean {
+        processCTR(nonce, data, offset, length)
+        calculateMac(nonce, header, data, offset, length)
+        encryptCounterBlock(nonce, 0)
+        var diff = 0
+        for (i in 0 until TAG_SIZE) diff = diff or (macBlock[i].toInt() xor keyStream[i].toInt() xor tag[tagOffset + i].toInt())
+        return diff == 0
+    }
+
+    private fun processCTR(nonce: ByteArray, data: ByteArray, offset: Int, length: Int) {
+        var done = 0
+        var counter = 1
+        while (done < length) {
+            encryptCounterBlock(nonce, counter++)
+            val chunk = minOf(BLOCK_SIZE, length - done)
+            for (i in 0 until chunk) data[offset + done + i] = (data[offset + done + i].toInt() xor keyStream[i].toInt()).toByte()
+            done += chunk
+        }
+    }
+
+    // CBC-MAC over B0, length prefixed header and payload, both zero padded
+    private fun calculateMac(nonce: ByteArray, header: ByteArray, data: ByteArray, offset: Int, length: Int) {
+        fillPrimitive(macBlock, B0_FLAGS, nonce, length)
+        engine.processBlock(macBlock, 0, macBlock, 0)
+        macPosition = 0
+        absorb((header.size shr 8).toByte())
+        absorb(header.size.toByte())
+        for (b in header) absorb(b)
+        flushMac()
+        for (i in 0 until length) absorb(data[offset + i])
+        flushMac()
+    }
+
+    private fun absorb(b: Byte) {
+        macBlock[macPosition] = (macBlock[macPosition].toInt() xor b.toInt()).toByte()
+        if (++macPosition == BLOCK_SIZE) {
+            engine.processBlock(macBlock, 0, macBlock, 0)
+            macPosition = 0
+        }
+    }
+
+    // zero padding of a partial block is a no-op on the xor-accumulated state
+    private fun flushMac() {
+        if (macPosition == 0) return
+        engine.processBlock(macBlock, 0, macBlock, 0)
+        macPosition = 0
+    }
+
+    private fun encryptCounterBlock(nonce: ByteArray, counter: Int) {
+        fillPrimitive(counterBlock, CTR_FLAGS, nonce, counter)
+        engine.processBlock(counterBlock, 0, keyStream, 0)
+    }
+
+    private fun fillPrimitive(block: ByteArray, flags: Byte, nonce: ByteArray, number: Int) {
+        block[0] = flags
+        System.arraycopy(nonce, 0, block, 1, NONCE_SIZE)
+        block[14] = (number shr 8).toByte()
+        block[15] = number.toByte()
+    }
+
+    companion object {
+
+        const val TAG_SIZE = 8
+        const val NONCE_SIZE = 13
+        private const val BLOCK_SIZE = 16
+        private const val B0_FLAGS: Byte = 0x59 // Adata, (8 - 2) / 2 << 3, 2 byte length
+        private const val CTR_FLAGS: Byte = 0x01
+    }
+}
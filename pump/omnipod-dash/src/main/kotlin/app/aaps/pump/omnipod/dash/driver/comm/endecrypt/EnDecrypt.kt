@@ -4,63 +4,50 @@ import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.utils.toHex
 import app.aaps.pump.omnipod.dash.driver.comm.message.MessagePacket
-import org.spongycastle.crypto.engines.AESEngine
-import org.spongycastle.crypto.modes.CCMBlockCipher
-import org.spongycastle.crypto.params.AEADParameters
-import org.spongycastle.crypto.params.KeyParameter
+import org.spongycastle.crypto.InvalidCipherTextException
 
-class EnDecrypt(private val aapsLogger: AAPSLogger, private val nonce: Nonce, private val ck: ByteArray) {
+/**
+ * Encrypts and decrypts messages of one session.
+ * AES key schedule, nonce and header buffers are created once per session.
+ */
+class EnDecrypt(private val aapsLogger: AAPSLogger, private val nonce: Nonce, ck: ByteArray) {
 
-    val engine = AESEngine()
-    val cipher = CCMBlockCipher(engine)
+    private val cipher = CcmCipher(ck)
+    private val nonceBuffer = ByteArray(CcmCipher.NONCE_SIZE)
+    private val header = ByteArray(MessagePacket.HEADER_SIZE)
 
+    @Synchronized
     fun decrypt(msg: MessagePacket): MessagePacket {
         val payload = msg.payload
-        val header = msg.asByteArray().copyOfRange(0, 16)
+        msg.writeHeader(header)
 
-        val n = nonce.increment(false)
+        nonce.increment(false, nonceBuffer)
         aapsLogger.debug(LTag.PUMPBTCOMM, "Decrypt header ${header.toHex()} payload: ${payload.toHex()}")
-        aapsLogger.debug(LTag.PUMPBTCOMM, "Decrypt NONCE ${n.toHex()}")
-        cipher.init(
-            false,
-            AEADParameters(
-                KeyParameter(ck),
-                MAC_SIZE * 8, // in bits
-                n,
-                header
-            )
-        )
-        val decryptedPayload = ByteArray(payload.size - MAC_SIZE)
-        cipher.processPacket(payload, 0, payload.size, decryptedPayload, 0)
+        aapsLogger.debug(LTag.PUMPBTCOMM, "Decrypt NONCE ${nonceBuffer.toHex()}")
+        if (payload.size < MAC_SIZE) throw InvalidCipherTextException("data too short")
+        val decryptedPayload = payload.copyOf(payload.size - MAC_SIZE)
+        if (!cipher.decrypt(nonceBuffer, header, decryptedPayload, 0, decryptedPayload.size, payload, decryptedPayload.size))
+            throw InvalidCipherTextException("mac check in CCM failed")
         aapsLogger.debug(LTag.PUMPBTCOMM, "Decrypted payload ${decryptedPayload.toHex()}")
         return msg.copy(payload = decryptedPayload)
     }
 
+    @Synchronized
     fun encrypt(headerMessage: MessagePacket): MessagePacket {
         val payload = headerMessage.payload
-        val header = headerMessage.asByteArray(true).copyOfRange(0, 16)
+        headerMessage.writeHeader(header, true)
 
-        val n = nonce.increment(true)
+        nonce.increment(true, nonceBuffer)
         aapsLogger.debug(LTag.PUMPBTCOMM, "Encrypt header ${header.toHex()} payload: ${payload.toHex()}")
-        aapsLogger.debug(LTag.PUMPBTCOMM, "Encrypt NONCE ${n.toHex()}")
-        val encryptedPayload = ByteArray(payload.size + MAC_SIZE)
-
-        cipher.init(
-            true,
-            AEADParameters(
-                KeyParameter(ck),
-                MAC_SIZE * 8, // in bits
-                n,
-                header
-            )
-        )
-        cipher.processPacket(payload, 0, payload.size, encryptedPayload, 0)
+        aapsLogger.debug(LTag.PUMPBTCOMM, "Encrypt NONCE ${nonceBuffer.toHex()}")
+        val encryptedPayload = payload.copyOf(payload.size + MAC_SIZE)
+        cipher.encrypt(nonceBuffer, header, encryptedPayload, 0, payload.size)
 
         return headerMessage.copy(payload = encryptedPayload)
     }
 
     companion object {
 
-        private const val MAC_SIZE = 8
+        private const val MAC_SIZE = CcmCipher.TAG_SIZE
     }
 }
@@ -1,23 +1,29 @@
 package app.aaps.pump.omnipod.dash.driver.comm.endecrypt
 
-import java.nio.ByteBuffer
-
 data class Nonce(val prefix: ByteArray, var sqn: Long) {
     init {
         require(prefix.size == 8) { "Nonce prefix should be 8 bytes long" }
     }
 
-    fun increment(podReceiving: Boolean): ByteArray {
+    fun increment(podReceiving: Boolean): ByteArray =
+        ByteArray(prefix.size + SQN_SIZE).also { increment(podReceiving, it) }
+
+    /**
+     * Writes next nonce into [out] (13 bytes) without allocating
+     */
+    fun increment(podReceiving: Boolean, out: ByteArray) {
         sqn++
-        val ret = ByteBuffer.allocate(8)
-            .putLong(sqn)
-            .array()
-            .copyOfRange(3, 8)
+        System.arraycopy(prefix, 0, out, 0, prefix.size)
+        for (i in 0 until SQN_SIZE) out[prefix.size + i] = (sqn shr (8 * (SQN_SIZE - 1 - i))).toByte()
         if (podReceiving) {
-            ret[0] = (ret[0].toInt() and 127).toByte()
+            out[prefix.size] = (out[prefix.size].toInt() and 127).toByte()
         } else {
-            ret[0] = (ret[0].toInt() or 128).toByte()
+            out[prefix.size] = (out[prefix.size].toInt() or 128).toByte()
         }
-        return prefix + ret
+    }
+
+    companion object {
+
+        private const val SQN_SIZE = 5
     }
 }
@@ -29,13 +29,13 @@ open class BleIO(
     private val gatt: BluetoothGatt,
     private val bleCommCallbacks: BleCommCallbacks,
     private val type: CharacteristicType
-) {
+) : PacketChannel {
 
     /***
      *
      * @return a byte array with the received data or error
      */
-    fun receivePacket(timeoutMs: Long = DEFAULT_IO_TIMEOUT_MS): ByteArray? {
+    override fun receivePacket(timeoutMs: Long): ByteArray? {
         return try {
             val packet = incomingPackets.poll(timeoutMs, TimeUnit.MILLISECONDS)
             if (packet == null) {
@@ -48,12 +48,14 @@ open class BleIO(
         }
     }
 
+    override fun peekPacket(): ByteArray? = incomingPackets.peek()
+
     /***
      *
      * @param payload the data to send
      */
     @Suppress("ReturnCount", "DEPRECATION")
-    fun sendAndConfirmPacket(payload: ByteArray): BleSendResult {
+    override fun sendAndConfirmPacket(payload: ByteArray): BleSendResult {
         aapsLogger.debug(LTag.PUMPBTCOMM, "BleIO: Sending on $type: ${payload.toHex()}")
         val set = characteristic.setValue(payload)
         if (!set) {
@@ -84,7 +86,7 @@ open class BleIO(
      * Called before sending a new message.
      * The incoming queues should be empty, so we log when they are not.
      */
-    open fun flushIncomingQueue(): Boolean {
+    override fun flushIncomingQueue(): Boolean {
         var foundRTS = false
         do {
             val found = incomingPackets.poll()?.also {
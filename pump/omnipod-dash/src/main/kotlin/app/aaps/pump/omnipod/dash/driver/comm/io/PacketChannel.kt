@@ -0,0 +1,44 @@
+package app.aaps.pump.omnipod.dash.driver.comm.io
+
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommand
+
+/**
+ * Packet level access to one pod characteristic used by the message layer.
+ *
+ * Received packets are delivered to a blocking queue by the BLE callbacks,
+ * readers wait on it until a packet arrives or timeout expires.
+ */
+interface PacketChannel {
+
+    /**
+     * Writes [payload] and waits for confirmation of the write
+     */
+    fun sendAndConfirmPacket(payload: ByteArray): BleSendResult
+
+    /**
+     * @return received packet or null on timeout
+     */
+    fun receivePacket(timeoutMs: Long = BleIO.DEFAULT_IO_TIMEOUT_MS): ByteArray?
+
+    /**
+     * @return oldest received packet without removing it or null if nothing was received
+     */
+    fun peekPacket(): ByteArray?
+
+    /**
+     * Drops received packets
+     *
+     * @return true if an RTS was among them
+     */
+    fun flushIncomingQueue(): Boolean
+}
+
+fun PacketChannel.expectCommandType(expected: BleCommand, timeoutMs: Long = BleIO.DEFAULT_IO_TIMEOUT_MS): BleConfirmResult {
+    return receivePacket(timeoutMs)?.let {
+        if (it.isNotEmpty() && it[0] == expected.data[0])
+            BleConfirmSuccess
+        else
+            BleConfirmIncorrectData(it)
+    }
+        ?: BleConfirmError("Error reading packet")
+}
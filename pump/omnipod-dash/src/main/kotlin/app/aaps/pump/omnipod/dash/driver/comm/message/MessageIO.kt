@@ -17,8 +17,8 @@ import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendErrorConfirming
 import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendErrorSending
 import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendResult
 import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendSuccess
-import app.aaps.pump.omnipod.dash.driver.comm.io.CmdBleIO
-import app.aaps.pump.omnipod.dash.driver.comm.io.DataBleIO
+import app.aaps.pump.omnipod.dash.driver.comm.io.PacketChannel
+import app.aaps.pump.omnipod.dash.driver.comm.io.expectCommandType
 import app.aaps.pump.omnipod.dash.driver.comm.packet.BlePacket
 import app.aaps.pump.omnipod.dash.driver.comm.packet.PayloadJoiner
 import app.aaps.pump.omnipod.dash.driver.comm.packet.PayloadSplitter
@@ -37,10 +37,13 @@ sealed class PacketReceiveResult
 data class PacketReceiveSuccess(val payload: ByteArray) : PacketReceiveResult()
 data class PacketReceiveError(val msg: String) : PacketReceiveResult()
 
+/**
+ * Sends and receives messages split in BLE packets.
+ */
 class MessageIO(
     private val aapsLogger: AAPSLogger,
-    private val cmdBleIO: CmdBleIO,
-    private val dataBleIO: DataBleIO,
+    private val cmdBleIO: PacketChannel,
+    private val dataBleIO: PacketChannel,
 ) {
 
     private val receivedOutOfOrder = LinkedHashMap<Byte, ByteArray>()
@@ -180,7 +183,7 @@ class MessageIO(
     }
 
     private fun peekForNack(index: Int, packets: List<BlePacket>): MessageSendResult {
-        val peekCmd = cmdBleIO.peekCommand()
+        val peekCmd = cmdBleIO.peekPacket()
             ?: return MessageSendSuccess
 
         return when (val receivedCmd = BleCommand.parse(peekCmd)) {
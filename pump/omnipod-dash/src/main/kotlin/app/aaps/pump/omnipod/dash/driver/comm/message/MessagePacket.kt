@@ -26,7 +26,17 @@ data class MessagePacket(
 ) {
 
     fun asByteArray(forEncryption: Boolean = false): ByteArray {
-        val bb = ByteBuffer.allocate(16 + payload.size)
+        val ret = ByteArray(HEADER_SIZE + payload.size)
+        writeHeader(ret, forEncryption)
+        System.arraycopy(payload, 0, ret, HEADER_SIZE, payload.size)
+        return ret
+    }
+
+    /**
+     * Writes the 16 byte header into [out], used as associated data by encryption
+     */
+    fun writeHeader(out: ByteArray, forEncryption: Boolean = false) {
+        val bb = ByteBuffer.wrap(out, 0, HEADER_SIZE)
         bb.put(MAGIC_PATTERN.toByteArray())
 
         val f1 = Flag()
@@ -60,20 +70,12 @@ data class MessagePacket(
 
         bb.put(this.source.address)
         bb.put(this.destination.address)
-
-        bb.put(this.payload)
-
-        val ret = ByteArray(bb.position())
-        bb.flip()
-        bb.get(ret)
-
-        return ret
     }
 
     companion object {
 
         private const val MAGIC_PATTERN = "TW" // all messages start with this string
-        private const val HEADER_SIZE = 16
+        const val HEADER_SIZE = 16
 
         fun parse(payload: ByteArray): MessagePacket {
             payload.assertSizeAtLeast(HEADER_SIZE)
@@ -0,0 +1,87 @@
+package app.aaps.pump.omnipod.dash.driver.comm.endecrypt
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.spongycastle.crypto.engines.AESEngine
+import org.spongycastle.crypto.modes.CCMBlockCipher
+import org.spongycastle.crypto.params.AEADParameters
+import org.spongycastle.crypto.params.KeyParameter
+import org.spongycastle.util.encoders.Hex
+import java.nio.ByteBuffer
+import kotlin.random.Random
+
+class CcmCipherTest {
+
+    private val random = Random(42)
+    private val key = Hex.decode("ba1283744b6de9fab6d9b77d95a71d6e")
+
+    private fun reference(encrypt: Boolean, nonce: ByteArray, header: ByteArray, input: ByteArray): ByteArray {
+        val cipher = CCMBlockCipher(AESEngine())
+        cipher.init(encrypt, AEADParameters(KeyParameter(key), CcmCipher.TAG_SIZE * 8, nonce, header))
+        return cipher.processPacket(input, 0, input.size)
+    }
+
+    @Test
+    fun matchesCCMBlockCipher() {
+        val sut = CcmCipher(key)
+        for (size in listOf(0, 1, 15, 16, 17, 31, 32, 100, 255)) {
+            val nonce = random.nextBytes(CcmCipher.NONCE_SIZE)
+            val header = random.nextBytes(16)
+            val plain = random.nextBytes(size)
+            val buffer = plain.copyOf(size + CcmCipher.TAG_SIZE)
+            sut.encrypt(nonce, header, buffer, 0, size)
+            assertThat(buffer).isEqualTo(reference(true, nonce, header, plain))
+
+            val decrypted = buffer.copyOf(size)
+            assertThat(sut.decrypt(nonce, header, decrypted, 0, size, buffer, size)).isTrue()
+            assertThat(decrypted).isEqualTo(plain)
+        }
+    }
+
+    @Test
+    fun worksOnSlice() {
+        val sut = CcmCipher(key)
+        val nonce = random.nextBytes(CcmCipher.NONCE_SIZE)
+        val header = random.nextBytes(16)
+        val plain = random.nextBytes(40)
+        val buffer = ByteArray(60).also { System.arraycopy(plain, 0, it, 5, plain.size) }
+        sut.encrypt(nonce, header, buffer, 5, plain.size)
+        assertThat(buffer.copyOfRange(5, 5 + plain.size + CcmCipher.TAG_SIZE)).isEqualTo(reference(true, nonce, header, plain))
+    }
+
+    @Test
+    fun tamperedDataIsRefused() {
+        val sut = CcmCipher(key)
+        val nonce = random.nextBytes(CcmCipher.NONCE_SIZE)
+        val header = random.nextBytes(16)
+        val buffer = random.nextBytes(30).copyOf(38)
+        sut.encrypt(nonce, header, buffer, 0, 30)
+        buffer[3] = (buffer[3].toInt() xor 1).toByte()
+        assertThat(sut.decrypt(nonce, header, buffer.copyOf(30), 0, 30, buffer, 30)).isFalse()
+    }
+
+    @Test
+    fun nonceMatchesPreviousLayout() {
+        val prefix = Hex.decode("6cff5d18b7616cae")
+        for (sqn in listOf(0L, 22L, 0x7fL, 0xffffffffL, 0x12_3456_789aL)) {
+            for (podReceiving in listOf(true, false)) {
+                val expected = ByteBuffer.allocate(8).putLong(sqn + 1).array().copyOfRange(3, 8)
+                expected[0] = if (podReceiving) (expected[0].toInt() and 127).toByte() else (expected[0].toInt() or 128).toByte()
+                assertThat(Nonce(prefix, sqn).increment(podReceiving)).isEqualTo(prefix + expected)
+            }
+        }
+    }
+
+    @Test
+    fun keyedCipherIsReusedAcrossMessages() {
+        val sut = CcmCipher(key)
+        val header = random.nextBytes(16)
+        repeat(100) {
+            val nonce = random.nextBytes(CcmCipher.NONCE_SIZE)
+            val plain = random.nextBytes(40) // typical command
+            val buffer = plain.copyOf(plain.size + CcmCipher.TAG_SIZE)
+            sut.encrypt(nonce, header, buffer, 0, plain.size)
+            assertThat(buffer).isEqualTo(reference(true, nonce, header, plain))
+        }
+    }
+}
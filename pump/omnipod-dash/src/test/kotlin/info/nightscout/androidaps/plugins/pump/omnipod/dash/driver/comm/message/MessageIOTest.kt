@@ -0,0 +1,79 @@
+package app.aaps.pump.omnipod.dash.driver.comm.message
+
+import app.aaps.pump.omnipod.dash.driver.comm.Id
+import app.aaps.pump.omnipod.dash.driver.comm.packet.PayloadSplitter
+import app.aaps.shared.tests.AAPSLoggerTest
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import java.util.Random
+import java.util.concurrent.TimeUnit
+
+class MessageIOTest {
+
+    private val aapsLogger = AAPSLoggerTest()
+    private val random = Random(42)
+
+    private fun message(size: Int, sequenceNumber: Int = 1) = MessagePacket(
+        type = MessageType.CLEAR,
+        source = Id.fromLong(136326824),
+        destination = Id.fromLong(136326825),
+        payload = ByteArray(size).also { random.nextBytes(it) },
+        sequenceNumber = sequenceNumber.toByte()
+    )
+
+    private fun packets(msg: MessagePacket) = PayloadSplitter(msg.asByteArray()).splitInPackets().size
+
+    @Test
+    fun messageIsDeliveredWithOneRoundTripPerPacket() {
+        SimulatedPod(linkLatencyMs = 1).use { pod ->
+            val msg = message(120)
+            assertThat(MessageIO(aapsLogger, pod.cmd, pod.data).sendMessage(msg)).isEqualTo(MessageSendSuccess)
+            assertThat(pod.received.poll(1, TimeUnit.SECONDS)).isEqualTo(msg.asByteArray())
+            // RTS + DATA packets, CTS + SUCCESS
+            assertThat(pod.writes.get()).isEqualTo(1 + packets(msg))
+            assertThat(pod.notifications.get()).isEqualTo(2)
+        }
+    }
+
+    @Test
+    fun nackedPacketIsResent() {
+        SimulatedPod(linkLatencyMs = 1).use { pod ->
+            pod.dropDataPacket = 2
+            val msg = message(150)
+            assertThat(MessageIO(aapsLogger, pod.cmd, pod.data).sendMessage(msg)).isEqualTo(MessageSendSuccess)
+            assertThat(pod.received.poll(1, TimeUnit.SECONDS)).isEqualTo(msg.asByteArray())
+            assertThat(pod.writes.get()).isEqualTo(2 + packets(msg))
+        }
+    }
+
+    @Test
+    fun responseIsReceived() {
+        SimulatedPod(linkLatencyMs = 1).use { pod ->
+            val response = message(60, sequenceNumber = 2)
+            pod.response = response.asByteArray()
+            val msgIO = MessageIO(aapsLogger, pod.cmd, pod.data)
+            assertThat(msgIO.sendMessage(message(40))).isEqualTo(MessageSendSuccess)
+            val received = msgIO.receiveMessage()
+            assertThat(received?.payload).isEqualTo(response.payload)
+        }
+    }
+
+    @Test
+    fun commandAndResponseNeedOneRoundTripPerPacket() {
+        val rounds = 5
+        SimulatedPod(linkLatencyMs = 1).use { pod ->
+            val response = message(30)
+            pod.response = response.asByteArray()
+            val msgIO = MessageIO(aapsLogger, pod.cmd, pod.data)
+            val msg = message(180)
+            repeat(rounds) {
+                assertThat(msgIO.sendMessage(msg)).isEqualTo(MessageSendSuccess)
+                assertThat(msgIO.receiveMessage()).isNotNull()
+            }
+            // RTS + DATA packets, CTS + SUCCESS for response
+            assertThat(pod.writes.get()).isEqualTo(rounds * (1 + packets(msg) + 2))
+            // CTS, SUCCESS, RTS + DATA packets of response
+            assertThat(pod.notifications.get()).isEqualTo(rounds * (3 + packets(response)))
+        }
+    }
+}
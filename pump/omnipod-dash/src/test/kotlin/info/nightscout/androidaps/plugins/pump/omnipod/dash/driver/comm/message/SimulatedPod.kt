@@ -0,0 +1,140 @@
+package app.aaps.pump.omnipod.dash.driver.comm.message
+
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommand
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommandCTS
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommandNack
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommandRTS
+import app.aaps.pump.omnipod.dash.driver.comm.command.BleCommandSuccess
+import app.aaps.pump.omnipod.dash.driver.comm.io.BleIO
+import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendErrorConfirming
+import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendResult
+import app.aaps.pump.omnipod.dash.driver.comm.io.BleSendSuccess
+import app.aaps.pump.omnipod.dash.driver.comm.io.PacketChannel
+import app.aaps.pump.omnipod.dash.driver.comm.packet.PayloadJoiner
+import app.aaps.pump.omnipod.dash.driver.comm.packet.PayloadSplitter
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pod side of the BLE message protocol for JVM tests.
+ *
+ * Every write is confirmed and every notification delivered one [linkLatencyMs] later.
+ * Messages received by the pod are stored in [received], [response] is sent back after each received message.
+ */
+class SimulatedPod(
+    private val linkLatencyMs: Long
+) : AutoCloseable {
+
+    private val executor = Executors.newSingleThreadScheduledExecutor()
+
+    val cmd = Channel()
+    val data = Channel()
+    val received = LinkedBlockingQueue<ByteArray>()
+    var response: ByteArray? = null
+
+    /** DATA packet index the pod does not receive the first time it is sent */
+    var dropDataPacket: Int? = null
+
+    val writes = AtomicInteger()
+    val notifications = AtomicInteger()
+
+    private var joiner: PayloadJoiner? = null
+    private var expectedIndex = 0
+    private var packetCount = 0
+    private val outOfOrder = HashMap<Int, ByteArray>()
+    private var nacked = -1
+
+    inner class Channel : PacketChannel {
+
+        val incoming = LinkedBlockingQueue<ByteArray>()
+
+        override fun sendAndConfirmPacket(payload: ByteArray): BleSendResult {
+            writes.incrementAndGet()
+            val copy = payload.copyOf()
+            val confirmation = executor.schedule({ onWrite(this, copy) }, linkLatencyMs, TimeUnit.MILLISECONDS)
+            return try {
+                confirmation.get(BleIO.DEFAULT_IO_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                BleSendSuccess
+            } catch (e: TimeoutException) {
+                BleSendErrorConfirming("Timeout waiting for writeConfirmation")
+            }
+        }
+
+        override fun receivePacket(timeoutMs: Long): ByteArray? = incoming.poll(timeoutMs, TimeUnit.MILLISECONDS)
+
+        override fun peekPacket(): ByteArray? = incoming.peek()
+
+        override fun flushIncomingQueue(): Boolean {
+            var foundRTS = false
+            while (true) {
+                val packet = incoming.poll() ?: return foundRTS
+                if (packet.isNotEmpty() && packet[0] == BleCommandRTS.data[0]) foundRTS = true
+            }
+        }
+    }
+
+    private fun notify(channel: Channel, packet: ByteArray) {
+        notifications.incrementAndGet()
+        executor.schedule({ channel.incoming.add(packet) }, linkLatencyMs, TimeUnit.MILLISECONDS)
+    }
+
+    // runs on executor thread
+    private fun onWrite(channel: Channel, packet: ByteArray) {
+        if (channel === cmd) {
+            when (BleCommand.parse(packet)) {
+                BleCommandRTS -> {
+                    joiner = null
+                    expectedIndex = 0
+                    outOfOrder.clear()
+                    nacked = -1
+                    notify(cmd, BleCommandCTS.data)
+                }
+
+                BleCommandCTS -> PayloadSplitter(response ?: return).splitInPackets().forEach { notify(data, it.toByteArray()) }
+                else          -> Unit
+            }
+            return
+        }
+        val index = packet[0].toInt()
+        if (index == dropDataPacket) {
+            dropDataPacket = null
+            return
+        }
+        if (index < expectedIndex) return
+        if (index > expectedIndex) {
+            outOfOrder[index] = packet
+            if (nacked != expectedIndex) notify(cmd, BleCommandNack(expectedIndex.toByte()).data)
+            nacked = expectedIndex
+            return
+        }
+        var next: ByteArray? = packet
+        while (next != null) {
+            accept(next)
+            next = outOfOrder.remove(expectedIndex)
+        }
+    }
+
+    private fun accept(packet: ByteArray) {
+        val joiner = joiner ?: PayloadJoiner(packet).also {
+            joiner = it
+            packetCount = it.fullFragments + 1 + if (it.oneExtraPacket) 1 else 0
+        }
+        if (expectedIndex > 0) {
+            joiner.accumulate(packet)
+            if (expectedIndex == joiner.fullFragments && joiner.oneExtraPacket) packetCount = joiner.fullFragments + 2
+        }
+        expectedIndex++
+        if (expectedIndex == packetCount) {
+            received.add(joiner.finalize())
+            notify(cmd, BleCommandSuccess.data)
+            if (response != null) notify(cmd, BleCommandRTS.data)
+        }
+    }
+
+    override fun close() {
+        executor.shutdownNow()
+    }
+}
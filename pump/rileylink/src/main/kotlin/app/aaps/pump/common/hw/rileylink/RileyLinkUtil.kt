@@ -5,7 +5,7 @@ import android.content.Intent
 import androidx.localbroadcastmanager.content.LocalBroadcastManager
 import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6b
-import app.aaps.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bGeoff
+import app.aaps.pump.common.hw.rileylink.ble.data.encoding.Encoding4b6bTable
 import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkEncodingType
 import app.aaps.pump.common.hw.rileylink.data.RLHistoryItem
 import java.util.ArrayList
@@ -25,10 +25,10 @@ class RileyLinkUtil @Inject constructor(
         set(value) {
             field = value
             if (encoding == RileyLinkEncodingType.FourByteSixByteLocal)
-                encoding4b6b = Encoding4b6bGeoff(aapsLogger)
+                encoding4b6b = Encoding4b6bTable(aapsLogger)
         }
 
-    var encoding4b6b: Encoding4b6b = Encoding4b6bGeoff(aapsLogger)
+    var encoding4b6b: Encoding4b6b = Encoding4b6bTable(aapsLogger)
 
     fun sendBroadcastMessage(message: String?, context: Context) {
         val intent = Intent(message)
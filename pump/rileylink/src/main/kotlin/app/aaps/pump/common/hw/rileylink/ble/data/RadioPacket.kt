@@ -1,6 +1,5 @@
 package app.aaps.pump.common.hw.rileylink.ble.data
 
-import app.aaps.core.utils.pump.ByteUtil.concat
 import app.aaps.pump.common.hw.rileylink.RileyLinkUtil
 import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkEncodingType
 import app.aaps.pump.common.utils.CRC
@@ -11,7 +10,7 @@ import org.apache.commons.lang3.NotImplementedException
  */
 class RadioPacket(private val rileyLinkUtil: RileyLinkUtil, val pkt: ByteArray) {
 
-    private fun getWithCRC(): ByteArray = concat(pkt, CRC.crc8(pkt))
+    private fun getWithCRC(): ByteArray = pkt.copyOf(pkt.size + 1).also { it[pkt.size] = CRC.crc8(pkt) }
 
     fun getEncoded(): ByteArray {
         when (rileyLinkUtil.encoding) {
@@ -22,9 +21,11 @@ class RadioPacket(private val rileyLinkUtil: RileyLinkUtil, val pkt: ByteArray)
 
             RileyLinkEncodingType.FourByteSixByteLocal     -> {
                 val withCRC = getWithCRC()
-
-                val encoded = rileyLinkUtil.encoding4b6b.encode4b6b(withCRC)
-                return concat(encoded, 0.toByte())
+                val encoding4b6b = rileyLinkUtil.encoding4b6b
+                // encoded packet followed by 0 terminator, written in place
+                val encoded = ByteArray(encoding4b6b.encodedSize(withCRC.size) + 1)
+                encoding4b6b.encode4b6b(withCRC, 0, withCRC.size, encoded, 0)
+                return encoded
             }
 
             RileyLinkEncodingType.FourByteSixByteRileyLink -> {
@@ -59,17 +59,18 @@ class RadioResponse(injector: HasAndroidInjector, var command: RileyLinkCommand?
             // This does not look like something valid heard from a RileyLink device
             return
         }
-        var encodedPayload: ByteArray?
+        val payloadOffset: Int
 
         if (rileyLinkServiceData.firmwareVersion?.isSameVersion(RileyLinkFirmwareVersion.Version2AndHigher) == true) {
-            encodedPayload = substring(rxData, 3, rxData.size - 3)
+            payloadOffset = 3
             rssi = rxData[1].toInt()
             responseNumber = rxData[2].toInt()
         } else {
-            encodedPayload = substring(rxData, 2, rxData.size - 2)
+            payloadOffset = 2
             rssi = rxData[0].toInt()
             responseNumber = rxData[1].toInt()
         }
+        val payloadLength = rxData.size - payloadOffset
 
         try {
             // for non-radio commands we just return the raw response
@@ -78,22 +79,23 @@ class RadioResponse(injector: HasAndroidInjector, var command: RileyLinkCommand?
 
             if (command?.getCommandType() != RileyLinkCommandType.SendAndListen) {
                 decodedOK = true
-                decodedPayload = encodedPayload
+                decodedPayload = substring(rxData, payloadOffset, payloadLength)
                 return
             }
 
             when (rileyLinkUtil.encoding) {
                 RileyLinkEncodingType.Manchester, RileyLinkEncodingType.FourByteSixByteRileyLink -> {
                     decodedOK = true
-                    decodedPayload = encodedPayload
+                    decodedPayload = substring(rxData, payloadOffset, payloadLength)
                 }
 
                 RileyLinkEncodingType.FourByteSixByteLocal                                       -> {
-                    rileyLinkUtil.encoding4b6b.decode4b6b(encodedPayload).let { decodeThis ->
+                    // decoded straight from the received frame, no intermediate payload copy
+                    rileyLinkUtil.encoding4b6b.decode4b6b(rxData, payloadOffset, payloadLength).let { decodeThis ->
                         if (decodeThis.size > 2) {
                             decodedOK = true
 
-                            decodedPayload = substring(decodeThis, 0, decodeThis.size - 1)
+                            decodedPayload = decodeThis.copyOf(decodeThis.size - 1)
                             receivedCRC = decodeThis[decodeThis.size - 1]
                             val calculatedCRC = CRC.crc8(decodedPayload)
                             if (receivedCRC != calculatedCRC) {
@@ -115,7 +117,7 @@ class RadioResponse(injector: HasAndroidInjector, var command: RileyLinkCommand?
             }
         } catch (_: NumberFormatException) {
             decodedOK = false
-            aapsLogger.error(LTag.PUMPBTCOMM, "Failed to decode radio data: " + shortHexString(encodedPayload))
+            aapsLogger.error(LTag.PUMPBTCOMM, "Failed to decode radio data: " + shortHexString(substring(rxData, payloadOffset, payloadLength)))
         }
     }
 
@@ -11,4 +11,26 @@ interface Encoding4b6b {
 
     @Throws(RileyLinkCommunicationException::class)
     fun decode4b6b(data: ByteArray): ByteArray
+
+    /**
+     * Encodes [length] bytes of [data] from [offset] into [out] at [outOffset]
+     *
+     * @return number of bytes written
+     */
+    fun encode4b6b(data: ByteArray, offset: Int, length: Int, out: ByteArray, outOffset: Int): Int {
+        val encoded = encode4b6b(data.copyOfRange(offset, offset + length))
+        System.arraycopy(encoded, 0, out, outOffset, encoded.size)
+        return encoded.size
+    }
+
+    /**
+     * Decodes [length] bytes of [data] starting at [offset]
+     */
+    @Throws(RileyLinkCommunicationException::class)
+    fun decode4b6b(data: ByteArray, offset: Int, length: Int): ByteArray = decode4b6b(data.copyOfRange(offset, offset + length))
+
+    /**
+     * Size of the encoded form of [length] raw bytes
+     */
+    fun encodedSize(length: Int): Int = length * 3 / 2 + length % 2
 }
@@ -0,0 +1,128 @@
+package app.aaps.pump.common.hw.rileylink.ble.data.encoding
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.utils.pump.ByteUtil.shortHexString
+import app.aaps.pump.common.hw.rileylink.ble.RileyLinkCommunicationException
+import app.aaps.pump.common.hw.rileylink.ble.defs.RileyLinkBLEError
+import java.util.Locale
+
+/**
+ * Table driven 4b6b codec working directly on byte arrays.
+ *
+ * Produces the same output as [Encoding4b6bGeoff] but every byte is translated by a single
+ * lookup (256 entry encode table, 64 entry decode table), output is written into exactly
+ * sized arrays and the diagnostic dump is built only when a packet fails to decode.
+ */
+class Encoding4b6bTable(private val aapsLogger: AAPSLogger) : Encoding4b6bAbstract() {
+
+    override fun encode4b6b(data: ByteArray): ByteArray =
+        ByteArray(encodedSize(data.size)).also { encode4b6b(data, 0, data.size, it, 0) }
+
+    override fun encode4b6b(data: ByteArray, offset: Int, length: Int, out: ByteArray, outOffset: Int): Int {
+        var acc = 0
+        var bitCount = 0
+        var position = outOffset
+        for (i in offset until offset + length) {
+            acc = (acc shl 12) or ENCODE_TABLE[data[i].toInt() and 0xff]
+            bitCount += 12
+            while (bitCount >= 8) {
+                bitCount -= 8
+                out[position++] = (acc shr bitCount).toByte()
+            }
+            acc = acc and ((1 shl bitCount) - 1)
+        }
+        if (bitCount > 0) {
+            // marks uneven packet boundary, remaining 2 bits are dropped
+            acc = (acc shl 6) or 0x14
+            bitCount += 6
+            out[position++] = (acc shr (bitCount - 8)).toByte()
+        }
+        return position - outOffset
+    }
+
+    @Throws(RileyLinkCommunicationException::class)
+    override fun decode4b6b(data: ByteArray): ByteArray = decode4b6b(data, 0, data.size)
+
+    @Throws(RileyLinkCommunicationException::class)
+    override fun decode4b6b(data: ByteArray, offset: Int, length: Int): ByteArray {
+        val out = ByteArray(length * 2 / 3)
+        val written = decode4b6b(data, offset, length, out, 0)
+        if (written < 0) {
+            val errors = buildErrorMessage(data, offset, length)
+            writeError(aapsLogger, data.copyOfRange(offset, offset + length), errors)
+            throw RileyLinkCommunicationException(RileyLinkBLEError.CodingErrors, errors)
+        }
+        return out
+    }
+
+    /**
+     * Decodes into [out] (capacity length * 2 / 3 is always enough) without allocating
+     *
+     * @return number of decoded bytes or -1 on coding errors
+     */
+    fun decode4b6b(data: ByteArray, offset: Int, length: Int, out: ByteArray, outOffset: Int): Int {
+        var acc = 0
+        var availableBits = 0
+        var position = outOffset
+        var errors = false
+        for (i in offset until offset + length) {
+            acc = (acc shl 8) or (data[i].toInt() and 0xff)
+            availableBits += 8
+            if (availableBits >= 12) {
+                availableBits -= 12
+                val high = DECODE_TABLE[(acc shr (availableBits + 6)) and 0x3f]
+                val low = DECODE_TABLE[(acc shr availableBits) and 0x3f]
+                if (high >= 0 && low >= 0) out[position++] = ((high shl 4) or low).toByte()
+                else errors = true
+                acc = acc and ((1 shl availableBits) - 1)
+            }
+        }
+        // normal end is either on byte boundary or 4 bits of end marker
+        if (availableBits != 0 && !(availableBits == 4 && acc == 0x05)) errors = true
+        return if (errors) -1 else position - outOffset
+    }
+
+    // Slow path with the same diagnostics as Encoding4b6bGeoff, only run for broken packets
+    private fun buildErrorMessage(data: ByteArray, offset: Int, length: Int): String {
+        val builder = StringBuilder()
+        builder.append("Input data: ").append(shortHexString(data.copyOfRange(offset, offset + length))).append("\n")
+        if (length % 2 != 0) builder.append("Warn: odd number of bytes.\n")
+        var codingErrors = 0
+        var acc = 0
+        var availableBits = 0
+        for (i in 0 until length) {
+            acc = (acc shl 8) + (data[offset + i].toInt() and 0xff)
+            availableBits += 8
+            if (availableBits >= 12) {
+                val highCode = (acc shr (availableBits - 6)) and 0x3f
+                val lowCode = (acc shr (availableBits - 12)) and 0x3f
+                if (DECODE_TABLE[highCode] < 0 || DECODE_TABLE[lowCode] < 0) {
+                    builder.append(
+                        String.format(
+                            Locale.ENGLISH, "decode4b6b: i=%d,x=%08X, coding error: highcode=0x%02X, lowcode=0x%02X, %d bits remaining.\n",
+                            i, acc, highCode, lowCode, availableBits
+                        )
+                    )
+                    codingErrors++
+                }
+                availableBits -= 12
+                acc = acc and (0x0000ffff shr (16 - availableBits))
+            }
+        }
+        if (availableBits != 0 && !(availableBits == 4 && acc == 0x05)) {
+            builder.append("decode4b6b: failed clean decode -- extra bits available (not marker)($availableBits)\n")
+            codingErrors++
+        }
+        builder.append("decode4b6b: $codingErrors coding errors encountered.")
+        return builder.toString()
+    }
+
+    companion object {
+
+        // raw byte -> 12 bit code (two 6 bit symbols)
+        private val ENCODE_TABLE = IntArray(256) { (encode4b6bList[it shr 4].toInt() shl 6) or encode4b6bList[it and 0x0f].toInt() }
+
+        // 6 bit symbol -> nibble, -1 for invalid symbols
+        private val DECODE_TABLE = IntArray(64) { encode4b6bListIndex(it.toByte()) }
+    }
+}
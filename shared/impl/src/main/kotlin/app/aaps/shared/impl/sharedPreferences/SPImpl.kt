@@ -15,61 +15,122 @@ class SPImpl @Inject constructor(
     private val context: Context
 ) : SP {
 
+    /**
+     * Numbers stored as String (all values edited in preference screens) parsed at once
+     *
+     * Reading them through getFloat/getInt/getLong threw ClassCastException on every call.
+     * Snapshot is immutable and it's dropped when a new key appears, a key of the snapshot changes
+     * or a String is written. Values stored as numbers don't need parsing and are not part of it.
+     */
+    private class NumberSnapshot(all: Map<String, *>) {
+
+        val keys: Set<String> = all.keys.toHashSet()
+        val doubles = HashMap<String, Double?>()
+        val ints = HashMap<String, Int?>()
+        val longs = HashMap<String, Long?>()
+
+        init {
+            for ((key, value) in all) {
+                if (value !is String) continue
+                // null means not parsable, default value is returned like SafeParse does
+                val input = value.replace(",", ".").replace("−", "-")
+                doubles[key] = input.toDoubleOrNull()
+                ints[key] = input.toIntOrNull()
+                longs[key] = input.toLongOrNull()
+            }
+        }
+
+        fun isAffectedBy(key: String?) = key == null || key !in keys || key in doubles
+    }
+
+    private val snapshotLock = Any()
+    @Volatile private var numbers: NumberSnapshot? = null
+
+    // SharedPreferences keeps listeners in WeakHashMap, strong reference must be held here
+    private val changeListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key -> invalidateNumbers(key) }
+
+    init {
+        sharedPreferences.registerOnSharedPreferenceChangeListener(changeListener)
+    }
+
+    private fun numbers(): NumberSnapshot =
+        numbers ?: synchronized(snapshotLock) {
+            numbers ?: NumberSnapshot(sharedPreferences.all).also { numbers = it }
+        }
+
+    private fun invalidateNumbers(key: String?, storedAsString: Boolean = false) {
+        synchronized(snapshotLock) {
+            if (storedAsString || numbers?.isAffectedBy(key) == true) numbers = null
+        }
+    }
+
     @SuppressLint("ApplySharedPref")
     override fun edit(commit: Boolean, block: SP.Editor.() -> Unit) {
         val spEdit = sharedPreferences.edit()
+        var cleared = false
+        val changedKeys = mutableListOf<String>()
+        var stringStored = false
 
         val edit = object : SP.Editor {
             override fun clear() {
                 spEdit.clear()
+                cleared = true
             }
 
             override fun remove(@StringRes resourceID: Int) {
-                spEdit.remove(context.getString(resourceID))
+                remove(context.getString(resourceID))
             }
 
             override fun remove(key: String) {
                 spEdit.remove(key)
+                changedKeys.add(key)
             }
 
             override fun putBoolean(key: String, value: Boolean) {
                 spEdit.putBoolean(key, value)
+                changedKeys.add(key)
             }
 
             override fun putBoolean(@StringRes resourceID: Int, value: Boolean) {
-                spEdit.putBoolean(context.getString(resourceID), value)
+                putBoolean(context.getString(resourceID), value)
             }
 
             override fun putDouble(key: String, value: Double) {
                 spEdit.putString(key, value.toString())
+                changedKeys.add(key)
+                stringStored = true
             }
 
             override fun putDouble(@StringRes resourceID: Int, value: Double) {
-                spEdit.putString(context.getString(resourceID), value.toString())
+                putDouble(context.getString(resourceID), value)
             }
 
             override fun putLong(key: String, value: Long) {
                 spEdit.putLong(key, value)
+                changedKeys.add(key)
             }
 
             override fun putLong(@StringRes resourceID: Int, value: Long) {
-                spEdit.putLong(context.getString(resourceID), value)
+                putLong(context.getString(resourceID), value)
             }
 
             override fun putInt(key: String, value: Int) {
                 spEdit.putInt(key, value)
+                changedKeys.add(key)
             }
 
             override fun putInt(@StringRes resourceID: Int, value: Int) {
-                spEdit.putInt(context.getString(resourceID), value)
+                putInt(context.getString(resourceID), value)
             }
 
             override fun putString(key: String, value: String) {
                 spEdit.putString(key, value)
+                changedKeys.add(key)
+                stringStored = true
             }
 
             override fun putString(@StringRes resourceID: Int, value: String) {
-                spEdit.putString(context.getString(resourceID), value)
+                putString(context.getString(resourceID), value)
             }
         }
 
@@ -79,21 +140,27 @@ class SPImpl @Inject constructor(
             spEdit.commit()
         else
             spEdit.apply()
+        if (cleared || stringStored) invalidateNumbers(null, storedAsString = stringStored)
+        else changedKeys.forEach { invalidateNumbers(it) }
     }
 
     override fun getAll(): Map<String, *> = sharedPreferences.all
 
-    override fun clear() = sharedPreferences.edit().clear().apply()
+    override fun clear() {
+        sharedPreferences.edit().clear().apply()
+        invalidateNumbers(null)
+    }
 
     override fun contains(key: String): Boolean = sharedPreferences.contains(key)
 
     override fun contains(resourceId: Int): Boolean = sharedPreferences.contains(context.getString(resourceId))
 
-    override fun remove(resourceID: Int) =
-        sharedPreferences.edit().remove(context.getString(resourceID)).apply()
+    override fun remove(resourceID: Int) = remove(context.getString(resourceID))
 
-    override fun remove(key: String) =
+    override fun remove(key: String) {
         sharedPreferences.edit().remove(key).apply()
+        invalidateNumbers(key)
+    }
 
     override fun getString(resourceID: Int, defaultValue: String): String =
         sharedPreferences.getString(context.getString(resourceID), defaultValue) ?: defaultValue
@@ -117,85 +184,85 @@ class SPImpl @Inject constructor(
             defaultValue
         }
 
-    override fun getDouble(resourceID: Int, defaultValue: Double): Double =
-        try {
-            sharedPreferences.getFloat(context.getString(resourceID), defaultValue.toFloat()).toDouble()
-        } catch (_: Exception) {
-            SafeParse.stringToDouble(sharedPreferences.getString(context.getString(resourceID), defaultValue.toString()), defaultValue)
-        }
+    override fun getDouble(resourceID: Int, defaultValue: Double): Double = getDouble(context.getString(resourceID), defaultValue)
 
-    override fun getDouble(key: String, defaultValue: Double): Double =
-        try {
+    override fun getDouble(key: String, defaultValue: Double): Double {
+        val numbers = numbers()
+        if (key in numbers.doubles) return numbers.doubles[key] ?: defaultValue
+        return try {
             sharedPreferences.getFloat(key, defaultValue.toFloat()).toDouble()
         } catch (_: Exception) {
             SafeParse.stringToDouble(sharedPreferences.getString(key, defaultValue.toString()), defaultValue)
         }
+    }
 
-    override fun getInt(resourceID: Int, defaultValue: Int): Int =
-        try {
-            sharedPreferences.getInt(context.getString(resourceID), defaultValue)
-        } catch (_: Exception) {
-            SafeParse.stringToInt(sharedPreferences.getString(context.getString(resourceID), defaultValue.toString()), defaultValue)
-        }
+    override fun getInt(resourceID: Int, defaultValue: Int): Int = getInt(context.getString(resourceID), defaultValue)
 
-    override fun getInt(key: String, defaultValue: Int): Int =
-        try {
+    override fun getInt(key: String, defaultValue: Int): Int {
+        val numbers = numbers()
+        if (key in numbers.ints) return numbers.ints[key] ?: defaultValue
+        return try {
             sharedPreferences.getInt(key, defaultValue)
         } catch (_: Exception) {
             SafeParse.stringToInt(sharedPreferences.getString(key, defaultValue.toString()), defaultValue)
         }
+    }
 
-    override fun getLong(resourceID: Int, defaultValue: Long): Long =
-        try {
-            sharedPreferences.getLong(context.getString(resourceID), defaultValue)
-        } catch (_: Exception) {
-            SafeParse.stringToLong(sharedPreferences.getString(context.getString(resourceID), defaultValue.toString()), defaultValue)
-        }
+    override fun getLong(resourceID: Int, defaultValue: Long): Long = getLong(context.getString(resourceID), defaultValue)
 
-    override fun getLong(key: String, defaultValue: Long): Long =
-        try {
+    override fun getLong(key: String, defaultValue: Long): Long {
+        val numbers = numbers()
+        if (key in numbers.longs) return numbers.longs[key] ?: defaultValue
+        return try {
             sharedPreferences.getLong(key, defaultValue)
         } catch (_: Exception) {
             SafeParse.stringToLong(sharedPreferences.getString(key, defaultValue.toString()), defaultValue)
         }
+    }
 
     override fun incLong(key: String) {
         val value = getLong(key, 0) + 1L
-        sharedPreferences.edit().putLong(key, value).apply()
+        putLong(key, value)
     }
 
-    override fun putBoolean(key: String, value: Boolean) = sharedPreferences.edit().putBoolean(key, value).apply()
+    override fun putBoolean(key: String, value: Boolean) {
+        sharedPreferences.edit().putBoolean(key, value).apply()
+        invalidateNumbers(key)
+    }
 
-    override fun putBoolean(resourceID: Int, value: Boolean) =
-        sharedPreferences.edit().putBoolean(context.getString(resourceID), value).apply()
+    override fun putBoolean(resourceID: Int, value: Boolean) = putBoolean(context.getString(resourceID), value)
 
-    override fun putDouble(key: String, value: Double) =
+    override fun putDouble(key: String, value: Double) {
         sharedPreferences.edit().putFloat(key, value.toFloat()).apply()
+        invalidateNumbers(key)
+    }
 
-    override fun putDouble(resourceID: Int, value: Double) =
-        sharedPreferences.edit().putFloat(context.getString(resourceID), value.toFloat()).apply()
+    override fun putDouble(resourceID: Int, value: Double) = putDouble(context.getString(resourceID), value)
 
-    override fun putLong(key: String, value: Long) =
+    override fun putLong(key: String, value: Long) {
         sharedPreferences.edit().putLong(key, value).apply()
+        invalidateNumbers(key)
+    }
 
-    override fun putLong(resourceID: Int, value: Long) =
-        sharedPreferences.edit().putLong(context.getString(resourceID), value).apply()
+    override fun putLong(resourceID: Int, value: Long) = putLong(context.getString(resourceID), value)
 
-    override fun putInt(key: String, value: Int) =
+    override fun putInt(key: String, value: Int) {
         sharedPreferences.edit().putInt(key, value).apply()
+        invalidateNumbers(key)
+    }
 
-    override fun putInt(resourceID: Int, value: Int) =
-        sharedPreferences.edit().putInt(context.getString(resourceID), value).apply()
+    override fun putInt(resourceID: Int, value: Int) = putInt(context.getString(resourceID), value)
 
     override fun incInt(key: String) {
         val value = getInt(key, 0) + 1
-        sharedPreferences.edit().putInt(key, value).apply()
+        putInt(key, value)
     }
 
-    override fun putString(resourceID: Int, value: String) =
-        sharedPreferences.edit().putString(context.getString(resourceID), value).apply()
+    override fun putString(resourceID: Int, value: String) = putString(context.getString(resourceID), value)
 
-    override fun putString(key: String, value: String) =
+    override fun putString(key: String, value: String) {
         sharedPreferences.edit().putString(key, value).apply()
+        invalidateNumbers(key, storedAsString = true)
+    }
 
-}
\ No newline at end of file
+}
@@ -5,56 +5,71 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener
 
 class SharedPreferencesMock : SharedPreferences {
 
-    private val editor = EditorInternals()
+    private val listeners = mutableListOf<OnSharedPreferenceChangeListener>()
+    private val editor = EditorInternals { key -> listeners.forEach { it.onSharedPreferenceChanged(this, key) } }
 
-    internal class EditorInternals : SharedPreferences.Editor {
+    internal class EditorInternals(private val notify: (String?) -> Unit) : SharedPreferences.Editor {
 
         var innerMap: MutableMap<String, Any?> = HashMap()
+        private val changedKeys = mutableListOf<String?>()
+
         override fun putString(k: String, v: String?): SharedPreferences.Editor {
             innerMap[k] = v
+            changedKeys.add(k)
             return this
         }
 
         override fun putStringSet(k: String, set: Set<String>?): SharedPreferences.Editor {
             innerMap[k] = set
+            changedKeys.add(k)
             return this
         }
 
         override fun putInt(k: String, i: Int): SharedPreferences.Editor {
             innerMap[k] = i
+            changedKeys.add(k)
             return this
         }
 
         override fun putLong(k: String, l: Long): SharedPreferences.Editor {
             innerMap[k] = l
+            changedKeys.add(k)
             return this
         }
 
         override fun putFloat(k: String, v: Float): SharedPreferences.Editor {
             innerMap[k] = v
+            changedKeys.add(k)
             return this
         }
 
         override fun putBoolean(k: String, b: Boolean): SharedPreferences.Editor {
             innerMap[k] = b
+            changedKeys.add(k)
             return this
         }
 
         override fun remove(k: String): SharedPreferences.Editor {
             innerMap.remove(k)
+            changedKeys.add(k)
             return this
         }
 
         override fun clear(): SharedPreferences.Editor {
             innerMap.clear()
+            changedKeys.add(null)
             return this
         }
 
         override fun commit(): Boolean {
+            apply()
             return true
         }
 
-        override fun apply() {}
+        override fun apply() {
+            changedKeys.forEach(notify)
+            changedKeys.clear()
+        }
     }
 
     override fun getAll(): Map<String, *> {
@@ -118,6 +133,11 @@ class SharedPreferencesMock : SharedPreferences {
         return editor
     }
 
-    override fun registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener: OnSharedPreferenceChangeListener) {}
-    override fun unregisterOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener: OnSharedPreferenceChangeListener) {}
+    override fun registerOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener: OnSharedPreferenceChangeListener) {
+        listeners.add(onSharedPreferenceChangeListener)
+    }
+
+    override fun unregisterOnSharedPreferenceChangeListener(onSharedPreferenceChangeListener: OnSharedPreferenceChangeListener) {
+        listeners.remove(onSharedPreferenceChangeListener)
+    }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 package app.aaps.shared.impl.sharedPreferences
 
 import android.content.Context
+import app.aaps.core.interfaces.utils.SafeParse
 import app.aaps.shared.impl.SharedPreferencesMock
 import com.google.common.truth.Truth.assertThat
 import org.junit.jupiter.api.BeforeEach
@@ -19,13 +20,15 @@ class SPImplTest {
     @Mock lateinit var context: Context
 
     private lateinit var sut: SPImpl
+    private lateinit var sharedPreferences: SharedPreferencesMock
 
     private val someResource = 1
     private val someResource2 = 2
 
     @BeforeEach
     fun setUp() {
-        sut = SPImpl(SharedPreferencesMock(), context)
+        sharedPreferences = SharedPreferencesMock()
+        sut = SPImpl(sharedPreferences, context)
         Mockito.`when`(context.getString(someResource)).thenReturn("some_resource")
         Mockito.`when`(context.getString(someResource2)).thenReturn("some_resource_2")
     }
@@ -162,4 +165,56 @@ class SPImplTest {
         sut.putString(someResource, "a")
         assertThat(sut.getLong(someResource, 1L)).isEqualTo(1L)
     }
+
+    @Test
+    fun stringStoredNumbersFollowChanges() {
+        // like preference screen stores them
+        sharedPreferences.edit().putString("max_basal", "1,5").putString("max_iob", "abc").putString("period", "24").apply()
+        assertThat(sut.getDouble("max_basal", 0.0)).isEqualTo(1.5)
+        assertThat(sut.getDouble("max_iob", 3.0)).isEqualTo(3.0)
+        assertThat(sut.getInt("period", 4)).isEqualTo(24)
+        assertThat(sut.getLong("period", 4L)).isEqualTo(24L)
+
+        // changed outside of SP
+        sharedPreferences.edit().putString("max_basal", "2.5").apply()
+        assertThat(sut.getDouble("max_basal", 0.0)).isEqualTo(2.5)
+        sharedPreferences.edit().putString("new_key", "7").apply()
+        assertThat(sut.getInt("new_key", 0)).isEqualTo(7)
+        sharedPreferences.edit().remove("period").apply()
+        assertThat(sut.getInt("period", 4)).isEqualTo(4)
+
+        // changed through SP
+        sut.putDouble("max_basal", 3.0)
+        assertThat(sut.getDouble("max_basal", 0.0)).isEqualTo(3.0)
+        sut.edit { putDouble("max_iob", 4.0) }
+        assertThat(sut.getDouble("max_iob", 0.0)).isEqualTo(4.0)
+        sut.clear()
+        assertThat(sut.getDouble("max_iob", 0.0)).isEqualTo(0.0)
+    }
+
+    @Test
+    fun readingPreferencesOfLoopRun() {
+        // DetermineBasalAIMI2 reads 78 preferences per run
+        val keys = (0 until 78).map { "key_$it" }
+        keys.forEachIndexed { index, key -> sharedPreferences.edit().putString(key, "$index.5").apply() }
+        val spied = Mockito.spy(sharedPreferences)
+        val reader = SPImpl(spied, context)
+
+        fun legacyRun(): Double = keys.sumOf {
+            try {
+                sharedPreferences.getFloat(it, 0f).toDouble()
+            } catch (_: Exception) {
+                SafeParse.stringToDouble(sharedPreferences.getString(it, "0.0"), 0.0)
+            }
+        }
+
+        fun run(): Double = keys.sumOf { reader.getDouble(it, 0.0) }
+
+        assertThat(run()).isEqualTo(legacyRun())
+        repeat(100) { assertThat(run()).isEqualTo(legacyRun()) }
+        // parsed once, no further reads and no ClassCastException per value
+        Mockito.verify(spied, Mockito.times(1)).all
+        Mockito.verify(spied, Mockito.never()).getFloat(Mockito.anyString(), Mockito.anyFloat())
+        Mockito.verify(spied, Mockito.never()).getString(Mockito.anyString(), Mockito.any())
+    }
 }
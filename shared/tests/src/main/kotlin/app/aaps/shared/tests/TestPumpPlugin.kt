@@ -19,6 +19,7 @@ class TestPumpPlugin(val rh: ResourceHelper) : Pump {
     var connected = false
     var isProfileSet = true
     var pumpSuspended = false
+    var waitForDisconnection = 0
 
     override fun isConnected() = connected
     override fun isConnecting() = false
@@ -43,7 +44,7 @@ class TestPumpPlugin(val rh: ResourceHelper) : Pump {
         connected = false
     }
 
-    override fun waitForDisconnectionInSeconds(): Int = 0
+    override fun waitForDisconnectionInSeconds(): Int = waitForDisconnection
     override fun getPumpStatus(reason: String) { /* not needed */
     }
 
@@ -53,6 +53,7 @@ class DataHandlerWear @Inject constructor(
 ) {
 
     private val disposable = CompositeDisposable()
+    private val syncDeltaReceiver = SyncDeltaReceiver()
 
     init {
         setupBus()
@@ -123,6 +124,19 @@ class DataHandlerWear @Inject constructor(
                 aapsLogger.debug(LTag.WEAR, "Bolus progress received from ${it.sourceNodeId}")
                 handleBolusProgress(it)
             }
+        disposable += rxBus
+            .toObservable(EventData.SyncDelta::class.java)
+            .observeOn(aapsSchedulers.io)
+            .subscribe { delta ->
+                aapsLogger.debug(LTag.WEAR, "SyncDelta ${delta.sequence} full=${delta.full} received from ${delta.sourceNodeId}")
+                val items = syncDeltaReceiver.accept(delta) { persistence.readGraphData() }
+                if (items == null) {
+                    aapsLogger.debug(LTag.WEAR, "SyncDelta gap after ${syncDeltaReceiver.lastSequence}, requesting full data")
+                    rxBus.send(EventWearToMobile(EventData.ActionSyncGap(syncDeltaReceiver.lastSequence)))
+                } else {
+                    items.forEach { rxBus.send(it.also { item -> item.sourceNodeId = delta.sourceNodeId }) }
+                }
+            }
         disposable += rxBus
             .toObservable(EventData.Status::class.java)
             .observeOn(aapsSchedulers.io)
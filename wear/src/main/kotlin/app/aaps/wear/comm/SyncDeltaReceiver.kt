@@ -0,0 +1,49 @@
+package app.aaps.wear.comm
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+
+/**
+ * Applies [EventData.SyncDelta] messages received from phone in sequence.
+ *
+ * Delta following an unknown sequence is refused so the caller can request full snapshot.
+ */
+class SyncDeltaReceiver {
+
+    var lastSequence = NONE
+        private set
+
+    /**
+     * @param storedGraph graph data currently known by watch, new BG points are merged into it
+     * @return items to be processed as if received separately or null if sequence gap was detected
+     */
+    @Synchronized
+    fun accept(delta: EventData.SyncDelta, storedGraph: () -> EventData.GraphData?): List<EventData>? {
+        if (!delta.full && (lastSequence == NONE || delta.sequence != lastSequence + 1)) return null
+        lastSequence = delta.sequence
+        if (delta.full) return delta.items
+        return delta.items.map { item ->
+            if (item is EventData.GraphData) mergeGraph(storedGraph(), item) else item
+        }
+    }
+
+    companion object {
+
+        const val NONE = -1L
+
+        /**
+         * Replaces and adds points of [update] in [stored] and drops points leaving the time span of stored graph
+         */
+        fun mergeGraph(stored: EventData.GraphData?, update: EventData.GraphData): EventData.GraphData {
+            if (stored == null || stored.entries.isEmpty()) return update
+            val span = stored.entries.maxOf { it.timeStamp } - stored.entries.minOf { it.timeStamp }
+            val merged = HashMap<Long, EventData.SingleBg>(stored.entries.size + update.entries.size)
+            for (bg in stored.entries) merged[bg.timeStamp] = bg
+            for (bg in update.entries) merged[bg.timeStamp] = bg
+            val newest = merged.keys.max()
+            // keep ordering used by phone
+            val descending = stored.entries.first().timeStamp > stored.entries.last().timeStamp
+            val window = merged.values.filter { it.timeStamp >= newest - span }
+            return EventData.GraphData(ArrayList(if (descending) window.sortedByDescending { it.timeStamp } else window.sortedBy { it.timeStamp }))
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package app.aaps.wear.data
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import kotlinx.serialization.ExperimentalSerializationApi
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+/**
+ * Memory mapped ring of BG points in chronological order.
+ *
+ * Points are stored as ProtoBuf encoded [EventData.SingleBg] in fixed size slots, newer points are
+ * appended, points with already known timestamp are overwritten in place. When the ring is full the
+ * oldest point is replaced.
+ *
+ * Layout: header (magic, version, capacity, slot size, head, count, window start), then slots of
+ * timestamp (8 B), length (2 B) and data.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+class BgRingFile(file: File, private val capacity: Int = DEFAULT_CAPACITY) {
+
+    private val buffer: MappedByteBuffer
+    private var head: Int
+    var count: Int
+        private set
+
+    /** Oldest timestamp of last stored graph window */
+    var windowStart: Long
+        get() = buffer.getLong(WINDOW_START_POS)
+        set(value) {
+            buffer.putLong(WINDOW_START_POS, value)
+        }
+
+    init {
+        val size = HEADER_SIZE + capacity.toLong() * SLOT_SIZE
+        buffer = RandomAccessFile(file, "rw").use { raf ->
+            raf.channel.map(FileChannel.MapMode.READ_WRITE, 0, size)
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != capacity || buffer.getInt(12) != SLOT_SIZE) {
+            buffer.putInt(0, MAGIC)
+            buffer.putInt(4, VERSION)
+            buffer.putInt(8, capacity)
+            buffer.putInt(12, SLOT_SIZE)
+            writeState(0, 0)
+            windowStart = 0
+        }
+        head = buffer.getInt(HEAD_POS)
+        count = buffer.getInt(COUNT_POS)
+    }
+
+    val newest: Long
+        get() = if (count == 0) Long.MIN_VALUE else timestampAt(count - 1)
+
+    @Synchronized
+    fun clear() {
+        writeState(0, 0)
+    }
+
+    /**
+     * Appends newer point or overwrites point with the same timestamp
+     *
+     * @return false if point is older than newest one and not in ring or is too big for a slot
+     */
+    @Synchronized
+    fun put(bg: EventData.SingleBg): Boolean {
+        val data = bg.serializeByte()
+        if (data.size > SLOT_SIZE - SLOT_HEADER) return false
+        if (count > 0 && bg.timeStamp <= newest) {
+            val index = indexOf(bg.timeStamp)
+            if (index < 0) return false
+            writeSlot(slotOf(index), bg.timeStamp, data)
+            return true
+        }
+        writeSlot(head, bg.timeStamp, data)
+        writeState((head + 1) % capacity, minOf(count + 1, capacity))
+        return true
+    }
+
+    /**
+     * Logical index (0 = oldest) of point with [timestamp] or -1
+     */
+    @Synchronized
+    fun indexOf(timestamp: Long): Int {
+        val index = firstIndexFrom(timestamp)
+        return if (index < count && timestampAt(index) == timestamp) index else -1
+    }
+
+    /**
+     * Number of points with timestamp in [from]..[to]
+     */
+    @Synchronized
+    fun countBetween(from: Long, to: Long): Int = firstIndexFrom(to + 1) - firstIndexFrom(from)
+
+    /**
+     * Points not older than [from], newest first
+     */
+    @Synchronized
+    fun read(from: Long): List<EventData.SingleBg> {
+        val first = firstIndexFrom(from)
+        val result = ArrayList<EventData.SingleBg>(count - first)
+        for (index in count - 1 downTo first) {
+            val position = slotPosition(slotOf(index))
+            val data = ByteArray(buffer.getShort(position + 8).toInt())
+            for (i in data.indices) data[i] = buffer.get(position + SLOT_HEADER + i)
+            (EventData.deserializeByte(data) as? EventData.SingleBg)?.let { result.add(it) }
+        }
+        return result
+    }
+
+    // binary search over chronologically ordered slots
+    private fun firstIndexFrom(timestamp: Long): Int {
+        var low = 0
+        var high = count
+        while (low < high) {
+            val mid = (low + high) ushr 1
+            if (timestampAt(mid) < timestamp) low = mid + 1 else high = mid
+        }
+        return low
+    }
+
+    private fun slotOf(index: Int): Int = (head - count + index + capacity) % capacity
+    private fun slotPosition(slot: Int): Int = HEADER_SIZE + slot * SLOT_SIZE
+    private fun timestampAt(index: Int): Long = buffer.getLong(slotPosition(slotOf(index)))
+
+    private fun writeSlot(slot: Int, timestamp: Long, data: ByteArray) {
+        val position = slotPosition(slot)
+        buffer.putLong(position, timestamp)
+        buffer.putShort(position + 8, data.size.toShort())
+        for (i in data.indices) buffer.put(position + SLOT_HEADER + i, data[i])
+    }
+
+    private fun writeState(head: Int, count: Int) {
+        this.head = head
+        this.count = count
+        buffer.putInt(HEAD_POS, head)
+        buffer.putInt(COUNT_POS, count)
+    }
+
+    companion object {
+
+        const val DEFAULT_CAPACITY = 576 // 48h of 5 min data
+        const val SLOT_SIZE = 256
+        private const val SLOT_HEADER = 10
+        private const val MAGIC = 0x41425247 // "ABRG"
+        private const val VERSION = 1
+        private const val HEAD_POS = 16
+        private const val COUNT_POS = 20
+        private const val WINDOW_START_POS = 24
+        private const val HEADER_SIZE = 32
+    }
+}
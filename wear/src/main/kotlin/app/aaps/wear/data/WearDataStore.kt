@@ -0,0 +1,97 @@
+package app.aaps.wear.data
+
+import app.aaps.core.interfaces.logging.AAPSLogger
+import app.aaps.core.interfaces.logging.LTag
+import app.aaps.core.interfaces.rx.weardata.EventData
+import kotlinx.serialization.ExperimentalSerializationApi
+import java.io.File
+import java.io.RandomAccessFile
+import java.nio.channels.FileChannel
+
+/**
+ * Binary store of data received from phone.
+ *
+ * Graph BG points live in [BgRingFile], single BG, status and treatments are ProtoBuf snapshot records
+ * replaced atomically on store. Records are decoded from memory mapped files only once, afterwards
+ * watchface refreshes get already decoded objects.
+ */
+@OptIn(ExperimentalSerializationApi::class)
+class WearDataStore(private val aapsLogger: AAPSLogger, private val directory: File) {
+
+    private val ring by lazy { BgRingFile(File(directory.also { it.mkdirs() }, BG_RING_FILE)) }
+    private val snapshots = HashMap<String, EventData?>()
+    private var graph: EventData.GraphData? = null
+
+    @Synchronized
+    fun store(singleBg: EventData.SingleBg) = storeSnapshot(SINGLE_BG + singleBg.dataset, singleBg)
+
+    @Synchronized
+    fun store(status: EventData.Status) = storeSnapshot(STATUS + status.dataset, status)
+
+    @Synchronized
+    fun store(treatmentData: EventData.TreatmentData) = storeSnapshot(TREATMENTS, treatmentData)
+
+    @Synchronized
+    fun singleBg(dataset: Int): EventData.SingleBg? = snapshot(SINGLE_BG + dataset) as? EventData.SingleBg
+
+    @Synchronized
+    fun status(dataset: Int): EventData.Status? = snapshot(STATUS + dataset) as? EventData.Status
+
+    @Synchronized
+    fun treatments(): EventData.TreatmentData? = snapshot(TREATMENTS) as? EventData.TreatmentData
+
+    /**
+     * Appends new points to the ring. Points already stored are overwritten in place,
+     * if the received window does not match stored points the ring is rebuilt.
+     */
+    @Synchronized
+    fun store(graphData: EventData.GraphData) {
+        val entries = graphData.entries.sortedBy { it.timeStamp }
+        if (entries.isEmpty()) return
+        val newest = ring.newest
+        val overlap = entries.filter { it.timeStamp <= newest }
+        val consistent = overlap.isEmpty() ||
+            ring.countBetween(overlap.first().timeStamp, newest) == overlap.size && overlap.all { ring.put(it) }
+        if (!consistent) ring.clear()
+        for (bg in entries) if (!consistent || bg.timeStamp > newest) ring.put(bg)
+        ring.windowStart = entries.first().timeStamp
+        graph = null
+    }
+
+    @Synchronized
+    fun graph(): EventData.GraphData? {
+        graph?.let { return it }
+        if (ring.count == 0) return null
+        return EventData.GraphData(ArrayList(ring.read(ring.windowStart))).also { graph = it }
+    }
+
+    private fun storeSnapshot(name: String, data: EventData) {
+        val tmp = File(directory.also { it.mkdirs() }, "$name.tmp")
+        tmp.writeBytes(data.serializeByte())
+        if (!tmp.renameTo(File(directory, "$name$SNAPSHOT_EXTENSION"))) {
+            // received data is still served from memory, previous file stays until next successful write
+            aapsLogger.error(LTag.WEAR, "Storing $name failed")
+            tmp.delete()
+        }
+        snapshots[name] = data
+    }
+
+    private fun snapshot(name: String): EventData? =
+        snapshots.getOrPut(name) {
+            val file = File(directory, "$name$SNAPSHOT_EXTENSION")
+            if (!file.exists()) null
+            else RandomAccessFile(file, "r").use { raf ->
+                val mapped = raf.channel.map(FileChannel.MapMode.READ_ONLY, 0, raf.length())
+                EventData.deserializeByte(ByteArray(mapped.remaining()).also { mapped.get(it) })
+            }
+        }
+
+    companion object {
+
+        private const val BG_RING_FILE = "bg.ring"
+        private const val SNAPSHOT_EXTENSION = ".pb"
+        private const val SINGLE_BG = "single_bg"
+        private const val STATUS = "status"
+        private const val TREATMENTS = "treatments"
+    }
+}
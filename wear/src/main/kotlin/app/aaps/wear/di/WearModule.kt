@@ -1,16 +1,20 @@
 package app.aaps.wear.di
 
 import android.content.Context
+import app.aaps.core.interfaces.logging.AAPSLogger
 import app.aaps.core.keys.interfaces.Preferences
 import app.aaps.shared.impl.di.LoggerModule
 import app.aaps.shared.impl.di.SharedImplModule
 import app.aaps.wear.WearApp
+import app.aaps.wear.data.WearDataStore
 import app.aaps.wear.sharedPreferences.PreferencesImpl
 import dagger.Binds
 import dagger.Module
 import dagger.Provides
 import dagger.android.HasAndroidInjector
 import kotlinx.datetime.Clock
+import java.io.File
+import javax.inject.Singleton
 
 @Suppress("unused")
 @Module(
@@ -33,5 +37,9 @@ open class WearModule {
 
     @Provides
     fun providesClock(): Clock = Clock.System
+
+    @Provides
+    @Singleton
+    fun providesWearDataStore(aapsLogger: AAPSLogger, context: Context): WearDataStore = WearDataStore(aapsLogger, File(context.filesDir, "data_store"))
 }
 
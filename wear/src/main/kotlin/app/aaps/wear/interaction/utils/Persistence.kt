@@ -10,6 +10,7 @@ import app.aaps.core.interfaces.sharedPreferences.SP
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.shared.impl.weardata.ResFileMap
 import app.aaps.wear.R
+import app.aaps.wear.data.WearDataStore
 import javax.inject.Inject
 import javax.inject.Singleton
 
@@ -21,21 +22,17 @@ import javax.inject.Singleton
 open class Persistence @Inject constructor(
     private val aapsLogger: AAPSLogger,
     private val dateUtil: DateUtil,
-    private val sp: SP
+    private val sp: SP,
+    private val dataStore: WearDataStore
 ) {
 
     companion object {
 
-        const val BG_DATA_PERSISTENCE_KEY = "bg_data"
-        const val BG1_DATA_PERSISTENCE_KEY = "bg1_data"
-        const val BG2_DATA_PERSISTENCE_KEY = "bg2_data"
-        const val GRAPH_DATA_PERSISTENCE_KEY = "graph_data"
-        const val TREATMENT_PERSISTENCE_KEY = "treatment_data"
-        const val STATUS_PERSISTENCE_KEY = "status_data"
-        const val STATUS1_PERSISTENCE_KEY = "status1_data"
-        const val STATUS2_PERSISTENCE_KEY = "status2_data"
         const val LOOP_STATES_PERSISTENCE_KEY = "loop_states"
 
+        // json data stored in preferences before WearDataStore
+        private val LEGACY_DATA_KEYS = listOf("bg_data", "bg1_data", "bg2_data", "graph_data", "treatment_data", "status_data", "status1_data", "status2_data")
+
         const val KEY_COMPLICATIONS = "complications"
         const val KEY_LAST_SHOWN_SINCE_VALUE = "lastSince"
         const val KEY_STALE_REPORTED = "staleReported"
@@ -46,6 +43,39 @@ open class Persistence @Inject constructor(
         const val CUSTOM_DEFAULT_WATCHFACE_FULL = "custom_default_watchface_full"
     }
 
+    init {
+        migrateLegacyData()
+    }
+
+    /**
+     * Moves data from preferences to [WearDataStore] unless newer data is stored there already.
+     * Entry is removed when moved or not readable, on store failure it's tried again on next start.
+     */
+    private fun migrateLegacyData() {
+        for (key in LEGACY_DATA_KEYS) {
+            val s = sp.getStringOrNull(key, null) ?: continue
+            try {
+                val data = try {
+                    EventData.deserialize(s)
+                } catch (exception: Exception) {
+                    aapsLogger.error(LTag.WEAR, "Dropping unreadable $key: $exception")
+                    null
+                }
+                when (data) {
+                    is EventData.SingleBg      -> if (dataStore.singleBg(data.dataset) == null) dataStore.store(data)
+                    is EventData.Status        -> if (dataStore.status(data.dataset) == null) dataStore.store(data)
+                    is EventData.TreatmentData -> if (dataStore.treatments() == null) dataStore.store(data)
+                    is EventData.GraphData     -> if (dataStore.graph() == null) dataStore.store(data)
+                    else                       -> Unit
+                }
+                sp.remove(key)
+                aapsLogger.debug(LTag.WEAR, "Migrated $key")
+            } catch (exception: Exception) {
+                aapsLogger.error(LTag.WEAR, "Migration of $key failed: $exception")
+            }
+        }
+    }
+
     fun getString(key: String, defaultValue: String): String {
         return sp.getString(key, defaultValue)
     }
@@ -89,21 +119,9 @@ open class Persistence @Inject constructor(
     fun readSingleBg(array: Array<EventData.SingleBg>): Array<EventData.SingleBg> {
         val switch = sp.getBoolean(R.string.key_switch_external, false)
         try {
-            var s = sp.getStringOrNull(BG_DATA_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded BG data: $s")
-            if (s != null) {
-                array[0] = EventData.deserialize(s) as EventData.SingleBg
-            }
-             s = sp.getStringOrNull(if (switch) BG2_DATA_PERSISTENCE_KEY else BG1_DATA_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded BG data: $s")
-            if (s != null) {
-                array[1] = EventData.deserialize(s) as EventData.SingleBg
-            }
-            s = sp.getStringOrNull(if (switch) BG1_DATA_PERSISTENCE_KEY else BG2_DATA_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded BG data: $s")
-            if (s != null) {
-                array[2] =  EventData.deserialize(s) as EventData.SingleBg
-            }
+            dataStore.singleBg(0)?.let { array[0] = it }
+            dataStore.singleBg(if (switch) 2 else 1)?.let { array[1] = it }
+            dataStore.singleBg(if (switch) 1 else 2)?.let { array[2] = it }
         } catch (exception: Exception) {
             aapsLogger.error(LTag.WEAR, exception.toString())
         }
@@ -113,21 +131,9 @@ open class Persistence @Inject constructor(
     fun readStatus(array: Array<EventData.Status>): Array<EventData.Status> {
         val switch = sp.getBoolean(R.string.key_switch_external, false)
         try {
-            var s = sp.getStringOrNull(STATUS_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded Status data: $s")
-            if (s != null) {
-                array[0] =  EventData.deserialize(s) as EventData.Status
-            }
-            s = sp.getStringOrNull(if (switch) STATUS2_PERSISTENCE_KEY else STATUS1_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded Status data: $s")
-            if (s != null) {
-                array[1] =  EventData.deserialize(s) as EventData.Status
-            }
-            s = sp.getStringOrNull(if (switch) STATUS1_PERSISTENCE_KEY else STATUS2_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded Status data: $s")
-            if (s != null) {
-                array[2] = EventData.deserialize(s) as EventData.Status
-            }
+            dataStore.status(0)?.let { array[0] = it }
+            dataStore.status(if (switch) 2 else 1)?.let { array[1] = it }
+            dataStore.status(if (switch) 1 else 2)?.let { array[2] = it }
         } catch (exception: Exception) {
             aapsLogger.error(LTag.WEAR, exception.toString())
         }
@@ -136,11 +142,7 @@ open class Persistence @Inject constructor(
 
     fun readTreatments(): EventData.TreatmentData? {
         try {
-            val s = sp.getStringOrNull(TREATMENT_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded Treatments data: $s")
-            if (s != null) {
-                return EventData.deserialize(s) as EventData.TreatmentData
-            }
+            return dataStore.treatments()
         } catch (exception: Exception) {
             aapsLogger.error(LTag.WEAR, exception.toString())
         }
@@ -149,11 +151,7 @@ open class Persistence @Inject constructor(
 
     fun readGraphData(): EventData.GraphData? {
         try {
-            val s = sp.getStringOrNull(GRAPH_DATA_PERSISTENCE_KEY, null)
-            //aapsLogger.debug(LTag.WEAR, "Loaded Graph data: $s")
-            if (s != null) {
-                return EventData.deserialize(s) as EventData.GraphData
-            }
+            return dataStore.graph()
         } catch (exception: Exception) {
             aapsLogger.error(LTag.WEAR, exception.toString())
         }
@@ -205,33 +203,25 @@ open class Persistence @Inject constructor(
     }
 
     fun store(singleBg: EventData.SingleBg) {
-
-        when(singleBg.dataset) {
+        dataStore.store(singleBg)
+        when (singleBg.dataset) {
             0 -> {
-                putString(BG_DATA_PERSISTENCE_KEY, singleBg.serialize())
                 aapsLogger.debug(LTag.WEAR, "Stored BG data: $singleBg")
                 markDataUpdated()
             }
 
-            1 -> {
-                putString(BG1_DATA_PERSISTENCE_KEY, singleBg.serialize())
-                aapsLogger.debug(LTag.WEAR, "Stored BG1 data: $singleBg")
-            }
-
-            2 -> {
-                putString(BG2_DATA_PERSISTENCE_KEY, singleBg.serialize())
-                aapsLogger.debug(LTag.WEAR, "Stored BG2 data: $singleBg")
-            }
+            1 -> aapsLogger.debug(LTag.WEAR, "Stored BG1 data: $singleBg")
+            2 -> aapsLogger.debug(LTag.WEAR, "Stored BG2 data: $singleBg")
         }
     }
 
     fun store(graphData: EventData.GraphData) {
-        putString(GRAPH_DATA_PERSISTENCE_KEY, graphData.serialize())
+        dataStore.store(graphData)
         aapsLogger.debug(LTag.WEAR, "Stored Graph data: $graphData")
     }
 
     fun store(treatmentData: EventData.TreatmentData) {
-        putString(TREATMENT_PERSISTENCE_KEY, treatmentData.serialize())
+        dataStore.store(treatmentData)
         aapsLogger.debug(LTag.WEAR, "Stored Treatments data: $treatmentData")
     }
 
@@ -241,21 +231,11 @@ open class Persistence @Inject constructor(
     }
 
     fun store(status: EventData.Status) {
+        dataStore.store(status)
         when (status.dataset) {
-            0 -> {
-                putString(STATUS_PERSISTENCE_KEY, status.serialize())
-                aapsLogger.debug(LTag.WEAR, "Stored Status data: $status")
-            }
-
-            1 -> {
-                putString(STATUS1_PERSISTENCE_KEY, status.serialize())
-                aapsLogger.debug(LTag.WEAR, "Stored Status1 data: $status")
-            }
-
-            2 -> {
-                putString(STATUS2_PERSISTENCE_KEY, status.serialize())
-                aapsLogger.debug(LTag.WEAR, "Stored Status2 data: $status")
-            }
+            0 -> aapsLogger.debug(LTag.WEAR, "Stored Status data: $status")
+            1 -> aapsLogger.debug(LTag.WEAR, "Stored Status1 data: $status")
+            2 -> aapsLogger.debug(LTag.WEAR, "Stored Status2 data: $status")
         }
     }
 
@@ -58,6 +58,7 @@ abstract class BaseWatchFace : WatchFace() {
 
     private var disposable = CompositeDisposable()
     private val rawData = RawDisplayData()
+    private val graphState = BgGraphState()
 
     protected val singleBg get() = rawData.singleBg
     protected val status get() = rawData.status
@@ -552,12 +553,12 @@ abstract class BaseWatchFace : WatchFace() {
                 if (lowResMode)
                     BgGraphBuilder(
                         sp, dateUtil, graphData.entries, treatmentData.predictions, treatmentData.temps, treatmentData.basals, treatmentData.boluses, pointSize,
-                        midColor, gridColor, basalBackgroundColor, basalCenterColor, bolusColor, carbColor, timeframe
+                        midColor, gridColor, basalBackgroundColor, basalCenterColor, bolusColor, carbColor, timeframe, graphState
                     )
                 else
                     BgGraphBuilder(
                         sp, dateUtil, graphData.entries, treatmentData.predictions, treatmentData.temps, treatmentData.basals, treatmentData.boluses,
-                        pointSize, highColor, lowColor, midColor, gridColor, basalBackgroundColor, basalCenterColor, bolusColor, carbColor, timeframe
+                        pointSize, highColor, lowColor, midColor, gridColor, basalBackgroundColor, basalCenterColor, bolusColor, carbColor, timeframe, graphState
                     )
             binding.chart?.lineChartData = bgGraphBuilder.lineData()
             binding.chart?.isViewportCalculationEnabled = true
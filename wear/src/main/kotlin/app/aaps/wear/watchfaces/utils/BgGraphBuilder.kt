@@ -36,7 +36,8 @@ class BgGraphBuilder(
     private val basalCenterColor: Int,
     private val bolusInvalidColor: Int,
     private val carbsColor: Int,
-    private val timeSpan: Int
+    private val timeSpan: Int,
+    private val state: BgGraphState = BgGraphState()
 ) {
 
     private var endingTime: Long = System.currentTimeMillis() + 1000L * 60 * 6 * timeSpan
@@ -44,9 +45,6 @@ class BgGraphBuilder(
     private var fuzzyTimeDiv = (1000 * 60 * 1).toDouble()
     private var highMark: Double = bgDataList[bgDataList.size - 1].high
     private var lowMark: Double = bgDataList[bgDataList.size - 1].low
-    private val inRangeValues: MutableList<PointValue> = ArrayList()
-    private val highValues: MutableList<PointValue> = ArrayList()
-    private val lowValues: MutableList<PointValue> = ArrayList()
 
     private val predictionEndTime: Long
         get() {
@@ -62,6 +60,7 @@ class BgGraphBuilder(
     init {
         if (sp.getBoolean(R.string.key_prediction_lines, true))
             endingTime = max(predictionEndTime, endingTime)
+        state.useStyle(listOf(pointSize, highColor, lowColor, midColor, basalBackgroundColor, basalCenterColor))
     }
 
     //used for low resolution screen.
@@ -72,12 +71,13 @@ class BgGraphBuilder(
         tempWatchDataList: List<EventData.TreatmentData.TempBasal>,
         basalWatchDataList: ArrayList<Basal>,
         bolusWatchDataList: ArrayList<EventData.TreatmentData.Treatment>,
-        aPointSize: Int, aMidColor: Int, gridColour: Int, basalBackgroundColor: Int, basalCenterColor: Int, bolusInvalidColor: Int, carbsColor: Int, timeSpan: Int
+        aPointSize: Int, aMidColor: Int, gridColour: Int, basalBackgroundColor: Int, basalCenterColor: Int, bolusInvalidColor: Int, carbsColor: Int, timeSpan: Int,
+        state: BgGraphState = BgGraphState()
     ) : this(
         sp, dateUtil,
         aBgList, predictionsList, tempWatchDataList, basalWatchDataList,
         bolusWatchDataList, aPointSize, aMidColor, aMidColor, aMidColor, gridColour,
-        basalBackgroundColor, basalCenterColor, bolusInvalidColor, carbsColor, timeSpan
+        basalBackgroundColor, basalCenterColor, bolusInvalidColor, carbsColor, timeSpan, state
     )
 
     fun lineData(): LineChartData {
@@ -90,7 +90,8 @@ class BgGraphBuilder(
     }
 
     private fun defaultLines(): List<Line> {
-        addBgReadingValues()
+        state.updateBg(bgDataList, startingTime, highMark, lowMark, ::fuzz)
+        state.beginLines()
         val lines: MutableList<Line> = ArrayList()
         lines.add(highLine())
         lines.add(lowLine())
@@ -118,14 +119,16 @@ class BgGraphBuilder(
         if (sp.getBoolean(R.string.key_show_graph_temp_basal, true))
             for (twd in tempWatchDataList) {
                 if (twd.endTime > startingTime) {
-                    lines.add(tempValuesLine(twd, minChart.toFloat(), factor, false, if (highlight) pointSize + 1 else pointSize))
-                    if (highlight) lines.add(tempValuesLine(twd, minChart.toFloat(), factor, true, 1))
+                    val begin = max(startingTime, twd.startTime)
+                    val strokeWidth = if (highlight) pointSize + 1 else pointSize
+                    lines.add(state.line(listOf(twd, begin, minChart, factor, false)) { tempValuesLine(twd, begin, minChart.toFloat(), factor, false, strokeWidth) })
+                    if (highlight) lines.add(state.line(listOf(twd, begin, minChart, factor, true)) { tempValuesLine(twd, begin, minChart.toFloat(), factor, true, 1) })
                 }
             }
         if (sp.getBoolean(R.string.key_prediction_lines, true))
             addPredictionLines(lines)
         if (sp.getBoolean(R.string.key_show_graph_basal, true))
-            lines.add(basalLine(minChart.toFloat(), factor, highlight))
+            lines.add(basalLine(minChart, factor, highlight))
         lines.add(bolusInvalidLine(minChart.toFloat()))
         if (sp.getBoolean(R.string.key_show_graph_carbs, true))
             lines.add(carbsLine(minChart.toFloat()))
@@ -136,7 +139,17 @@ class BgGraphBuilder(
         return lines
     }
 
-    private fun basalLine(offset: Float, factor: Double, highlight: Boolean): Line {
+    // only the first visible segment is clipped by window start, the line is rebuilt when visible segments or scale change
+    private fun basalLine(minChart: Double, factor: Double, highlight: Boolean): Line {
+        val offset = minChart.toFloat()
+        val first = basalWatchDataList.indexOfFirst { it.endTime > startingTime }
+        val line = state.line(listOf(basalWatchDataList, first, minChart, factor, highlight)) { buildBasalLine(offset, factor, highlight) }
+        if (first >= 0 && line.values.isNotEmpty() && basalWatchDataList[first].startTime < startingTime)
+            line.values[0].set(fuzz(startingTime), offset + (factor * basalWatchDataList[first].amount).toFloat())
+        return line
+    }
+
+    private fun buildBasalLine(offset: Float, factor: Double, highlight: Boolean): Line {
         val pointValues: MutableList<PointValue> = ArrayList()
         for ((startTime, endTime, amount) in basalWatchDataList) {
             if (endTime > startingTime) {
@@ -237,7 +250,7 @@ class BgGraphBuilder(
     }
 
     private fun highValuesLine(): Line =
-        Line(highValues).also { highValuesLine ->
+        Line(state.highValues).also { highValuesLine ->
             highValuesLine.color = highColor
             highValuesLine.setHasLines(false)
             highValuesLine.pointRadius = pointSize
@@ -245,7 +258,7 @@ class BgGraphBuilder(
         }
 
     private fun lowValuesLine(): Line =
-        Line(lowValues).also { lowValuesLine ->
+        Line(state.lowValues).also { lowValuesLine ->
             lowValuesLine.color = lowColor
             lowValuesLine.setHasLines(false)
             lowValuesLine.pointRadius = pointSize
@@ -253,16 +266,15 @@ class BgGraphBuilder(
         }
 
     private fun inRangeValuesLine(): Line =
-        Line(inRangeValues).also { inRangeValuesLine ->
+        Line(state.inRangeValues).also { inRangeValuesLine ->
             inRangeValuesLine.color = midColor
             inRangeValuesLine.pointRadius = pointSize
             inRangeValuesLine.setHasPoints(true)
             inRangeValuesLine.setHasLines(false)
         }
 
-    private fun tempValuesLine(twd: EventData.TreatmentData.TempBasal, offset: Float, factor: Double, isHighlightLine: Boolean, strokeWidth: Int): Line {
+    private fun tempValuesLine(twd: EventData.TreatmentData.TempBasal, begin: Long, offset: Float, factor: Double, isHighlightLine: Boolean, strokeWidth: Int): Line {
         val lineValues: MutableList<PointValue> = ArrayList()
-        val begin = max(startingTime, twd.startTime)
         lineValues.add(PointValue(fuzz(begin), offset + (factor * twd.startBasal).toFloat()))
         lineValues.add(PointValue(fuzz(begin), offset + (factor * twd.amount).toFloat()))
         lineValues.add(PointValue(fuzz(twd.endTime), offset + (factor * twd.amount).toFloat()))
@@ -279,20 +291,6 @@ class BgGraphBuilder(
         }
     }
 
-    private fun addBgReadingValues() {
-        for ((_, timeStamp, _, _, _, _, _, _, _, _, sgv) in bgDataList) {
-            if (timeStamp > startingTime) {
-                when {
-                    sgv >= 450      -> highValues.add(PointValue(fuzz(timeStamp), 450.toFloat()))
-                    sgv >= highMark -> highValues.add(PointValue(fuzz(timeStamp), sgv.toFloat()))
-                    sgv >= lowMark  -> inRangeValues.add(PointValue(fuzz(timeStamp), sgv.toFloat()))
-                    sgv >= 40       -> lowValues.add(PointValue(fuzz(timeStamp), sgv.toFloat()))
-                    sgv >= 11       -> lowValues.add(PointValue(fuzz(timeStamp), 40.toFloat()))
-                }
-            }
-        }
-    }
-
     private fun highLine(): Line {
         val highLineValues: MutableList<PointValue> = ArrayList()
         highLineValues.add(PointValue(fuzz(startingTime), highMark.toFloat()))
@@ -0,0 +1,187 @@
+package app.aaps.wear.watchfaces.utils
+
+import app.aaps.core.interfaces.rx.weardata.EventData.SingleBg
+import lecho.lib.hellocharts.model.Line
+import lecho.lib.hellocharts.model.PointValue
+
+/**
+ * Graph data retained by [BgGraphBuilder] between redraws of one watchface.
+ *
+ * BG readings inside the window are kept in primitive buffers in chronological order. If the new
+ * readings only add points and older ones leave the window, the head is shifted out and the new points
+ * are appended, otherwise the series are rebuilt. Overlay lines are kept by their inputs and recreated
+ * only when these changed.
+ */
+class BgGraphState {
+
+    private var timestamps = LongArray(INITIAL_CAPACITY)
+    private var sgvs = DoubleArray(INITIAL_CAPACITY)
+    private var size = 0
+    private var scratchTimestamps = LongArray(INITIAL_CAPACITY)
+    private var scratchSgvs = DoubleArray(INITIAL_CAPACITY)
+    private var highMark = Double.NaN
+    private var lowMark = Double.NaN
+    private var style: List<Int>? = null
+
+    internal val highValues = ArrayList<PointValue>()
+    internal val inRangeValues = ArrayList<PointValue>()
+    internal val lowValues = ArrayList<PointValue>()
+
+    private var lines = HashMap<Any, Line>()
+    private var previousLines = HashMap<Any, Line>()
+
+    /** Number of BG series rebuilds, incremental updates are not counted */
+    var fullRebuilds = 0
+        private set
+
+    fun clear() {
+        size = 0
+        highMark = Double.NaN
+        lowMark = Double.NaN
+        highValues.clear()
+        inRangeValues.clear()
+        lowValues.clear()
+        lines.clear()
+        previousLines.clear()
+    }
+
+    /**
+     * Drops retained data if colors or sizes differ from last build
+     */
+    internal fun useStyle(style: List<Int>) {
+        if (style != this.style) clear()
+        this.style = style
+    }
+
+    /**
+     * Updates BG series to readings of [bgDataList] newer than [startingTime]
+     */
+    internal fun updateBg(bgDataList: List<SingleBg>, startingTime: Long, highMark: Double, lowMark: Double, fuzz: (Long) -> Float) {
+        val count = collect(bgDataList, startingTime)
+        var drop = 0
+        while (drop < size && timestamps[drop] <= startingTime) drop++
+        val kept = size - drop
+        if (size == 0 || highMark != this.highMark || lowMark != this.lowMark || kept > count || !retained(drop, kept)) {
+            fullRebuilds++
+            size = 0
+            this.highMark = highMark
+            this.lowMark = lowMark
+            highValues.clear()
+            inRangeValues.clear()
+            lowValues.clear()
+            for (i in 0 until count) add(scratchTimestamps[i], scratchSgvs[i], fuzz)
+            return
+        }
+        shift(drop)
+        for (i in kept until count) add(scratchTimestamps[i], scratchSgvs[i], fuzz)
+    }
+
+    /**
+     * Starts new build. Lines not requested by [line] during the build are released.
+     */
+    internal fun beginLines() {
+        previousLines = lines.also { lines = previousLines }
+        lines.clear()
+    }
+
+    /**
+     * Line built from the same [key] in previous build or a new one
+     */
+    internal fun line(key: Any, build: () -> Line): Line =
+        (previousLines.remove(key) ?: lines[key] ?: build()).also { lines[key] = it }
+
+    // readings newer than startingTime sorted by time into scratch buffers
+    private fun collect(bgDataList: List<SingleBg>, startingTime: Long): Int {
+        if (scratchTimestamps.size < bgDataList.size) {
+            scratchTimestamps = LongArray(bgDataList.size)
+            scratchSgvs = DoubleArray(bgDataList.size)
+        }
+        var count = 0
+        var ascending = true
+        var descending = true
+        for (bg in bgDataList) {
+            if (bg.timeStamp <= startingTime) continue
+            if (count > 0) {
+                if (bg.timeStamp <= scratchTimestamps[count - 1]) ascending = false
+                if (bg.timeStamp >= scratchTimestamps[count - 1]) descending = false
+            }
+            scratchTimestamps[count] = bg.timeStamp
+            scratchSgvs[count] = bg.sgv
+            count++
+        }
+        if (descending) {
+            for (i in 0 until count / 2) {
+                val j = count - 1 - i
+                scratchTimestamps[i] = scratchTimestamps[j].also { scratchTimestamps[j] = scratchTimestamps[i] }
+                scratchSgvs[i] = scratchSgvs[j].also { scratchSgvs[j] = scratchSgvs[i] }
+            }
+        } else if (!ascending) {
+            val order = (0 until count).sortedBy { scratchTimestamps[it] }
+            val sortedTimestamps = LongArray(count) { scratchTimestamps[order[it]] }
+            val sortedSgvs = DoubleArray(count) { scratchSgvs[order[it]] }
+            sortedTimestamps.copyInto(scratchTimestamps)
+            sortedSgvs.copyInto(scratchSgvs)
+        }
+        return count
+    }
+
+    private fun retained(drop: Int, kept: Int): Boolean {
+        for (i in 0 until kept)
+            if (timestamps[drop + i] != scratchTimestamps[i] || sgvs[drop + i] != scratchSgvs[i]) return false
+        return true
+    }
+
+    private fun shift(drop: Int) {
+        if (drop == 0) return
+        var high = 0
+        var inRange = 0
+        var low = 0
+        for (i in 0 until drop) {
+            val series = seriesOf(sgvs[i])
+            when {
+                series === highValues    -> high++
+                series === inRangeValues -> inRange++
+                series === lowValues     -> low++
+            }
+        }
+        highValues.subList(0, high).clear()
+        inRangeValues.subList(0, inRange).clear()
+        lowValues.subList(0, low).clear()
+        timestamps.copyInto(timestamps, 0, drop, size)
+        sgvs.copyInto(sgvs, 0, drop, size)
+        size -= drop
+    }
+
+    private fun add(timestamp: Long, sgv: Double, fuzz: (Long) -> Float) {
+        if (size == timestamps.size) {
+            timestamps = timestamps.copyOf(size * 2)
+            sgvs = sgvs.copyOf(size * 2)
+        }
+        timestamps[size] = timestamp
+        sgvs[size] = sgv
+        size++
+        seriesOf(sgv)?.add(PointValue(fuzz(timestamp), displayedValue(sgv)))
+    }
+
+    private fun seriesOf(sgv: Double): MutableList<PointValue>? =
+        when {
+            sgv >= 450      -> highValues
+            sgv >= highMark -> highValues
+            sgv >= lowMark  -> inRangeValues
+            sgv >= 11       -> lowValues
+            else            -> null
+        }
+
+    private fun displayedValue(sgv: Double): Float =
+        when {
+            sgv >= 450      -> 450f
+            sgv >= lowMark  -> sgv.toFloat()
+            sgv >= 40       -> sgv.toFloat()
+            else            -> 40f
+        }
+
+    companion object {
+
+        private const val INITIAL_CAPACITY = 64
+    }
+}
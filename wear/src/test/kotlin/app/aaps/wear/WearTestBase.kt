@@ -5,6 +5,7 @@ import android.content.SharedPreferences
 import app.aaps.core.interfaces.sharedPreferences.SP
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.shared.tests.TestBase
+import app.aaps.wear.data.WearDataStore
 import app.aaps.wear.interaction.utils.Constants
 import app.aaps.wear.interaction.utils.Persistence
 import app.aaps.wear.interaction.utils.WearUtil
@@ -12,9 +13,11 @@ import app.aaps.wear.testing.mocks.SharedPreferencesMock
 import kotlinx.datetime.Clock
 import kotlinx.datetime.Instant
 import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.io.TempDir
 import org.mockito.ArgumentMatchers
 import org.mockito.Mock
 import org.mockito.Mockito
+import java.io.File
 
 open class WearTestBase : TestBase() {
 
@@ -23,6 +26,7 @@ open class WearTestBase : TestBase() {
     @Mock lateinit var sp: SP
     @Mock lateinit var dateUtil: DateUtil
     @Mock lateinit var clock: Clock
+    @TempDir lateinit var dataDir: File
     lateinit var wearUtil: WearUtil
 
     lateinit var persistence: Persistence
@@ -44,7 +48,7 @@ open class WearTestBase : TestBase() {
         }.`when`(context).getSharedPreferences(ArgumentMatchers.anyString(), ArgumentMatchers.anyInt())
         setClockNow()
 
-        persistence = Mockito.spy(Persistence(aapsLogger, dateUtil, sp))
+        persistence = Mockito.spy(Persistence(aapsLogger, dateUtil, sp, WearDataStore(aapsLogger, dataDir)))
     }
 
     fun progressClock(byMilliseconds: Long) {
@@ -0,0 +1,56 @@
+package app.aaps.wear.comm
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+
+class SyncDeltaReceiverTest {
+
+    private val status = EventData.Status(
+        dataset = 0, externalStatus = "", iobSum = "1.00", iobDetail = "", cob = "", currentBasal = "", battery = "", rigBattery = "",
+        openApsStatus = 0, bgi = "", batteryLevel = 1, tempTarget = "", tempTargetLevel = 0, reservoirString = "", reservoir = 0.0, reservoirLevel = 0
+    )
+
+    private fun bg(timestamp: Long) = EventData.SingleBg(dataset = 0, timeStamp = timestamp, sgv = 100.0, high = 180.0, low = 70.0)
+
+    @Test
+    fun deltaWithoutFullSnapshotIsRefused() {
+        val sut = SyncDeltaReceiver()
+        assertThat(sut.accept(EventData.SyncDelta(5, false, listOf(status))) { null }).isNull()
+        assertThat(sut.lastSequence).isEqualTo(SyncDeltaReceiver.NONE)
+    }
+
+    @Test
+    fun sequenceGapIsDetected() {
+        val sut = SyncDeltaReceiver()
+        assertThat(sut.accept(EventData.SyncDelta(1, true, listOf(status))) { null }).containsExactly(status)
+        assertThat(sut.accept(EventData.SyncDelta(2, false, listOf(status))) { null }).containsExactly(status)
+        assertThat(sut.accept(EventData.SyncDelta(4, false, listOf(status))) { null }).isNull()
+        assertThat(sut.lastSequence).isEqualTo(2)
+        // full snapshot is accepted with any sequence
+        assertThat(sut.accept(EventData.SyncDelta(7, true, listOf(status))) { null }).isNotNull()
+        assertThat(sut.lastSequence).isEqualTo(7)
+    }
+
+    @Test
+    fun probeOfPhoneIsAlwaysRefused() {
+        // empty delta out of sequence, refusal tells the phone this watch supports deltas
+        val probe = EventData.SyncDelta(0, false, emptyList())
+        val sut = SyncDeltaReceiver()
+        assertThat(sut.accept(probe) { null }).isNull()
+        sut.accept(EventData.SyncDelta(1, true, listOf(status))) { null }
+        assertThat(sut.accept(probe) { null }).isNull()
+        assertThat(sut.lastSequence).isEqualTo(1)
+    }
+
+    @Test
+    fun graphDeltaIsMergedIntoStoredGraph() {
+        val sut = SyncDeltaReceiver()
+        val stored = EventData.GraphData(arrayListOf(bg(3000), bg(2000), bg(1000)))
+        sut.accept(EventData.SyncDelta(1, true, listOf(stored))) { null }
+        val items = sut.accept(EventData.SyncDelta(2, false, listOf(EventData.GraphData(arrayListOf(bg(4000)))))) { stored }!!
+        val merged = items.single() as EventData.GraphData
+        // same time span, newest first as sent by phone
+        assertThat(merged.entries.map { it.timeStamp }).containsExactly(4000L, 3000L, 2000L).inOrder()
+    }
+}
@@ -0,0 +1,60 @@
+package app.aaps.wear.data
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.File
+
+class BgRingFileTest {
+
+    @TempDir lateinit var dir: File
+
+    private fun bg(timestamp: Long, sgv: Double = 100.0) = EventData.SingleBg(dataset = 0, timeStamp = timestamp, sgv = sgv, high = 180.0, low = 70.0)
+
+    @Test
+    fun appendsAndReadsNewestFirst() {
+        val sut = BgRingFile(File(dir, "ring"), capacity = 10)
+        for (i in 1L..5L) assertThat(sut.put(bg(i * 1000))).isTrue()
+        assertThat(sut.count).isEqualTo(5)
+        assertThat(sut.newest).isEqualTo(5000)
+        assertThat(sut.read(3000).map { it.timeStamp }).containsExactly(5000L, 4000L, 3000L).inOrder()
+        assertThat(sut.countBetween(2000, 4000)).isEqualTo(3)
+        assertThat(sut.indexOf(4000)).isEqualTo(3)
+        assertThat(sut.indexOf(4500)).isEqualTo(-1)
+    }
+
+    @Test
+    fun wrapsAroundDroppingOldest() {
+        val sut = BgRingFile(File(dir, "ring"), capacity = 4)
+        for (i in 1L..10L) sut.put(bg(i))
+        assertThat(sut.count).isEqualTo(4)
+        assertThat(sut.read(0).map { it.timeStamp }).containsExactly(10L, 9L, 8L, 7L).inOrder()
+        // older than anything in ring
+        assertThat(sut.put(bg(2))).isFalse()
+    }
+
+    @Test
+    fun replacesKnownPointInPlace() {
+        val sut = BgRingFile(File(dir, "ring"), capacity = 4)
+        for (i in 1L..6L) sut.put(bg(i))
+        assertThat(sut.put(bg(4, sgv = 150.0))).isTrue()
+        assertThat(sut.count).isEqualTo(4)
+        assertThat(sut.read(4).last().sgv).isEqualTo(150.0)
+    }
+
+    @Test
+    fun survivesReopen() {
+        val file = File(dir, "ring")
+        BgRingFile(file, capacity = 4).apply {
+            for (i in 1L..6L) put(bg(i))
+            windowStart = 4
+        }
+        val reopened = BgRingFile(file, capacity = 4)
+        assertThat(reopened.count).isEqualTo(4)
+        assertThat(reopened.windowStart).isEqualTo(4)
+        assertThat(reopened.read(reopened.windowStart).map { it.timeStamp }).containsExactly(6L, 5L, 4L).inOrder()
+        // different geometry resets the file
+        assertThat(BgRingFile(file, capacity = 8).count).isEqualTo(0)
+    }
+}
@@ -0,0 +1,119 @@
+package app.aaps.wear.data
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import app.aaps.core.interfaces.sharedPreferences.SP
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.shared.tests.TestBase
+import app.aaps.wear.interaction.utils.Persistence
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import org.mockito.Mock
+import org.mockito.kotlin.anyOrNull
+import org.mockito.kotlin.eq
+import org.mockito.kotlin.never
+import org.mockito.kotlin.verify
+import org.mockito.kotlin.whenever
+import java.io.File
+
+class WearDataStoreTest : TestBase() {
+
+    @TempDir lateinit var dir: File
+    @Mock lateinit var sp: SP
+    @Mock lateinit var dateUtil: DateUtil
+
+    private val status = EventData.Status(
+        dataset = 1, externalStatus = "", iobSum = "1.00", iobDetail = "", cob = "", currentBasal = "", battery = "", rigBattery = "",
+        openApsStatus = 0, bgi = "", batteryLevel = 1, tempTarget = "", tempTargetLevel = 0, reservoirString = "", reservoir = 0.0, reservoirLevel = 0
+    )
+
+    private fun bg(timestamp: Long, sgv: Double = 100.0) = EventData.SingleBg(dataset = 0, timeStamp = timestamp, sgv = sgv, high = 180.0, low = 70.0)
+
+    private fun graph(from: Long, to: Long) = EventData.GraphData(ArrayList((to downTo from).map { bg(it * 300_000L, 100.0 + it % 50) }))
+
+    @Test
+    fun failedRenameRemovesTempFile() {
+        // directory in place of the snapshot file can't be replaced
+        File(dir, "status1.pb").mkdirs()
+        File(dir, "status1.pb/blocker").writeText("")
+        val sut = WearDataStore(aapsLogger, dir)
+
+        sut.store(status)
+
+        assertThat(File(dir, "status1.tmp").exists()).isFalse()
+        assertThat(sut.status(1)).isEqualTo(status)
+    }
+
+    @Test
+    fun legacyPreferencesAreMigratedAndRemoved() {
+        whenever(sp.getStringOrNull(eq("status1_data"), anyOrNull())).thenReturn(status.serialize())
+        whenever(sp.getStringOrNull(eq("bg_data"), anyOrNull())).thenReturn("not json")
+        val store = WearDataStore(aapsLogger, dir)
+
+        Persistence(aapsLogger, dateUtil, sp, store)
+
+        assertThat(store.status(1)).isEqualTo(status)
+        verify(sp).remove("status1_data")
+        verify(sp).remove("bg_data")
+        verify(sp, never()).remove("graph_data")
+    }
+
+    @Test
+    fun legacyPreferencesDontOverwriteStoredData() {
+        val stored = status.copy(iobSum = "2.00")
+        WearDataStore(aapsLogger, dir).store(stored)
+        whenever(sp.getStringOrNull(eq("status1_data"), anyOrNull())).thenReturn(status.serialize())
+        val store = WearDataStore(aapsLogger, dir)
+
+        Persistence(aapsLogger, dateUtil, sp, store)
+
+        assertThat(store.status(1)).isEqualTo(stored)
+        verify(sp).remove("status1_data")
+    }
+
+    @Test
+    fun snapshotsSurviveRestart() {
+        val treatments = EventData.TreatmentData(arrayListOf(), arrayListOf(), arrayListOf(), arrayListOf(bg(1)))
+        WearDataStore(aapsLogger, dir).apply {
+            store(bg(1000))
+            store(status)
+            store(treatments)
+        }
+        val reopened = WearDataStore(aapsLogger, dir)
+        assertThat(reopened.singleBg(0)).isEqualTo(bg(1000))
+        assertThat(reopened.singleBg(1)).isNull()
+        assertThat(reopened.status(1)).isEqualTo(status)
+        assertThat(reopened.treatments()).isEqualTo(treatments)
+    }
+
+    @Test
+    fun graphIsAppendedAndWindowKept() {
+        val sut = WearDataStore(aapsLogger, dir)
+        sut.store(graph(0, 287))
+        sut.store(graph(10, 290))
+        assertThat(WearDataStore(aapsLogger, dir).graph()).isEqualTo(graph(10, 290))
+    }
+
+    @Test
+    fun inconsistentGraphRebuildsRing() {
+        val sut = WearDataStore(aapsLogger, dir)
+        sut.store(graph(0, 100))
+        // points removed on phone side
+        val update = EventData.GraphData(ArrayList(graph(50, 120).entries.filter { it.timeStamp % 2 == 0L }))
+        sut.store(update)
+        assertThat(WearDataStore(aapsLogger, dir).graph()?.entries?.map { it.timeStamp }).isEqualTo(update.entries.map { it.timeStamp })
+    }
+
+    @Test
+    fun graphIsDecodedOnceForRepeatedReads() {
+        val graph = graph(0, 287)
+        val sut = WearDataStore(aapsLogger, dir)
+        sut.store(graph)
+
+        val cold = WearDataStore(aapsLogger, dir).graph()
+
+        assertThat(cold).isEqualTo(graph)
+        // watchface redraws get the decoded object without parsing or allocation
+        assertThat(sut.graph()).isSameInstanceAs(sut.graph())
+    }
+}
@@ -0,0 +1,73 @@
+package app.aaps.wear.watchfaces.utils
+
+import app.aaps.core.interfaces.rx.weardata.EventData
+import app.aaps.wear.WearTestBase
+import com.google.common.truth.Truth.assertThat
+import lecho.lib.hellocharts.model.LineChartData
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyBoolean
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.Mockito
+
+class BgGraphBuilderTest : WearTestBase() {
+
+    private val now = System.currentTimeMillis()
+    private val step = 5 * 60 * 1000L
+
+    @BeforeEach
+    fun mock() {
+        Mockito.`when`(sp.getBoolean(anyInt(), anyBoolean())).thenReturn(true)
+        Mockito.`when`(dateUtil.timeString(anyLong())).thenReturn("")
+        Mockito.`when`(dateUtil.hourString(anyLong())).thenReturn("")
+    }
+
+    // 24h of readings ending `shift` steps after one hour ago, newest first as sent by phone
+    private fun bgData(shift: Int): List<EventData.SingleBg> =
+        (0 until 288).map { i ->
+            val timestamp = now - 60 * 60 * 1000L + (shift - i) * step
+            EventData.SingleBg(dataset = 0, timeStamp = timestamp, sgv = 40.0 + (timestamp / step) % 300, high = 180.0, low = 70.0)
+        }
+
+    private val temps = List(10) { i ->
+        EventData.TreatmentData.TempBasal(now - (10 - i) * 30 * 60 * 1000L, 1.0, now - (10 - i) * 30 * 60 * 1000L + 20 * 60 * 1000L, 1.0, 0.5 + i * 0.1)
+    }
+    private val basals = ArrayList(List(24) { i -> EventData.TreatmentData.Basal(now - (24 - i) * 60 * 60 * 1000L, now - (23 - i) * 60 * 60 * 1000L, 0.8 + i % 3 * 0.1) })
+    private val boluses = arrayListOf(EventData.TreatmentData.Treatment(now - 30 * 60 * 1000L, 2.0, 20.0, isSMB = false, isValid = true))
+
+    private fun build(bgData: List<EventData.SingleBg>, state: BgGraphState): LineChartData =
+        BgGraphBuilder(sp, dateUtil, bgData, emptyList(), temps, basals, boluses, 2, 1, 2, 3, 4, 5, 6, 7, 8, 3, state).lineData()
+
+    private fun LineChartData.dump(): List<Any> =
+        lines.map { line -> listOf(line.color, line.strokeWidth, line.values.map { it.x to it.y }) }
+
+    @Test
+    fun incrementalBuildMatchesFullBuild() {
+        val state = BgGraphState()
+        for (shift in 0..20) {
+            val data = bgData(shift)
+            assertThat(build(data, state).dump()).isEqualTo(build(data, BgGraphState()).dump())
+        }
+        assertThat(state.fullRebuilds).isEqualTo(1)
+    }
+
+    @Test
+    fun changedHistoryRebuilds() {
+        val state = BgGraphState()
+        build(bgData(0), state)
+        val changed = bgData(1).mapIndexed { i, bg -> if (i == 5) bg.copy(sgv = bg.sgv + 1) else bg }
+        assertThat(build(changed, state).dump()).isEqualTo(build(changed, BgGraphState()).dump())
+        assertThat(state.fullRebuilds).isEqualTo(2)
+    }
+
+    @Test
+    fun clearedStateRebuildsOnce() {
+        val state = BgGraphState()
+        for (shift in 0 until 50) build(bgData(shift), state)
+        state.clear()
+        val rebuilds = state.fullRebuilds
+        for (shift in 50 until 250) build(bgData(shift), state)
+        assertThat(state.fullRebuilds - rebuilds).isEqualTo(1)
+    }
+}
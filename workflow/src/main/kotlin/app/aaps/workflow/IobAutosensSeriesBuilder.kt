@@ -0,0 +1,346 @@
+package app.aaps.workflow
+
+import android.content.Context
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.time.T
+import app.aaps.core.graph.data.DataPointWithLabelInterface
+import app.aaps.core.graph.data.DeviationDataPoint
+import app.aaps.core.graph.data.ScaledDataPoint
+import app.aaps.core.interfaces.aps.AutosensData
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.iob.IobCobCalculator
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.overview.OverviewMenus
+import app.aaps.core.interfaces.profile.Profile
+import app.aaps.core.interfaces.profile.ProfileFunction
+import app.aaps.core.interfaces.resources.ResourceHelper
+import app.aaps.core.interfaces.rx.bus.RxBus
+import app.aaps.core.interfaces.rx.events.EventIobCalculationProgress
+import app.aaps.core.interfaces.utils.DateUtil
+import app.aaps.core.interfaces.workflow.CalculationWorkflow
+import app.aaps.core.objects.extensions.combine
+import java.util.WeakHashMap
+import javax.inject.Inject
+import javax.inject.Singleton
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Calculates 5 min points of IOB, COB, activity, BGI, deviations, ratio and deviation slopes for overview graph.
+ *
+ * Profile is resolved once for every interval between effective profile switches.
+ * Points of the previous run for the same [OverviewData] are kept while their inputs
+ * (profile, cached IOB and autosens data) are the same instances, only the trailing part is calculated again.
+ */
+@Singleton
+class IobAutosensSeriesBuilder @Inject constructor(
+    private val profileFunction: ProfileFunction,
+    private val persistenceLayer: PersistenceLayer,
+    private val overviewMenus: OverviewMenus,
+    private val rh: ResourceHelper,
+    private val rxBus: RxBus,
+    private val dateUtil: DateUtil
+) {
+
+    class State {
+
+        var lastIob = 0.0
+        var absLastIob = 0.0
+        var lastCob = 0
+        var maxIobValueFound = Double.MIN_VALUE
+        var maxCobValueFound = Double.MIN_VALUE
+        var maxIAValue = 0.0
+        var maxBGIValue = Double.MIN_VALUE
+        var maxDevValueFound = Double.MIN_VALUE
+        var maxRatioValueFound = 5.0                    //even if sens data equals 0 for all the period, minimum scale is between 95% and 105%
+        var minRatioValueFound = -5.0
+        var maxFromMaxValueFound = Double.MIN_VALUE
+        var maxFromMinValueFound = Double.MIN_VALUE
+
+        fun copy() = State().also {
+            it.lastIob = lastIob
+            it.absLastIob = absLastIob
+            it.lastCob = lastCob
+            it.maxIobValueFound = maxIobValueFound
+            it.maxCobValueFound = maxCobValueFound
+            it.maxIAValue = maxIAValue
+            it.maxBGIValue = maxBGIValue
+            it.maxDevValueFound = maxDevValueFound
+            it.maxRatioValueFound = maxRatioValueFound
+            it.minRatioValueFound = minRatioValueFound
+            it.maxFromMaxValueFound = maxFromMaxValueFound
+            it.maxFromMinValueFound = maxFromMinValueFound
+        }
+    }
+
+    /** Inputs of one point and state of series after it */
+    internal class Checkpoint(
+        val time: Long,
+        val profile: Profile?,
+        val iob: IobTotal?,
+        val autosensData: AutosensData?,
+        val sizes: IntArray,
+        val state: State
+    )
+
+    class Series internal constructor(
+        internal val iobCobCalculator: IobCobCalculator,
+        internal val fromTime: Long,
+        internal val devBgiScale: Boolean,
+        internal val colors: IntArray
+    ) {
+
+        val iobArray: MutableList<ScaledDataPoint> = ArrayList()
+        val absIobArray: MutableList<ScaledDataPoint> = ArrayList()
+        val minFailOverActiveList: MutableList<DataPointWithLabelInterface> = ArrayList()
+        val cobArray: MutableList<ScaledDataPoint> = ArrayList()
+        val actArrayHist: MutableList<ScaledDataPoint> = ArrayList()
+        val actArrayPrediction: MutableList<ScaledDataPoint> = ArrayList()
+        val bgiArrayHist: MutableList<ScaledDataPoint> = ArrayList()
+        val bgiArrayPrediction: MutableList<ScaledDataPoint> = ArrayList()
+        val devArray: MutableList<DeviationDataPoint> = ArrayList()
+        val ratioArray: MutableList<ScaledDataPoint> = ArrayList()
+        val dsMaxArray: MutableList<ScaledDataPoint> = ArrayList()
+        val dsMinArray: MutableList<ScaledDataPoint> = ArrayList()
+        var state = State()
+            private set
+
+        /** Number of points taken from previous run */
+        var reused = 0
+            internal set
+        internal var now = 0L
+        private val checkpoints = ArrayList<Checkpoint>()
+        private val lists: List<MutableList<*>> = listOf(
+            iobArray, absIobArray, minFailOverActiveList, cobArray, actArrayHist, actArrayPrediction,
+            bgiArrayHist, bgiArrayPrediction, devArray, ratioArray, dsMaxArray, dsMinArray
+        )
+
+        /** Copy of lists for drawing, retained series is modified by next run */
+        internal fun snapshot(): Series = Series(iobCobCalculator, fromTime, devBgiScale, colors).also { copy ->
+            copy.lists.forEachIndexed { i, list ->
+                @Suppress("UNCHECKED_CAST")
+                (list as MutableList<Any?>).addAll(lists[i])
+            }
+            copy.state = state.copy()
+            copy.reused = reused
+            copy.now = now
+        }
+
+        internal fun checkpoint(index: Int): Checkpoint? = checkpoints.getOrNull(index)
+
+        internal fun addCheckpoint(time: Long, profile: Profile?, iob: IobTotal?, autosensData: AutosensData?) {
+            checkpoints.add(Checkpoint(time, profile, iob, autosensData, IntArray(lists.size) { lists[it].size }, state.copy()))
+        }
+
+        /** Keep first [count] points only */
+        internal fun truncate(count: Int) {
+            if (count >= checkpoints.size) return
+            val last = checkpoints.getOrNull(count - 1)
+            lists.forEachIndexed { i, list ->
+                val size = last?.sizes?.get(i) ?: 0
+                while (list.size > size) list.removeAt(list.size - 1)
+            }
+            state = last?.state?.copy() ?: State()
+            while (checkpoints.size > count) checkpoints.removeAt(checkpoints.size - 1)
+        }
+    }
+
+    private val retained = WeakHashMap<OverviewData, Series>()
+
+    /**
+     * Resolves profile at time, lookup is repeated only after next profile switch
+     */
+    private inner class ProfileResolver(switches: List<EPS>) {
+
+        private val boundaries = switches.map { it.timestamp }
+        private var profile: Profile? = null
+        private var validFrom = Long.MAX_VALUE
+        private var validTo = Long.MIN_VALUE
+
+        fun at(time: Long): Profile? {
+            if (time < validFrom || time >= validTo) {
+                profile = profileFunction.getProfile(time)
+                validFrom = boundaries.lastOrNull { it <= time } ?: Long.MIN_VALUE
+                validTo = boundaries.firstOrNull { it > time } ?: Long.MAX_VALUE
+            }
+            return profile
+        }
+    }
+
+    /**
+     * Progress events limited to one per [PROGRESS_INTERVAL_MILLIS]
+     */
+    private inner class Progress {
+
+        private var lastPercent = 0
+        private var lastSent = System.currentTimeMillis()
+
+        fun update(percent: Int) {
+            if (percent == lastPercent) return
+            val now = System.currentTimeMillis()
+            if (now - lastSent < PROGRESS_INTERVAL_MILLIS) return
+            lastPercent = percent
+            lastSent = now
+            rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_IOB_AUTOSENS_DATA, percent, null))
+        }
+    }
+
+    /**
+     * Prepare series for window of [overviewData]
+     *
+     * @return copy of series or null if [isStopped]
+     */
+    fun build(iobCobCalculator: IobCobCalculator, overviewData: OverviewData, ctx: Context, isStopped: () -> Boolean): Series? {
+        val endTime = overviewData.endTime
+        val fromTime = overviewData.fromTime
+        val now = dateUtil.now()
+        val devBgiScale = overviewMenus.isEnabledIn(OverviewMenus.CharType.DEV) == overviewMenus.isEnabledIn(OverviewMenus.CharType.BGI)
+        val colors = intArrayOf(
+            rh.gac(ctx, app.aaps.core.ui.R.attr.deviationBlackColor),
+            rh.gac(ctx, app.aaps.core.ui.R.attr.deviationGreyColor),
+            rh.gac(ctx, app.aaps.core.ui.R.attr.deviationGreenColor),
+            rh.gac(ctx, app.aaps.core.ui.R.attr.deviationRedColor),
+            rh.gac(ctx, app.aaps.core.ui.R.attr.uamColor)
+        )
+        val (black, grey, green, red, uam) = colors
+        val profiles = ProfileResolver(persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(fromTime, endTime, true))
+        val progress = Progress()
+        val adsData = iobCobCalculator.ads.clone()
+
+        // taken over, it's put back only if finished
+        val previous = synchronized(retained) { retained.remove(overviewData) }?.takeIf {
+            it.iobCobCalculator === iobCobCalculator && it.fromTime == fromTime && it.devBgiScale == devBgiScale && it.colors.contentEquals(colors)
+        }
+        val series = previous ?: Series(iobCobCalculator, fromTime, devBgiScale, colors)
+        var reusing = previous != null
+        var index = 0
+        var time = fromTime
+        while (time <= endTime) {
+            if (isStopped()) return null
+            progress.update(((time - fromTime).toDouble() / (endTime - fromTime) * 100.0).toInt())
+            val profile = profiles.at(time)
+            val iob = profile?.let { iobCobCalculator.calculateFromTreatmentsAndTemps(time, it) }
+            val autosensData = adsData.getAutosensDataAtTime(time)
+            if (reusing) {
+                val checkpoint = series.checkpoint(index)
+                // IOB of past is cached by calculator, new instance means changed history
+                if (checkpoint != null && checkpoint.time == time && time < series.now &&
+                    checkpoint.profile === profile && checkpoint.iob === iob && checkpoint.autosensData === autosensData
+                ) {
+                    index++
+                    time += T.mins(5).msecs()
+                    continue
+                }
+                reusing = false
+                series.reused = index
+                series.truncate(index)
+            }
+            if (profile != null && iob != null) addPoint(series, iobCobCalculator, overviewData, time, now, iob, autosensData, black, grey, green, red, uam)
+            series.addCheckpoint(time, profile, iob, autosensData)
+            index++
+            time += T.mins(5).msecs()
+        }
+        if (reusing) {
+            series.reused = index
+            series.truncate(index)
+        }
+        series.now = now
+        series.state.let {
+            overviewData.maxIobValueFound = it.maxIobValueFound
+            overviewData.maxCobValueFound = it.maxCobValueFound
+            overviewData.maxIAValue = it.maxIAValue
+            overviewData.maxBGIValue = it.maxBGIValue
+            overviewData.maxDevValueFound = it.maxDevValueFound
+            overviewData.maxRatioValueFound = it.maxRatioValueFound
+            overviewData.minRatioValueFound = it.minRatioValueFound
+            overviewData.maxFromMaxValueFound = it.maxFromMaxValueFound
+            overviewData.maxFromMinValueFound = it.maxFromMinValueFound
+        }
+        synchronized(retained) { retained[overviewData] = series }
+        return series.snapshot()
+    }
+
+    private fun addPoint(
+        series: Series, iobCobCalculator: IobCobCalculator, overviewData: OverviewData, time: Long, now: Long, iob: IobTotal, autosensData: AutosensData?,
+        black: Int, grey: Int, green: Int, red: Int, uam: Int
+    ) {
+        val state = series.state
+        // IOB
+        val baseBasalIob = iobCobCalculator.calculateAbsoluteIobFromBaseBasals(time)
+        val absIob = IobTotal.combine(iob, baseBasalIob)
+        if (abs(state.lastIob - iob.iob) > 0.02) {
+            if (abs(state.lastIob - iob.iob) > 0.2) series.iobArray.add(ScaledDataPoint(time, state.lastIob, overviewData.iobScale))
+            series.iobArray.add(ScaledDataPoint(time, iob.iob, overviewData.iobScale))
+            state.maxIobValueFound = maxOf(state.maxIobValueFound, abs(iob.iob))
+            state.lastIob = iob.iob
+        }
+        if (abs(state.absLastIob - absIob.iob) > 0.02) {
+            if (abs(state.absLastIob - absIob.iob) > 0.2) series.absIobArray.add(ScaledDataPoint(time, state.absLastIob, overviewData.iobScale))
+            series.absIobArray.add(ScaledDataPoint(time, absIob.iob, overviewData.iobScale))
+            state.maxIobValueFound = maxOf(state.maxIobValueFound, abs(absIob.iob))
+            state.absLastIob = absIob.iob
+        }
+
+        // COB
+        if (autosensData != null) {
+            val cob = autosensData.cob.toInt()
+            if (cob != state.lastCob) {
+                if (autosensData.carbsFromBolus != 0.0) series.cobArray.add(ScaledDataPoint(time, state.lastCob.toDouble(), overviewData.cobScale))
+                series.cobArray.add(ScaledDataPoint(time, cob.toDouble(), overviewData.cobScale))
+                state.maxCobValueFound = max(state.maxCobValueFound, cob.toDouble())
+                state.lastCob = cob
+            }
+            if (autosensData.failOverToMinAbsorptionRate) {
+                series.minFailOverActiveList.add(PrepareIobAutosensGraphDataWorker.AutosensDataPoint(autosensData, overviewData.cobScale, time, rh))
+            }
+            // BGI
+            val deviation = if (series.devBgiScale) autosensData.deviation else 0.0
+            val sens = autosensData.sens
+            val bgi: Double = iob.activity * sens * 5.0
+            if (time <= now) series.bgiArrayHist.add(ScaledDataPoint(time, bgi, overviewData.bgiScale))
+            else series.bgiArrayPrediction.add(ScaledDataPoint(time, bgi, overviewData.bgiScale))
+            state.maxBGIValue = max(state.maxBGIValue, max(abs(bgi), deviation))
+
+            // DEVIATIONS
+            var color = black  // "="
+            if (autosensData.type == "" || autosensData.type == "non-meal") {
+                if (autosensData.pastSensitivity == "C") color = grey
+                if (autosensData.pastSensitivity == "+") color = green
+                if (autosensData.pastSensitivity == "-") color = red
+            } else if (autosensData.type == "uam") {
+                color = uam
+            } else if (autosensData.type == "csf") {
+                color = grey
+            }
+            series.devArray.add(DeviationDataPoint(time.toDouble(), autosensData.deviation, color, overviewData.devScale))
+            state.maxDevValueFound = maxOf(state.maxDevValueFound, abs(autosensData.deviation), abs(bgi))
+        }
+
+        // ACTIVITY
+        if (time <= now) series.actArrayHist.add(ScaledDataPoint(time, iob.activity, overviewData.actScale))
+        else series.actArrayPrediction.add(ScaledDataPoint(time, iob.activity, overviewData.actScale))
+        state.maxIAValue = max(state.maxIAValue, abs(iob.activity))
+
+        // RATIO
+        if (autosensData != null) {
+            series.ratioArray.add(ScaledDataPoint(time, 100.0 * (autosensData.autosensResult.ratio - 1), overviewData.ratioScale))
+            state.maxRatioValueFound = max(state.maxRatioValueFound, 100.0 * (autosensData.autosensResult.ratio - 1))
+            state.minRatioValueFound = min(state.minRatioValueFound, 100.0 * (autosensData.autosensResult.ratio - 1))
+        }
+
+        // DEV SLOPE
+        if (autosensData != null) {
+            series.dsMaxArray.add(ScaledDataPoint(time, autosensData.slopeFromMaxDeviation, overviewData.dsMaxScale))
+            series.dsMinArray.add(ScaledDataPoint(time, autosensData.slopeFromMinDeviation, overviewData.dsMinScale))
+            state.maxFromMaxValueFound = max(state.maxFromMaxValueFound, abs(autosensData.slopeFromMaxDeviation))
+            state.maxFromMinValueFound = max(state.maxFromMinValueFound, abs(autosensData.slopeFromMinDeviation))
+        }
+    }
+
+    companion object {
+
+        const val PROGRESS_INTERVAL_MILLIS = 250L
+    }
+}
@@ -23,7 +23,6 @@ import app.aaps.core.interfaces.iob.IobCobCalculator
 import app.aaps.core.interfaces.logging.LTag
 import app.aaps.core.interfaces.overview.OverviewData
 import app.aaps.core.interfaces.overview.OverviewMenus
-import app.aaps.core.interfaces.profile.ProfileFunction
 import app.aaps.core.interfaces.profile.ProfileUtil
 import app.aaps.core.interfaces.resources.ResourceHelper
 import app.aaps.core.interfaces.rx.bus.RxBus
@@ -31,7 +30,6 @@ import app.aaps.core.interfaces.rx.events.EventIobCalculationProgress
 import app.aaps.core.interfaces.utils.DateUtil
 import app.aaps.core.interfaces.utils.DecimalFormatter
 import app.aaps.core.interfaces.workflow.CalculationWorkflow
-import app.aaps.core.objects.extensions.combine
 import app.aaps.core.objects.workflow.LoggingWorker
 import app.aaps.core.utils.receivers.DataWorkerStorage
 import kotlinx.coroutines.Dispatchers
@@ -47,13 +45,13 @@ class PrepareIobAutosensGraphDataWorker(
 
     @Inject lateinit var dataWorkerStorage: DataWorkerStorage
     @Inject lateinit var dateUtil: DateUtil
-    @Inject lateinit var profileFunction: ProfileFunction
     @Inject lateinit var profileUtil: ProfileUtil
     @Inject lateinit var rh: ResourceHelper
     @Inject lateinit var overviewMenus: OverviewMenus
     @Inject lateinit var persistenceLayer: PersistenceLayer
     @Inject lateinit var rxBus: RxBus
     @Inject lateinit var decimalFormatter: DecimalFormatter
+    @Inject lateinit var iobAutosensSeriesBuilder: IobAutosensSeriesBuilder
     private var ctx: Context
 
     init {
@@ -111,126 +109,23 @@ class PrepareIobAutosensGraphDataWorker(
         val endTime = data.overviewData.endTime
         val fromTime = data.overviewData.fromTime
         rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_IOB_AUTOSENS_DATA, 0, null))
-        val iobArray: MutableList<ScaledDataPoint> = ArrayList()
-        val absIobArray: MutableList<ScaledDataPoint> = ArrayList()
-        data.overviewData.maxIobValueFound = Double.MIN_VALUE
-        var lastIob = 0.0
-        var absLastIob = 0.0
-        var time = fromTime
+        val series = iobAutosensSeriesBuilder.build(data.iobCobCalculator, data.overviewData, ctx) { isStopped }
+            ?: return Result.failure(workDataOf("Error" to "stopped"))
+        aapsLogger.debug(LTag.AUTOSENS, "IOB/autosens graph data reused for ${series.reused} points")
+        val iobArray = series.iobArray
+        val absIobArray = series.absIobArray
+        val minFailOverActiveList = series.minFailOverActiveList
+        val cobArray = series.cobArray
+        val actArrayHist = series.actArrayHist
+        val actArrayPrediction = series.actArrayPrediction
+        val bgiArrayHist = series.bgiArrayHist
+        val bgiArrayPrediction = series.bgiArrayPrediction
+        val devArray = series.devArray
+        val ratioArray = series.ratioArray
+        val dsMaxArray = series.dsMaxArray
+        val dsMinArray = series.dsMinArray
+        val adsData = data.iobCobCalculator.ads
 
-        val minFailOverActiveList: MutableList<DataPointWithLabelInterface> = ArrayList()
-        val cobArray: MutableList<ScaledDataPoint> = ArrayList()
-        data.overviewData.maxCobValueFound = Double.MIN_VALUE
-        var lastCob = 0
-
-        val actArrayHist: MutableList<ScaledDataPoint> = ArrayList()
-        val actArrayPrediction: MutableList<ScaledDataPoint> = ArrayList()
-        val now = dateUtil.now().toDouble()
-        data.overviewData.maxIAValue = 0.0
-
-        val bgiArrayHist: MutableList<ScaledDataPoint> = ArrayList()
-        val bgiArrayPrediction: MutableList<ScaledDataPoint> = ArrayList()
-        data.overviewData.maxBGIValue = Double.MIN_VALUE
-
-        val devArray: MutableList<DeviationDataPoint> = ArrayList()
-        data.overviewData.maxDevValueFound = Double.MIN_VALUE
-
-        val ratioArray: MutableList<ScaledDataPoint> = ArrayList()
-        data.overviewData.maxRatioValueFound = 5.0                    //even if sens data equals 0 for all the period, minimum scale is between 95% and 105%
-        data.overviewData.minRatioValueFound = -5.0
-
-        val dsMaxArray: MutableList<ScaledDataPoint> = ArrayList()
-        val dsMinArray: MutableList<ScaledDataPoint> = ArrayList()
-        data.overviewData.maxFromMaxValueFound = Double.MIN_VALUE
-        data.overviewData.maxFromMinValueFound = Double.MIN_VALUE
-
-        val adsData = data.iobCobCalculator.ads.clone()
-
-        while (time <= endTime) {
-            if (isStopped) return Result.failure(workDataOf("Error" to "stopped"))
-            val progress = (time - fromTime).toDouble() / (endTime - fromTime) * 100.0
-            rxBus.send(EventIobCalculationProgress(CalculationWorkflow.ProgressData.PREPARE_IOB_AUTOSENS_DATA, progress.toInt(), null))
-            val profile = profileFunction.getProfile(time)
-            if (profile == null) {
-                time += 5 * 60 * 1000L
-                continue
-            }
-            // IOB
-            val iob = data.iobCobCalculator.calculateFromTreatmentsAndTemps(time, profile)
-            val baseBasalIob = data.iobCobCalculator.calculateAbsoluteIobFromBaseBasals(time)
-            val absIob = IobTotal.combine(iob, baseBasalIob)
-            val autosensData = adsData.getAutosensDataAtTime(time)
-            if (abs(lastIob - iob.iob) > 0.02) {
-                if (abs(lastIob - iob.iob) > 0.2) iobArray.add(ScaledDataPoint(time, lastIob, data.overviewData.iobScale))
-                iobArray.add(ScaledDataPoint(time, iob.iob, data.overviewData.iobScale))
-                data.overviewData.maxIobValueFound = maxOf(data.overviewData.maxIobValueFound, abs(iob.iob))
-                lastIob = iob.iob
-            }
-            if (abs(absLastIob - absIob.iob) > 0.02) {
-                if (abs(absLastIob - absIob.iob) > 0.2) absIobArray.add(ScaledDataPoint(time, absLastIob, data.overviewData.iobScale))
-                absIobArray.add(ScaledDataPoint(time, absIob.iob, data.overviewData.iobScale))
-                data.overviewData.maxIobValueFound = maxOf(data.overviewData.maxIobValueFound, abs(absIob.iob))
-                absLastIob = absIob.iob
-            }
-
-            // COB
-            if (autosensData != null) {
-                val cob = autosensData.cob.toInt()
-                if (cob != lastCob) {
-                    if (autosensData.carbsFromBolus != 0.0) cobArray.add(ScaledDataPoint(time, lastCob.toDouble(), data.overviewData.cobScale))
-                    cobArray.add(ScaledDataPoint(time, cob.toDouble(), data.overviewData.cobScale))
-                    data.overviewData.maxCobValueFound = max(data.overviewData.maxCobValueFound, cob.toDouble())
-                    lastCob = cob
-                }
-                if (autosensData.failOverToMinAbsorptionRate) {
-                    minFailOverActiveList.add(AutosensDataPoint(autosensData, data.overviewData.cobScale, time, rh))
-                }
-                // BGI
-                val devBgiScale = overviewMenus.isEnabledIn(OverviewMenus.CharType.DEV) == overviewMenus.isEnabledIn(OverviewMenus.CharType.BGI)
-                val deviation = if (devBgiScale) autosensData.deviation else 0.0
-                val sens = autosensData.sens
-                val bgi: Double = iob.activity * sens * 5.0
-                if (time <= now) bgiArrayHist.add(ScaledDataPoint(time, bgi, data.overviewData.bgiScale))
-                else bgiArrayPrediction.add(ScaledDataPoint(time, bgi, data.overviewData.bgiScale))
-                data.overviewData.maxBGIValue = max(data.overviewData.maxBGIValue, max(abs(bgi), deviation))
-
-                // DEVIATIONS
-                var color = rh.gac(ctx, app.aaps.core.ui.R.attr.deviationBlackColor)  // "="
-                if (autosensData.type == "" || autosensData.type == "non-meal") {
-                    if (autosensData.pastSensitivity == "C") color = rh.gac(ctx, app.aaps.core.ui.R.attr.deviationGreyColor)
-                    if (autosensData.pastSensitivity == "+") color = rh.gac(ctx, app.aaps.core.ui.R.attr.deviationGreenColor)
-                    if (autosensData.pastSensitivity == "-") color = rh.gac(ctx, app.aaps.core.ui.R.attr.deviationRedColor)
-                } else if (autosensData.type == "uam") {
-                    color = rh.gac(ctx, app.aaps.core.ui.R.attr.uamColor)
-                } else if (autosensData.type == "csf") {
-                    color = rh.gac(ctx, app.aaps.core.ui.R.attr.deviationGreyColor)
-                }
-                devArray.add(DeviationDataPoint(time.toDouble(), autosensData.deviation, color, data.overviewData.devScale))
-                data.overviewData.maxDevValueFound = maxOf(data.overviewData.maxDevValueFound, abs(autosensData.deviation), abs(bgi))
-            }
-
-            // ACTIVITY
-            if (time <= now) actArrayHist.add(ScaledDataPoint(time, iob.activity, data.overviewData.actScale))
-            else actArrayPrediction.add(ScaledDataPoint(time, iob.activity, data.overviewData.actScale))
-            data.overviewData.maxIAValue = max(data.overviewData.maxIAValue, abs(iob.activity))
-
-            // RATIO
-            if (autosensData != null) {
-                ratioArray.add(ScaledDataPoint(time, 100.0 * (autosensData.autosensResult.ratio - 1), data.overviewData.ratioScale))
-                data.overviewData.maxRatioValueFound = max(data.overviewData.maxRatioValueFound, 100.0 * (autosensData.autosensResult.ratio - 1))
-                data.overviewData.minRatioValueFound = min(data.overviewData.minRatioValueFound, 100.0 * (autosensData.autosensResult.ratio - 1))
-            }
-
-            // DEV SLOPE
-            if (autosensData != null) {
-                dsMaxArray.add(ScaledDataPoint(time, autosensData.slopeFromMaxDeviation, data.overviewData.dsMaxScale))
-                dsMinArray.add(ScaledDataPoint(time, autosensData.slopeFromMinDeviation, data.overviewData.dsMinScale))
-                data.overviewData.maxFromMaxValueFound = max(data.overviewData.maxFromMaxValueFound, abs(autosensData.slopeFromMaxDeviation))
-                data.overviewData.maxFromMinValueFound = max(data.overviewData.maxFromMinValueFound, abs(autosensData.slopeFromMinDeviation))
-            }
-
-            time += 5 * 60 * 1000L
-        }
         // IOB
         data.overviewData.iobSeries = FixedLineGraphSeries(Array(iobArray.size) { i -> iobArray[i] }).also {
             it.isDrawBackground = true
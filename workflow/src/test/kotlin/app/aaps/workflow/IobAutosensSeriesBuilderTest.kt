@@ -0,0 +1,201 @@
+package app.aaps.workflow
+
+import app.aaps.core.data.model.EPS
+import app.aaps.core.data.model.GlucoseUnit
+import app.aaps.core.data.model.ICfg
+import app.aaps.core.data.time.T
+import app.aaps.core.graph.data.DeviationDataPoint
+import app.aaps.core.interfaces.aps.AutosensData
+import app.aaps.core.interfaces.aps.AutosensDataStore
+import app.aaps.core.interfaces.aps.AutosensResult
+import app.aaps.core.interfaces.aps.IobTotal
+import app.aaps.core.interfaces.db.PersistenceLayer
+import app.aaps.core.interfaces.graph.Scale
+import app.aaps.core.interfaces.overview.OverviewData
+import app.aaps.core.interfaces.overview.OverviewMenus
+import app.aaps.shared.tests.TestBaseWithProfile
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.mockito.Mock
+import org.mockito.kotlin.any
+import org.mockito.kotlin.doAnswer
+import org.mockito.kotlin.doReturn
+import org.mockito.kotlin.mock
+import org.mockito.kotlin.whenever
+
+class IobAutosensSeriesBuilderTest : TestBaseWithProfile() {
+
+    @Mock lateinit var persistenceLayer: PersistenceLayer
+    @Mock lateinit var overviewMenus: OverviewMenus
+    @Mock lateinit var overviewData: OverviewData
+    @Mock lateinit var ads: AutosensDataStore
+
+    private var now = 0L
+    private var fromTime = 0L
+    private var profileLookups = 0
+    private var baseBasalCalculations = 0
+
+    // calculator keeps IOB and autosens data of the past until history changes
+    private val iobCache = HashMap<Long, IobTotal>()
+    private val autosensCache = HashMap<Long, AutosensData>()
+
+    @BeforeEach
+    fun prepare() {
+        now = dateUtil.now() / T.mins(5).msecs() * T.mins(5).msecs() + 100_000L
+        fromTime = now - T.hours(24).msecs()
+        doAnswer { now }.whenever(dateUtil).now()
+        whenever(overviewData.fromTime).thenReturn(fromTime)
+        whenever(overviewData.endTime).thenReturn(now + T.hours(3).msecs())
+        whenever(overviewData.iobScale).thenReturn(Scale())
+        whenever(overviewData.cobScale).thenReturn(Scale())
+        whenever(overviewData.actScale).thenReturn(Scale())
+        whenever(overviewData.bgiScale).thenReturn(Scale())
+        whenever(overviewData.devScale).thenReturn(Scale())
+        whenever(overviewData.ratioScale).thenReturn(Scale())
+        whenever(overviewData.dsMaxScale).thenReturn(Scale())
+        whenever(overviewData.dsMinScale).thenReturn(Scale())
+        // three profile switches during the day
+        whenever(persistenceLayer.getEffectiveProfileSwitchesFromTimeToTime(any(), any(), any())).thenReturn(
+            listOf(6L, 12L, 18L).map { effectiveProfileSwitch(fromTime + T.hours(it).msecs() + 1000L) }
+        )
+        whenever(profileFunction.getProfile(any<Long>())).thenAnswer {
+            profileLookups++
+            validProfile
+        }
+        whenever(iobCobCalculator.ads).thenReturn(ads)
+        whenever(ads.clone()).thenReturn(ads)
+        whenever(ads.getAutosensDataAtTime(any())).thenAnswer { invocation ->
+            val time = invocation.getArgument<Long>(0)
+            if (time > now) null else autosensCache.getOrPut(time) { autosensData(time) }
+        }
+        whenever(iobCobCalculator.calculateFromTreatmentsAndTemps(any(), any())).thenAnswer { invocation ->
+            val time = invocation.getArgument<Long>(0)
+            if (time < now) iobCache.getOrPut(time) { iob(time) } else iob(time)
+        }
+        whenever(iobCobCalculator.calculateAbsoluteIobFromBaseBasals(any())).thenAnswer { invocation ->
+            baseBasalCalculations++
+            IobTotal(invocation.getArgument(0)).also { it.basaliob = 0.5 + (invocation.getArgument<Long>(0) / T.mins(5).msecs() % 7) * 0.1 }
+        }
+    }
+
+    private fun effectiveProfileSwitch(timestamp: Long) = EPS(
+        timestamp = timestamp,
+        basalBlocks = emptyList(),
+        isfBlocks = emptyList(),
+        icBlocks = emptyList(),
+        targetBlocks = emptyList(),
+        glucoseUnit = GlucoseUnit.MGDL,
+        originalProfileName = "foo",
+        originalCustomizedName = "bar",
+        originalTimeshift = 0,
+        originalPercentage = 100,
+        originalDuration = 0,
+        originalEnd = timestamp,
+        iCfg = ICfg("label", 0, 0)
+    )
+
+    private fun iob(time: Long) = IobTotal(time).also {
+        val step = time / T.mins(5).msecs()
+        it.iob = (step % 40) * 0.1
+        it.activity = (step % 13) * 0.001
+    }
+
+    private fun autosensData(time: Long): AutosensData {
+        val step = time / T.mins(5).msecs()
+        return mock {
+            on { cob } doReturn (step % 30).toDouble()
+            on { carbsFromBolus } doReturn if (step % 5 == 0L) 1.0 else 0.0
+            on { failOverToMinAbsorptionRate } doReturn (step % 11 == 0L)
+            on { deviation } doReturn (step % 9) - 4.0
+            on { sens } doReturn 50.0
+            on { type } doReturn listOf("", "non-meal", "uam", "csf")[(step % 4).toInt()]
+            on { pastSensitivity } doReturn listOf("C", "+", "-", "=")[(step % 4).toInt()]
+            on { autosensResult } doReturn AutosensResult(ratio = 0.9 + (step % 3) * 0.1)
+            on { slopeFromMaxDeviation } doReturn (step % 6) * 0.5
+            on { slopeFromMinDeviation } doReturn -(step % 5) * 0.5
+        }
+    }
+
+    private fun builder() = IobAutosensSeriesBuilder(profileFunction, persistenceLayer, overviewMenus, rh, rxBus, dateUtil)
+
+    private fun IobAutosensSeriesBuilder.Series.dump(): List<String> =
+        listOf(iobArray, absIobArray, minFailOverActiveList, cobArray, actArrayHist, actArrayPrediction, bgiArrayHist, bgiArrayPrediction, ratioArray, dsMaxArray, dsMinArray)
+            .map { list -> list.joinToString { "${it.x}/${it.y}" } } +
+            devArray.joinToString { p: DeviationDataPoint -> "${p.x}/${p.y}/${p.color}" } +
+            state.let { "${it.lastIob} ${it.absLastIob} ${it.lastCob} ${it.maxIobValueFound} ${it.maxCobValueFound} ${it.maxIAValue} ${it.maxBGIValue} ${it.maxDevValueFound} ${it.maxRatioValueFound} ${it.minRatioValueFound} ${it.maxFromMaxValueFound} ${it.maxFromMinValueFound}" }
+
+    @Test
+    fun profileIsResolvedOncePerProfileSwitch() {
+        val series = builder().build(iobCobCalculator, overviewData, context) { false }!!
+
+        assertThat(profileLookups).isEqualTo(4)
+        assertThat(series.iobArray).isNotEmpty()
+        assertThat(series.devArray).hasSize(24 * 12 + 1)
+        assertThat(series.actArrayPrediction).hasSize(3 * 12)
+    }
+
+    @Test
+    fun stoppedBuildReturnsNull() {
+        assertThat(builder().build(iobCobCalculator, overviewData, context) { true }).isNull()
+    }
+
+    @Test
+    fun unchangedHistoryIsReused() {
+        val sut = builder()
+        sut.build(iobCobCalculator, overviewData, context) { false }
+
+        // next BG 5 min later
+        now += T.mins(5).msecs()
+        baseBasalCalculations = 0
+        val series = sut.build(iobCobCalculator, overviewData, context) { false }!!
+
+        // trailing point with new autosens data and future points are calculated again
+        assertThat(baseBasalCalculations).isEqualTo(3 * 12 + 1)
+        assertThat(series.reused).isEqualTo(24 * 12)
+        assertThat(series.dump()).isEqualTo(builder().build(iobCobCalculator, overviewData, context) { false }!!.dump())
+    }
+
+    @Test
+    fun changedHistoryIsCalculatedFromChange() {
+        val sut = builder()
+        sut.build(iobCobCalculator, overviewData, context) { false }
+
+        // treatment entered 4 hours ago, calculator drops newer data
+        val changed = now - T.hours(4).msecs()
+        iobCache.keys.removeIf { it > changed }
+        autosensCache.keys.removeIf { it > changed }
+        val series = sut.build(iobCobCalculator, overviewData, context) { false }!!
+
+        assertThat(series.reused).isEqualTo(20 * 12 + 1)
+        assertThat(series.dump()).isEqualTo(builder().build(iobCobCalculator, overviewData, context) { false }!!.dump())
+    }
+
+    @Test
+    fun otherWindowIsCalculatedAgain() {
+        val sut = builder()
+        sut.build(iobCobCalculator, overviewData, context) { false }
+
+        whenever(overviewData.fromTime).thenReturn(fromTime + T.hours(1).msecs())
+        val series = sut.build(iobCobCalculator, overviewData, context) { false }!!
+
+        assertThat(series.reused).isEqualTo(0)
+        assertThat(series.dump()).isEqualTo(builder().build(iobCobCalculator, overviewData, context) { false }!!.dump())
+    }
+
+    @Test
+    fun overviewAfterResumeCalculatesOnlyNewPoints() {
+        val sut = builder()
+        val points = (overviewData.endTime - fromTime) / T.mins(5).msecs() + 1
+        sut.build(iobCobCalculator, overviewData, context) { false }
+        assertThat(profileLookups).isEqualTo(4)
+
+        now += T.mins(5).msecs()
+        profileLookups = 0
+        baseBasalCalculations = 0
+        sut.build(iobCobCalculator, overviewData, context) { false }
+
+        assertThat(profileLookups).isAtMost(4)
+        assertThat(baseBasalCalculations.toLong()).isLessThan(points / 4)
+    }
+}